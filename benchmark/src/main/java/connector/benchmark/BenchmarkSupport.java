@@ -0,0 +1,89 @@
+/*
+ * The authorship of this project and accompanying materials is held by medshare GmbH, Switzerland.
+ * All rights reserved. https://medshare.net
+ *
+ * Source code, documentation and other resources have been contributed by various people.
+ * Project Team: https://gitlab.com/ehealth-connector/api/wikis/Team/
+ * For exact developer information, please refer to the commit history of the forge.
+ *
+ * This code is made available under the terms of the Eclipse Public License v1.0.
+ *
+ * Accompanying materials are made available under the terms of the Creative Commons
+ * Attribution-ShareAlike 4.0 License.
+ *
+ * This line is intended for UTF-8 encoding checks, do not modify/delete: Ã¤Ã¶Ã¼Ã©Ã¨
+ *
+ */
+package connector.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import connector.StubXdsServer;
+
+/**
+ * Helpers shared by the benchmarks.
+ */
+final class BenchmarkSupport {
+
+	/** The assigning authority of the benchmark patients. */
+	static final String PATIENT_OID = "1.2.40.0.34.99.4613.3.4";
+
+	/**
+	 * Copies the demo CDA document to a file.
+	 *
+	 * @param target
+	 *            the target file
+	 * @throws IOException
+	 *             if the document cannot be copied
+	 */
+	static void copySeedDocument(Path target) throws IOException {
+		try (InputStream in = StubXdsServer.class
+				.getResourceAsStream(StubXdsServer.SEED_DOCUMENT)) {
+			Files.copy(in, target, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Deletes a directory tree.
+	 *
+	 * @param root
+	 *            the root of the tree
+	 * @param keepRoot
+	 *            true to delete the content only
+	 * @throws IOException
+	 *             if a file cannot be deleted
+	 */
+	static void deleteTree(final Path root, final boolean keepRoot) throws IOException {
+		if (!Files.exists(root)) {
+			return;
+		}
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException exc)
+					throws IOException {
+				if (!keepRoot || !dir.equals(root)) {
+					Files.delete(dir);
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+					throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	private BenchmarkSupport() {
+	}
+
+}
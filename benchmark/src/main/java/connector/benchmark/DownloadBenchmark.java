@@ -0,0 +1,102 @@
+/*
+ * The authorship of this project and accompanying materials is held by medshare GmbH, Switzerland.
+ * All rights reserved. https://medshare.net
+ *
+ * Source code, documentation and other resources have been contributed by various people.
+ * Project Team: https://gitlab.com/ehealth-connector/api/wikis/Team/
+ * For exact developer information, please refer to the commit history of the forge.
+ *
+ * This code is made available under the terms of the Eclipse Public License v1.0.
+ *
+ * Accompanying materials are made available under the terms of the Creative Commons
+ * Attribution-ShareAlike 4.0 License.
+ *
+ * This line is intended for UTF-8 encoding checks, do not modify/delete: Ã¤Ã¶Ã¼Ã©Ã¨
+ *
+ */
+package connector.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import connector.FileSystemDocumentStore;
+import connector.StubXdsServer;
+import connector.XDSConnector;
+
+/**
+ * Measures downloadPatientFiles: ITI-18 reference and metadata queries, ITI-43
+ * retrieves and the store step. Every invocation uses a new patient, so all
+ * documents are retrieved and written.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.SampleTime, Mode.Throughput })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class DownloadBenchmark {
+
+	/** The number of documents per patient. */
+	@Param({ "10", "100" })
+	public int documentsPerPatient;
+
+	/** The size of every document in bytes. */
+	@Param({ "16384", "262144" })
+	public int documentSize;
+
+	/** The stand-in registry and repository. */
+	private StubXdsServer stub;
+
+	/** The connector under test. */
+	private XDSConnector connector;
+
+	/** The root directory of the document store. */
+	private Path storeRoot;
+
+	/** The number of the last patient. */
+	private final AtomicLong patients = new AtomicLong();
+
+	@Benchmark
+	public void downloadPatientFiles() {
+		connector.downloadPatientFiles(BenchmarkSupport.PATIENT_OID,
+				Long.toString(patients.incrementAndGet()));
+	}
+
+	@TearDown(Level.Iteration)
+	public void clearStore() throws IOException {
+		BenchmarkSupport.deleteTree(storeRoot, true);
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		storeRoot = Files.createTempDirectory("xds-benchmark-store");
+		System.setProperty(FileSystemDocumentStore.PROPERTY_ROOT, storeRoot.toString());
+		stub = new StubXdsServer(0, documentsPerPatient, documentSize, 0);
+		connector = new XDSConnector(stub.getDomainSettings());
+		connector.warmUp(2);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		stub.stop();
+		BenchmarkSupport.deleteTree(storeRoot, false);
+	}
+
+}
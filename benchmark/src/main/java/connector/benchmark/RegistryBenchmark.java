@@ -0,0 +1,99 @@
+/*
+ * The authorship of this project and accompanying materials is held by medshare GmbH, Switzerland.
+ * All rights reserved. https://medshare.net
+ *
+ * Source code, documentation and other resources have been contributed by various people.
+ * Project Team: https://gitlab.com/ehealth-connector/api/wikis/Team/
+ * For exact developer information, please refer to the commit history of the forge.
+ *
+ * This code is made available under the terms of the Eclipse Public License v1.0.
+ *
+ * Accompanying materials are made available under the terms of the Creative Commons
+ * Attribution-ShareAlike 4.0 License.
+ *
+ * This line is intended for UTF-8 encoding checks, do not modify/delete: Ã¤Ã¶Ã¼Ã©Ã¨
+ *
+ */
+package connector.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import connector.FileSystemDocumentStore;
+import connector.StubXdsServer;
+import connector.XDSConnector;
+
+/**
+ * Measures uploadDocument (ITI-41 with metadata extraction from the demo
+ * discharge letter) and validateNewDocument (ITI-18 lookup of a uniqueId).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.SampleTime, Mode.Throughput })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class RegistryBenchmark {
+
+	/** The stand-in registry and repository. */
+	private StubXdsServer stub;
+
+	/** The connector under test. */
+	private XDSConnector connector;
+
+	/** The working directory holding the store and the upload document. */
+	private Path workDir;
+
+	/** The CDA document uploaded by every invocation. */
+	private Path uploadFile;
+
+	/** The number of the last document. */
+	private final AtomicLong documents = new AtomicLong();
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		workDir = Files.createTempDirectory("xds-benchmark");
+		System.setProperty(FileSystemDocumentStore.PROPERTY_ROOT,
+				workDir.resolve("store").toString());
+		uploadFile = workDir.resolve("upload.xml");
+		BenchmarkSupport.copySeedDocument(uploadFile);
+		stub = new StubXdsServer(0, 10, 0, 0);
+		connector = new XDSConnector(stub.getDomainSettings());
+		connector.warmUp(2);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		stub.stop();
+		BenchmarkSupport.deleteTree(workDir, false);
+	}
+
+	@Benchmark
+	public void uploadDocument() {
+		connector.uploadDocument(BenchmarkSupport.PATIENT_OID, "4711",
+				"1.2.40.0.34.99.4613.9." + documents.incrementAndGet(), uploadFile.toString());
+	}
+
+	@Benchmark
+	public boolean validateNewDocument() {
+		return connector.validateNewDocument(BenchmarkSupport.PATIENT_OID, "4711",
+				"1.2.40.0.34.99.4613.9." + documents.incrementAndGet());
+	}
+
+}
@@ -0,0 +1,95 @@
+#!/bin/sh
+#
+# Starts the connector with a class data sharing (AppCDS) archive.
+#
+#   bin/connector.sh archive   training run of StartupWarmUp against the stub
+#                              registry/repository, writes the archive
+#   bin/connector.sh start     starts the gateway (fast startup mode), with
+#                              the archive if present
+#   bin/connector.sh measure   time to the first successful call with and
+#                              without the archive
+#
+# The default class path needs mvn install in this directory and in stub/.
+# CONNECTOR_CLASSPATH overrides the class path (jar files only, the archive
+# is only used with the class path it was created with), JAVA_OPTS adds JVM
+# options, CONNECTOR_ARCHIVE the location of the archive.
+
+set -e
+cd "$(dirname "$0")/.."
+
+JAVA=${JAVA:-java}
+ARCHIVE=${CONNECTOR_ARCHIVE:-target/connector.jsa}
+CLASSPATH=${CONNECTOR_CLASSPATH:-target/connector-0.0.1-SNAPSHOT.jar:ref-client-0.0.2-SNAPSHOT-jar-with-dependencies.jar:$HOME/.m2/repository/net/sf/py4j/py4j/0.10.9.1/py4j-0.10.9.1.jar:stub/target/connector-stub-0.0.1-SNAPSHOT.jar}
+
+has_flag() {
+	"$JAVA" -XX:+PrintFlagsFinal -version 2>/dev/null | grep -q " $1 "
+}
+
+archive() {
+	mkdir -p "$(dirname "$ARCHIVE")"
+	rm -f "$ARCHIVE"
+	if has_flag ArchiveClassesAtExit; then
+		# JDK 13+: dynamic archive of the classes loaded by the training run
+		"$JAVA" $JAVA_OPTS -XX:ArchiveClassesAtExit="$ARCHIVE" -cp "$CLASSPATH" \
+			connector.StartupWarmUp
+	elif has_flag SharedClassListFile; then
+		# JDK 10-12: class list of the training run, then a static dump
+		"$JAVA" $JAVA_OPTS -Xshare:off -XX:DumpLoadedClassList="$ARCHIVE.classlist" \
+			-cp "$CLASSPATH" connector.StartupWarmUp
+		"$JAVA" $JAVA_OPTS -Xshare:dump -XX:SharedClassListFile="$ARCHIVE.classlist" \
+			-XX:SharedArchiveFile="$ARCHIVE" -cp "$CLASSPATH"
+	else
+		echo "This JVM cannot archive application classes (JDK 10 or newer needed)" >&2
+		exit 1
+	fi
+	echo "Archive: $ARCHIVE"
+}
+
+share_opts() {
+	if [ -f "$ARCHIVE" ]; then
+		echo "-XX:SharedArchiveFile=$ARCHIVE -Xshare:auto"
+	fi
+}
+
+# Runs the warm-up once with the given JVM options and prints its timing
+# lines. A failed run or one without timing lines ends the measurement, so a
+# missing build is not mistaken for a result.
+measure_run() {
+	if ! output=$("$JAVA" "$@" -cp "$CLASSPATH" connector.StartupWarmUp 2>&1); then
+		echo "$output" >&2
+		echo "MEASUREMENT FAILED: the warm-up run ended with an error" >&2
+		exit 1
+	fi
+	timings=$(echo "$output" | grep -E "^(Warm-up: first|First successful)" || true)
+	if [ -z "$timings" ]; then
+		echo "$output" >&2
+		echo "MEASUREMENT FAILED: the warm-up run printed no timings" >&2
+		exit 1
+	fi
+	echo "$timings"
+}
+
+case "$1" in
+archive)
+	archive
+	;;
+start)
+	shift
+	exec "$JAVA" $(share_opts) -Dconnector.startup.mode=fast $JAVA_OPTS \
+		-cp "$CLASSPATH" connector.XDSConnector "$@"
+	;;
+measure)
+	echo "Without archive:"
+	measure_run -Xshare:off $JAVA_OPTS
+	if [ -f "$ARCHIVE" ]; then
+		echo "With archive $ARCHIVE:"
+		measure_run $(share_opts) $JAVA_OPTS
+	else
+		echo "No archive, run bin/connector.sh archive first"
+	fi
+	;;
+*)
+	echo "usage: $0 archive|start|measure [arguments]" >&2
+	exit 2
+	;;
+esac
@@ -0,0 +1,83 @@
+/*
+ * The authorship of this project and accompanying materials is held by medshare GmbH, Switzerland.
+ * All rights reserved. https://medshare.net
+ *
+ * Source code, documentation and other resources have been contributed by various people.
+ * Project Team: https://gitlab.com/ehealth-connector/api/wikis/Team/
+ * For exact developer information, please refer to the commit history of the forge.
+ *
+ * This code is made available under the terms of the Eclipse Public License v1.0.
+ *
+ * Accompanying materials are made available under the terms of the Creative Commons
+ * Attribution-ShareAlike 4.0 License.
+ *
+ * This line is intended for UTF-8 encoding checks, do not modify/delete: Ã¤Ã¶Ã¼Ã©Ã¨
+ *
+ */
+package connector;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <div class="en">Batch size that adapts to the repository: it grows by one
+ * after every successful batch up to the maximum and is halved whenever a
+ * batch is rejected or times out.</div>
+ */
+public class AdaptiveBatchSize {
+
+	/** The largest batch size. */
+	private final int max;
+
+	/** The current batch size. */
+	private final AtomicInteger current;
+
+	/**
+	 * Instantiates a new adaptive batch size, starting at the maximum.
+	 *
+	 * @param max
+	 *            the largest batch size
+	 */
+	public AdaptiveBatchSize(int max) {
+		this.max = Math.max(1, max);
+		this.current = new AtomicInteger(this.max);
+	}
+
+	public int get() {
+		return current.get();
+	}
+
+	public int getMax() {
+		return max;
+	}
+
+	/**
+	 * Halves the batch size after a failed batch.
+	 *
+	 * @param failedSize
+	 *            the size of the failed batch
+	 */
+	public void onFailure(int failedSize) {
+		final int reduced = Math.max(1, failedSize / 2);
+		int size;
+		do {
+			size = current.get();
+			if (size <= reduced) {
+				return;
+			}
+		} while (!current.compareAndSet(size, reduced));
+	}
+
+	/**
+	 * Grows the batch size by one after a successful batch.
+	 */
+	public void onSuccess() {
+		int size;
+		do {
+			size = current.get();
+			if (size >= max) {
+				return;
+			}
+		} while (!current.compareAndSet(size, size + 1));
+	}
+
+}
@@ -0,0 +1,211 @@
+/*
+ * The authorship of this project and accompanying materials is held by medshare GmbH, Switzerland.
+ * All rights reserved. https://medshare.net
+ *
+ * Source code, documentation and other resources have been contributed by various people.
+ * Project Team: https://gitlab.com/ehealth-connector/api/wikis/Team/
+ * For exact developer information, please refer to the commit history of the forge.
+ *
+ * This code is made available under the terms of the Eclipse Public License v1.0.
+ *
+ * Accompanying materials are made available under the terms of the Creative Commons
+ * Attribution-ShareAlike 4.0 License.
+ *
+ * This line is intended for UTF-8 encoding checks, do not modify/delete: Ã¤Ã¶Ã¼Ã©Ã¨
+ *
+ */
+package connector;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <div class="en">Runs connector calls on a bounded worker pool and keeps
+ * their job handles for polling. The jobs wait in a bounded queue; if the
+ * queue is full, a submission waits up to the submit timeout for a free slot
+ * and is rejected afterwards, so a caller firing off more jobs than the
+ * endpoints can handle is slowed down instead of piling up work.</div>
+ */
+public class AsyncJobExecutor {
+
+	/** The system property holding the number of workers. */
+	public static final String PROPERTY_THREADS = "connector.async.threads";
+
+	/** The system property holding the capacity of the job queue. */
+	public static final String PROPERTY_QUEUE_CAPACITY = "connector.async.queueCapacity";
+
+	/** The system property holding the submit timeout in milliseconds. */
+	public static final String PROPERTY_SUBMIT_TIMEOUT = "connector.async.submitTimeout";
+
+	/** The system property holding the retention of completed jobs in milliseconds. */
+	public static final String PROPERTY_RETENTION = "connector.async.retention";
+
+	/** The workers running the jobs. */
+	private final ThreadPoolExecutor executor;
+
+	/** The jobs not yet collected, by id. */
+	private final Map<String, ConnectorJob> jobs = new ConcurrentHashMap<String, ConnectorJob>();
+
+	/** The number of the last job. */
+	private final AtomicLong jobCounter = new AtomicLong();
+
+	/** The time completed jobs are kept for polling in milliseconds. */
+	private final long retentionMillis;
+
+	/**
+	 * Instantiates a new executor.
+	 *
+	 * @param threads
+	 *            the number of workers
+	 * @param queueCapacity
+	 *            the maximum number of queued jobs
+	 * @param submitTimeoutMillis
+	 *            the time a submission waits for a free queue slot
+	 * @param retentionMillis
+	 *            the time completed jobs are kept for polling
+	 */
+	public AsyncJobExecutor(int threads, int queueCapacity, final long submitTimeoutMillis,
+			long retentionMillis) {
+		this.retentionMillis = retentionMillis;
+		final AtomicInteger counter = new AtomicInteger();
+		final ThreadFactory threadFactory = runnable -> {
+			final Thread thread = new Thread(runnable, "xds-async-" + counter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+		executor = new ThreadPoolExecutor(Math.max(1, threads), Math.max(1, threads), 0L,
+				TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(Math.max(1, queueCapacity)),
+				threadFactory, (runnable, pool) -> {
+					// back-pressure: wait for a free slot instead of failing at once
+					try {
+						if (!pool.isShutdown() && pool.getQueue().offer(runnable,
+								submitTimeoutMillis, TimeUnit.MILLISECONDS)) {
+							return;
+						}
+					} catch (final InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					throw new RejectedExecutionException("job queue full");
+				});
+		// all workers exist up front, so jobs offered directly to the queue are picked up
+		executor.prestartAllCoreThreads();
+	}
+
+	/**
+	 * Gets the job with the given id.
+	 *
+	 * @param jobId
+	 *            the id of the job
+	 * @return the job, null if unknown or already collected
+	 */
+	public ConnectorJob getJob(String jobId) {
+		return jobs.get(jobId);
+	}
+
+	/**
+	 * Gets the number of jobs that are queued or running.
+	 *
+	 * @return the number of pending jobs
+	 */
+	public int getPendingCount() {
+		return executor.getQueue().size() + executor.getActiveCount();
+	}
+
+	/**
+	 * Removes a job, typically after its result was collected.
+	 *
+	 * @param jobId
+	 *            the id of the job
+	 * @return the removed job, null if unknown
+	 */
+	public ConnectorJob removeJob(String jobId) {
+		return jobs.remove(jobId);
+	}
+
+	/**
+	 * Stops the workers. Queued jobs are cancelled, running jobs are
+	 * interrupted.
+	 */
+	public void shutdown() {
+		executor.shutdownNow();
+		for (final ConnectorJob job : jobs.values()) {
+			job.cancel();
+		}
+	}
+
+	/**
+	 * Queues a connector call.
+	 *
+	 * @param operation
+	 *            the name of the connector call
+	 * @param call
+	 *            the call
+	 * @param callback
+	 *            notified on completion, may be null
+	 * @return the job
+	 * @throws RejectedExecutionException
+	 *             if the queue stayed full for the submit timeout
+	 */
+	public ConnectorJob submit(String operation, final Callable<?> call,
+			final JobCallback callback) {
+		evictCompleted();
+		final ConnectorJob job = new ConnectorJob(
+				operation + "-" + jobCounter.incrementAndGet(), operation);
+		if (callback != null) {
+			job.getFuture().whenComplete((result, cause) -> {
+				try {
+					callback.jobCompleted(job);
+				} catch (final RuntimeException e) {
+					// the Python side may be gone, the job stays pollable
+					e.printStackTrace();
+				}
+			});
+		}
+		jobs.put(job.getId(), job);
+		final String correlationId = XdsMetrics.getCorrelationId();
+		try {
+			executor.execute(() -> run(job, call, correlationId));
+		} catch (final RejectedExecutionException e) {
+			jobs.remove(job.getId());
+			throw e;
+		}
+		return job;
+	}
+
+	private void evictCompleted() {
+		final long now = System.currentTimeMillis();
+		for (final Iterator<ConnectorJob> it = jobs.values().iterator(); it.hasNext();) {
+			final ConnectorJob job = it.next();
+			if (job.isDone() && (now - job.getCompletedMillis() > retentionMillis)) {
+				it.remove();
+			}
+		}
+	}
+
+	private static void run(ConnectorJob job, Callable<?> call, String correlationId) {
+		if (!job.started()) {
+			return;
+		}
+		XdsMetrics.setCorrelationId(correlationId);
+		try {
+			job.completed(call.call());
+		} catch (final Exception e) {
+			job.failed(e);
+		} finally {
+			job.stopped();
+			XdsMetrics.setCorrelationId(null);
+			// a cancel racing the completion must not hit the next job
+			Thread.interrupted();
+		}
+	}
+
+}
@@ -0,0 +1,367 @@
+/*
+ * The authorship of this project and accompanying materials is held by medshare GmbH, Switzerland.
+ * All rights reserved. https://medshare.net
+ *
+ * Source code, documentation and other resources have been contributed by various people.
+ * Project Team: https://gitlab.com/ehealth-connector/api/wikis/Team/
+ * For exact developer information, please refer to the commit history of the forge.
+ *
+ * This code is made available under the terms of the Eclipse Public License v1.0.
+ *
+ * Accompanying materials are made available under the terms of the Creative Commons
+ * Attribution-ShareAlike 4.0 License.
+ *
+ * This line is intended for UTF-8 encoding checks, do not modify/delete: Ã¤Ã¶Ã¼Ã©Ã¨
+ *
+ */
+package connector;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.ehealth_connector.communication.DocumentRequest;
+import org.openhealthtools.ihe.xds.document.XDSDocument;
+import org.openhealthtools.ihe.xds.metadata.DocumentEntryType;
+import org.openhealthtools.ihe.xds.response.XDSRetrieveResponseType;
+
+/**
+ * <div class="en">Retrieves documents with ITI-43 requests carrying several
+ * DocumentRequests each and stores them. Requests are grouped per
+ * repositoryUniqueId, the returned attachments are matched back by document
+ * uniqueId. The batch size adapts per repository: a batch the repository
+ * refused or did not answer in time is split and retried in halves. The
+ * transport has retried the batch by then, so each half is sent once, without
+ * retries of its own. A batch answered with registry errors is not split, and
+ * an open circuit ends the retrieve at once.</div>
+ */
+public class BatchRetriever {
+
+	/** A document to retrieve. */
+	public static class Item {
+
+		/**
+		 * Creates the item of a document entry.
+		 *
+		 * @param docEntry
+		 *            the document entry
+		 * @return the item
+		 */
+		public static Item of(DocumentEntryType docEntry) {
+			return new Item(docEntry.getPatientId().getIdNumber(),
+					docEntry.getRepositoryUniqueId(), docEntry.getUniqueId());
+		}
+
+		/** The patient id the document is stored for. */
+		private final String patientId;
+
+		/** The repository holding the document. */
+		private final String repositoryUniqueId;
+
+		/** The uniqueId of the document. */
+		private final String documentId;
+
+		public Item(String patientId, String repositoryUniqueId, String documentId) {
+			this.patientId = patientId;
+			this.repositoryUniqueId = repositoryUniqueId;
+			this.documentId = documentId;
+		}
+
+		public String getDocumentId() {
+			return documentId;
+		}
+
+		public String getPatientId() {
+			return patientId;
+		}
+
+		public String getRepositoryUniqueId() {
+			return repositoryUniqueId;
+		}
+	}
+
+	/** The outcome of a retrieve request. */
+	private enum Outcome {
+		/** The repository answered with documents. */
+		RETRIEVED,
+		/** The request was refused or timed out, smaller requests may pass. */
+		TOO_LARGE,
+		/** The repository answered with errors, smaller requests will not help. */
+		FAILED,
+		/** The circuit of the repository is open. */
+		CIRCUIT_OPEN
+	}
+
+	/** System property holding the maximum number of documents per request. */
+	public static final String PROPERTY_BATCH_SIZE = "connector.retrieve.batchSize";
+
+	/** The store receiving the documents. */
+	private final DocumentStore documentStore;
+
+	/** Sends the retrieves. */
+	private final ResilientTransport transport;
+
+	/** Records the retrieves and store steps. */
+	private final XdsMetrics metrics;
+
+	/** The maximum number of documents per request. */
+	private final int maxBatchSize;
+
+	/** The batch size per repositoryUniqueId. */
+	private final ConcurrentMap<String, AdaptiveBatchSize> batchSizes = new ConcurrentHashMap<String, AdaptiveBatchSize>();
+
+	/**
+	 * Instantiates a new batch retriever.
+	 *
+	 * @param documentStore
+	 *            the store receiving the documents
+	 * @param transport
+	 *            sends the retrieves
+	 * @param metrics
+	 *            records the retrieves and store steps
+	 * @param maxBatchSize
+	 *            the maximum number of documents per request
+	 */
+	public BatchRetriever(DocumentStore documentStore, ResilientTransport transport,
+			XdsMetrics metrics, int maxBatchSize) {
+		this.documentStore = documentStore;
+		this.transport = transport;
+		this.metrics = metrics;
+		this.maxBatchSize = Math.max(1, maxBatchSize);
+	}
+
+	/**
+	 * Gets the current batch size used for a repository.
+	 *
+	 * @param repositoryUniqueId
+	 *            the repositoryUniqueId
+	 * @return the current batch size
+	 */
+	public int getBatchSize(String repositoryUniqueId) {
+		return batchSize(repositoryUniqueId).get();
+	}
+
+	/**
+	 * Retrieves and stores the documents.
+	 *
+	 * @param client
+	 *            the consumer client of the calling thread
+	 * @param repositoryUri
+	 *            the ITI-43 endpoint
+	 * @param items
+	 *            the documents to retrieve
+	 * @return the store result per document uniqueId, null for documents that
+	 *         could not be retrieved or stored
+	 * @throws InterruptedException
+	 *             if the thread was interrupted while waiting for the
+	 *             repository
+	 */
+	public Map<String, StoreResult> retrieveAndStore(PooledClient client,
+			URI repositoryUri, List<Item> items) throws InterruptedException {
+		return retrieveAndStore(client, repositoryUri, items, FetchThrottle.NONE);
+	}
+
+	/**
+	 * Retrieves and stores the documents, asking the throttle before every
+	 * request.
+	 *
+	 * @param client
+	 *            the consumer client of the calling thread
+	 * @param repositoryUri
+	 *            the ITI-43 endpoint
+	 * @param items
+	 *            the documents to retrieve
+	 * @param throttle
+	 *            paces the requests, split batches included
+	 * @return the store result per document uniqueId, null for documents that
+	 *         could not be retrieved or stored
+	 * @throws InterruptedException
+	 *             if the thread was interrupted while waiting for the
+	 *             repository or the throttle
+	 */
+	public Map<String, StoreResult> retrieveAndStore(PooledClient client,
+			URI repositoryUri, List<Item> items, FetchThrottle throttle)
+			throws InterruptedException {
+		final Map<String, List<Item>> byRepository = new LinkedHashMap<String, List<Item>>();
+		for (final Item item : items) {
+			List<Item> group = byRepository.get(item.getRepositoryUniqueId());
+			if (group == null) {
+				group = new ArrayList<Item>();
+				byRepository.put(item.getRepositoryUniqueId(), group);
+			}
+			group.add(item);
+		}
+
+		final Map<String, StoreResult> results = new HashMap<String, StoreResult>(
+				items.size() * 2);
+		for (final Map.Entry<String, List<Item>> group : byRepository.entrySet()) {
+			final AdaptiveBatchSize batchSize = batchSize(group.getKey());
+			final List<Item> pending = group.getValue();
+			int offset = 0;
+			while (offset < pending.size()) {
+				final int end = Math.min(pending.size(), offset + batchSize.get());
+				final List<Item> batch = pending.subList(offset, end);
+				Outcome outcome = retrieveBatch(client, repositoryUri, batch, true, throttle,
+						results);
+				if (outcome == Outcome.RETRIEVED) {
+					batchSize.onSuccess();
+				} else if (outcome == Outcome.TOO_LARGE) {
+					// once per batch, the halves below must not shrink it again
+					batchSize.onFailure(batch.size());
+					outcome = retrieveHalves(client, repositoryUri, batch, throttle, results);
+				}
+				if (outcome == Outcome.CIRCUIT_OPEN) {
+					skipUnresolved(items, results);
+					return results;
+				}
+				offset = end;
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Retrieves a refused batch in halves, splitting further while requests
+	 * are refused. Every half is a single attempt: the refused batch was
+	 * retried by the transport already.
+	 *
+	 * @return CIRCUIT_OPEN if the circuit opened, FAILED if a document was
+	 *         not retrieved, RETRIEVED otherwise
+	 */
+	private Outcome retrieveHalves(PooledClient client, URI repositoryUri, List<Item> batch,
+			FetchThrottle throttle, Map<String, StoreResult> results)
+			throws InterruptedException {
+		if (batch.size() == 1) {
+			results.put(batch.get(0).getDocumentId(), null);
+			return Outcome.FAILED;
+		}
+		final int half = batch.size() / 2;
+		Outcome overall = Outcome.RETRIEVED;
+		for (final List<Item> part : Arrays.asList(batch.subList(0, half),
+				batch.subList(half, batch.size()))) {
+			Outcome outcome = retrieveBatch(client, repositoryUri, part, false, throttle,
+					results);
+			if (outcome == Outcome.TOO_LARGE) {
+				outcome = retrieveHalves(client, repositoryUri, part, throttle, results);
+			}
+			if (outcome == Outcome.CIRCUIT_OPEN) {
+				return outcome;
+			}
+			if (outcome == Outcome.FAILED) {
+				overall = outcome;
+			}
+		}
+		return overall;
+	}
+
+	/** Records the documents not retrieved so far as failed. */
+	private static void skipUnresolved(List<Item> items, Map<String, StoreResult> results) {
+		for (final Item item : items) {
+			if (!results.containsKey(item.getDocumentId())) {
+				results.put(item.getDocumentId(), null);
+			}
+		}
+	}
+
+	private AdaptiveBatchSize batchSize(String repositoryUniqueId) {
+		final String key = String.valueOf(repositoryUniqueId);
+		AdaptiveBatchSize batchSize = batchSizes.get(key);
+		if (batchSize == null) {
+			final AdaptiveBatchSize created = new AdaptiveBatchSize(maxBatchSize);
+			batchSize = batchSizes.putIfAbsent(key, created);
+			if (batchSize == null) {
+				batchSize = created;
+			}
+		}
+		return batchSize;
+	}
+
+	/**
+	 * Sends one request. Documents of a batch that was answered are recorded
+	 * in the results, a refused or unsent batch is left to the caller.
+	 *
+	 * @param retry
+	 *            true to let the transport retry the request, false for a
+	 *            single attempt
+	 */
+	private Outcome retrieveBatch(PooledClient client, URI repositoryUri, List<Item> batch,
+			boolean retry, FetchThrottle throttle, Map<String, StoreResult> results)
+			throws InterruptedException {
+		final DocumentRequest[] requests = new DocumentRequest[batch.size()];
+		for (int i = 0; i < requests.length; i++) {
+			requests[i] = new DocumentRequest(batch.get(i).getRepositoryUniqueId(),
+					repositoryUri, batch.get(i).getDocumentId());
+		}
+
+		throttle.beforeRetrieve(batch.size());
+		final XDSRetrieveResponseType rrt;
+		try {
+			rrt = transport.execute(client, repositoryUri, XdsMetrics.Transaction.ITI43_RETRIEVE,
+					retry, conCom -> conCom.retrieveDocuments(requests));
+		} catch (final XdsTransportException e) {
+			System.out.print("RETRIEVE OF " + batch.size() + " DOCUMENTS FAILED: "
+					+ e.getMessage() + "\n");
+			return e.getReason() == XdsTransportException.Reason.CIRCUIT_OPEN
+					? Outcome.CIRCUIT_OPEN
+					: Outcome.TOO_LARGE;
+		}
+
+		final boolean answered = (rrt.getAttachments() != null)
+				&& !rrt.getAttachments().isEmpty();
+		if (!answered) {
+			System.out.print("RETRIEVE OF " + batch.size() + " DOCUMENTS RETURNED NO DOCUMENT: "
+					+ (rrt.getStatus() == null ? null : rrt.getStatus().getName()) + "\n");
+		}
+
+		final Map<String, Item> byDocumentId = new HashMap<String, Item>(batch.size() * 2);
+		for (final Item item : batch) {
+			byDocumentId.put(item.getDocumentId(), item);
+		}
+		final List<XDSDocument> attachments = answered ? rrt.getAttachments()
+				: Collections.<XDSDocument> emptyList();
+		for (final XDSDocument document : attachments) {
+			Item item = byDocumentId.remove(document.getDocumentUniqueId());
+			if ((item == null) && (batch.size() == 1) && (attachments.size() == 1)) {
+				// repositories may omit the uniqueId on a single document
+				item = byDocumentId.remove(batch.get(0).getDocumentId());
+			}
+			if (item != null) {
+				results.put(item.getDocumentId(), store(item, document));
+			}
+		}
+		// documents the repository did not return
+		for (final Item missing : byDocumentId.values()) {
+			results.put(missing.getDocumentId(), null);
+		}
+		return answered ? Outcome.RETRIEVED : Outcome.FAILED;
+	}
+
+	private StoreResult store(Item item, XDSDocument document) {
+		final long start = System.nanoTime();
+		try (InputStream docIS = document.getStream()) {
+			final StoreResult stored = documentStore.store(item.getPatientId(),
+					item.getDocumentId(), docIS);
+			metrics.record(XdsMetrics.Transaction.STORE, stored.getNanos(),
+					XdsMetrics.OUTCOME_OK, stored.getBytes());
+			metrics.addBytes(XdsMetrics.Transaction.ITI43_RETRIEVE, stored.getBytes());
+			DebugLog.log(() -> "Document saved: " + stored);
+			return stored;
+		} catch (final IOException e) {
+			metrics.record(XdsMetrics.Transaction.STORE, System.nanoTime() - start,
+					XdsMetrics.OUTCOME_ERROR, 0);
+			System.out.print("DOCUMENT CANNOT BE STORED: " + item.getDocumentId() + "\n");
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+}
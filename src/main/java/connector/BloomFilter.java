@@ -0,0 +1,91 @@
+/*
+ * The authorship of this project and accompanying materials is held by medshare GmbH, Switzerland.
+ * All rights reserved. https://medshare.net
+ *
+ * Source code, documentation and other resources have been contributed by various people.
+ * Project Team: https://gitlab.com/ehealth-connector/api/wikis/Team/
+ * For exact developer information, please refer to the commit history of the forge.
+ *
+ * This code is made available under the terms of the Eclipse Public License v1.0.
+ *
+ * Accompanying materials are made available under the terms of the Creative Commons
+ * Attribution-ShareAlike 4.0 License.
+ *
+ * This line is intended for UTF-8 encoding checks, do not modify/delete: Ã¤Ã¶Ã¼Ã©Ã¨
+ *
+ */
+package connector;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <div class="en">Thread safe Bloom filter over 128 bit hashes. The bit
+ * positions are derived by double hashing, so adding and testing a key does
+ * not allocate.</div>
+ */
+public class BloomFilter {
+
+	/** The bits. */
+	private final AtomicLongArray bits;
+
+	/** The number of bits. */
+	private final long bitCount;
+
+	/** The number of bits set per key. */
+	private final int hashCount;
+
+	/**
+	 * Instantiates a filter for about 1% false positives.
+	 *
+	 * @param expectedKeys
+	 *            the number of keys the filter is sized for
+	 */
+	public BloomFilter(long expectedKeys) {
+		// 10 bits and 7 hashes per key give a false positive rate below 1%
+		final long words = Math.max(1, (Math.max(1024, expectedKeys) * 10 + 63) / 64);
+		this.bits = new AtomicLongArray((int) Math.min(Integer.MAX_VALUE - 8, words));
+		this.bitCount = this.bits.length() * 64L;
+		this.hashCount = 7;
+	}
+
+	/**
+	 * Adds a key.
+	 *
+	 * @param h1
+	 *            the first 64 bits of the hash of the key
+	 * @param h2
+	 *            the second 64 bits of the hash of the key
+	 */
+	public void add(long h1, long h2) {
+		for (int i = 0; i < hashCount; i++) {
+			final long bit = Long.remainderUnsigned(h1 + (i * h2), bitCount);
+			final int word = (int) (bit >>> 6);
+			final long mask = 1L << bit;
+			long current = bits.get(word);
+			while (((current & mask) == 0) && !bits.compareAndSet(word, current, current | mask)) {
+				current = bits.get(word);
+			}
+		}
+	}
+
+	/**
+	 * Tests a key.
+	 *
+	 * @param h1
+	 *            the first 64 bits of the hash of the key
+	 * @param h2
+	 *            the second 64 bits of the hash of the key
+	 * @return false if the key was certainly not added, true if it probably
+	 *         was
+	 */
+	public boolean mightContain(long h1, long h2) {
+		for (int i = 0; i < hashCount; i++) {
+			final long bit = Long.remainderUnsigned(h1 + (i * h2), bitCount);
+			if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+}
@@ -0,0 +1,137 @@
+/*
+ * The authorship of this project and accompanying materials is held by medshare GmbH, Switzerland.
+ * All rights reserved. https://medshare.net
+ *
+ * Source code, documentation and other resources have been contributed by various people.
+ * Project Team: https://gitlab.com/ehealth-connector/api/wikis/Team/
+ * For exact developer information, please refer to the commit history of the forge.
+ *
+ * This code is made available under the terms of the Eclipse Public License v1.0.
+ *
+ * Accompanying materials are made available under the terms of the Creative Commons
+ * Attribution-ShareAlike 4.0 License.
+ *
+ * This line is intended for UTF-8 encoding checks, do not modify/delete: Ã¤Ã¶Ã¼Ã©Ã¨
+ *
+ */
+package connector;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.ehealth_connector.common.mdht.Identificator;
+
+/**
+ * <div class="en">Downloads the documents of many patients concurrently. Each
+ * patient is processed by one task of the executor; the registry and
+ * repository calls of all tasks are throttled by the endpoint limiter of the
+ * connector.</div>
+ */
+public class BulkDownloader {
+
+	/**
+	 * Creates an executor for bulk downloads.
+	 *
+	 * @param threads
+	 *            the number of platform threads
+	 * @param virtualThreads
+	 *            true to start a virtual thread per task; falls back to
+	 *            platform threads if the running JVM has no virtual threads
+	 * @return the executor
+	 */
+	public static ExecutorService newExecutor(int threads, boolean virtualThreads) {
+		if (virtualThreads) {
+			try {
+				final Method factory = Executors.class
+						.getMethod("newVirtualThreadPerTaskExecutor");
+				return (ExecutorService) factory.invoke(null);
+			} catch (final ReflectiveOperationException e) {
+				System.out.println("Virtual threads not available, using " + threads
+						+ " platform threads");
+			}
+		}
+		final AtomicInteger counter = new AtomicInteger();
+		final ThreadFactory threadFactory = runnable -> {
+			final Thread thread = new Thread(runnable, "xds-bulk-" + counter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+		return Executors.newFixedThreadPool(Math.max(1, threads), threadFactory);
+	}
+
+	/** The connector performing the download of a single patient. */
+	private final XDSConnector connector;
+
+	/** The executor running the patient tasks. */
+	private final ExecutorService executor;
+
+	/**
+	 * Instantiates a new bulk downloader.
+	 *
+	 * @param connector
+	 *            the connector
+	 * @param executor
+	 *            the executor running the patient tasks
+	 */
+	public BulkDownloader(XDSConnector connector, ExecutorService executor) {
+		this.connector = connector;
+		this.executor = executor;
+	}
+
+	/**
+	 * Downloads the documents of all given patients and waits for completion.
+	 *
+	 * @param oid
+	 *            the assigning authority of all patient ids
+	 * @param ids
+	 *            the patient ids
+	 * @return one result per patient, in the order of the given ids
+	 */
+	public List<PatientDownloadResult> download(String oid, List<String> ids) {
+		final List<Future<PatientDownloadResult>> futures = new ArrayList<Future<PatientDownloadResult>>(
+				ids.size());
+		final String correlationId = XdsMetrics.getCorrelationId();
+		for (final String id : ids) {
+			futures.add(executor.submit(() -> {
+				XdsMetrics.setCorrelationId(correlationId);
+				try {
+					return connector.fetchPatient(new Identificator(oid, id));
+				} finally {
+					XdsMetrics.setCorrelationId(null);
+				}
+			}));
+		}
+
+		final List<PatientDownloadResult> results = new ArrayList<PatientDownloadResult>(
+				ids.size());
+		for (int i = 0; i < futures.size(); i++) {
+			try {
+				results.add(futures.get(i).get());
+			} catch (final ExecutionException e) {
+				final PatientDownloadResult failed = new PatientDownloadResult(oid, ids.get(i));
+				failed.setError(String.valueOf(e.getCause()));
+				results.add(failed);
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				for (final Future<PatientDownloadResult> future : futures) {
+					future.cancel(true);
+				}
+				for (int j = i; j < futures.size(); j++) {
+					final PatientDownloadResult failed = new PatientDownloadResult(oid, ids.get(j));
+					failed.setError("interrupted");
+					results.add(failed);
+				}
+				break;
+			}
+		}
+		return results;
+	}
+
+}
@@ -0,0 +1,304 @@
+/*
+ * The authorship of this project and accompanying materials is held by medshare GmbH, Switzerland.
+ * All rights reserved. https://medshare.net
+ *
+ * Source code, documentation and other resources have been contributed by various people.
+ * Project Team: https://gitlab.com/ehealth-connector/api/wikis/Team/
+ * For exact developer information, please refer to the commit history of the forge.
+ *
+ * This code is made available under the terms of the Eclipse Public License v1.0.
+ *
+ * Accompanying materials are made available under the terms of the Creative Commons
+ * Attribution-ShareAlike 4.0 License.
+ *
+ * This line is intended for UTF-8 encoding checks, do not modify/delete: Ã¤Ã¶Ã¼Ã©Ã¨
+ *
+ */
+package connector;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.ehealth_connector.common.mdht.Identificator;
+import org.openhealthtools.ihe.xds.response.XDSResponseType;
+import org.openhealthtools.ihe.xds.response.XDSStatusType;
+
+/**
+ * <div class="en">Uploads many CDA documents. The documents are grouped per
+ * patient, packed into ITI-41 submission sets of a configurable size and
+ * submitted concurrently. Every file is read once; content and metadata
+ * extraction share the buffer.</div>
+ */
+public class BulkUploader {
+
+	/** A CDA document to upload. */
+	public static class Item {
+
+		/** The file of the document. */
+		private final Path file;
+
+		/** The patient of the document. */
+		private final Identificator patientId;
+
+		/** The uniqueId of the document. */
+		private final String documentId;
+
+		public Item(Path file, Identificator patientId, String documentId) {
+			this.file = file;
+			this.patientId = patientId;
+			this.documentId = documentId;
+		}
+
+		public String getDocumentId() {
+			return documentId;
+		}
+
+		public Path getFile() {
+			return file;
+		}
+
+		public Identificator getPatientId() {
+			return patientId;
+		}
+	}
+
+	/**
+	 * Lists the CDA documents of a directory. Two layouts are read: the one of
+	 * the document store, <code>patient/patient_document.xml</code> with both
+	 * ids escaped as by FileSystemDocumentStore.toFileName, and plain files
+	 * <code>patientId_documentId.xml</code> directly in the directory, split
+	 * at the first '_' and taken as they are. Other files are ignored.
+	 *
+	 * @param directory
+	 *            the directory
+	 * @param oid
+	 *            the assigning authority of the patient ids
+	 * @return the documents
+	 * @throws IOException
+	 *             if the directory cannot be listed
+	 */
+	public static List<Item> listDirectory(Path directory, String oid) throws IOException {
+		final List<Item> items = new ArrayList<Item>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*_*.xml")) {
+			for (final Path file : files) {
+				if (!Files.isRegularFile(file)) {
+					continue;
+				}
+				final String name = file.getFileName().toString();
+				final int separator = name.indexOf('_');
+				items.add(new Item(file, new Identificator(oid, name.substring(0, separator)),
+						name.substring(separator + 1, name.length() - ".xml".length())));
+			}
+		}
+		try (DirectoryStream<Path> patients = Files.newDirectoryStream(directory,
+				Files::isDirectory)) {
+			for (final Path patient : patients) {
+				listPatientDirectory(patient, oid, items);
+			}
+		}
+		return items;
+	}
+
+	/**
+	 * Lists the documents of a patient directory written by the document
+	 * store. The name of the directory is the escaped patient id and prefixes
+	 * every file name, so the document id is what follows the prefix.
+	 *
+	 * @param directory
+	 *            the patient directory
+	 * @param oid
+	 *            the assigning authority of the patient ids
+	 * @param items
+	 *            receives the documents
+	 * @throws IOException
+	 *             if the directory cannot be listed
+	 */
+	private static void listPatientDirectory(Path directory, String oid, List<Item> items)
+			throws IOException {
+		final String prefix = directory.getFileName().toString() + "_";
+		final String patientId;
+		try {
+			patientId = FileSystemDocumentStore.fromFileName(prefix.substring(0,
+					prefix.length() - 1));
+		} catch (final IllegalArgumentException e) {
+			return;
+		}
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.xml")) {
+			for (final Path file : files) {
+				final String name = file.getFileName().toString();
+				if (!name.startsWith(prefix) || !Files.isRegularFile(file)) {
+					continue;
+				}
+				try {
+					items.add(new Item(file, new Identificator(oid, patientId),
+							FileSystemDocumentStore.fromFileName(name.substring(prefix.length(),
+									name.length() - ".xml".length()))));
+				} catch (final IllegalArgumentException e) {
+					continue;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads a manifest of CDA documents. Each line holds
+	 * <code>file;patientOid;patientId;documentId</code>, empty lines and lines
+	 * starting with # are ignored.
+	 *
+	 * @param manifest
+	 *            the manifest file
+	 * @return the documents
+	 * @throws IOException
+	 *             if the manifest cannot be read or a line is malformed
+	 */
+	public static List<Item> readManifest(Path manifest) throws IOException {
+		final Path base = manifest.toAbsolutePath().getParent();
+		final List<Item> items = new ArrayList<Item>();
+		try (BufferedReader reader = Files.newBufferedReader(manifest, StandardCharsets.UTF_8)) {
+			String line;
+			int number = 0;
+			while ((line = reader.readLine()) != null) {
+				number++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				final String[] fields = line.split(";");
+				if (fields.length != 4) {
+					throw new IOException(manifest + ":" + number
+							+ ": expected file;patientOid;patientId;documentId");
+				}
+				items.add(new Item(base.resolve(fields[0].trim()),
+						new Identificator(fields[1].trim(), fields[2].trim()), fields[3].trim()));
+			}
+		}
+		return items;
+	}
+
+	/** The connector submitting the documents. */
+	private final XDSConnector connector;
+
+	/** The maximum number of documents per submission set. */
+	private final int documentsPerSubmission;
+
+	/** The number of concurrent submissions. */
+	private final int parallelSubmissions;
+
+	/**
+	 * Instantiates a new bulk uploader.
+	 *
+	 * @param connector
+	 *            the connector submitting the documents
+	 * @param documentsPerSubmission
+	 *            the maximum number of documents per submission set
+	 * @param parallelSubmissions
+	 *            the number of concurrent submissions
+	 */
+	public BulkUploader(XDSConnector connector, int documentsPerSubmission,
+			int parallelSubmissions) {
+		this.connector = connector;
+		this.documentsPerSubmission = Math.max(1, documentsPerSubmission);
+		this.parallelSubmissions = Math.max(1, parallelSubmissions);
+	}
+
+	/**
+	 * Uploads the documents and waits for completion.
+	 *
+	 * @param items
+	 *            the documents
+	 * @return one result per document, grouped by submission set
+	 */
+	public List<UploadResult> upload(List<Item> items) {
+		// a submission set belongs to exactly one patient
+		final Map<String, List<Item>> byPatient = new LinkedHashMap<String, List<Item>>();
+		for (final Item item : items) {
+			final String key = item.getPatientId().getRoot() + "/"
+					+ item.getPatientId().getExtension();
+			List<Item> patientItems = byPatient.get(key);
+			if (patientItems == null) {
+				patientItems = new ArrayList<Item>();
+				byPatient.put(key, patientItems);
+			}
+			patientItems.add(item);
+		}
+
+		final ExecutorService executor = BulkDownloader.newExecutor(parallelSubmissions, false);
+		try {
+			final List<Future<List<UploadResult>>> futures = new ArrayList<Future<List<UploadResult>>>();
+			final List<List<Item>> batches = new ArrayList<List<Item>>();
+			for (final List<Item> patientItems : byPatient.values()) {
+				for (int i = 0; i < patientItems.size(); i += documentsPerSubmission) {
+					final List<Item> batch = patientItems.subList(i,
+							Math.min(patientItems.size(), i + documentsPerSubmission));
+					batches.add(batch);
+					futures.add(executor.submit(() -> submit(batch)));
+				}
+			}
+
+			final List<UploadResult> results = new ArrayList<UploadResult>(items.size());
+			for (int i = 0; i < futures.size(); i++) {
+				try {
+					results.addAll(futures.get(i).get());
+				} catch (final ExecutionException e) {
+					results.addAll(failed(batches.get(i), String.valueOf(e.getCause()), 0));
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+					for (int j = i; j < futures.size(); j++) {
+						futures.get(j).cancel(true);
+						results.addAll(failed(batches.get(j), "interrupted", 0));
+					}
+					break;
+				}
+			}
+			return results;
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private static List<UploadResult> failed(List<Item> batch, String error, long elapsed) {
+		final List<UploadResult> results = new ArrayList<UploadResult>(batch.size());
+		for (final Item item : batch) {
+			results.add(new UploadResult(item.getFile().toString(), item.getDocumentId(), null,
+					false, error, elapsed));
+		}
+		return results;
+	}
+
+	private List<UploadResult> submit(List<Item> batch) {
+		final long start = System.nanoTime();
+		final Map<String, byte[]> documents = new LinkedHashMap<String, byte[]>();
+		try {
+			for (final Item item : batch) {
+				documents.put(item.getDocumentId(),
+						XDSConnector.readDocCda(item.getFile().toString()));
+			}
+			final XDSResponseType response = connector
+					.submitDocuments(batch.get(0).getPatientId(), documents);
+			final long elapsed = (System.nanoTime() - start) / 1000000L;
+			final boolean successful = XDSStatusType.SUCCESS_LITERAL
+					.equals(response.getStatus());
+			final List<UploadResult> results = new ArrayList<UploadResult>(batch.size());
+			for (final Item item : batch) {
+				results.add(new UploadResult(item.getFile().toString(), item.getDocumentId(),
+						response.getStatus().getName(), successful, null, elapsed));
+			}
+			return results;
+		} catch (final Exception e) {
+			return failed(batch, e.getMessage() != null ? e.getMessage() : e.toString(),
+					(System.nanoTime() - start) / 1000000L);
+		}
+	}
+
+}
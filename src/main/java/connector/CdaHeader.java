@@ -0,0 +1,168 @@
+/*
+ * The authorship of this project and accompanying materials is held by medshare GmbH, Switzerland.
+ * All rights reserved. https://medshare.net
+ *
+ * Source code, documentation and other resources have been contributed by various people.
+ * Project Team: https://gitlab.com/ehealth-connector/api/wikis/Team/
+ * For exact developer information, please refer to the commit history of the forge.
+ *
+ * This code is made available under the terms of the Eclipse Public License v1.0.
+ *
+ * Accompanying materials are made available under the terms of the Creative Commons
+ * Attribution-ShareAlike 4.0 License.
+ *
+ * This line is intended for UTF-8 encoding checks, do not modify/delete: Ã¤Ã¶Ã¼Ã©Ã¨
+ *
+ */
+package connector;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.ehealth_connector.common.mdht.Identificator;
+
+/**
+ * <div class="en">The header values of a CDA document which are needed for the
+ * XDS metadata of an upload. Values which are not present in the document are
+ * null.</div>
+ */
+public class CdaHeader {
+
+	private String typeCode;
+	private String typeCodeSystem;
+	private String typeDisplayName;
+	private String classCode;
+	private String classCodeSystem;
+	private String classDisplayName;
+	private String title;
+	private Date effectiveTime;
+	private String confidentialityCode;
+	private String languageCode;
+	private final List<Identificator> patientIds = new ArrayList<>();
+	private Identificator authorId;
+	private String authorPrefix;
+	private String authorGiven;
+	private String authorFamily;
+
+	void setTypeCode(String code, String codeSystem, String displayName) {
+		this.typeCode = code;
+		this.typeCodeSystem = codeSystem;
+		this.typeDisplayName = displayName;
+	}
+
+	void setClassCode(String code, String codeSystem, String displayName) {
+		this.classCode = code;
+		this.classCodeSystem = codeSystem;
+		this.classDisplayName = displayName;
+	}
+
+	void setTitle(String title) {
+		this.title = title;
+	}
+
+	void setEffectiveTime(Date effectiveTime) {
+		this.effectiveTime = effectiveTime;
+	}
+
+	void setConfidentialityCode(String confidentialityCode) {
+		this.confidentialityCode = confidentialityCode;
+	}
+
+	void setLanguageCode(String languageCode) {
+		this.languageCode = languageCode;
+	}
+
+	void addPatientId(Identificator id) {
+		patientIds.add(id);
+	}
+
+	void setAuthorId(Identificator authorId) {
+		this.authorId = authorId;
+	}
+
+	void setAuthorName(String prefix, String given, String family) {
+		this.authorPrefix = prefix;
+		this.authorGiven = given;
+		this.authorFamily = family;
+	}
+
+	/** @return the code of the document type (ClinicalDocument/code) */
+	public String getTypeCode() {
+		return typeCode;
+	}
+
+	/** @return the code system of the document type */
+	public String getTypeCodeSystem() {
+		return typeCodeSystem;
+	}
+
+	/** @return the display name of the document type */
+	public String getTypeDisplayName() {
+		return typeDisplayName;
+	}
+
+	/**
+	 * @return the code of the document class, taken from the first translation
+	 *         of the document type
+	 */
+	public String getClassCode() {
+		return classCode;
+	}
+
+	/** @return the code system of the document class */
+	public String getClassCodeSystem() {
+		return classCodeSystem;
+	}
+
+	/** @return the display name of the document class */
+	public String getClassDisplayName() {
+		return classDisplayName;
+	}
+
+	/** @return the title of the document */
+	public String getTitle() {
+		return title;
+	}
+
+	/** @return the creation time of the document */
+	public Date getEffectiveTime() {
+		return effectiveTime;
+	}
+
+	/** @return the confidentiality code, e.g. N */
+	public String getConfidentialityCode() {
+		return confidentialityCode;
+	}
+
+	/** @return the language code, e.g. de-AT */
+	public String getLanguageCode() {
+		return languageCode;
+	}
+
+	/** @return the ids of the patient (recordTarget/patientRole/id) */
+	public List<Identificator> getPatientIds() {
+		return Collections.unmodifiableList(patientIds);
+	}
+
+	/** @return the id of the first author */
+	public Identificator getAuthorId() {
+		return authorId;
+	}
+
+	/** @return the name prefix of the first author, e.g. Dr. */
+	public String getAuthorPrefix() {
+		return authorPrefix;
+	}
+
+	/** @return the given names of the first author */
+	public String getAuthorGiven() {
+		return authorGiven;
+	}
+
+	/** @return the family name of the first author */
+	public String getAuthorFamily() {
+		return authorFamily;
+	}
+}
@@ -0,0 +1,194 @@
+/*
+ * The authorship of this project and accompanying materials is held by medshare GmbH, Switzerland.
+ * All rights reserved. https://medshare.net
+ *
+ * Source code, documentation and other resources have been contributed by various people.
+ * Project Team: https://gitlab.com/ehealth-connector/api/wikis/Team/
+ * For exact developer information, please refer to the commit history of the forge.
+ *
+ * This code is made available under the terms of the Eclipse Public License v1.0.
+ *
+ * Accompanying materials are made available under the terms of the Creative Commons
+ * Attribution-ShareAlike 4.0 License.
+ *
+ * This line is intended for UTF-8 encoding checks, do not modify/delete: Ã¤Ã¶Ã¼Ã©Ã¨
+ *
+ */
+package connector;
+
+import java.io.InputStream;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.ehealth_connector.common.mdht.Identificator;
+
+/**
+ * <div class="en">Reads the header of a CDA document in a single pass with a
+ * streaming parser. The parser stops at the first <code>component</code> of
+ * the ClinicalDocument, so the body of large documents is never read.</div>
+ */
+public final class CdaHeaderExtractor {
+
+	private static final String ROOT = "/ClinicalDocument";
+	private static final String AUTHOR = ROOT + "/author";
+	private static final String ASSIGNED_AUTHOR = AUTHOR + "/assignedAuthor";
+	private static final String AUTHOR_NAME = ASSIGNED_AUTHOR + "/assignedPerson/name";
+
+	private static final XMLInputFactory FACTORY = createFactory();
+
+	private CdaHeaderExtractor() {
+	}
+
+	private static XMLInputFactory createFactory() {
+		final XMLInputFactory factory = XMLInputFactory.newInstance();
+		// a CDA document has no DTD, uploads must not resolve external entities
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+		factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+		return factory;
+	}
+
+	/**
+	 * Extracts the header of a CDA document. The stream is not closed.
+	 *
+	 * @param in
+	 *            the CDA document
+	 * @return the header values
+	 * @throws XMLStreamException
+	 *             if the document is not well-formed
+	 */
+	public static CdaHeader extract(InputStream in) throws XMLStreamException {
+		final CdaHeader header = new CdaHeader();
+		final XMLStreamReader reader = FACTORY.createXMLStreamReader(in);
+		try {
+			String path = "";
+			int authors = 0;
+			String prefix = null;
+			String given = null;
+			String family = null;
+
+			while (reader.hasNext()) {
+				final int event = reader.next();
+				if (event == XMLStreamConstants.END_ELEMENT) {
+					path = path.substring(0, path.lastIndexOf('/'));
+					continue;
+				}
+				if (event != XMLStreamConstants.START_ELEMENT) {
+					continue;
+				}
+				final String name = reader.getLocalName();
+				final String parent = path;
+				path = path + "/" + name;
+
+				if (ROOT.equals(parent)) {
+					if ("component".equals(name)) {
+						break;
+					}
+					if ("author".equals(name)) {
+						authors++;
+					}
+				}
+
+				if ((ROOT + "/code").equals(path)) {
+					header.setTypeCode(attribute(reader, "code"),
+							attribute(reader, "codeSystem"), attribute(reader, "displayName"));
+				} else if ((ROOT + "/code/translation").equals(path)
+						&& header.getClassCode() == null) {
+					header.setClassCode(attribute(reader, "code"),
+							attribute(reader, "codeSystem"), attribute(reader, "displayName"));
+				} else if ((ROOT + "/effectiveTime").equals(path)) {
+					header.setEffectiveTime(parseTimestamp(attribute(reader, "value")));
+				} else if ((ROOT + "/confidentialityCode").equals(path)) {
+					header.setConfidentialityCode(attribute(reader, "code"));
+				} else if ((ROOT + "/languageCode").equals(path)) {
+					header.setLanguageCode(attribute(reader, "code"));
+				} else if ((ROOT + "/recordTarget/patientRole/id").equals(path)) {
+					header.addPatientId(new Identificator(attribute(reader, "root"),
+							attribute(reader, "extension")));
+				} else if ((ROOT + "/title").equals(path)) {
+					header.setTitle(reader.getElementText().trim());
+					path = parent;
+				} else if (authors == 1) {
+					if ((ASSIGNED_AUTHOR + "/id").equals(path) && header.getAuthorId() == null) {
+						header.setAuthorId(new Identificator(attribute(reader, "root"),
+								attribute(reader, "extension")));
+					} else if (parent.equals(AUTHOR_NAME)) {
+						// getElementText consumes the end tag of the element
+						final String text = reader.getElementText().trim();
+						path = parent;
+						if ("prefix".equals(name)) {
+							prefix = join(prefix, text);
+						} else if ("given".equals(name)) {
+							given = join(given, text);
+						} else if ("family".equals(name) && family == null) {
+							family = text;
+						}
+					}
+				}
+			}
+			if ((given != null) || (family != null)) {
+				header.setAuthorName(prefix, given, family);
+			}
+			return header;
+		} finally {
+			reader.close();
+		}
+	}
+
+	private static String attribute(XMLStreamReader reader, String name) {
+		return reader.getAttributeValue(null, name);
+	}
+
+	private static String join(String first, String second) {
+		return (first == null) ? second : first + " " + second;
+	}
+
+	/**
+	 * Parses an HL7 timestamp (YYYYMMDDHHMMSS.UUUU[+|-ZZzz]) of any precision.
+	 *
+	 * @param value
+	 *            the timestamp
+	 * @return the date, null if the value is absent or invalid
+	 */
+	static Date parseTimestamp(String value) {
+		if ((value == null) || value.isEmpty()) {
+			return null;
+		}
+		String digits = value;
+		String zone = null;
+		final int sign = Math.max(value.indexOf('+'), value.indexOf('-'));
+		if (sign > 0) {
+			digits = value.substring(0, sign);
+			zone = value.substring(sign);
+		}
+		final int fraction = digits.indexOf('.');
+		if (fraction > 0) {
+			digits = digits.substring(0, fraction);
+		}
+		final String pattern = "yyyyMMddHHmmss";
+		if ((digits.length() < 4) || (digits.length() > pattern.length())
+				|| (digits.length() % 2 != 0)) {
+			return null;
+		}
+		try {
+			if (zone != null) {
+				final SimpleDateFormat format = new SimpleDateFormat(
+						pattern.substring(0, digits.length()) + "Z");
+				format.setLenient(false);
+				return format.parse(digits + zone);
+			}
+			final SimpleDateFormat format = new SimpleDateFormat(
+					pattern.substring(0, digits.length()));
+			format.setLenient(false);
+			return format.parse(digits);
+		} catch (final ParseException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,169 @@
+/*
+ * The authorship of this project and accompanying materials is held by medshare GmbH, Switzerland.
+ * All rights reserved. https://medshare.net
+ *
+ * Source code, documentation and other resources have been contributed by various people.
+ * Project Team: https://gitlab.com/ehealth-connector/api/wikis/Team/
+ * For exact developer information, please refer to the commit history of the forge.
+ *
+ * This code is made available under the terms of the Eclipse Public License v1.0.
+ *
+ * Accompanying materials are made available under the terms of the Creative Commons
+ * Attribution-ShareAlike 4.0 License.
+ *
+ * This line is intended for UTF-8 encoding checks, do not modify/delete: Ã¤Ã¶Ã¼Ã©Ã¨
+ *
+ */
+package connector;
+
+/**
+ * <div class="en">Circuit breaker of a single registry or repository
+ * endpoint. After a number of consecutive failed calls the circuit opens and
+ * calls fail fast; once the open time has passed a single trial call is let
+ * through, which closes the circuit on success and opens it again on
+ * failure. Responses with a failure status count as success, since the
+ * endpoint answered. A trial that ends without an outcome, e.g. because its
+ * thread was interrupted, is handed back; a trial that is not decided within
+ * the trial timeout is replaced by a new one.</div>
+ */
+public class CircuitBreaker {
+
+	/** The state of the circuit. */
+	public enum State {
+
+		/** Calls pass. */
+		CLOSED,
+
+		/** Calls fail fast. */
+		OPEN,
+
+		/** A single trial call is in progress. */
+		HALF_OPEN
+	}
+
+	/** The number of consecutive failures opening the circuit. */
+	private final int failureThreshold;
+
+	/** The time the circuit stays open in milliseconds. */
+	private final long openMillis;
+
+	/** The time after which an undecided trial is replaced in milliseconds. */
+	private final long trialTimeoutMillis;
+
+	/** The state of the circuit. */
+	private State state = State.CLOSED;
+
+	/** The number of consecutive failures. */
+	private int failures;
+
+	/** The time the circuit was opened. */
+	private long openedAt;
+
+	/** The time the current trial was let through. */
+	private long trialStartedAt;
+
+	/** The thread sending the current trial, null if none. */
+	private Thread trialThread;
+
+	/**
+	 * Instantiates a new circuit breaker.
+	 *
+	 * @param failureThreshold
+	 *            the number of consecutive failures opening the circuit
+	 * @param openMillis
+	 *            the time the circuit stays open in milliseconds
+	 */
+	public CircuitBreaker(int failureThreshold, long openMillis) {
+		this(failureThreshold, openMillis, openMillis);
+	}
+
+	/**
+	 * Instantiates a new circuit breaker.
+	 *
+	 * @param failureThreshold
+	 *            the number of consecutive failures opening the circuit
+	 * @param openMillis
+	 *            the time the circuit stays open in milliseconds
+	 * @param trialTimeoutMillis
+	 *            the time after which a trial without outcome is replaced by
+	 *            a new trial, in milliseconds
+	 */
+	public CircuitBreaker(int failureThreshold, long openMillis, long trialTimeoutMillis) {
+		this.failureThreshold = Math.max(1, failureThreshold);
+		this.openMillis = openMillis;
+		this.trialTimeoutMillis = trialTimeoutMillis;
+	}
+
+	/**
+	 * Checks if a call may be sent to the endpoint.
+	 *
+	 * @return true if the call may be sent, false to fail fast
+	 */
+	public synchronized boolean allowRequest() {
+		final long now = System.currentTimeMillis();
+		switch (state) {
+		case CLOSED:
+			return true;
+		case OPEN:
+			if (now - openedAt >= openMillis) {
+				startTrial(now);
+				return true;
+			}
+			return false;
+		default:
+			// a lost trial must not keep the circuit half open
+			if (now - trialStartedAt >= trialTimeoutMillis) {
+				startTrial(now);
+				return true;
+			}
+			return false;
+		}
+	}
+
+	private void startTrial(long now) {
+		state = State.HALF_OPEN;
+		trialStartedAt = now;
+		trialThread = Thread.currentThread();
+	}
+
+	public synchronized State getState() {
+		return state;
+	}
+
+	/**
+	 * Records a failed call: an exception, a timeout or a missing response.
+	 */
+	public synchronized void onFailure() {
+		failures++;
+		if ((state == State.HALF_OPEN) || (failures >= failureThreshold)) {
+			if (state != State.OPEN) {
+				System.out.println("Circuit opened after " + failures + " failures");
+			}
+			state = State.OPEN;
+			openedAt = System.currentTimeMillis();
+			trialThread = null;
+		}
+	}
+
+	/**
+	 * Hands back the trial of the calling thread, if it sends the current
+	 * trial, after the call ended without outcome. The circuit returns to
+	 * open with the original open time, so the next call becomes the trial.
+	 */
+	public synchronized void releaseTrial() {
+		if ((state == State.HALF_OPEN) && (trialThread == Thread.currentThread())) {
+			state = State.OPEN;
+			trialThread = null;
+		}
+	}
+
+	/**
+	 * Records a call the endpoint answered.
+	 */
+	public synchronized void onSuccess() {
+		failures = 0;
+		state = State.CLOSED;
+		trialThread = null;
+	}
+
+}
@@ -0,0 +1,30 @@
+/*
+ * The authorship of this project and accompanying materials is held by medshare GmbH, Switzerland.
+ * All rights reserved. https://medshare.net
+ *
+ * Source code, documentation and other resources have been contributed by various people.
+ * Project Team: https://gitlab.com/ehealth-connector/api/wikis/Team/
+ * For exact developer information, please refer to the commit history of the forge.
+ *
+ * This code is made available under the terms of the Eclipse Public License v1.0.
+ *
+ * Accompanying materials are made available under the terms of the Creative Commons
+ * Attribution-ShareAlike 4.0 License.
+ *
+ * This line is intended for UTF-8 encoding checks, do not modify/delete: Ã¤Ã¶Ã¼Ã©Ã¨
+ *
+ */
+package connector;
+
+/**
+ * <div class="en">The XDS actor a pooled communication client plays.</div>
+ */
+public enum ClientRole {
+
+	/** Document consumer: ITI-18 registry queries and ITI-43 retrieves. */
+	CONSUMER,
+
+	/** Document source: ITI-41 submissions. */
+	SOURCE
+
+}
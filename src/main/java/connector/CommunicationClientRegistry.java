@@ -0,0 +1,284 @@
+/*
+ * The authorship of this project and accompanying materials is held by medshare GmbH, Switzerland.
+ * All rights reserved. https://medshare.net
+ *
+ * Source code, documentation and other resources have been contributed by various people.
+ * Project Team: https://gitlab.com/ehealth-connector/api/wikis/Team/
+ * For exact developer information, please refer to the commit history of the forge.
+ *
+ * This code is made available under the terms of the Eclipse Public License v1.0.
+ *
+ * Accompanying materials are made available under the terms of the Creative Commons
+ * Attribution-ShareAlike 4.0 License.
+ *
+ * This line is intended for UTF-8 encoding checks, do not modify/delete: Ã¤Ã¶Ã¼Ã©Ã¨
+ *
+ */
+package connector;
+
+import java.net.URISyntaxException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.ehealth_connector.communication.AffinityDomain;
+
+/**
+ * <div class="en">Thread safe registry of preconfigured communication
+ * clients. Building a ConvenienceCommunication sets up the SOAP clients of the
+ * eHealth Connector, so the clients are kept per affinity domain configuration
+ * and role and reused across calls. Idle clients are evicted after a
+ * configurable time.</div>
+ */
+public class CommunicationClientRegistry {
+
+	/**
+	 * The idle clients of one affinity domain configuration and role.
+	 */
+	private static class ClientPool {
+
+		/** The key of the pool. */
+		private final String key;
+
+		/** The key of the affinity domain settings of the pool. */
+		private final String settingsKey;
+
+		/** The maximum number of idle clients. */
+		private volatile int maxIdle;
+
+		/** The affinity domain shared by all clients of the pool. */
+		private final AffinityDomain affinityDomain;
+
+		/** The idle clients, the most recently used first. */
+		private final Deque<PooledClient> idle = new ArrayDeque<PooledClient>();
+
+		ClientPool(String key, String settingsKey, AffinityDomain affinityDomain, int maxIdle) {
+			this.key = key;
+			this.settingsKey = settingsKey;
+			this.affinityDomain = affinityDomain;
+			this.maxIdle = maxIdle;
+		}
+
+		PooledClient borrow() {
+			synchronized (idle) {
+				final PooledClient client = idle.pollFirst();
+				if (client != null) {
+					return client;
+				}
+			}
+			return new PooledClient(key, affinityDomain);
+		}
+
+		int evict(long idleSince) {
+			int evicted = 0;
+			synchronized (idle) {
+				final Iterator<PooledClient> clients = idle.descendingIterator();
+				while (clients.hasNext()) {
+					if (clients.next().getLastReleased() < idleSince) {
+						clients.remove();
+						evicted++;
+					}
+				}
+			}
+			return evicted;
+		}
+
+		void release(PooledClient client) {
+			client.markReleased();
+			synchronized (idle) {
+				if (idle.size() < maxIdle) {
+					idle.addFirst(client);
+				}
+			}
+		}
+
+		int size() {
+			synchronized (idle) {
+				return idle.size();
+			}
+		}
+	}
+
+	/** The pools by affinity domain key and role. */
+	private final ConcurrentMap<String, ClientPool> pools = new ConcurrentHashMap<String, ClientPool>();
+
+	/** The maximum number of idle clients per pool, unless set per domain. */
+	private final int maxIdle;
+
+	/** The time after which an idle client is evicted. */
+	private final long idleTimeoutMillis;
+
+	/** The scheduler running the eviction. */
+	private final ScheduledExecutorService evictor;
+
+	/**
+	 * Instantiates a new registry.
+	 *
+	 * @param maxIdle
+	 *            the maximum number of idle clients per pool
+	 * @param idleTimeoutMillis
+	 *            the time in milliseconds after which an idle client is
+	 *            evicted
+	 */
+	public CommunicationClientRegistry(int maxIdle, long idleTimeoutMillis) {
+		this.maxIdle = maxIdle;
+		this.idleTimeoutMillis = idleTimeoutMillis;
+		this.evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			final Thread thread = new Thread(runnable, "xds-client-evictor");
+			thread.setDaemon(true);
+			return thread;
+		});
+		final long period = Math.max(1000L, idleTimeoutMillis / 2);
+		evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Borrows a client for the given affinity domain and role. A new client is
+	 * created if none is idle.
+	 *
+	 * @param settings
+	 *            the affinity domain settings
+	 * @param role
+	 *            the role of the client
+	 * @return the client, to be handed back by {@link #release(PooledClient)}
+	 * @throws URISyntaxException
+	 *             if one of the endpoints is not a valid uri
+	 */
+	public PooledClient borrow(DomainSettings settings, ClientRole role)
+			throws URISyntaxException {
+		return pool(settings, role).borrow();
+	}
+
+	/**
+	 * Evicts all clients idle for longer than the idle timeout.
+	 *
+	 * @return the number of evicted clients
+	 */
+	public int evictIdle() {
+		final long idleSince = System.currentTimeMillis() - idleTimeoutMillis;
+		int evicted = 0;
+		for (final ClientPool pool : pools.values()) {
+			evicted += pool.evict(idleSince);
+		}
+		return evicted;
+	}
+
+	/**
+	 * Gets the number of idle clients of all pools.
+	 *
+	 * @return the number of idle clients
+	 */
+	public int getIdleCount() {
+		int count = 0;
+		for (final ClientPool pool : pools.values()) {
+			count += pool.size();
+		}
+		return count;
+	}
+
+	private ClientPool pool(DomainSettings settings, ClientRole role)
+			throws URISyntaxException {
+		final String key = settings.getKey() + "|" + role;
+		final int poolMaxIdle = settings.getMaxIdleClients() > 0 ? settings.getMaxIdleClients()
+				: maxIdle;
+		ClientPool pool = pools.get(key);
+		if (pool == null) {
+			final ClientPool created = new ClientPool(key, settings.getKey(),
+					settings.createAffinityDomain(role), poolMaxIdle);
+			pool = pools.putIfAbsent(key, created);
+			if (pool == null) {
+				pool = created;
+			}
+		}
+		pool.maxIdle = poolMaxIdle;
+		return pool;
+	}
+
+	/**
+	 * Hands a borrowed client back to its pool. Pending documents of a source
+	 * client are discarded.
+	 *
+	 * @param client
+	 *            the client, may be null
+	 */
+	public void release(PooledClient client) {
+		if (client == null) {
+			return;
+		}
+		client.getCommunication().clearDocuments();
+		final ClientPool pool = pools.get(client.getPoolKey());
+		if (pool != null) {
+			pool.release(client);
+		}
+	}
+
+	/**
+	 * Retires the pools of affinity domain configurations that are no longer
+	 * in use, e.g. after a configuration reload. Their idle clients are
+	 * dropped; clients still borrowed finish their calls and are dropped when
+	 * released, so no in-flight request is interrupted.
+	 *
+	 * @param active
+	 *            the settings in use
+	 * @return the number of retired pools
+	 */
+	public int retainPools(Collection<DomainSettings> active) {
+		final Set<String> activeKeys = new HashSet<String>();
+		for (final DomainSettings settings : active) {
+			activeKeys.add(settings.getKey());
+		}
+		int retired = 0;
+		for (final Iterator<ClientPool> it = pools.values().iterator(); it.hasNext();) {
+			if (!activeKeys.contains(it.next().settingsKey)) {
+				it.remove();
+				retired++;
+			}
+		}
+		return retired;
+	}
+
+	/**
+	 * Stops the eviction and drops all idle clients.
+	 */
+	public void shutdown() {
+		evictor.shutdownNow();
+		pools.clear();
+	}
+
+	/**
+	 * Creates idle clients ahead of the first call, so the SOAP stack is set
+	 * up before the gateway accepts requests.
+	 *
+	 * @param settings
+	 *            the affinity domain settings
+	 * @param role
+	 *            the role of the clients
+	 * @param count
+	 *            the number of clients to create, at most the maximum idle
+	 *            count
+	 * @throws URISyntaxException
+	 *             if one of the endpoints is not a valid uri
+	 */
+	public void warmUp(DomainSettings settings, ClientRole role, int count)
+			throws URISyntaxException {
+		final ClientPool pool = pool(settings, role);
+		final List<PooledClient> created = new ArrayList<PooledClient>();
+		for (int i = 0; i < Math.min(count, pool.maxIdle); i++) {
+			created.add(pool.borrow());
+		}
+		for (final PooledClient client : created) {
+			pool.release(client);
+		}
+	}
+
+}
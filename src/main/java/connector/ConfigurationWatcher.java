@@ -0,0 +1,119 @@
+/*
+ * The authorship of this project and accompanying materials is held by medshare GmbH, Switzerland.
+ * All rights reserved. https://medshare.net
+ *
+ * Source code, documentation and other resources have been contributed by various people.
+ * Project Team: https://gitlab.com/ehealth-connector/api/wikis/Team/
+ * For exact developer information, please refer to the commit history of the forge.
+ *
+ * This code is made available under the terms of the Eclipse Public License v1.0.
+ *
+ * Accompanying materials are made available under the terms of the Creative Commons
+ * Attribution-ShareAlike 4.0 License.
+ *
+ * This line is intended for UTF-8 encoding checks, do not modify/delete: Ã¤Ã¶Ã¼Ã©Ã¨
+ *
+ */
+package connector;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * <div class="en">Reloads the configuration file when it changes. The file
+ * is polled for its modification time; an invalid file is reported and the
+ * previous configuration stays in effect.</div>
+ */
+public class ConfigurationWatcher {
+
+	/** The configuration file. */
+	private final Path file;
+
+	/** Receives every successfully loaded configuration. */
+	private final Consumer<ConnectorConfiguration> listener;
+
+	/** The scheduler polling the file. */
+	private final ScheduledExecutorService scheduler;
+
+	/** The modification time of the last loaded file. */
+	private FileTime lastModified;
+
+	/**
+	 * Instantiates a new watcher and starts polling.
+	 *
+	 * @param file
+	 *            the configuration file
+	 * @param intervalMillis
+	 *            the polling interval in milliseconds
+	 * @param listener
+	 *            receives every successfully loaded configuration
+	 */
+	public ConfigurationWatcher(Path file, long intervalMillis,
+			Consumer<ConnectorConfiguration> listener) {
+		this.file = file;
+		this.listener = listener;
+		try {
+			this.lastModified = Files.getLastModifiedTime(file);
+		} catch (final IOException e) {
+			this.lastModified = null;
+		}
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			final Thread thread = new Thread(runnable, "xds-config-watcher");
+			thread.setDaemon(true);
+			return thread;
+		});
+		final long period = Math.max(1000L, intervalMillis);
+		scheduler.scheduleWithFixedDelay(this::checkForChange, period, period,
+				TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Reloads the file if it was modified since the last load.
+	 *
+	 * @return true if a new configuration was loaded
+	 */
+	public synchronized boolean checkForChange() {
+		try {
+			final FileTime modified = Files.getLastModifiedTime(file);
+			if (modified.equals(lastModified)) {
+				return false;
+			}
+			lastModified = modified;
+			return reload();
+		} catch (final IOException e) {
+			System.out.print("CONFIGURATION CANNOT BE READ: " + file + "\n");
+			return false;
+		}
+	}
+
+	/**
+	 * Loads the file and passes the configuration to the listener.
+	 *
+	 * @return true if the configuration was loaded
+	 */
+	public synchronized boolean reload() {
+		final ConnectorConfiguration configuration;
+		try {
+			configuration = ConnectorConfiguration.load(file);
+		} catch (final IOException | IllegalArgumentException e) {
+			System.out.print("CONFIGURATION NOT RELOADED: " + e.getMessage() + "\n");
+			return false;
+		}
+		listener.accept(configuration);
+		return true;
+	}
+
+	/**
+	 * Stops polling.
+	 */
+	public void stop() {
+		scheduler.shutdownNow();
+	}
+
+}
@@ -0,0 +1,201 @@
+/*
+ * The authorship of this project and accompanying materials is held by medshare GmbH, Switzerland.
+ * All rights reserved. https://medshare.net
+ *
+ * Source code, documentation and other resources have been contributed by various people.
+ * Project Team: https://gitlab.com/ehealth-connector/api/wikis/Team/
+ * For exact developer information, please refer to the commit history of the forge.
+ *
+ * This code is made available under the terms of the Eclipse Public License v1.0.
+ *
+ * Accompanying materials are made available under the terms of the Creative Commons
+ * Attribution-ShareAlike 4.0 License.
+ *
+ * This line is intended for UTF-8 encoding checks, do not modify/delete: Ã¤Ã¶Ã¼Ã©Ã¨
+ *
+ */
+package connector;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * <div class="en">Immutable snapshot of the connector configuration: the named
+ * affinity domains and the default domain used by the calls without domain
+ * name. Loaded from a properties file like:</div>
+ *
+ * <pre>
+ * connector.defaultDomain=local
+ * domain.local.organizationalId=1.19.6.24.109.42.1
+ * domain.local.registry=http://localhost:9091/xds-iti18
+ * domain.local.repository=http://localhost:9091/xds-iti43
+ * domain.local.submission=http://localhost:9091/xds-iti41
+ * domain.local.keystore=/etc/connector/client.jks
+ * domain.local.keystorePassword=changeit
+ * domain.local.keystoreType=JKS
+ * domain.local.pool.maxIdle=8
+ * domain.local.endpointLimit=4
+ * connector.store.root=/var/lib/connector/downloads
+ * </pre>
+ *
+ * <div class="en">All other <code>connector.*</code> keys are applied as
+ * system properties at startup, unless given on the command line.</div>
+ */
+public class ConnectorConfiguration {
+
+	/** The system property holding the path of the configuration file. */
+	public static final String PROPERTY_FILE = "connector.config";
+
+	/** The system property holding the reload interval in milliseconds. */
+	public static final String PROPERTY_RELOAD_INTERVAL = "connector.config.reloadInterval";
+
+	/** The key of the default domain. */
+	private static final String KEY_DEFAULT_DOMAIN = "connector.defaultDomain";
+
+	/** The prefix of the domain keys. */
+	private static final String DOMAIN_PREFIX = "domain.";
+
+	/**
+	 * Loads the configuration from a properties file.
+	 *
+	 * @param file
+	 *            the properties file
+	 * @return the configuration
+	 * @throws IOException
+	 *             if the file cannot be read
+	 * @throws IllegalArgumentException
+	 *             if a domain is incomplete or the default domain is unknown
+	 */
+	public static ConnectorConfiguration load(Path file) throws IOException {
+		final Properties properties = new Properties();
+		try (InputStream in = Files.newInputStream(file)) {
+			properties.load(in);
+		}
+		return parse(properties);
+	}
+
+	/**
+	 * Creates a configuration of a single affinity domain.
+	 *
+	 * @param settings
+	 *            the affinity domain, also the default domain
+	 * @return the configuration
+	 */
+	public static ConnectorConfiguration of(DomainSettings settings) {
+		final Map<String, DomainSettings> domains = new LinkedHashMap<String, DomainSettings>();
+		domains.put(settings.getName(), settings);
+		return new ConnectorConfiguration(domains, settings.getName(), new Properties());
+	}
+
+	static ConnectorConfiguration parse(Properties properties) {
+		final Map<String, DomainSettings> domains = new LinkedHashMap<String, DomainSettings>();
+		for (final String key : properties.stringPropertyNames()) {
+			if (key.startsWith(DOMAIN_PREFIX) && key.endsWith(".registry")) {
+				final String name = key.substring(DOMAIN_PREFIX.length(),
+						key.length() - ".registry".length());
+				domains.put(name, parseDomain(properties, name));
+			}
+		}
+		if (domains.isEmpty()) {
+			throw new IllegalArgumentException("no affinity domain configured");
+		}
+		String defaultDomain = properties.getProperty(KEY_DEFAULT_DOMAIN);
+		if (defaultDomain == null) {
+			defaultDomain = domains.keySet().iterator().next();
+		} else if (!domains.containsKey(defaultDomain)) {
+			throw new IllegalArgumentException("unknown default domain: " + defaultDomain);
+		}
+		return new ConnectorConfiguration(domains, defaultDomain, properties);
+	}
+
+	private static DomainSettings parseDomain(Properties properties, String name) {
+		final String prefix = DOMAIN_PREFIX + name + ".";
+		return new DomainSettings(name,
+				properties.getProperty(prefix + "organizationalId",
+						XDSConnector.ORGANIZATIONAL_ID),
+				required(properties, prefix + "registry"),
+				required(properties, prefix + "repository"),
+				required(properties, prefix + "submission"),
+				properties.getProperty(prefix + "keystore"),
+				properties.getProperty(prefix + "keystorePassword"),
+				properties.getProperty(prefix + "keystoreType"),
+				Integer.parseInt(properties.getProperty(prefix + "pool.maxIdle", "0").trim()),
+				Integer.parseInt(properties.getProperty(prefix + "endpointLimit", "0").trim()));
+	}
+
+	private static String required(Properties properties, String key) {
+		final String value = properties.getProperty(key);
+		if ((value == null) || "".equals(value.trim())) {
+			throw new IllegalArgumentException("missing " + key);
+		}
+		return value.trim();
+	}
+
+	/** The affinity domains by name. */
+	private final Map<String, DomainSettings> domains;
+
+	/** The name of the default domain. */
+	private final String defaultDomain;
+
+	/** The properties the configuration was read from. */
+	private final Properties properties;
+
+	private ConnectorConfiguration(Map<String, DomainSettings> domains, String defaultDomain,
+			Properties properties) {
+		this.domains = Collections.unmodifiableMap(domains);
+		this.defaultDomain = defaultDomain;
+		this.properties = properties;
+	}
+
+	/**
+	 * Sets the <code>connector.*</code> values of the file as system
+	 * properties, unless they are set already. Has to run before the
+	 * connector is created, since it reads the system properties once.
+	 */
+	public void applySystemProperties() {
+		for (final String key : properties.stringPropertyNames()) {
+			if (key.startsWith("connector.") && !KEY_DEFAULT_DOMAIN.equals(key)
+					&& (System.getProperty(key) == null)) {
+				System.setProperty(key, properties.getProperty(key).trim());
+			}
+		}
+	}
+
+	/**
+	 * Gets an affinity domain.
+	 *
+	 * @param name
+	 *            the name of the domain, null for the default domain
+	 * @return the domain
+	 * @throws IllegalArgumentException
+	 *             if no domain has this name
+	 */
+	public DomainSettings getDomain(String name) {
+		final DomainSettings settings = domains.get(name != null ? name : defaultDomain);
+		if (settings == null) {
+			throw new IllegalArgumentException("unknown affinity domain: " + name);
+		}
+		return settings;
+	}
+
+	public Collection<DomainSettings> getDomains() {
+		return domains.values();
+	}
+
+	public DomainSettings getDefaultDomain() {
+		return domains.get(defaultDomain);
+	}
+
+	@Override
+	public String toString() {
+		return "default=" + defaultDomain + ", domains=" + domains.values();
+	}
+
+}
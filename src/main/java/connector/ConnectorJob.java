@@ -0,0 +1,194 @@
+/*
+ * The authorship of this project and accompanying materials is held by medshare GmbH, Switzerland.
+ * All rights reserved. https://medshare.net
+ *
+ * Source code, documentation and other resources have been contributed by various people.
+ * Project Team: https://gitlab.com/ehealth-connector/api/wikis/Team/
+ * For exact developer information, please refer to the commit history of the forge.
+ *
+ * This code is made available under the terms of the Eclipse Public License v1.0.
+ *
+ * Accompanying materials are made available under the terms of the Creative Commons
+ * Attribution-ShareAlike 4.0 License.
+ *
+ * This line is intended for UTF-8 encoding checks, do not modify/delete: Ã¤Ã¶Ã¼Ã©Ã¨
+ *
+ */
+package connector;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * <div class="en">Handle of a connector call running asynchronously. The
+ * state, the result and the error can be polled; getResult waits for the
+ * completion.</div>
+ */
+public class ConnectorJob {
+
+	/** The id of the job. */
+	private final String id;
+
+	/** The name of the connector call. */
+	private final String operation;
+
+	/** Completed with the result of the call. */
+	private final CompletableFuture<Object> future = new CompletableFuture<Object>();
+
+	/** The state of the job. */
+	private volatile JobState state = JobState.QUEUED;
+
+	/** The error that aborted the job, null if none. */
+	private volatile String error;
+
+	/** The time the job was submitted in milliseconds. */
+	private final long submittedMillis = System.currentTimeMillis();
+
+	/** The time the job completed in milliseconds, 0 while not completed. */
+	private volatile long completedMillis;
+
+	/** The worker running the job, null while not running. */
+	private volatile Thread worker;
+
+	/**
+	 * Instantiates a new job.
+	 *
+	 * @param id
+	 *            the id of the job
+	 * @param operation
+	 *            the name of the connector call
+	 */
+	ConnectorJob(String id, String operation) {
+		this.id = id;
+		this.operation = operation;
+	}
+
+	/**
+	 * Cancels the job. A queued job does not run anymore, a running job is
+	 * interrupted.
+	 *
+	 * @return true if the job was cancelled, false if it had already completed
+	 */
+	public boolean cancel() {
+		if (!future.cancel(false)) {
+			return false;
+		}
+		state = JobState.CANCELLED;
+		completedMillis = System.currentTimeMillis();
+		final Thread running = worker;
+		if (running != null) {
+			running.interrupt();
+		}
+		return true;
+	}
+
+	void completed(Object result) {
+		if (future.complete(result)) {
+			state = JobState.SUCCEEDED;
+			completedMillis = System.currentTimeMillis();
+		}
+	}
+
+	void failed(Throwable cause) {
+		if (future.completeExceptionally(cause)) {
+			error = String.valueOf(cause);
+			state = JobState.FAILED;
+			completedMillis = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Gets the elapsed time since submission, up to the completion.
+	 *
+	 * @return the elapsed time in milliseconds
+	 */
+	public long getElapsedMillis() {
+		final long end = completedMillis;
+		return (end == 0 ? System.currentTimeMillis() : end) - submittedMillis;
+	}
+
+	long getCompletedMillis() {
+		return completedMillis;
+	}
+
+	public String getError() {
+		return error;
+	}
+
+	CompletableFuture<Object> getFuture() {
+		return future;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public String getOperation() {
+		return operation;
+	}
+
+	/**
+	 * Gets the result of a completed job.
+	 *
+	 * @return the result, null while the job is not completed or if it failed
+	 */
+	public Object getResult() {
+		return state == JobState.SUCCEEDED ? future.getNow(null) : null;
+	}
+
+	/**
+	 * Waits for the completion of the job.
+	 *
+	 * @param timeoutMillis
+	 *            the maximum time to wait in milliseconds
+	 * @return the result, null if the job failed, was cancelled or did not
+	 *         complete in time
+	 */
+	public Object getResult(long timeoutMillis) {
+		try {
+			return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (final ExecutionException | TimeoutException | CancellationException e) {
+			// the state tells the caller what happened
+		}
+		return null;
+	}
+
+	/**
+	 * Gets the state of the job as name of a {@link JobState}, so the Python
+	 * side can compare it with a plain string.
+	 *
+	 * @return the state
+	 */
+	public String getState() {
+		return state.name();
+	}
+
+	public boolean isDone() {
+		return future.isDone();
+	}
+
+	boolean started() {
+		if (future.isDone()) {
+			return false;
+		}
+		worker = Thread.currentThread();
+		state = JobState.RUNNING;
+		return true;
+	}
+
+	void stopped() {
+		worker = null;
+	}
+
+	@Override
+	public String toString() {
+		return id + " " + operation + " " + state + " (" + getElapsedMillis() + " ms)"
+				+ (error == null ? "" : ": " + error);
+	}
+
+}
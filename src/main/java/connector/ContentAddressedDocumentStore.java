@@ -0,0 +1,558 @@
+/*
+ * The authorship of this project and accompanying materials is held by medshare GmbH, Switzerland.
+ * All rights reserved. https://medshare.net
+ *
+ * Source code, documentation and other resources have been contributed by various people.
+ * Project Team: https://gitlab.com/ehealth-connector/api/wikis/Team/
+ * For exact developer information, please refer to the commit history of the forge.
+ *
+ * This code is made available under the terms of the Eclipse Public License v1.0.
+ *
+ * Accompanying materials are made available under the terms of the Creative Commons
+ * Attribution-ShareAlike 4.0 License.
+ *
+ * This line is intended for UTF-8 encoding checks, do not modify/delete: Ã¤Ã¶Ã¼Ã©Ã¨
+ *
+ */
+package connector;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * <div class="en">Stores every distinct document content once, compressed
+ * with deflate and a preset {@link DeflateDictionary}, under its SHA-256 hash.
+ * A manifest per patient maps the uniqueIds of the documents of the patient to
+ * their content hash, so identical documents of several patients or
+ * resubmissions share one blob. The layout below the root directory is:
+ *
+ * <pre>
+ * .cas/blobs/ab/abcdef...   compressed content named by its hash
+ * .cas/manifests/patient.manifest   lines of documentId, hash, size
+ * .cas/dictionaries/1234abcd.dict   the dictionaries referenced by blobs
+ * </pre>
+ *
+ * The content is read with {@link #open(String, String)}. The location of a
+ * document, as handed to the python side, is a plain XML copy written to the
+ * export directory only when its location is asked for, so storing writes the
+ * content once; the results of store() carry no location. Copies older than
+ * the export retention are deleted and written again on demand.</div>
+ */
+public class ContentAddressedDocumentStore implements DocumentStore {
+
+	/** The system property selecting the store: files (default) or cas. */
+	public static final String PROPERTY_MODE = "connector.store.mode";
+
+	/** The store mode selecting this store. */
+	public static final String MODE = "cas";
+
+	/** The system property holding the path of a trained dictionary. */
+	public static final String PROPERTY_DICTIONARY = "connector.store.dictionary";
+
+	/** The system property holding the deflate level. */
+	public static final String PROPERTY_LEVEL = "connector.store.level";
+
+	/** The system property holding the directory of the plain XML copies. */
+	public static final String PROPERTY_EXPORT_DIRECTORY = "connector.store.exportDir";
+
+	/** The system property holding the lifetime of a plain XML copy in milliseconds. */
+	public static final String PROPERTY_EXPORT_RETENTION = "connector.store.exportRetention";
+
+	/** Magic number at the start of every blob. */
+	private static final int MAGIC = 0x58435a31; // "XCZ1"
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * An entry of a patient manifest.
+	 */
+	private static final class ManifestEntry {
+		final String hash;
+		final long size;
+
+		ManifestEntry(String hash, long size) {
+			this.hash = hash;
+			this.size = size;
+		}
+	}
+
+	/** The directory of the blobs. */
+	private final Path blobs;
+
+	/** The directory of the manifests. */
+	private final Path manifests;
+
+	/** The directory of the dictionaries. */
+	private final Path dictionaries;
+
+	/** The dictionary used for new blobs. */
+	private final DeflateDictionary dictionary;
+
+	/** The deflate level. */
+	private final int level;
+
+	/** The directory of the plain XML copies. */
+	private final Path exports;
+
+	/** The lifetime of a plain XML copy in milliseconds. */
+	private final long exportRetentionMillis;
+
+	/** The time of the last purge of expired copies. */
+	private final AtomicLong lastPurge = new AtomicLong(System.currentTimeMillis());
+
+	/** The dictionaries read so far by id. */
+	private final Map<Integer, DeflateDictionary> knownDictionaries = new ConcurrentHashMap<>();
+
+	/** The manifests read so far by patient file name. */
+	private final Map<String, Map<String, ManifestEntry>> patients = new ConcurrentHashMap<>();
+
+	/** The number of documents whose content was already stored. */
+	private final AtomicLong deduplicated = new AtomicLong();
+
+	/** The uncompressed bytes stored. */
+	private final AtomicLong uncompressedBytes = new AtomicLong();
+
+	/** The compressed bytes written for new blobs. */
+	private final AtomicLong compressedBytes = new AtomicLong();
+
+	/**
+	 * Instantiates a new store and records its dictionary.
+	 *
+	 * @param root
+	 *            the root directory
+	 * @param dictionary
+	 *            the dictionary for new blobs
+	 * @param level
+	 *            the deflate level, 1 (fastest) to 9 (smallest)
+	 * @throws IOException
+	 *             if the store directories cannot be created
+	 */
+	public ContentAddressedDocumentStore(Path root, DeflateDictionary dictionary, int level)
+			throws IOException {
+		this(root, dictionary, level, root.resolve(".export"), 60 * 60 * 1000L);
+	}
+
+	/**
+	 * Instantiates a new store and records its dictionary.
+	 *
+	 * @param root
+	 *            the root directory
+	 * @param dictionary
+	 *            the dictionary for new blobs
+	 * @param level
+	 *            the deflate level, 1 (fastest) to 9 (smallest)
+	 * @param exports
+	 *            the directory of the plain XML copies
+	 * @param exportRetentionMillis
+	 *            the time after which a copy is deleted
+	 * @throws IOException
+	 *             if the store directories cannot be created
+	 */
+	public ContentAddressedDocumentStore(Path root, DeflateDictionary dictionary, int level,
+			Path exports, long exportRetentionMillis) throws IOException {
+		this.exports = exports;
+		this.exportRetentionMillis = exportRetentionMillis;
+		final Path base = root.resolve(".cas");
+		this.blobs = base.resolve("blobs");
+		this.manifests = base.resolve("manifests");
+		this.dictionaries = base.resolve("dictionaries");
+		this.dictionary = dictionary;
+		this.level = level;
+		Files.createDirectories(blobs);
+		Files.createDirectories(manifests);
+		final Path dictionaryFile = dictionaryFile(dictionary.getId());
+		if (!Files.exists(dictionaryFile)) {
+			dictionary.save(dictionaryFile);
+		}
+		knownDictionaries.put(dictionary.getId(), dictionary);
+	}
+
+	@Override
+	public boolean contains(String patientId, String documentId) {
+		return manifest(patientId).containsKey(documentId);
+	}
+
+	/**
+	 * Gets the plain XML copy of a stored document, writing it if it is
+	 * missing. The blob itself is never handed out as a location.
+	 *
+	 * @return the path of the copy, null if the document is not stored
+	 * @throws UncheckedIOException
+	 *             if the copy cannot be written
+	 */
+	@Override
+	public String getLocation(String patientId, String documentId) {
+		final ManifestEntry entry = manifest(patientId).get(documentId);
+		if (entry == null) {
+			return null;
+		}
+		try {
+			return export(patientId, documentId, entry).toString();
+		} catch (final IOException e) {
+			throw new UncheckedIOException(
+					"document " + documentId + " cannot be exported: " + e.getMessage(), e);
+		}
+	}
+
+	public long getCompressedBytes() {
+		return compressedBytes.get();
+	}
+
+	public long getDeduplicatedCount() {
+		return deduplicated.get();
+	}
+
+	public long getUncompressedBytes() {
+		return uncompressedBytes.get();
+	}
+
+	/**
+	 * Opens the content of a stored document. The content is decompressed
+	 * while it is read.
+	 *
+	 * @param patientId
+	 *            the patient id
+	 * @param documentId
+	 *            the uniqueId of the document
+	 * @return the content, to be closed by the caller
+	 * @throws IOException
+	 *             if the document is not stored or its blob cannot be read
+	 */
+	public InputStream open(String patientId, String documentId) throws IOException {
+		final ManifestEntry entry = manifest(patientId).get(documentId);
+		if (entry == null) {
+			throw new FileNotFoundException(
+					"document " + documentId + " of patient " + patientId + " is not stored");
+		}
+		final InputStream file = Files.newInputStream(blob(entry.hash));
+		try {
+			final DataInputStream header = new DataInputStream(file);
+			if (header.readInt() != MAGIC) {
+				throw new IOException("not a document blob: " + blob(entry.hash));
+			}
+			final Inflater inflater = new Inflater(true);
+			inflater.setDictionary(dictionary(header.readInt()).getBytes());
+			return new InflaterInputStream(file, inflater, BUFFER_SIZE) {
+				@Override
+				public void close() throws IOException {
+					try {
+						super.close();
+					} finally {
+						inflater.end();
+					}
+				}
+			};
+		} catch (IOException | RuntimeException e) {
+			file.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Gets the size of a stored document.
+	 *
+	 * @param patientId
+	 *            the patient id
+	 * @param documentId
+	 *            the uniqueId of the document
+	 * @return the uncompressed size, -1 if the document is not stored
+	 */
+	public long getSize(String patientId, String documentId) {
+		final ManifestEntry entry = manifest(patientId).get(documentId);
+		return (entry == null) ? -1 : entry.size;
+	}
+
+	@Override
+	public StoreResult store(String patientId, String documentId, InputStream content)
+			throws IOException {
+		final long start = System.nanoTime();
+		final MessageDigest digest = sha256();
+		final Path temp = Files.createTempFile(blobs, ".blob", ".part");
+		long size = 0;
+		final String hash;
+		final Path target;
+		try {
+			final Deflater deflater = new Deflater(level, true);
+			try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING)) {
+				deflater.setDictionary(dictionary.getBytes());
+				final OutputStream file = Channels.newOutputStream(channel);
+				final DataOutputStream header = new DataOutputStream(file);
+				header.writeInt(MAGIC);
+				header.writeInt(dictionary.getId());
+				header.flush();
+				final DeflaterOutputStream out = new DeflaterOutputStream(file, deflater,
+						BUFFER_SIZE);
+				final byte[] buffer = new byte[BUFFER_SIZE];
+				int read;
+				while ((read = content.read(buffer)) != -1) {
+					digest.update(buffer, 0, read);
+					out.write(buffer, 0, read);
+					size += read;
+				}
+				out.finish();
+				out.flush();
+				channel.force(false);
+			} finally {
+				deflater.end();
+			}
+			hash = toHex(digest.digest());
+			target = blob(hash);
+			if (Files.exists(target)) {
+				Files.delete(temp);
+				deduplicated.incrementAndGet();
+			} else {
+				Files.createDirectories(target.getParent());
+				compressedBytes.addAndGet(Files.size(temp));
+				publish(temp, target);
+			}
+		} catch (IOException | RuntimeException e) {
+			Files.deleteIfExists(temp);
+			throw e;
+		}
+		final ManifestEntry entry = new ManifestEntry(hash, size);
+		addToManifest(patientId, documentId, entry);
+		uncompressedBytes.addAndGet(size);
+		// a copy of a previous version must not be handed out
+		Files.deleteIfExists(exportPath(patientId, documentId));
+		return new StoreResult(null, size, System.nanoTime() - start);
+	}
+
+	private Path exportPath(String patientId, String documentId) {
+		return exports.resolve(FileSystemDocumentStore.relativeName(patientId, documentId));
+	}
+
+	/**
+	 * Writes the plain XML copy of a document unless it exists.
+	 */
+	private Path export(String patientId, String documentId, ManifestEntry entry)
+			throws IOException {
+		purgeExpiredExports();
+		final Path target = exportPath(patientId, documentId);
+		if (Files.exists(target) && (Files.size(target) == entry.size)) {
+			// keeps the copy from expiring while it is handed out
+			Files.setLastModifiedTime(target, FileTime.fromMillis(System.currentTimeMillis()));
+			return target;
+		}
+		Files.createDirectories(target.getParent());
+		final Path temp = Files.createTempFile(target.getParent(), "." + target.getFileName(),
+				".part");
+		try {
+			try (InputStream in = open(patientId, documentId)) {
+				Files.copy(in, temp, StandardCopyOption.REPLACE_EXISTING);
+			}
+			publish(temp, target);
+		} catch (IOException | RuntimeException e) {
+			Files.deleteIfExists(temp);
+			throw e;
+		}
+		return target;
+	}
+
+	/**
+	 * Deletes the copies not handed out within the retention, at most once
+	 * per quarter of the retention.
+	 */
+	private void purgeExpiredExports() {
+		final long now = System.currentTimeMillis();
+		final long last = lastPurge.get();
+		if ((now - last < exportRetentionMillis / 4) || !lastPurge.compareAndSet(last, now)
+				|| !Files.isDirectory(exports)) {
+			return;
+		}
+		final long oldest = now - exportRetentionMillis;
+		try (DirectoryStream<Path> patientDirectories = Files.newDirectoryStream(exports)) {
+			for (final Path patient : patientDirectories) {
+				if (!Files.isDirectory(patient)) {
+					continue;
+				}
+				try (DirectoryStream<Path> copies = Files.newDirectoryStream(patient, "*.xml")) {
+					for (final Path copy : copies) {
+						if (Files.getLastModifiedTime(copy).toMillis() < oldest) {
+							Files.deleteIfExists(copy);
+						}
+					}
+				}
+			}
+		} catch (final IOException e) {
+			System.out.print("EXPORTED DOCUMENTS CANNOT BE PURGED: " + e.getMessage() + "\n");
+		}
+	}
+
+	/**
+	 * Counts the blobs of the store.
+	 *
+	 * @return the number of distinct contents stored
+	 * @throws IOException
+	 *             if the blob directory cannot be read
+	 */
+	public long countBlobs() throws IOException {
+		long count = 0;
+		try (DirectoryStream<Path> prefixes = Files.newDirectoryStream(blobs)) {
+			for (final Path prefix : prefixes) {
+				if (Files.isDirectory(prefix)) {
+					try (DirectoryStream<Path> files = Files.newDirectoryStream(prefix)) {
+						for (@SuppressWarnings("unused")
+						final Path file : files) {
+							count++;
+						}
+					}
+				}
+			}
+		}
+		return count;
+	}
+
+	private void addToManifest(String patientId, String documentId, ManifestEntry entry)
+			throws IOException {
+		final Map<String, ManifestEntry> manifest = manifest(patientId);
+		final byte[] line = (documentId + "\t" + entry.hash + "\t" + entry.size + "\n")
+				.getBytes(StandardCharsets.UTF_8);
+		synchronized (manifest) {
+			try (FileChannel out = FileChannel.open(manifestFile(patientId),
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.APPEND)) {
+				final ByteBuffer buffer = ByteBuffer.wrap(line);
+				while (buffer.hasRemaining()) {
+					out.write(buffer);
+				}
+				out.force(false);
+			}
+			manifest.put(documentId, entry);
+		}
+	}
+
+	private Path blob(String hash) {
+		return blobs.resolve(hash.substring(0, 2)).resolve(hash);
+	}
+
+	private DeflateDictionary dictionary(int id) throws IOException {
+		final DeflateDictionary known = knownDictionaries.get(id);
+		if (known != null) {
+			return known;
+		}
+		try {
+			final DeflateDictionary loaded = DeflateDictionary.load(dictionaryFile(id));
+			knownDictionaries.put(id, loaded);
+			return loaded;
+		} catch (final NoSuchFileException e) {
+			throw new IOException("dictionary " + Integer.toHexString(id) + " is missing", e);
+		}
+	}
+
+	private Path dictionaryFile(int id) {
+		return dictionaries.resolve(String.format("%08x.dict", Integer.valueOf(id)));
+	}
+
+	private Map<String, ManifestEntry> manifest(String patientId) {
+		return patients.computeIfAbsent(FileSystemDocumentStore.toFileName(patientId),
+				patient -> readManifest(migrateManifest(patientId)));
+	}
+
+	/**
+	 * Copies the manifest written under the lossy file name of earlier
+	 * versions to the current name. A copy, since several patients may share
+	 * the old name.
+	 */
+	private Path migrateManifest(String patientId) {
+		final Path file = manifestFile(patientId);
+		final Path legacy = manifests
+				.resolve(FileSystemDocumentStore.toLegacyFileName(patientId) + ".manifest");
+		if (!Files.exists(file) && Files.exists(legacy)) {
+			try {
+				Files.copy(legacy, file);
+			} catch (final IOException e) {
+				System.out.print("MANIFEST CANNOT BE MIGRATED: " + e.getMessage() + "\n");
+			}
+		}
+		return file;
+	}
+
+	private Path manifestFile(String patientId) {
+		return manifests.resolve(FileSystemDocumentStore.toFileName(patientId) + ".manifest");
+	}
+
+	/**
+	 * Reads a manifest. A later line of a document replaces an earlier one, a
+	 * torn last line of a crashed write is ignored.
+	 */
+	private static Map<String, ManifestEntry> readManifest(Path file) {
+		final Map<String, ManifestEntry> manifest = new ConcurrentHashMap<>();
+		if (!Files.exists(file)) {
+			return manifest;
+		}
+		try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				final String[] fields = line.split("\t");
+				if ((fields.length == 3) && (fields[1].length() == 64)) {
+					try {
+						manifest.put(fields[0],
+								new ManifestEntry(fields[1], Long.parseLong(fields[2])));
+					} catch (final NumberFormatException e) {
+						// torn line
+					}
+				}
+			}
+		} catch (final IOException e) {
+			System.out.print("MANIFEST CANNOT BE READ: " + file + " " + e.getMessage() + "\n");
+		}
+		return manifest;
+	}
+
+	private static void publish(Path temp, Path target) throws IOException {
+		try {
+			Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+		} catch (final AtomicMoveNotSupportedException e) {
+			Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (final NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		final char[] hex = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			hex[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+			hex[2 * i + 1] = HEX[bytes[i] & 0xf];
+		}
+		return new String(hex);
+	}
+
+}
@@ -0,0 +1,58 @@
+/*
+ * The authorship of this project and accompanying materials is held by medshare GmbH, Switzerland.
+ * All rights reserved. https://medshare.net
+ *
+ * Source code, documentation and other resources have been contributed by various people.
+ * Project Team: https://gitlab.com/ehealth-connector/api/wikis/Team/
+ * For exact developer information, please refer to the commit history of the forge.
+ *
+ * This code is made available under the terms of the Eclipse Public License v1.0.
+ *
+ * Accompanying materials are made available under the terms of the Creative Commons
+ * Attribution-ShareAlike 4.0 License.
+ *
+ * This line is intended for UTF-8 encoding checks, do not modify/delete: Ã¤Ã¶Ã¼Ã©Ã¨
+ *
+ */
+package connector;
+
+import java.util.function.Supplier;
+
+/**
+ * <div class="en">Opt-in debug output of the connector. The messages are only
+ * rendered if debugging is enabled, so the default path does not build any
+ * debug strings. Enabled by the system property <code>connector.debug</code>
+ * or at runtime.</div>
+ */
+public final class DebugLog {
+
+	/** The system property enabling the debug output. */
+	public static final String PROPERTY_DEBUG = "connector.debug";
+
+	/** True if debug messages are printed. */
+	private static volatile boolean enabled = Boolean.getBoolean(PROPERTY_DEBUG);
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Prints a debug message if debugging is enabled.
+	 *
+	 * @param message
+	 *            renders the message, called only if debugging is enabled
+	 */
+	public static void log(Supplier<String> message) {
+		if (enabled) {
+			System.out.println(message.get());
+		}
+	}
+
+	public static void setEnabled(boolean enabled) {
+		DebugLog.enabled = enabled;
+	}
+
+	private DebugLog() {
+	}
+
+}
@@ -0,0 +1,258 @@
+/*
+ * The authorship of this project and accompanying materials is held by medshare GmbH, Switzerland.
+ * All rights reserved. https://medshare.net
+ *
+ * Source code, documentation and other resources have been contributed by various people.
+ * Project Team: https://gitlab.com/ehealth-connector/api/wikis/Team/
+ * For exact developer information, please refer to the commit history of the forge.
+ *
+ * This code is made available under the terms of the Eclipse Public License v1.0.
+ *
+ * Accompanying materials are made available under the terms of the Creative Commons
+ * Attribution-ShareAlike 4.0 License.
+ *
+ * This line is intended for UTF-8 encoding checks, do not modify/delete: Ã¤Ã¶Ã¼Ã©Ã¨
+ *
+ */
+package connector;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Adler32;
+
+/**
+ * <div class="en">Preset dictionary for the deflate compression of CDA
+ * documents. Deflate finds matches for the first kilobytes of a document in
+ * the dictionary, which saves most on the many small documents whose header
+ * is the larger part. A dictionary is identified by the Adler-32 checksum of
+ * its bytes, the same id zlib uses.</div>
+ */
+public final class DeflateDictionary {
+
+	/** The maximum useful size, the deflate window. */
+	public static final int MAX_SIZE = 32 * 1024;
+
+	/** The number of bytes read from each sample when training. */
+	private static final int SAMPLE_LIMIT = 1024 * 1024;
+
+	/**
+	 * Strings common to CDA R2 documents of the ELGA and CDA-CH guides. Deflate
+	 * encodes near matches with fewer bits, so the most frequent strings come
+	 * last.
+	 */
+	private static final String[] BUILT_IN = {
+			"<?xml-stylesheet type=\"text/xsl\" href=\"ELGA_Stylesheet_v1.0.xsl\"?>\n",
+			"<languageCode code=\"de-CH\"/>\n", "<languageCode code=\"de-AT\"/>\n",
+			"<addr use=\"H\">\n<streetAddressLine>", "</streetAddressLine>\n",
+			"<postalCode>", "</postalCode>\n<city>", "</city>\n<state>", "</state>\n",
+			"<country>AUT</country>\n</addr>\n", "<country>CH</country>\n</addr>\n",
+			"<administrativeGenderCode code=\"F\" displayName=\"Female\" codeSystem=\"2.16.840.1.113883.5.1\" codeSystemName=\"HL7:AdministrativeGender\"/>\n",
+			"<administrativeGenderCode code=\"M\" displayName=\"Male\" codeSystem=\"2.16.840.1.113883.5.1\" codeSystemName=\"HL7:AdministrativeGender\"/>\n",
+			"<birthTime value=\"", "<maritalStatusCode code=\"",
+			"codeSystem=\"2.16.840.1.113883.5.2\" codeSystemName=\"HL7:MaritalStatus\"/>\n",
+			"<religiousAffiliationCode code=\"",
+			"codeSystem=\"2.16.840.1.113883.2.16.1.4.1\" codeSystemName=\"HL.7AT:ReligionAustria\"/>\n",
+			"<languageCommunication>\n<languageCode code=\"de\"/>\n",
+			"<preferenceInd value=\"true\"/>\n</languageCommunication>\n",
+			"<guardian>\n", "</guardian>\n", "<birthplace>\n<place>\n", "</place>\n</birthplace>\n",
+			"<confidentialityCode code=\"N\" displayName=\"normal\" codeSystem=\"2.16.840.1.113883.5.25\" codeSystemName=\"HL7:Confidentiality\"/>\n",
+			"<typeId root=\"2.16.840.1.113883.1.3\" extension=\"POCD_HD000040\"/>\n",
+			"<realmCode code=\"AT\"/>\n", "<realmCode code=\"CH\"/>\n",
+			"<templateId root=\"1.2.40.0.34.11.1\" assigningAuthorityName=\"ELGA\"/>\n",
+			"<code code=\"11490-0\" displayName=\"Physician Discharge summary\" codeSystem=\"2.16.840.1.113883.6.1\" codeSystemName=\"LOINC\"/>\n",
+			"<versionNumber value=\"1\"/>\n",
+			"<functionCode code=\"", "<assignedAuthor>\n", "</assignedAuthor>\n</author>\n",
+			"<assignedPerson>\n<name>\n", "</name>\n</assignedPerson>\n",
+			"<representedOrganization>\n", "</representedOrganization>\n",
+			"<custodian>\n<assignedCustodian>\n<representedCustodianOrganization>\n",
+			"</representedCustodianOrganization>\n</assignedCustodian>\n</custodian>\n",
+			"<legalAuthenticator>\n<time value=\"", "<signatureCode code=\"S\"/>\n",
+			"<assignedEntity>\n", "</assignedEntity>\n</legalAuthenticator>\n",
+			"<informationRecipient typeCode=\"PRCP\">\n<intendedRecipient>\n",
+			"</intendedRecipient>\n</informationRecipient>\n",
+			"<componentOf>\n<encompassingEncounter>\n", "</encompassingEncounter>\n</componentOf>\n",
+			"<effectiveTime>\n<low value=\"", "\"/>\n<high value=\"", "\"/>\n</effectiveTime>\n",
+			"<location>\n<healthCareFacility>\n", "</healthCareFacility>\n</location>\n",
+			"<structuredBody>\n", "</structuredBody>\n", "<section>\n", "</section>\n",
+			"<text>\n", "</text>\n", "<paragraph>", "</paragraph>\n", "<content>", "</content>",
+			"<list>\n<item>", "</item>\n", "</list>\n", "<br/>",
+			"<table>\n<thead>\n<tr>\n<th>", "</th>\n", "</tr>\n</thead>\n<tbody>\n",
+			"<tr>\n<td>", "</td>\n<td>", "</td>\n</tr>\n", "</tbody>\n</table>\n",
+			"<entry typeCode=\"DRIV\">\n", "</entry>\n",
+			"<observation classCode=\"OBS\" moodCode=\"EVN\">\n", "</observation>\n",
+			"<substanceAdministration classCode=\"SBADM\" moodCode=\"EVN\">\n",
+			"</substanceAdministration>\n",
+			"<statusCode code=\"completed\"/>\n", "<statusCode code=\"active\"/>\n",
+			"<value xsi:type=\"CD\" code=\"", "<value xsi:type=\"PQ\" value=\"",
+			"<entryRelationship typeCode=\"SUBJ\" inversionInd=\"false\">\n", "</entryRelationship>\n",
+			"<participant typeCode=\"", "</participant>\n",
+			"<telecom value=\"tel:", "<telecom value=\"mailto:", "<telecom use=\"WP\" value=\"tel:",
+			"<prefix qualifier=\"AC\">", "</prefix>\n", "<given>", "</given>\n",
+			"<family>", "</family>\n", "<name>", "</name>\n",
+			"<time value=\"", "<effectiveTime value=\"", "<title>", "</title>\n",
+			"<code code=\"", "\" displayName=\"", "\" codeSystem=\"", "\" codeSystemName=\"",
+			"codeSystem=\"2.16.840.1.113883.6.1\" codeSystemName=\"LOINC\"/>\n",
+			"<id root=\"", "\" extension=\"", "\" assigningAuthorityName=\"", "\"/>\n",
+			"<templateId root=\"", "<addr>\n", "</addr>\n",
+			"<recordTarget>\n<patientRole>\n", "<patient>\n", "</patient>\n",
+			"</patientRole>\n</recordTarget>\n", "<author>\n",
+			"<component>\n", "</component>\n",
+			"<ClinicalDocument xmlns=\"urn:hl7-org:v3\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\">\n",
+			"</ClinicalDocument>\n",
+			"<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n",
+			"<?xml version=\"1.0\" encoding=\"utf-8\" standalone=\"yes\"?>\n" };
+
+	/**
+	 * Gets the dictionary shipped with the connector.
+	 *
+	 * @return the built-in dictionary
+	 */
+	public static DeflateDictionary builtIn() {
+		final StringBuilder dictionary = new StringBuilder();
+		for (final String string : BUILT_IN) {
+			dictionary.append(string);
+		}
+		return new DeflateDictionary(dictionary.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Loads a dictionary written by {@link #save(Path)}.
+	 *
+	 * @param file
+	 *            the dictionary file
+	 * @return the dictionary
+	 * @throws IOException
+	 *             if the file cannot be read
+	 */
+	public static DeflateDictionary load(Path file) throws IOException {
+		return new DeflateDictionary(Files.readAllBytes(file));
+	}
+
+	/**
+	 * Trains a dictionary on sample documents. Every trimmed line is scored by
+	 * the number of samples it occurs in times its length; lines occurring in
+	 * at least two samples are taken by score until the size is reached, the
+	 * best ones last.
+	 *
+	 * @param samples
+	 *            the sample documents
+	 * @param maxSize
+	 *            the maximum size of the dictionary, at most {@link #MAX_SIZE}
+	 * @return the dictionary
+	 * @throws IOException
+	 *             if a sample cannot be read
+	 */
+	public static DeflateDictionary train(Collection<Path> samples, int maxSize)
+			throws IOException {
+		final Map<String, Integer> documentFrequency = new HashMap<>();
+		for (final Path sample : samples) {
+			final Set<String> lines = new HashSet<>();
+			try (InputStream in = Files.newInputStream(sample);
+					BufferedReader reader = new BufferedReader(
+							new InputStreamReader(in, StandardCharsets.UTF_8))) {
+				long read = 0;
+				String line;
+				while (((line = reader.readLine()) != null) && (read < SAMPLE_LIMIT)) {
+					read += line.length();
+					final String trimmed = line.trim();
+					if (trimmed.length() > 3) {
+						lines.add(trimmed + "\n");
+					}
+				}
+			}
+			for (final String line : lines) {
+				documentFrequency.merge(line, 1, Integer::sum);
+			}
+		}
+
+		final List<Map.Entry<String, Integer>> candidates = new ArrayList<>();
+		for (final Map.Entry<String, Integer> entry : documentFrequency.entrySet()) {
+			if (entry.getValue() >= 2) {
+				candidates.add(entry);
+			}
+		}
+		candidates.sort((a, b) -> Long.compare(score(b), score(a)));
+
+		final int limit = Math.min(maxSize, MAX_SIZE);
+		final List<byte[]> selected = new ArrayList<>();
+		int size = 0;
+		for (final Map.Entry<String, Integer> candidate : candidates) {
+			final byte[] bytes = candidate.getKey().getBytes(StandardCharsets.UTF_8);
+			if (size + bytes.length <= limit) {
+				selected.add(bytes);
+				size += bytes.length;
+			}
+		}
+		final byte[] dictionary = new byte[size];
+		int offset = size;
+		for (final byte[] bytes : selected) {
+			offset -= bytes.length;
+			System.arraycopy(bytes, 0, dictionary, offset, bytes.length);
+		}
+		return new DeflateDictionary(dictionary);
+	}
+
+	private static long score(Map.Entry<String, Integer> entry) {
+		return (long) entry.getValue() * entry.getKey().length();
+	}
+
+	/** The dictionary. */
+	private final byte[] bytes;
+
+	/** The Adler-32 checksum of the dictionary. */
+	private final int id;
+
+	private DeflateDictionary(byte[] bytes) {
+		if (bytes.length > MAX_SIZE) {
+			// deflate only looks back over the window, keep its end
+			this.bytes = Arrays.copyOfRange(bytes, bytes.length - MAX_SIZE,
+					bytes.length);
+		} else {
+			this.bytes = bytes;
+		}
+		final Adler32 adler = new Adler32();
+		adler.update(this.bytes, 0, this.bytes.length);
+		this.id = (int) adler.getValue();
+	}
+
+	byte[] getBytes() {
+		return bytes;
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public int getSize() {
+		return bytes.length;
+	}
+
+	/**
+	 * Writes the dictionary to a file.
+	 *
+	 * @param file
+	 *            the dictionary file
+	 * @throws IOException
+	 *             if the file cannot be written
+	 */
+	public void save(Path file) throws IOException {
+		if (file.getParent() != null) {
+			Files.createDirectories(file.getParent());
+		}
+		Files.write(file, bytes);
+	}
+
+}
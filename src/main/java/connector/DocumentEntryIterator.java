@@ -0,0 +1,97 @@
+/*
+ * The authorship of this project and accompanying materials is held by medshare GmbH, Switzerland.
+ * All rights reserved. https://medshare.net
+ *
+ * Source code, documentation and other resources have been contributed by various people.
+ * Project Team: https://gitlab.com/ehealth-connector/api/wikis/Team/
+ * For exact developer information, please refer to the commit history of the forge.
+ *
+ * This code is made available under the terms of the Eclipse Public License v1.0.
+ *
+ * Accompanying materials are made available under the terms of the Creative Commons
+ * Attribution-ShareAlike 4.0 License.
+ *
+ * This line is intended for UTF-8 encoding checks, do not modify/delete: Ã¤Ã¶Ã¼Ã©Ã¨
+ *
+ */
+package connector;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.openhealthtools.ihe.xds.metadata.DocumentEntryType;
+
+/**
+ * <div class="en">Iterates the document entries of a patient for the Python
+ * side, querying the metadata page by page as the iteration proceeds. Only the
+ * entryUUIDs and the current page are held between pages; every page query
+ * borrows a client and returns it, so an iterator that is abandoned does not
+ * keep a client from the pool.</div>
+ */
+public class DocumentEntryIterator implements Iterator<DocumentEntryType>, Closeable {
+
+	/** The pages of the patient. */
+	private final DocumentEntryPages pages;
+
+	/** True once the iterator was closed or exhausted. */
+	private boolean closed;
+
+	/** The entries of the current page. */
+	private Iterator<DocumentEntryType> page;
+
+	/**
+	 * Instantiates a new iterator.
+	 *
+	 * @param pages
+	 *            the pages of the patient
+	 */
+	DocumentEntryIterator(DocumentEntryPages pages) {
+		this.pages = pages;
+	}
+
+	/**
+	 * Ends the iteration, the remaining pages are not queried.
+	 */
+	@Override
+	public synchronized void close() {
+		closed = true;
+		page = null;
+	}
+
+	public int getEntryCount() {
+		return pages.getEntryCount();
+	}
+
+	@Override
+	public synchronized boolean hasNext() {
+		while ((page == null) || !page.hasNext()) {
+			if (closed || !pages.hasNext()) {
+				close();
+				return false;
+			}
+			try {
+				final List<DocumentEntryType> entries = pages.nextPage();
+				page = entries.iterator();
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				close();
+				return false;
+			} catch (final RuntimeException e) {
+				close();
+				throw e;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public synchronized DocumentEntryType next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		return page.next();
+	}
+
+}
@@ -0,0 +1,121 @@
+/*
+ * The authorship of this project and accompanying materials is held by medshare GmbH, Switzerland.
+ * All rights reserved. https://medshare.net
+ *
+ * Source code, documentation and other resources have been contributed by various people.
+ * Project Team: https://gitlab.com/ehealth-connector/api/wikis/Team/
+ * For exact developer information, please refer to the commit history of the forge.
+ *
+ * This code is made available under the terms of the Eclipse Public License v1.0.
+ *
+ * Accompanying materials are made available under the terms of the Creative Commons
+ * Attribution-ShareAlike 4.0 License.
+ *
+ * This line is intended for UTF-8 encoding checks, do not modify/delete: Ã¤Ã¶Ã¼Ã©Ã¨
+ *
+ */
+package connector;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.openhealthtools.ihe.xds.metadata.DocumentEntryType;
+import org.openhealthtools.ihe.xds.response.DocumentEntryResponseType;
+import org.openhealthtools.ihe.xds.response.XDSQueryResponseType;
+
+/**
+ * <div class="en">Fetches the metadata of a patient's documents in pages of
+ * entryUUIDs, one GetDocuments query per page, so only one page of metadata
+ * is held at a time however many documents the patient has.</div>
+ */
+public class DocumentEntryPages {
+
+	/** System property holding the number of entries per metadata query. */
+	public static final String PROPERTY_PAGE_SIZE = "connector.query.pageSize";
+
+	/**
+	 * Sends the GetDocuments query of a page.
+	 */
+	public interface PageQuery {
+
+		/**
+		 * Queries the metadata of the given entries.
+		 *
+		 * @param entryUuids
+		 *            the entryUUIDs of the page
+		 * @return the response, null if the registry returned no response
+		 * @throws InterruptedException
+		 *             if the thread was interrupted while waiting for the
+		 *             registry
+		 */
+		XDSQueryResponseType query(String[] entryUuids) throws InterruptedException;
+	}
+
+	/** The entryUUIDs of all documents, in query order. */
+	private final List<String> entryUuids;
+
+	/** The number of entries per query. */
+	private final int pageSize;
+
+	/** Sends the queries. */
+	private final PageQuery query;
+
+	/** The index of the first entry of the next page. */
+	private int offset;
+
+	/**
+	 * Instantiates the pages of a reference list.
+	 *
+	 * @param entryUuids
+	 *            the entryUUIDs of all documents, in query order
+	 * @param pageSize
+	 *            the number of entries per query
+	 * @param query
+	 *            sends the queries
+	 */
+	public DocumentEntryPages(List<String> entryUuids, int pageSize, PageQuery query) {
+		this.entryUuids = entryUuids;
+		this.pageSize = Math.max(1, pageSize);
+		this.query = query;
+	}
+
+	public int getEntryCount() {
+		return entryUuids.size();
+	}
+
+	public boolean hasNext() {
+		return offset < entryUuids.size();
+	}
+
+	/**
+	 * Queries the metadata of the next page.
+	 *
+	 * @return the entries of the page, fewer than requested if the registry
+	 *         omitted some
+	 * @throws InterruptedException
+	 *             if the thread was interrupted while waiting for the registry
+	 * @throws XdsTransportException
+	 *             if the registry did not answer
+	 */
+	public List<DocumentEntryType> nextPage() throws InterruptedException {
+		final int end = Math.min(entryUuids.size(), offset + pageSize);
+		final List<String> page = entryUuids.subList(offset, end);
+		offset = end;
+		final XDSQueryResponseType response = query.query(page.toArray(new String[page.size()]));
+		if (response == null) {
+			throw new XdsTransportException("no response to the metadata query of "
+					+ page.size() + " documents");
+		}
+		if (response.getDocumentEntryResponses() == null) {
+			return Collections.emptyList();
+		}
+		final List<DocumentEntryType> entries = new ArrayList<DocumentEntryType>(page.size());
+		for (final DocumentEntryResponseType entryResponse : response
+				.getDocumentEntryResponses()) {
+			entries.add(entryResponse.getDocumentEntry());
+		}
+		return entries;
+	}
+
+}
@@ -0,0 +1,385 @@
+/*
+ * The authorship of this project and accompanying materials is held by medshare GmbH, Switzerland.
+ * All rights reserved. https://medshare.net
+ *
+ * Source code, documentation and other resources have been contributed by various people.
+ * Project Team: https://gitlab.com/ehealth-connector/api/wikis/Team/
+ * For exact developer information, please refer to the commit history of the forge.
+ *
+ * This code is made available under the terms of the Eclipse Public License v1.0.
+ *
+ * Accompanying materials are made available under the terms of the Creative Commons
+ * Attribution-ShareAlike 4.0 License.
+ *
+ * This line is intended for UTF-8 encoding checks, do not modify/delete: Ã¤Ã¶Ã¼Ã©Ã¨
+ *
+ */
+package connector;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openhealthtools.ihe.xds.metadata.DocumentEntryType;
+
+/**
+ * <div class="en">In-process cache of the document entry metadata of
+ * patients, indexed by document uniqueId. The cache holds a bounded number of
+ * patients in LRU order and drops entries older than the time to live. The
+ * entries of a patient come from a download (the approved entries) and from
+ * single lookups, which also remember the uniqueIds the registry does not
+ * know. A uniqueId in neither set is asked for, and a submission drops what
+ * is known about its uniqueIds, so the next lookup caches the entry as the
+ * registry returns it. Within the time to live, a document registered by
+ * another source is still reported missing.</div>
+ */
+public class DocumentMetadataCache {
+
+	/**
+	 * Looks a single document entry up in the registry.
+	 */
+	interface Registry {
+
+		/**
+		 * Gets the document entry with the given uniqueId.
+		 *
+		 * @param documentId
+		 *            the uniqueId of the document
+		 * @return the entry, null if the registry has no such document of the
+		 *         patient
+		 * @throws InterruptedException
+		 *             if the thread was interrupted while waiting for the
+		 *             registry
+		 */
+		DocumentEntryType find(String documentId) throws InterruptedException;
+	}
+
+	/** The cached document entries of one patient. */
+	private static class CachedPatient {
+
+		/** The document entries by uniqueId. */
+		private final Map<String, DocumentEntryType> entries;
+
+		/** The uniqueIds the registry had no entry for. */
+		private final Set<String> missing;
+
+		/** The time the entries were loaded from the registry. */
+		private final long loadedAt;
+
+		CachedPatient(Map<String, DocumentEntryType> entries, Set<String> missing,
+				long loadedAt) {
+			this.entries = entries;
+			this.missing = missing;
+			this.loadedAt = loadedAt;
+		}
+	}
+
+	/** The cached patients in access order. */
+	private final LinkedHashMap<String, CachedPatient> patients;
+
+	/** The time to live of cached entries in milliseconds. */
+	private final long ttlMillis;
+
+	/** The number of lookups answered from the cache. */
+	private final AtomicLong hits = new AtomicLong();
+
+	/** The number of lookups not answered from the cache. */
+	private final AtomicLong misses = new AtomicLong();
+
+	/** The number of patients evicted because the cache was full. */
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * Instantiates a new cache.
+	 *
+	 * @param maxPatients
+	 *            the maximum number of cached patients
+	 * @param ttlMillis
+	 *            the time to live of cached entries in milliseconds
+	 */
+	public DocumentMetadataCache(final int maxPatients, long ttlMillis) {
+		this.ttlMillis = ttlMillis;
+		this.patients = new LinkedHashMap<String, CachedPatient>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CachedPatient> eldest) {
+				if (size() > maxPatients) {
+					evictions.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Gets the cached document entries of a patient.
+	 *
+	 * @param patientKey
+	 *            the key of the patient
+	 * @return the unmodifiable entries by uniqueId, null if the patient is not
+	 *         cached or the entries are expired
+	 */
+	public Map<String, DocumentEntryType> get(String patientKey) {
+		synchronized (patients) {
+			final CachedPatient cached = patients.get(patientKey);
+			if ((cached != null) && (System.currentTimeMillis() - cached.loadedAt <= ttlMillis)) {
+				hits.incrementAndGet();
+				return cached.entries;
+			}
+			if (cached != null) {
+				patients.remove(patientKey);
+			}
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Gets a cached document entry.
+	 *
+	 * @param patientKey
+	 *            the key of the patient
+	 * @param documentId
+	 *            the uniqueId of the document
+	 * @return the entry, null if it is not cached or expired
+	 */
+	public DocumentEntryType getEntry(String patientKey, String documentId) {
+		synchronized (patients) {
+			final CachedPatient cached = patients.get(patientKey);
+			if ((cached != null) && (System.currentTimeMillis() - cached.loadedAt <= ttlMillis)) {
+				final DocumentEntryType entry = cached.entries.get(documentId);
+				if (entry != null) {
+					hits.incrementAndGet();
+					return entry;
+				}
+			} else if (cached != null) {
+				patients.remove(patientKey);
+			}
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Looks a document entry up, in the cache unless told otherwise and then
+	 * in the registry. The answer of the registry is cached, a missing entry
+	 * as well.
+	 *
+	 * @param patientKey
+	 *            the key of the patient
+	 * @param documentId
+	 *            the uniqueId of the document
+	 * @param useCache
+	 *            false to ask the registry even if the answer is cached
+	 * @param registry
+	 *            looks the entry up in the registry
+	 * @return the entry, null if the registry has no such document
+	 * @throws InterruptedException
+	 *             if the thread was interrupted while waiting for the registry
+	 */
+	DocumentEntryType lookup(String patientKey, String documentId, boolean useCache,
+			Registry registry) throws InterruptedException {
+		if (useCache) {
+			synchronized (patients) {
+				final CachedPatient cached = current(patientKey, System.currentTimeMillis());
+				if (cached != null) {
+					final DocumentEntryType entry = cached.entries.get(documentId);
+					if ((entry != null) || cached.missing.contains(documentId)) {
+						hits.incrementAndGet();
+						return entry;
+					}
+				}
+			}
+			misses.incrementAndGet();
+		}
+		final DocumentEntryType entry = registry.find(documentId);
+		if (entry != null) {
+			putEntry(patientKey, entry);
+		} else {
+			putMissing(patientKey, documentId);
+		}
+		return entry;
+	}
+
+	/**
+	 * Gets the entries of a patient if they are not expired, dropping expired
+	 * ones. Called with the lock held.
+	 */
+	private CachedPatient current(String patientKey, long now) {
+		final CachedPatient cached = patients.get(patientKey);
+		if ((cached != null) && (now - cached.loadedAt > ttlMillis)) {
+			patients.remove(patientKey);
+			return null;
+		}
+		return cached;
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Gets the number of cached patients.
+	 *
+	 * @return the number of cached patients
+	 */
+	public int size() {
+		synchronized (patients) {
+			return patients.size();
+		}
+	}
+
+	/**
+	 * Drops the cached entries of all patients.
+	 */
+	public void clear() {
+		synchronized (patients) {
+			patients.clear();
+		}
+	}
+
+	/**
+	 * Drops what is known about a document of a patient, e.g. after the
+	 * document was submitted.
+	 *
+	 * @param patientKey
+	 *            the key of the patient
+	 * @param documentId
+	 *            the uniqueId of the document
+	 */
+	public void forget(String patientKey, String documentId) {
+		synchronized (patients) {
+			final CachedPatient cached = patients.get(patientKey);
+			if ((cached == null) || (!cached.entries.containsKey(documentId)
+					&& !cached.missing.contains(documentId))) {
+				return;
+			}
+			final Map<String, DocumentEntryType> entries = new LinkedHashMap<String, DocumentEntryType>(
+					cached.entries);
+			entries.remove(documentId);
+			final Set<String> missing = new HashSet<String>(cached.missing);
+			missing.remove(documentId);
+			patients.put(patientKey, new CachedPatient(Collections.unmodifiableMap(entries),
+					Collections.unmodifiableSet(missing), cached.loadedAt));
+		}
+	}
+
+	/**
+	 * Drops the cached entries of a patient.
+	 *
+	 * @param patientKey
+	 *            the key of the patient
+	 */
+	public void invalidate(String patientKey) {
+		synchronized (patients) {
+			patients.remove(patientKey);
+		}
+	}
+
+	/**
+	 * Caches the complete list of approved document entries of a patient.
+	 *
+	 * @param patientKey
+	 *            the key of the patient
+	 * @param entries
+	 *            the document entries by uniqueId
+	 * @return the unmodifiable cached entries
+	 */
+	public Map<String, DocumentEntryType> put(String patientKey,
+			Map<String, DocumentEntryType> entries) {
+		final Map<String, DocumentEntryType> cached = Collections.unmodifiableMap(entries);
+		synchronized (patients) {
+			patients.put(patientKey, new CachedPatient(cached, Collections.<String> emptySet(),
+					System.currentTimeMillis()));
+		}
+		return cached;
+	}
+
+	/**
+	 * Adds or replaces a document entry of a patient, e.g. the entry of a
+	 * lookup. The entry expires with the other entries of the patient.
+	 *
+	 * @param patientKey
+	 *            the key of the patient
+	 * @param entry
+	 *            the document entry
+	 */
+	public void putEntry(String patientKey, DocumentEntryType entry) {
+		final long now = System.currentTimeMillis();
+		synchronized (patients) {
+			final CachedPatient cached = current(patientKey, now);
+			if (cached == null) {
+				patients.put(patientKey, new CachedPatient(
+						Collections.singletonMap(entry.getUniqueId(), entry),
+						Collections.<String> emptySet(), now));
+				return;
+			}
+			final Map<String, DocumentEntryType> entries = new LinkedHashMap<String, DocumentEntryType>(
+					cached.entries);
+			entries.put(entry.getUniqueId(), entry);
+			Set<String> missing = cached.missing;
+			if (missing.contains(entry.getUniqueId())) {
+				missing = new HashSet<String>(missing);
+				missing.remove(entry.getUniqueId());
+				missing = Collections.unmodifiableSet(missing);
+			}
+			patients.put(patientKey, new CachedPatient(Collections.unmodifiableMap(entries),
+					missing, cached.loadedAt));
+		}
+	}
+
+	/**
+	 * Remembers that the registry has no document of a patient with the given
+	 * uniqueId. The answer expires with the entries of the patient.
+	 *
+	 * @param patientKey
+	 *            the key of the patient
+	 * @param documentId
+	 *            the uniqueId of the document
+	 */
+	public void putMissing(String patientKey, String documentId) {
+		final long now = System.currentTimeMillis();
+		synchronized (patients) {
+			final CachedPatient cached = current(patientKey, now);
+			if (cached == null) {
+				patients.put(patientKey,
+						new CachedPatient(Collections.<String, DocumentEntryType> emptyMap(),
+								Collections.singleton(documentId), now));
+				return;
+			}
+			final Set<String> missing = new HashSet<String>(cached.missing);
+			missing.add(documentId);
+			final Map<String, DocumentEntryType> entries;
+			if (cached.entries.containsKey(documentId)) {
+				final Map<String, DocumentEntryType> remaining = new LinkedHashMap<String, DocumentEntryType>(
+						cached.entries);
+				remaining.remove(documentId);
+				entries = Collections.unmodifiableMap(remaining);
+			} else {
+				entries = cached.entries;
+			}
+			patients.put(patientKey, new CachedPatient(entries,
+					Collections.unmodifiableSet(missing), cached.loadedAt));
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "DocumentMetadataCache [patients=" + size() + ", hits=" + hits + ", misses="
+				+ misses + ", evictions=" + evictions + "]";
+	}
+
+}
@@ -0,0 +1,116 @@
+/*
+ * The authorship of this project and accompanying materials is held by medshare GmbH, Switzerland.
+ * All rights reserved. https://medshare.net
+ *
+ * Source code, documentation and other resources have been contributed by various people.
+ * Project Team: https://gitlab.com/ehealth-connector/api/wikis/Team/
+ * For exact developer information, please refer to the commit history of the forge.
+ *
+ * This code is made available under the terms of the Eclipse Public License v1.0.
+ *
+ * Accompanying materials are made available under the terms of the Creative Commons
+ * Attribution-ShareAlike 4.0 License.
+ *
+ * This line is intended for UTF-8 encoding checks, do not modify/delete: Ã¤Ã¶Ã¼Ã©Ã¨
+ *
+ */
+package connector;
+
+/**
+ * <div class="en">Result of the download of a single document.</div>
+ */
+public class DocumentResult {
+
+	/**
+	 * Creates the result of a retrieved document.
+	 *
+	 * @param documentId
+	 *            the uniqueId of the document
+	 * @param stored
+	 *            the result of the store step, null if the document could not
+	 *            be retrieved or stored
+	 * @return the result
+	 */
+	static DocumentResult of(String documentId, StoreResult stored) {
+		if (stored == null) {
+			return new DocumentResult(documentId, DocumentStatus.FAILED, null, 0, 0);
+		}
+		return new DocumentResult(documentId, DocumentStatus.DOWNLOADED, stored.getLocation(),
+				stored.getBytes(), stored.getNanos());
+	}
+
+	/**
+	 * Creates the result of a document already in the local store.
+	 *
+	 * @param documentId
+	 *            the uniqueId of the document
+	 * @return the result
+	 */
+	static DocumentResult skipped(String documentId) {
+		return new DocumentResult(documentId, DocumentStatus.SKIPPED, null, 0, 0);
+	}
+
+	/** The uniqueId of the document. */
+	private final String documentId;
+
+	/** What happened to the document. */
+	private final DocumentStatus status;
+
+	/**
+	 * The location of the stored document, null unless downloaded to a store
+	 * keeping plain files.
+	 */
+	private final String location;
+
+	/** The number of bytes stored. */
+	private final long bytes;
+
+	/** The time spent storing in nanoseconds. */
+	private final long storeNanos;
+
+	private DocumentResult(String documentId, DocumentStatus status, String location,
+			long bytes, long storeNanos) {
+		this.documentId = documentId;
+		this.status = status;
+		this.location = location;
+		this.bytes = bytes;
+		this.storeNanos = storeNanos;
+	}
+
+	public long getBytes() {
+		return bytes;
+	}
+
+	public String getDocumentId() {
+		return documentId;
+	}
+
+	public String getLocation() {
+		return location;
+	}
+
+	/**
+	 * Gets the status as name of a {@link DocumentStatus}, so the Python side
+	 * can compare it with a plain string.
+	 *
+	 * @return the status
+	 */
+	public String getStatus() {
+		return status.name();
+	}
+
+	public long getStoreNanos() {
+		return storeNanos;
+	}
+
+	DocumentStatus getStatusType() {
+		return status;
+	}
+
+	@Override
+	public String toString() {
+		return documentId + ": " + status + (location != null ? " " + location : "")
+				+ (bytes > 0 ? " (" + bytes + " bytes)" : "");
+	}
+
+}
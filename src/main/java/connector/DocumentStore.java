@@ -0,0 +1,69 @@
+/*
+ * The authorship of this project and accompanying materials is held by medshare GmbH, Switzerland.
+ * All rights reserved. https://medshare.net
+ *
+ * Source code, documentation and other resources have been contributed by various people.
+ * Project Team: https://gitlab.com/ehealth-connector/api/wikis/Team/
+ * For exact developer information, please refer to the commit history of the forge.
+ *
+ * This code is made available under the terms of the Eclipse Public License v1.0.
+ *
+ * Accompanying materials are made available under the terms of the Creative Commons
+ * Attribution-ShareAlike 4.0 License.
+ *
+ * This line is intended for UTF-8 encoding checks, do not modify/delete: Ã¤Ã¶Ã¼Ã©Ã¨
+ *
+ */
+package connector;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * <div class="en">Local storage of retrieved documents. Implementations have
+ * to be thread safe and must publish a document only once it was written
+ * completely.</div>
+ */
+public interface DocumentStore {
+
+	/**
+	 * Checks if the document of the patient is already stored.
+	 *
+	 * @param patientId
+	 *            the patient id
+	 * @param documentId
+	 *            the uniqueId of the document
+	 * @return true, if the document is stored
+	 */
+	boolean contains(String patientId, String documentId);
+
+	/**
+	 * Gets the location of a document as handed to the python side. The
+	 * document does not have to exist.
+	 *
+	 * @param patientId
+	 *            the patient id
+	 * @param documentId
+	 *            the uniqueId of the document
+	 * @return the location of the document
+	 */
+	String getLocation(String patientId, String documentId);
+
+	/**
+	 * Stores the document, replacing a previously stored version.
+	 *
+	 * @param patientId
+	 *            the patient id
+	 * @param documentId
+	 *            the uniqueId of the document
+	 * @param content
+	 *            the content of the document, read to the end but not closed
+	 * @return the result of the store operation
+	 * @throws IOException
+	 *             if the document could not be written; nothing is published
+	 *             then
+	 */
+	StoreResult store(String patientId, String documentId, InputStream content)
+			throws IOException;
+
+}
@@ -0,0 +1,179 @@
+/*
+ * The authorship of this project and accompanying materials is held by medshare GmbH, Switzerland.
+ * All rights reserved. https://medshare.net
+ *
+ * Source code, documentation and other resources have been contributed by various people.
+ * Project Team: https://gitlab.com/ehealth-connector/api/wikis/Team/
+ * For exact developer information, please refer to the commit history of the forge.
+ *
+ * This code is made available under the terms of the Eclipse Public License v1.0.
+ *
+ * Accompanying materials are made available under the terms of the Creative Commons
+ * Attribution-ShareAlike 4.0 License.
+ *
+ * This line is intended for UTF-8 encoding checks, do not modify/delete: Ã¤Ã¶Ã¼Ã©Ã¨
+ *
+ */
+package connector;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * <div class="en">A document handed to the Python side without a detour
+ * through a path string and a second read. A small document carries its
+ * content, which py4j passes as bytes. A large document is a region of a file
+ * the caller maps, e.g. with
+ * <code>mmap.mmap(f.fileno(), length, offset=offset, access=mmap.ACCESS_READ)</code>;
+ * the offset is always a multiple of {@link #MAPPING_GRANULARITY}, so it is
+ * valid for mmap on every platform.</div>
+ */
+public class DocumentTransfer {
+
+	/** The alignment of mapped regions, the allocation granularity of Windows. */
+	public static final int MAPPING_GRANULARITY = 64 * 1024;
+
+	/**
+	 * Creates the transfer of a document passed by value.
+	 *
+	 * @param documentId
+	 *            the uniqueId of the document
+	 * @param content
+	 *            the content
+	 * @return the transfer
+	 */
+	static DocumentTransfer inline(String documentId, byte[] content) {
+		return new DocumentTransfer(documentId, content, null, 0, content.length, false);
+	}
+
+	/**
+	 * Creates the transfer of a document as a file region.
+	 *
+	 * @param documentId
+	 *            the uniqueId of the document
+	 * @param path
+	 *            the file holding the document
+	 * @param offset
+	 *            the offset of the document in the file
+	 * @param length
+	 *            the length of the document
+	 * @param releasable
+	 *            true if the file is a transfer segment to be released after
+	 *            use, false for a file of the document store
+	 * @return the transfer
+	 */
+	static DocumentTransfer mapped(String documentId, String path, long offset, long length,
+			boolean releasable) {
+		return new DocumentTransfer(documentId, null, path, offset, length, releasable);
+	}
+
+	/**
+	 * Creates the transfer of a document file: by value up to the inline
+	 * limit, else as the whole file mapped in place.
+	 *
+	 * @param documentId
+	 *            the uniqueId of the document
+	 * @param file
+	 *            the file of the document store holding the document
+	 * @param inlineLimit
+	 *            the size up to which the content is passed by value
+	 * @return the transfer
+	 * @throws IOException
+	 *             if the file cannot be read
+	 */
+	static DocumentTransfer ofFile(String documentId, Path file, long inlineLimit)
+			throws IOException {
+		final long size = Files.size(file);
+		return (size <= inlineLimit) ? inline(documentId, Files.readAllBytes(file))
+				: mapped(documentId, file.toString(), 0, size, false);
+	}
+
+	/**
+	 * Creates the transfer of a document which could not be retrieved.
+	 *
+	 * @param documentId
+	 *            the uniqueId of the document
+	 * @return the transfer
+	 */
+	static DocumentTransfer missing(String documentId) {
+		return new DocumentTransfer(documentId, null, null, 0, -1, false);
+	}
+
+	/** The uniqueId of the document. */
+	private final String documentId;
+
+	/** The content of an inline document. */
+	private final byte[] content;
+
+	/** The file of a mapped document. */
+	private final String path;
+
+	/** The offset of a mapped document in the file. */
+	private final long offset;
+
+	/** The length of the document, -1 if missing. */
+	private final long length;
+
+	/** True if the file has to be released. */
+	private final boolean releasable;
+
+	private DocumentTransfer(String documentId, byte[] content, String path, long offset,
+			long length, boolean releasable) {
+		this.documentId = documentId;
+		this.content = content;
+		this.path = path;
+		this.offset = offset;
+		this.length = length;
+		this.releasable = releasable;
+	}
+
+	public byte[] getContent() {
+		return content;
+	}
+
+	public String getDocumentId() {
+		return documentId;
+	}
+
+	public long getLength() {
+		return length;
+	}
+
+	public long getOffset() {
+		return offset;
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public boolean isFound() {
+		return length >= 0;
+	}
+
+	public boolean isInline() {
+		return content != null;
+	}
+
+	/**
+	 * Checks if the file of the document is a transfer segment, which the
+	 * caller releases with XDSConnector.releaseTransfer once it unmapped the
+	 * file.
+	 *
+	 * @return true, if the file has to be released
+	 */
+	public boolean isReleasable() {
+		return releasable;
+	}
+
+	@Override
+	public String toString() {
+		if (!isFound()) {
+			return documentId + ": missing";
+		}
+		return documentId + ": " + length + " bytes"
+				+ (isInline() ? " inline" : " at " + path + "@" + offset);
+	}
+
+}
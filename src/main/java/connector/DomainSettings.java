@@ -0,0 +1,235 @@
+/*
+ * The authorship of this project and accompanying materials is held by medshare GmbH, Switzerland.
+ * All rights reserved. https://medshare.net
+ *
+ * Source code, documentation and other resources have been contributed by various people.
+ * Project Team: https://gitlab.com/ehealth-connector/api/wikis/Team/
+ * For exact developer information, please refer to the commit history of the forge.
+ *
+ * This code is made available under the terms of the Eclipse Public License v1.0.
+ *
+ * Accompanying materials are made available under the terms of the Creative Commons
+ * Attribution-ShareAlike 4.0 License.
+ *
+ * This line is intended for UTF-8 encoding checks, do not modify/delete: Ã¤Ã¶Ã¼Ã©Ã¨
+ *
+ */
+package connector;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+
+import org.ehealth_connector.communication.AffinityDomain;
+import org.ehealth_connector.communication.Destination;
+
+/**
+ * <div class="en">Immutable description of the XDS endpoints of one affinity
+ * domain. Two settings with the same {@link #getKey() key} share their pooled
+ * communication clients.</div>
+ */
+public class DomainSettings {
+
+	/**
+	 * Gets the settings of the local IPF test environment.
+	 *
+	 * @return the settings of the local test environment
+	 */
+	public static DomainSettings local() {
+		return new DomainSettings("local", XDSConnector.ORGANIZATIONAL_ID,
+				"http://localhost:9091/xds-iti18", "http://localhost:9091/xds-iti43",
+				"http://localhost:9091/xds-iti41", null, null, null);
+	}
+
+	/** The name of the affinity domain. */
+	private final String name;
+
+	/** The organizational id used as sender of all transactions. */
+	private final String organizationalId;
+
+	/** The ITI-18 registry stored query endpoint. */
+	private final String registryUri;
+
+	/** The ITI-43 repository retrieve endpoint. */
+	private final String repositoryUri;
+
+	/** The ITI-41 repository submission endpoint. */
+	private final String submissionUri;
+
+	/** The path to the keystore, null for unsecure destinations. */
+	private final String keystore;
+
+	/** The password of the keystore. */
+	private final String keystorePass;
+
+	/** The type of the keystore. */
+	private final String keystoreType;
+
+	/** The maximum number of idle clients per role, 0 for the default. */
+	private final int maxIdleClients;
+
+	/** The concurrent calls per endpoint, 0 for the default. */
+	private final int endpointLimit;
+
+	/**
+	 * Instantiates new settings.
+	 *
+	 * @param name
+	 *            the name of the affinity domain
+	 * @param organizationalId
+	 *            the organizational id
+	 * @param registryUri
+	 *            the ITI-18 endpoint
+	 * @param repositoryUri
+	 *            the ITI-43 endpoint
+	 * @param submissionUri
+	 *            the ITI-41 endpoint
+	 * @param keystore
+	 *            the path to the keystore, null for unsecure destinations
+	 * @param keystorePass
+	 *            the password of the keystore
+	 * @param keystoreType
+	 *            the type of the keystore
+	 */
+	public DomainSettings(String name, String organizationalId, String registryUri,
+			String repositoryUri, String submissionUri, String keystore, String keystorePass,
+			String keystoreType) {
+		this(name, organizationalId, registryUri, repositoryUri, submissionUri, keystore,
+				keystorePass, keystoreType, 0, 0);
+	}
+
+	/**
+	 * Instantiates new settings with their own pool size and concurrency
+	 * limit.
+	 *
+	 * @param name
+	 *            the name of the affinity domain
+	 * @param organizationalId
+	 *            the organizational id
+	 * @param registryUri
+	 *            the ITI-18 endpoint
+	 * @param repositoryUri
+	 *            the ITI-43 endpoint
+	 * @param submissionUri
+	 *            the ITI-41 endpoint
+	 * @param keystore
+	 *            the path to the keystore, null for unsecure destinations
+	 * @param keystorePass
+	 *            the password of the keystore
+	 * @param keystoreType
+	 *            the type of the keystore
+	 * @param maxIdleClients
+	 *            the maximum number of idle clients per role, 0 for the
+	 *            default of the client registry
+	 * @param endpointLimit
+	 *            the concurrent calls per endpoint, 0 for the default of the
+	 *            endpoint limiter
+	 */
+	public DomainSettings(String name, String organizationalId, String registryUri,
+			String repositoryUri, String submissionUri, String keystore, String keystorePass,
+			String keystoreType, int maxIdleClients, int endpointLimit) {
+		this.name = name;
+		this.organizationalId = organizationalId;
+		this.registryUri = registryUri;
+		this.repositoryUri = repositoryUri;
+		this.submissionUri = submissionUri;
+		this.keystore = keystore;
+		this.keystorePass = keystorePass;
+		this.keystoreType = keystoreType;
+		this.maxIdleClients = maxIdleClients;
+		this.endpointLimit = endpointLimit;
+	}
+
+	/**
+	 * Creates the affinity domain used for the given role.
+	 *
+	 * @param role
+	 *            the role of the client
+	 * @return the affinity domain
+	 * @throws URISyntaxException
+	 *             if one of the endpoints is not a valid uri
+	 */
+	AffinityDomain createAffinityDomain(ClientRole role) throws URISyntaxException {
+		if (role == ClientRole.SOURCE) {
+			return new AffinityDomain(null, null, createDestination(submissionUri));
+		}
+		return new AffinityDomain(null, createDestination(registryUri),
+				createDestination(repositoryUri));
+	}
+
+	private Destination createDestination(String uri) throws URISyntaxException {
+		final URI endpoint = new URI(uri);
+		if ((keystore != null) && !"".equals(keystore)) {
+			return new Destination(organizationalId, endpoint, keystore, keystorePass,
+					keystoreType);
+		}
+		return new Destination(organizationalId, endpoint);
+	}
+
+	/**
+	 * Gets the key identifying the configuration of this affinity domain. The
+	 * key covers every value that ends up in the communication client.
+	 *
+	 * @return the key
+	 */
+	public String getKey() {
+		return organizationalId + "|" + registryUri + "|" + repositoryUri + "|" + submissionUri
+				+ "|" + keystore + "|" + keystorePass + "|" + keystoreType;
+	}
+
+	public int getEndpointLimit() {
+		return endpointLimit;
+	}
+
+	public String getKeystore() {
+		return keystore;
+	}
+
+	public String getKeystoreType() {
+		return keystoreType;
+	}
+
+	public int getMaxIdleClients() {
+		return maxIdleClients;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getOrganizationalId() {
+		return organizationalId;
+	}
+
+	public String getRegistryUri() {
+		return registryUri;
+	}
+
+	public String getRepositoryUri() {
+		return repositoryUri;
+	}
+
+	public String getSubmissionUri() {
+		return submissionUri;
+	}
+
+	/**
+	 * Checks if the other settings describe the same affinity domain with the
+	 * same pool size and concurrency limit.
+	 *
+	 * @param other
+	 *            the other settings, may be null
+	 * @return true if nothing changed
+	 */
+	public boolean isSameAs(DomainSettings other) {
+		return (other != null) && name.equals(other.name) && getKey().equals(other.getKey())
+				&& (maxIdleClients == other.maxIdleClients)
+				&& (endpointLimit == other.endpointLimit);
+	}
+
+	@Override
+	public String toString() {
+		return name + " [registry=" + registryUri + ", repository=" + repositoryUri
+				+ ", submission=" + submissionUri + "]";
+	}
+
+}
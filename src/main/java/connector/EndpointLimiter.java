@@ -0,0 +1,146 @@
+/*
+ * The authorship of this project and accompanying materials is held by medshare GmbH, Switzerland.
+ * All rights reserved. https://medshare.net
+ *
+ * Source code, documentation and other resources have been contributed by various people.
+ * Project Team: https://gitlab.com/ehealth-connector/api/wikis/Team/
+ * For exact developer information, please refer to the commit history of the forge.
+ *
+ * This code is made available under the terms of the Eclipse Public License v1.0.
+ *
+ * Accompanying materials are made available under the terms of the Creative Commons
+ * Attribution-ShareAlike 4.0 License.
+ *
+ * This line is intended for UTF-8 encoding checks, do not modify/delete: Ã¤Ã¶Ã¼Ã©Ã¨
+ *
+ */
+package connector;
+
+import java.net.URI;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * <div class="en">Limits the number of concurrent calls per registry or
+ * repository endpoint, so a bulk run does not overload a single XDS
+ * actor.</div>
+ */
+public class EndpointLimiter {
+
+	/** System property holding the default limit per endpoint. */
+	public static final String PROPERTY_DEFAULT_LIMIT = "connector.endpoint.limit";
+
+	/**
+	 * Fair semaphore whose number of permits can be changed while permits are
+	 * taken.
+	 */
+	private static final class ResizableSemaphore extends Semaphore {
+
+		private static final long serialVersionUID = 1L;
+
+		/** The number of permits when none is taken. */
+		private int limit;
+
+		ResizableSemaphore(int limit) {
+			super(limit, true);
+			this.limit = limit;
+		}
+
+		synchronized int getLimit() {
+			return limit;
+		}
+
+		/**
+		 * Changes the number of permits. A smaller limit may leave more calls
+		 * running than it allows; the next calls wait until enough of them
+		 * have finished.
+		 */
+		synchronized void resize(int newLimit) {
+			if (newLimit > limit) {
+				release(newLimit - limit);
+			} else if (newLimit < limit) {
+				reducePermits(limit - newLimit);
+			}
+			limit = newLimit;
+		}
+	}
+
+	/** The default number of concurrent calls per endpoint. */
+	private final int defaultLimit;
+
+	/** The permits per endpoint. */
+	private final ConcurrentMap<URI, ResizableSemaphore> permits = new ConcurrentHashMap<URI, ResizableSemaphore>();
+
+	/**
+	 * Instantiates a new endpoint limiter.
+	 *
+	 * @param defaultLimit
+	 *            the number of concurrent calls allowed for endpoints without an
+	 *            explicit limit
+	 */
+	public EndpointLimiter(int defaultLimit) {
+		if (defaultLimit < 1) {
+			throw new IllegalArgumentException("defaultLimit must be positive: " + defaultLimit);
+		}
+		this.defaultLimit = defaultLimit;
+	}
+
+	/**
+	 * Waits for a free slot of the endpoint. The slot has to be freed by
+	 * releasing the returned semaphore, which stays valid even if the limit of
+	 * the endpoint is changed in the meantime.
+	 *
+	 * @param endpoint
+	 *            the endpoint uri
+	 * @return the semaphore holding the slot
+	 * @throws InterruptedException
+	 *             if the calling thread was interrupted while waiting
+	 */
+	public Semaphore acquire(URI endpoint) throws InterruptedException {
+		final Semaphore semaphore = semaphore(endpoint);
+		semaphore.acquire();
+		return semaphore;
+	}
+
+	/**
+	 * Gets the limit of an endpoint.
+	 *
+	 * @param endpoint
+	 *            the endpoint uri
+	 * @return the number of concurrent calls
+	 */
+	public int getLimit(URI endpoint) {
+		return semaphore(endpoint).getLimit();
+	}
+
+	/**
+	 * Sets the limit of an endpoint. The permits of the endpoint are adjusted
+	 * in place, so calls already holding a slot still count against the new
+	 * limit; setting the same limit again changes nothing.
+	 *
+	 * @param endpoint
+	 *            the endpoint uri
+	 * @param limit
+	 *            the number of concurrent calls
+	 */
+	public void setLimit(URI endpoint, int limit) {
+		if (limit < 1) {
+			throw new IllegalArgumentException("limit must be positive: " + limit);
+		}
+		semaphore(endpoint).resize(limit);
+	}
+
+	private ResizableSemaphore semaphore(URI endpoint) {
+		ResizableSemaphore semaphore = permits.get(endpoint);
+		if (semaphore == null) {
+			final ResizableSemaphore created = new ResizableSemaphore(defaultLimit);
+			semaphore = permits.putIfAbsent(endpoint, created);
+			if (semaphore == null) {
+				semaphore = created;
+			}
+		}
+		return semaphore;
+	}
+
+}
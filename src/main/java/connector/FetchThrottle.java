@@ -0,0 +1,57 @@
+/*
+ * The authorship of this project and accompanying materials is held by medshare GmbH, Switzerland.
+ * All rights reserved. https://medshare.net
+ *
+ * Source code, documentation and other resources have been contributed by various people.
+ * Project Team: https://gitlab.com/ehealth-connector/api/wikis/Team/
+ * For exact developer information, please refer to the commit history of the forge.
+ *
+ * This code is made available under the terms of the Eclipse Public License v1.0.
+ *
+ * Accompanying materials are made available under the terms of the Creative Commons
+ * Attribution-ShareAlike 4.0 License.
+ *
+ * This line is intended for UTF-8 encoding checks, do not modify/delete: Ã¤Ã¶Ã¼Ã©Ã¨
+ *
+ */
+package connector;
+
+/**
+ * <div class="en">Paces the calls of a download, e.g. to keep a background
+ * prefetch within the rate granted by the registry and the repository. It is
+ * asked before every registry query and before every retrieve request, so
+ * paged queries and split batches are charged as they are sent.</div>
+ */
+public interface FetchThrottle {
+
+	/** Does not wait. */
+	FetchThrottle NONE = new FetchThrottle() {
+
+		@Override
+		public void beforeQuery() {
+		}
+
+		@Override
+		public void beforeRetrieve(int documents) {
+		}
+	};
+
+	/**
+	 * Waits until the next registry query may be sent.
+	 *
+	 * @throws InterruptedException
+	 *             if the thread was interrupted while waiting
+	 */
+	void beforeQuery() throws InterruptedException;
+
+	/**
+	 * Waits until a retrieve request may be sent.
+	 *
+	 * @param documents
+	 *            the number of documents of the request
+	 * @throws InterruptedException
+	 *             if the thread was interrupted while waiting
+	 */
+	void beforeRetrieve(int documents) throws InterruptedException;
+
+}
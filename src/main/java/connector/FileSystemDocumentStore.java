@@ -0,0 +1,245 @@
+/*
+ * The authorship of this project and accompanying materials is held by medshare GmbH, Switzerland.
+ * All rights reserved. https://medshare.net
+ *
+ * Source code, documentation and other resources have been contributed by various people.
+ * Project Team: https://gitlab.com/ehealth-connector/api/wikis/Team/
+ * For exact developer information, please refer to the commit history of the forge.
+ *
+ * This code is made available under the terms of the Eclipse Public License v1.0.
+ *
+ * Accompanying materials are made available under the terms of the Creative Commons
+ * Attribution-ShareAlike 4.0 License.
+ *
+ * This line is intended for UTF-8 encoding checks, do not modify/delete: Ã¤Ã¶Ã¼Ã©Ã¨
+ *
+ */
+package connector;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * <div class="en">Stores documents as plain files below a root directory, in
+ * one directory per patient named <code>patientId_documentId.xml</code>. A
+ * document is written through a direct buffer into a temporary file of the
+ * target directory and published by an atomic move, so a failed download
+ * never leaves a partial file under the final name.</div>
+ */
+public class FileSystemDocumentStore implements DocumentStore {
+
+	/** System property holding the root directory of the store. */
+	public static final String PROPERTY_ROOT = "connector.store.root";
+
+	/**
+	 * The default root directory of the store, <code>download</code> in the
+	 * working directory.
+	 */
+	public static final String DEFAULT_ROOT = Paths.get(System.getProperty("user.dir"), "download")
+			.toString();
+
+	/** The size of the transfer buffer. */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/** The direct transfer buffer of each writing thread. */
+	private static final ThreadLocal<ByteBuffer> BUFFER = ThreadLocal
+			.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+
+	/**
+	 * Escapes all characters that are not safe in a file name as
+	 * <code>_xxxx</code>, so ids from the registry cannot escape the root
+	 * directory. The underscore and a leading dot are escaped as well, so
+	 * distinct ids never share a name and no id is taken for one of the
+	 * hidden directories of the store.
+	 *
+	 * @param id
+	 *            the id
+	 * @return the file name safe id
+	 */
+	static String toFileName(String id) {
+		final StringBuilder name = new StringBuilder(id.length() + 8);
+		for (int i = 0; i < id.length(); i++) {
+			final char c = id.charAt(i);
+			if (((c >= 'A') && (c <= 'Z')) || ((c >= 'a') && (c <= 'z'))
+					|| ((c >= '0') && (c <= '9')) || (c == '-') || ((c == '.') && (i > 0))) {
+				name.append(c);
+			} else {
+				name.append('_').append(String.format("%04x", Integer.valueOf(c)));
+			}
+		}
+		return name.toString();
+	}
+
+	/**
+	 * Reverses toFileName.
+	 *
+	 * @param name
+	 *            the file name safe id
+	 * @return the id
+	 * @throws IllegalArgumentException
+	 *             if the name holds an unescaped unsafe character or a
+	 *             malformed escape
+	 */
+	static String fromFileName(String name) {
+		final StringBuilder id = new StringBuilder(name.length());
+		for (int i = 0; i < name.length(); i++) {
+			final char c = name.charAt(i);
+			if (c == '_') {
+				if (i + 5 > name.length()) {
+					throw new IllegalArgumentException("Truncated escape in " + name);
+				}
+				final String hex = name.substring(i + 1, i + 5);
+				if (!hex.matches("[0-9a-f]{4}")) {
+					throw new IllegalArgumentException("Malformed escape in " + name);
+				}
+				id.append((char) Integer.parseInt(hex, 16));
+				i += 4;
+			} else if (((c >= 'A') && (c <= 'Z')) || ((c >= 'a') && (c <= 'z'))
+					|| ((c >= '0') && (c <= '9')) || (c == '-') || ((c == '.') && (i > 0))) {
+				id.append(c);
+			} else {
+				throw new IllegalArgumentException("Unescaped character in " + name);
+			}
+		}
+		return id.toString();
+	}
+
+	/**
+	 * Gets the lossy file name used before unsafe characters were escaped, to
+	 * find files written by earlier versions.
+	 *
+	 * @param id
+	 *            the id
+	 * @return the file name of earlier versions
+	 */
+	static String toLegacyFileName(String id) {
+		return id.replaceAll("[^A-Za-z0-9._-]", "_");
+	}
+
+	/** The root directory. */
+	private final Path root;
+
+	/**
+	 * Instantiates a new store.
+	 *
+	 * @param root
+	 *            the root directory, created on the first write
+	 */
+	public FileSystemDocumentStore(Path root) {
+		this.root = root;
+	}
+
+	@Override
+	public boolean contains(String patientId, String documentId) {
+		return Files.exists(resolve(patientId, documentId));
+	}
+
+	@Override
+	public String getLocation(String patientId, String documentId) {
+		return resolve(patientId, documentId).toString();
+	}
+
+	public Path getRoot() {
+		return root;
+	}
+
+	/**
+	 * Gets the path of a document. Used for writing as well as for the
+	 * existence check.
+	 *
+	 * @param patientId
+	 *            the patient id
+	 * @param documentId
+	 *            the uniqueId of the document
+	 * @return the path of the document
+	 */
+	public Path resolve(String patientId, String documentId) {
+		final String patient = toFileName(patientId);
+		return root.resolve(patient)
+				.resolve(patient + "_" + toFileName(documentId) + ".xml");
+	}
+
+	/**
+	 * Gets the path of a document relative to the root, with '/' as
+	 * separator. Identifies the document in the presence index.
+	 *
+	 * @param patientId
+	 *            the patient id
+	 * @param documentId
+	 *            the uniqueId of the document
+	 * @return the relative path of the document
+	 */
+	static String relativeName(String patientId, String documentId) {
+		final String patient = toFileName(patientId);
+		return patient + "/" + patient + "_" + toFileName(documentId) + ".xml";
+	}
+
+	@Override
+	public StoreResult store(String patientId, String documentId, InputStream content)
+			throws IOException {
+		final long start = System.nanoTime();
+		final Path target = resolve(patientId, documentId);
+		final Path directory = target.getParent();
+		Files.createDirectories(directory);
+		final Path temp = Files.createTempFile(directory, "." + target.getFileName(), ".part");
+		final long bytes;
+		try {
+			try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING)) {
+				bytes = write(content, out);
+				out.force(false);
+			}
+			publish(temp, target);
+		} catch (IOException | RuntimeException e) {
+			Files.deleteIfExists(temp);
+			throw e;
+		}
+		return new StoreResult(target.toString(), bytes, System.nanoTime() - start);
+	}
+
+	private static void publish(Path temp, Path target) throws IOException {
+		try {
+			Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+		} catch (final AtomicMoveNotSupportedException e) {
+			Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private static long write(InputStream content, FileChannel out) throws IOException {
+		if (content instanceof FileInputStream) {
+			// file to file: let the kernel copy the bytes
+			final FileChannel in = ((FileInputStream) content).getChannel();
+			long written = 0;
+			long transferred;
+			while ((transferred = out.transferFrom(in, written, Long.MAX_VALUE)) > 0) {
+				written += transferred;
+			}
+			return written;
+		}
+		final ReadableByteChannel in = Channels.newChannel(content);
+		final ByteBuffer buffer = BUFFER.get();
+		buffer.clear();
+		long written = 0;
+		while (in.read(buffer) != -1) {
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				written += out.write(buffer);
+			}
+			buffer.clear();
+		}
+		return written;
+	}
+
+}
@@ -0,0 +1,168 @@
+/*
+ * The authorship of this project and accompanying materials is held by medshare GmbH, Switzerland.
+ * All rights reserved. https://medshare.net
+ *
+ * Source code, documentation and other resources have been contributed by various people.
+ * Project Team: https://gitlab.com/ehealth-connector/api/wikis/Team/
+ * For exact developer information, please refer to the commit history of the forge.
+ *
+ * This code is made available under the terms of the Eclipse Public License v1.0.
+ *
+ * Accompanying materials are made available under the terms of the Creative Commons
+ * Attribution-ShareAlike 4.0 License.
+ *
+ * This line is intended for UTF-8 encoding checks, do not modify/delete: Ã¤Ã¶Ã¼Ã©Ã¨
+ *
+ */
+package connector;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * <div class="en">File system store answering existence checks from a
+ * {@link PresenceIndex} instead of a file system stat per document. The index
+ * is brought up to date at startup by scanning only the patient directories
+ * modified since the last scan; until that scan finished, checks fall back to
+ * the file system. Documents deleted outside of the connector stay in the
+ * index until {@link #rebuild()}.</div>
+ */
+public class IndexedDocumentStore implements DocumentStore, Closeable {
+
+	/** The system property switching the presence index on or off. */
+	public static final String PROPERTY_ENABLED = "connector.index.enabled";
+
+	/** The clock difference tolerated between the scan and the file system. */
+	private static final long SCAN_SLACK_MILLIS = 2000L;
+
+	/** The store holding the documents. */
+	private final FileSystemDocumentStore delegate;
+
+	/** The keys of the stored documents. */
+	private final PresenceIndex index;
+
+	/** True once the index covers the whole store directory. */
+	private volatile boolean ready;
+
+	/**
+	 * Instantiates a new indexed store. The index file lives in the
+	 * <code>.index</code> directory of the store root.
+	 *
+	 * @param delegate
+	 *            the store holding the documents
+	 * @throws IOException
+	 *             if the index cannot be opened
+	 */
+	public IndexedDocumentStore(FileSystemDocumentStore delegate) throws IOException {
+		this.delegate = delegate;
+		this.index = new PresenceIndex(delegate.getRoot().resolve(".index").resolve("presence.idx"),
+				1 << 16);
+	}
+
+	@Override
+	public void close() throws IOException {
+		index.close();
+	}
+
+	@Override
+	public boolean contains(String patientId, String documentId) {
+		if (!ready) {
+			return delegate.contains(patientId, documentId);
+		}
+		return index.contains(FileSystemDocumentStore.relativeName(patientId, documentId));
+	}
+
+	public long getIndexedCount() {
+		return index.getCount();
+	}
+
+	@Override
+	public String getLocation(String patientId, String documentId) {
+		return delegate.getLocation(patientId, documentId);
+	}
+
+	public boolean isReady() {
+		return ready;
+	}
+
+	/**
+	 * Drops the index and rebuilds it from the whole store directory, e.g.
+	 * after documents were deleted outside of the connector.
+	 *
+	 * @throws IOException
+	 *             if the store directory cannot be read
+	 */
+	public void rebuild() throws IOException {
+		ready = false;
+		index.clear();
+		scan();
+	}
+
+	/**
+	 * Adds the documents of all patient directories modified since the last
+	 * scan to the index.
+	 *
+	 * @throws IOException
+	 *             if the store directory cannot be read
+	 */
+	public void scan() throws IOException {
+		final long start = System.currentTimeMillis();
+		final long since = index.getLastScan() - SCAN_SLACK_MILLIS;
+		final Path root = delegate.getRoot();
+		long added = 0;
+		if (Files.isDirectory(root)) {
+			try (DirectoryStream<Path> patients = Files.newDirectoryStream(root)) {
+				for (final Path patient : patients) {
+					final String patientDir = patient.getFileName().toString();
+					if (patientDir.startsWith(".") || !Files.isDirectory(patient)
+							|| ((since > 0)
+									&& (Files.getLastModifiedTime(patient).toMillis() < since))) {
+						continue;
+					}
+					try (DirectoryStream<Path> documents = Files.newDirectoryStream(patient,
+							"*.xml")) {
+						for (final Path document : documents) {
+							if (index.add(patientDir + "/" + document.getFileName())) {
+								added++;
+							}
+						}
+					}
+				}
+			}
+		}
+		index.setLastScan(start);
+		index.force();
+		ready = true;
+		System.out.println("Presence index: " + added + " documents added, "
+				+ index.getCount() + " indexed, "
+				+ (System.currentTimeMillis() - start) + " ms");
+	}
+
+	/**
+	 * Runs the startup scan on a background thread.
+	 */
+	public void scanInBackground() {
+		final Thread thread = new Thread(() -> {
+			try {
+				scan();
+			} catch (final IOException e) {
+				System.out.print("PRESENCE INDEX CANNOT BE BUILT: " + e.getMessage() + "\n");
+			}
+		}, "xds-index-scan");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@Override
+	public StoreResult store(String patientId, String documentId, InputStream content)
+			throws IOException {
+		final StoreResult stored = delegate.store(patientId, documentId, content);
+		index.add(FileSystemDocumentStore.relativeName(patientId, documentId));
+		return stored;
+	}
+
+}
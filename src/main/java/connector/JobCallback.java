@@ -0,0 +1,35 @@
+/*
+ * The authorship of this project and accompanying materials is held by medshare GmbH, Switzerland.
+ * All rights reserved. https://medshare.net
+ *
+ * Source code, documentation and other resources have been contributed by various people.
+ * Project Team: https://gitlab.com/ehealth-connector/api/wikis/Team/
+ * For exact developer information, please refer to the commit history of the forge.
+ *
+ * This code is made available under the terms of the Eclipse Public License v1.0.
+ *
+ * Accompanying materials are made available under the terms of the Creative Commons
+ * Attribution-ShareAlike 4.0 License.
+ *
+ * This line is intended for UTF-8 encoding checks, do not modify/delete: Ã¤Ã¶Ã¼Ã©Ã¨
+ *
+ */
+package connector;
+
+/**
+ * <div class="en">Notified when an asynchronous connector job completes. The
+ * Python side implements this interface to get a callback through the py4j
+ * callback server instead of polling the job.</div>
+ */
+public interface JobCallback {
+
+	/**
+	 * Called once the job succeeded, failed or was cancelled. The callback runs
+	 * on the worker that completed the job, so it should return quickly.
+	 *
+	 * @param job
+	 *            the completed job
+	 */
+	void jobCompleted(ConnectorJob job);
+
+}
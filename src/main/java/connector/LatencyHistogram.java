@@ -0,0 +1,142 @@
+/*
+ * The authorship of this project and accompanying materials is held by medshare GmbH, Switzerland.
+ * All rights reserved. https://medshare.net
+ *
+ * Source code, documentation and other resources have been contributed by various people.
+ * Project Team: https://gitlab.com/ehealth-connector/api/wikis/Team/
+ * For exact developer information, please refer to the commit history of the forge.
+ *
+ * This code is made available under the terms of the Eclipse Public License v1.0.
+ *
+ * Accompanying materials are made available under the terms of the Creative Commons
+ * Attribution-ShareAlike 4.0 License.
+ *
+ * This line is intended for UTF-8 encoding checks, do not modify/delete: Ã¤Ã¶Ã¼Ã©Ã¨
+ *
+ */
+package connector;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <div class="en">Lock-free latency histogram with logarithmic buckets in the
+ * style of HdrHistogram: every power of two is split into 16 linear
+ * sub-buckets, so percentiles are accurate to about 6% over the whole range
+ * from microseconds to hours. Recording is a few atomic increments and does
+ * not allocate.</div>
+ */
+public class LatencyHistogram {
+
+	/** The number of linear sub-buckets per power of two, as bits. */
+	private static final int SUB_BUCKET_BITS = 4;
+
+	/** The number of linear sub-buckets per power of two. */
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	/** The number of buckets covering all positive long values. */
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	static int bucketIndex(long micros) {
+		if (micros < SUB_BUCKETS) {
+			return (int) Math.max(0, micros);
+		}
+		final int exponent = 63 - Long.numberOfLeadingZeros(micros);
+		return ((exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS)
+				+ (int) ((micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+	}
+
+	static long bucketUpperBound(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		final int shift = (index / SUB_BUCKETS) - 1;
+		final long lower = ((long) (SUB_BUCKETS + (index % SUB_BUCKETS))) << shift;
+		return (lower + (1L << shift)) - 1;
+	}
+
+	/** The number of values per bucket. */
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+	/** The number of recorded values. */
+	private final AtomicLong count = new AtomicLong();
+
+	/** The sum of all recorded values in microseconds. */
+	private final AtomicLong sum = new AtomicLong();
+
+	/** The largest recorded value in microseconds. */
+	private final AtomicLong max = new AtomicLong();
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getMaxMicros() {
+		return max.get();
+	}
+
+	/**
+	 * Gets the mean of all recorded values.
+	 *
+	 * @return the mean in microseconds, 0 if nothing was recorded
+	 */
+	public double getMeanMicros() {
+		final long n = count.get();
+		return n == 0 ? 0 : (double) sum.get() / n;
+	}
+
+	/**
+	 * Gets the value below which the given percentage of the recorded values
+	 * fall.
+	 *
+	 * @param percentile
+	 *            the percentile, between 0 and 100
+	 * @return the highest value of the bucket holding the percentile in
+	 *         microseconds, 0 if nothing was recorded
+	 */
+	public long getPercentileMicros(double percentile) {
+		final long n = count.get();
+		if (n == 0) {
+			return 0;
+		}
+		final long rank = Math.max(1, (long) Math.ceil((percentile / 100.0) * n));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return Math.min(bucketUpperBound(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	/**
+	 * Records a duration.
+	 *
+	 * @param nanos
+	 *            the duration in nanoseconds
+	 */
+	public void record(long nanos) {
+		final long micros = Math.max(0, nanos / 1000L);
+		counts.incrementAndGet(bucketIndex(micros));
+		count.incrementAndGet();
+		sum.addAndGet(micros);
+		long current = max.get();
+		while ((micros > current) && !max.compareAndSet(current, micros)) {
+			current = max.get();
+		}
+	}
+
+	/**
+	 * Drops all recorded values.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+		count.set(0);
+		sum.set(0);
+		max.set(0);
+	}
+
+}
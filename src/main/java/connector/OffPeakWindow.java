@@ -0,0 +1,112 @@
+/*
+ * The authorship of this project and accompanying materials is held by medshare GmbH, Switzerland.
+ * All rights reserved. https://medshare.net
+ *
+ * Source code, documentation and other resources have been contributed by various people.
+ * Project Team: https://gitlab.com/ehealth-connector/api/wikis/Team/
+ * For exact developer information, please refer to the commit history of the forge.
+ *
+ * This code is made available under the terms of the Eclipse Public License v1.0.
+ *
+ * Accompanying materials are made available under the terms of the Creative Commons
+ * Attribution-ShareAlike 4.0 License.
+ *
+ * This line is intended for UTF-8 encoding checks, do not modify/delete: Ã¤Ã¶Ã¼Ã©Ã¨
+ *
+ */
+package connector;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.format.DateTimeParseException;
+
+/**
+ * <div class="en">Daily time window in which background work may run, e.g.
+ * <code>20:00-06:00</code>. A window may span midnight; an empty window is
+ * always open.</div>
+ */
+public class OffPeakWindow {
+
+	/** The window which is always open. */
+	public static final OffPeakWindow ALWAYS = new OffPeakWindow(null, null);
+
+	/**
+	 * Parses a window of the form <code>HH:mm-HH:mm</code>.
+	 *
+	 * @param window
+	 *            the window, null, empty or "always" for no restriction
+	 * @return the window
+	 * @throws IllegalArgumentException
+	 *             if the window cannot be parsed
+	 */
+	public static OffPeakWindow parse(String window) {
+		if ((window == null) || window.trim().isEmpty()
+				|| "always".equalsIgnoreCase(window.trim())) {
+			return ALWAYS;
+		}
+		final String[] bounds = window.trim().split("-");
+		if (bounds.length != 2) {
+			throw new IllegalArgumentException("window must be HH:mm-HH:mm: " + window);
+		}
+		try {
+			return new OffPeakWindow(LocalTime.parse(bounds[0].trim()),
+					LocalTime.parse(bounds[1].trim()));
+		} catch (final DateTimeParseException e) {
+			throw new IllegalArgumentException("window must be HH:mm-HH:mm: " + window, e);
+		}
+	}
+
+	/** The start of the window, null if always open. */
+	private final LocalTime start;
+
+	/** The end of the window, exclusive. */
+	private final LocalTime end;
+
+	private OffPeakWindow(LocalTime start, LocalTime end) {
+		this.start = start;
+		this.end = end;
+	}
+
+	/**
+	 * Checks if the window is open at the given time.
+	 *
+	 * @param time
+	 *            the time of day
+	 * @return true, if background work may run
+	 */
+	public boolean isOpen(LocalTime time) {
+		if (start == null) {
+			return true;
+		}
+		if (start.isBefore(end)) {
+			return !time.isBefore(start) && time.isBefore(end);
+		}
+		// spans midnight
+		return !time.isBefore(start) || time.isBefore(end);
+	}
+
+	/**
+	 * Gets the time until the window opens.
+	 *
+	 * @param now
+	 *            the current time
+	 * @return the time in milliseconds, 0 if the window is open
+	 */
+	public long millisUntilOpen(LocalDateTime now) {
+		if (isOpen(now.toLocalTime())) {
+			return 0;
+		}
+		LocalDateTime opening = now.toLocalDate().atTime(start);
+		if (opening.isBefore(now)) {
+			opening = opening.plusDays(1);
+		}
+		return Duration.between(now, opening).toMillis();
+	}
+
+	@Override
+	public String toString() {
+		return (start == null) ? "always" : start + "-" + end;
+	}
+
+}
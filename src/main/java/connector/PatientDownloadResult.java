@@ -0,0 +1,168 @@
+/*
+ * The authorship of this project and accompanying materials is held by medshare GmbH, Switzerland.
+ * All rights reserved. https://medshare.net
+ *
+ * Source code, documentation and other resources have been contributed by various people.
+ * Project Team: https://gitlab.com/ehealth-connector/api/wikis/Team/
+ * For exact developer information, please refer to the commit history of the forge.
+ *
+ * This code is made available under the terms of the Eclipse Public License v1.0.
+ *
+ * Accompanying materials are made available under the terms of the Creative Commons
+ * Attribution-ShareAlike 4.0 License.
+ *
+ * This line is intended for UTF-8 encoding checks, do not modify/delete: Ã¤Ã¶Ã¼Ã©Ã¨
+ *
+ */
+package connector;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <div class="en">Result of the download of all documents of a single
+ * patient.</div>
+ */
+public class PatientDownloadResult {
+
+	/** The assigning authority of the patient id. */
+	private final String patientRoot;
+
+	/** The patient id. */
+	private final String patientExtension;
+
+	/** The number of documents listed in the registry. */
+	private int documentsFound;
+
+	/** The number of documents retrieved and stored. */
+	private int documentsDownloaded;
+
+	/** The number of documents already on disc. */
+	private int documentsSkipped;
+
+	/** The number of documents that could not be retrieved or stored. */
+	private int documentsFailed;
+
+	/** The number of bytes stored. */
+	private long bytesDownloaded;
+
+	/** The results of the single documents. */
+	private final List<DocumentResult> documents = new ArrayList<DocumentResult>();
+
+	/** The error that aborted the download, null on success. */
+	private String error;
+
+	/** The duration of the download in milliseconds. */
+	private long elapsedMillis;
+
+	/**
+	 * Instantiates a new result.
+	 *
+	 * @param patientRoot
+	 *            the assigning authority of the patient id
+	 * @param patientExtension
+	 *            the patient id
+	 */
+	public PatientDownloadResult(String patientRoot, String patientExtension) {
+		this.patientRoot = patientRoot;
+		this.patientExtension = patientExtension;
+	}
+
+	/**
+	 * Adds the result of a single document and counts it.
+	 *
+	 * @param document
+	 *            the result of the document
+	 */
+	void add(DocumentResult document) {
+		documents.add(document);
+		switch (document.getStatusType()) {
+		case DOWNLOADED:
+			documentsDownloaded++;
+			bytesDownloaded += document.getBytes();
+			break;
+		case SKIPPED:
+			documentsSkipped++;
+			break;
+		default:
+			documentsFailed++;
+			break;
+		}
+	}
+
+	public long getBytesDownloaded() {
+		return bytesDownloaded;
+	}
+
+	/**
+	 * Gets the results of the single documents, in the order they were
+	 * processed.
+	 *
+	 * @return the document results
+	 */
+	public List<DocumentResult> getDocuments() {
+		return documents;
+	}
+
+	public int getDocumentsDownloaded() {
+		return documentsDownloaded;
+	}
+
+	public int getDocumentsFailed() {
+		return documentsFailed;
+	}
+
+	public int getDocumentsFound() {
+		return documentsFound;
+	}
+
+	public int getDocumentsSkipped() {
+		return documentsSkipped;
+	}
+
+	public long getElapsedMillis() {
+		return elapsedMillis;
+	}
+
+	public String getError() {
+		return error;
+	}
+
+	public String getPatientExtension() {
+		return patientExtension;
+	}
+
+	public String getPatientRoot() {
+		return patientRoot;
+	}
+
+	/**
+	 * Checks if all documents of the patient are available on disc.
+	 *
+	 * @return true, if no error occurred and no document failed
+	 */
+	public boolean isSuccessful() {
+		return (error == null) && (documentsFailed == 0);
+	}
+
+	void setDocumentsFound(int documentsFound) {
+		this.documentsFound = documentsFound;
+	}
+
+	void setElapsedMillis(long elapsedMillis) {
+		this.elapsedMillis = elapsedMillis;
+	}
+
+	void setError(String error) {
+		this.error = error;
+	}
+
+	@Override
+	public String toString() {
+		return patientRoot + "/" + patientExtension + ": found=" + documentsFound
+				+ ", downloaded=" + documentsDownloaded + ", skipped=" + documentsSkipped
+				+ ", failed=" + documentsFailed + ", bytes=" + bytesDownloaded + ", elapsed=" + elapsedMillis + "ms"
+				+ (error != null ? ", error=" + error : "");
+	}
+
+}
@@ -0,0 +1,76 @@
+/*
+ * The authorship of this project and accompanying materials is held by medshare GmbH, Switzerland.
+ * All rights reserved. https://medshare.net
+ *
+ * Source code, documentation and other resources have been contributed by various people.
+ * Project Team: https://gitlab.com/ehealth-connector/api/wikis/Team/
+ * For exact developer information, please refer to the commit history of the forge.
+ *
+ * This code is made available under the terms of the Eclipse Public License v1.0.
+ *
+ * Accompanying materials are made available under the terms of the Creative Commons
+ * Attribution-ShareAlike 4.0 License.
+ *
+ * This line is intended for UTF-8 encoding checks, do not modify/delete: Ã¤Ã¶Ã¼Ã©Ã¨
+ *
+ */
+package connector;
+
+import org.ehealth_connector.communication.AffinityDomain;
+import org.ehealth_connector.communication.ConvenienceCommunication;
+
+/**
+ * <div class="en">A preconfigured communication client borrowed from the
+ * {@link CommunicationClientRegistry}. A client is used by one thread at a
+ * time and has to be released after use.</div>
+ */
+public class PooledClient {
+
+	/** The key of the pool the client belongs to. */
+	private final String poolKey;
+
+	/** The affinity domain of the client. */
+	private final AffinityDomain affinityDomain;
+
+	/** The communication client. */
+	private volatile ConvenienceCommunication communication;
+
+	/** The time the client was returned to its pool. */
+	private volatile long lastReleased;
+
+	PooledClient(String poolKey, AffinityDomain affinityDomain) {
+		this.poolKey = poolKey;
+		this.affinityDomain = affinityDomain;
+		this.communication = new ConvenienceCommunication(affinityDomain);
+		this.lastReleased = System.currentTimeMillis();
+	}
+
+	public AffinityDomain getAffinityDomain() {
+		return affinityDomain;
+	}
+
+	public ConvenienceCommunication getCommunication() {
+		return communication;
+	}
+
+	long getLastReleased() {
+		return lastReleased;
+	}
+
+	String getPoolKey() {
+		return poolKey;
+	}
+
+	/**
+	 * Replaces the communication client after a call was abandoned, since the
+	 * abandoned call may still be using it. Pending documents are lost.
+	 */
+	void renewCommunication() {
+		communication = new ConvenienceCommunication(affinityDomain);
+	}
+
+	void markReleased() {
+		lastReleased = System.currentTimeMillis();
+	}
+
+}
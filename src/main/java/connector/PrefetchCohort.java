@@ -0,0 +1,155 @@
+/*
+ * The authorship of this project and accompanying materials is held by medshare GmbH, Switzerland.
+ * All rights reserved. https://medshare.net
+ *
+ * Source code, documentation and other resources have been contributed by various people.
+ * Project Team: https://gitlab.com/ehealth-connector/api/wikis/Team/
+ * For exact developer information, please refer to the commit history of the forge.
+ *
+ * This code is made available under the terms of the Eclipse Public License v1.0.
+ *
+ * Accompanying materials are made available under the terms of the Creative Commons
+ * Attribution-ShareAlike 4.0 License.
+ *
+ * This line is intended for UTF-8 encoding checks, do not modify/delete: Ã¤Ã¶Ã¼Ã©Ã¨
+ *
+ */
+package connector;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <div class="en">Progress of the prefetch of a patient cohort, polled by the
+ * Python side.</div>
+ */
+public class PrefetchCohort {
+
+	/** The id of the cohort. */
+	private final String id;
+
+	/** The affinity domain, null for the default domain. */
+	private final String domainName;
+
+	/** The assigning authority of the patient ids. */
+	private final String oid;
+
+	/** The priority, higher runs first. */
+	private final int priority;
+
+	/** The number of patients. */
+	private final int patients;
+
+	/** The number of patients prefetched. */
+	private final AtomicInteger completed = new AtomicInteger();
+
+	/** The number of patients whose prefetch failed. */
+	private final AtomicInteger failed = new AtomicInteger();
+
+	/** The number of documents downloaded. */
+	private final AtomicLong documentsDownloaded = new AtomicLong();
+
+	/** True once the cohort was cancelled. */
+	private volatile boolean cancelled;
+
+	/** The time the cohort was submitted in milliseconds. */
+	private final long submittedMillis = System.currentTimeMillis();
+
+	/** The time the last patient finished in milliseconds. */
+	private volatile long finishedMillis;
+
+	PrefetchCohort(String id, String domainName, String oid, int priority, int patients) {
+		this.id = id;
+		this.domainName = domainName;
+		this.oid = oid;
+		this.priority = priority;
+		this.patients = patients;
+	}
+
+	void cancel() {
+		cancelled = true;
+		finishedMillis = System.currentTimeMillis();
+	}
+
+	void patientFinished(PatientDownloadResult result) {
+		if (result.isSuccessful()) {
+			completed.incrementAndGet();
+		} else {
+			failed.incrementAndGet();
+		}
+		documentsDownloaded.addAndGet(result.getDocumentsDownloaded());
+		if (getRemaining() == 0) {
+			finishedMillis = System.currentTimeMillis();
+		}
+	}
+
+	public int getCompleted() {
+		return completed.get();
+	}
+
+	public String getDomainName() {
+		return domainName;
+	}
+
+	public long getDocumentsDownloaded() {
+		return documentsDownloaded.get();
+	}
+
+	public int getFailed() {
+		return failed.get();
+	}
+
+	long getFinishedMillis() {
+		return finishedMillis;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public String getOid() {
+		return oid;
+	}
+
+	public int getPatients() {
+		return patients;
+	}
+
+	public int getPriority() {
+		return priority;
+	}
+
+	/**
+	 * Gets the number of patients not yet prefetched.
+	 *
+	 * @return the number of remaining patients
+	 */
+	public int getRemaining() {
+		return patients - completed.get() - failed.get();
+	}
+
+	public long getSubmittedMillis() {
+		return submittedMillis;
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * Checks if the cohort was prefetched completely or cancelled.
+	 *
+	 * @return true, if no more patients of the cohort are fetched
+	 */
+	public boolean isDone() {
+		return cancelled || (getRemaining() == 0);
+	}
+
+	@Override
+	public String toString() {
+		return id + ": " + getCompleted() + "/" + patients + " patients, " + getFailed()
+				+ " failed, " + getDocumentsDownloaded() + " documents"
+				+ (cancelled ? ", cancelled" : "");
+	}
+
+}
@@ -0,0 +1,392 @@
+/*
+ * The authorship of this project and accompanying materials is held by medshare GmbH, Switzerland.
+ * All rights reserved. https://medshare.net
+ *
+ * Source code, documentation and other resources have been contributed by various people.
+ * Project Team: https://gitlab.com/ehealth-connector/api/wikis/Team/
+ * For exact developer information, please refer to the commit history of the forge.
+ *
+ * This code is made available under the terms of the Eclipse Public License v1.0.
+ *
+ * Accompanying materials are made available under the terms of the Creative Commons
+ * Attribution-ShareAlike 4.0 License.
+ *
+ * This line is intended for UTF-8 encoding checks, do not modify/delete: Ã¤Ã¶Ã¼Ã©Ã¨
+ *
+ */
+package connector;
+
+import java.net.URI;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.ehealth_connector.common.mdht.Identificator;
+
+/**
+ * <div class="en">Downloads the documents of announced patient cohorts in the
+ * background, so the later interactive calls are served from the local
+ * store. Patients are fetched by priority, then in submission order, only
+ * while the off-peak window is open. The registry queries and the retrieved
+ * documents of the prefetch are limited per endpoint by token buckets; the
+ * interactive calls are not limited.
+ *
+ * The prefetch saves the retrieve of a later call, not its registry query:
+ * queryDocumentWithId looks the entry up in the metadata cache, whose entries
+ * expire after connector.cache.ttl (60 seconds by default), so a document
+ * prefetched earlier still costs one ITI-18 query before it is served from
+ * the store.</div>
+ */
+public class PrefetchScheduler {
+
+	/**
+	 * Downloads the documents of a patient, the connector outside of tests.
+	 */
+	interface Fetcher {
+
+		/**
+		 * Gets the settings of an affinity domain.
+		 *
+		 * @param domainName
+		 *            the name of the domain, null for the default domain
+		 * @return the settings
+		 */
+		DomainSettings domain(String domainName);
+
+		/**
+		 * Downloads the documents of a patient.
+		 *
+		 * @param settings
+		 *            the affinity domain
+		 * @param patientId
+		 *            the patient id
+		 * @param throttle
+		 *            called before every registry query and retrieve
+		 * @return the result of the download
+		 */
+		PatientDownloadResult fetchPatient(DomainSettings settings, Identificator patientId,
+				FetchThrottle throttle);
+	}
+
+	/** The system property holding the number of prefetch workers. */
+	public static final String PROPERTY_THREADS = "connector.prefetch.threads";
+
+	/** The system property holding the off-peak window, e.g. 20:00-06:00. */
+	public static final String PROPERTY_WINDOW = "connector.prefetch.window";
+
+	/** The system property holding the registry queries per second. */
+	public static final String PROPERTY_REGISTRY_RATE = "connector.prefetch.registryRate";
+
+	/** The system property holding the retrieved documents per second. */
+	public static final String PROPERTY_REPOSITORY_RATE = "connector.prefetch.repositoryRate";
+
+	/** The time finished cohorts are kept for polling. */
+	private static final long RETENTION_MILLIS = 24 * 60 * 60 * 1000L;
+
+	/** The longest time a worker sleeps before checking the window again. */
+	private static final long MAX_WINDOW_WAIT_MILLIS = 60 * 1000L;
+
+	/**
+	 * A patient waiting for its prefetch.
+	 */
+	private static final class PrefetchTask implements Comparable<PrefetchTask> {
+		final PrefetchCohort cohort;
+		final String patientId;
+		final long sequence;
+
+		PrefetchTask(PrefetchCohort cohort, String patientId, long sequence) {
+			this.cohort = cohort;
+			this.patientId = patientId;
+			this.sequence = sequence;
+		}
+
+		@Override
+		public int compareTo(PrefetchTask other) {
+			if (cohort.getPriority() != other.cohort.getPriority()) {
+				return (cohort.getPriority() > other.cohort.getPriority()) ? -1 : 1;
+			}
+			return Long.compare(sequence, other.sequence);
+		}
+	}
+
+	/** Fetches the patients. */
+	private final Fetcher connector;
+
+	/** The number of workers. */
+	private final int threads;
+
+	/** The patients waiting for their prefetch. */
+	private final PriorityBlockingQueue<PrefetchTask> queue = new PriorityBlockingQueue<PrefetchTask>();
+
+	/** The cohorts by id. */
+	private final Map<String, PrefetchCohort> cohorts = new ConcurrentHashMap<String, PrefetchCohort>();
+
+	/** The rate limits of the endpoints. */
+	private final Map<URI, TokenBucket> buckets = new ConcurrentHashMap<URI, TokenBucket>();
+
+	/** The default registry queries per second. */
+	private final double registryRate;
+
+	/** The default retrieved documents per second. */
+	private final double repositoryRate;
+
+	/** The number of the last cohort and task. */
+	private final AtomicLong counter = new AtomicLong();
+
+	/** The window in which the workers run. */
+	private volatile OffPeakWindow window;
+
+	/** The workers, empty until the first cohort is submitted. */
+	private final List<Thread> workers = new ArrayList<Thread>();
+
+	/**
+	 * Instantiates a new scheduler. The workers are started with the first
+	 * cohort.
+	 *
+	 * @param connector
+	 *            the connector fetching the patients
+	 * @param threads
+	 *            the number of workers
+	 * @param window
+	 *            the window in which the workers run
+	 * @param registryRate
+	 *            the registry queries per second and endpoint
+	 * @param repositoryRate
+	 *            the retrieved documents per second and endpoint
+	 */
+	public PrefetchScheduler(XDSConnector connector, int threads, OffPeakWindow window,
+			double registryRate, double repositoryRate) {
+		this(new Fetcher() {
+
+			@Override
+			public DomainSettings domain(String domainName) {
+				return connector.domain(domainName);
+			}
+
+			@Override
+			public PatientDownloadResult fetchPatient(DomainSettings settings,
+					Identificator patientId, FetchThrottle throttle) {
+				return connector.fetchPatient(settings, patientId, throttle);
+			}
+		}, threads, window, registryRate, repositoryRate);
+	}
+
+	PrefetchScheduler(Fetcher connector, int threads, OffPeakWindow window,
+			double registryRate, double repositoryRate) {
+		this.connector = connector;
+		this.threads = Math.max(1, threads);
+		this.window = window;
+		this.registryRate = registryRate;
+		this.repositoryRate = repositoryRate;
+	}
+
+	/**
+	 * Cancels a cohort. Its waiting patients are dropped, patients being
+	 * fetched finish.
+	 *
+	 * @param cohortId
+	 *            the id of the cohort
+	 * @return true if the cohort was cancelled, false if unknown or done
+	 */
+	public boolean cancel(String cohortId) {
+		final PrefetchCohort cohort = cohorts.get(cohortId);
+		if ((cohort == null) || cohort.isDone()) {
+			return false;
+		}
+		cohort.cancel();
+		queue.removeIf(task -> task.cohort == cohort);
+		return true;
+	}
+
+	public PrefetchCohort getCohort(String cohortId) {
+		return cohorts.get(cohortId);
+	}
+
+	/**
+	 * Gets the cohorts which are submitted or finished recently.
+	 *
+	 * @return the cohorts
+	 */
+	public List<PrefetchCohort> getCohorts() {
+		return new ArrayList<PrefetchCohort>(cohorts.values());
+	}
+
+	public int getQueueLength() {
+		return queue.size();
+	}
+
+	public OffPeakWindow getWindow() {
+		return window;
+	}
+
+	/**
+	 * Sets the rate limit of an endpoint for the prefetch.
+	 *
+	 * @param endpoint
+	 *            the registry or repository endpoint
+	 * @param ratePerSecond
+	 *            the queries (registry) or documents (repository) per second
+	 */
+	public void setRate(URI endpoint, double ratePerSecond) {
+		buckets.put(endpoint, new TokenBucket(ratePerSecond, Math.max(1, ratePerSecond)));
+	}
+
+	/**
+	 * Sets the window in which the workers run. Waiting workers check the new
+	 * window at once.
+	 *
+	 * @param window
+	 *            the window
+	 */
+	public void setWindow(OffPeakWindow window) {
+		this.window = window;
+		synchronized (this) {
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Stops the workers. Patients being fetched are interrupted, the cohorts
+	 * with waiting patients are cancelled. A cohort submitted later starts
+	 * the workers again.
+	 */
+	public synchronized void shutdown() {
+		for (final Thread worker : workers) {
+			worker.interrupt();
+		}
+		workers.clear();
+		queue.clear();
+		for (final PrefetchCohort cohort : cohorts.values()) {
+			if (!cohort.isDone()) {
+				cohort.cancel();
+			}
+		}
+	}
+
+	/**
+	 * Submits a cohort.
+	 *
+	 * @param domainName
+	 *            the affinity domain, null for the default domain
+	 * @param oid
+	 *            the assigning authority of the patient ids
+	 * @param patientIds
+	 *            the patient ids
+	 * @param priority
+	 *            the priority, higher runs first
+	 * @return the cohort
+	 */
+	public PrefetchCohort submit(String domainName, String oid, List<String> patientIds,
+			int priority) {
+		evictFinished();
+		final PrefetchCohort cohort = new PrefetchCohort("prefetch-" + counter.incrementAndGet(),
+				domainName, oid, priority, patientIds.size());
+		cohorts.put(cohort.getId(), cohort);
+		for (final String patientId : patientIds) {
+			queue.add(new PrefetchTask(cohort, patientId, counter.incrementAndGet()));
+		}
+		startWorkers();
+		return cohort;
+	}
+
+	private TokenBucket bucket(String endpoint, double defaultRate) {
+		return buckets.computeIfAbsent(URI.create(endpoint),
+				uri -> new TokenBucket(defaultRate, Math.max(1, defaultRate)));
+	}
+
+	private void evictFinished() {
+		final long oldest = System.currentTimeMillis() - RETENTION_MILLIS;
+		final Iterator<PrefetchCohort> iterator = cohorts.values().iterator();
+		while (iterator.hasNext()) {
+			final PrefetchCohort cohort = iterator.next();
+			if (cohort.isDone() && (cohort.getFinishedMillis() < oldest)) {
+				iterator.remove();
+			}
+		}
+	}
+
+	private void fetch(PrefetchTask task) throws InterruptedException {
+		final PrefetchCohort cohort = task.cohort;
+		PatientDownloadResult result;
+		XdsMetrics.setCorrelationId(cohort.getId());
+		try {
+			// resolved per patient, the domain may have been reconfigured
+			final DomainSettings settings = connector.domain(cohort.getDomainName());
+			final TokenBucket registry = bucket(settings.getRegistryUri(), registryRate);
+			final TokenBucket repository = bucket(settings.getRepositoryUri(), repositoryRate);
+			// charged per metadata page and per retrieve request as they are
+			// sent, not per patient after the fact
+			result = connector.fetchPatient(settings,
+					new Identificator(cohort.getOid(), task.patientId), new FetchThrottle() {
+
+						@Override
+						public void beforeQuery() throws InterruptedException {
+							registry.acquire(1);
+						}
+
+						@Override
+						public void beforeRetrieve(int documents) throws InterruptedException {
+							// one token per document, a batch may exceed the burst
+							for (int i = 0; i < documents; i++) {
+								repository.acquire(1);
+							}
+						}
+					});
+		} catch (final RuntimeException e) {
+			result = new PatientDownloadResult(cohort.getOid(), task.patientId);
+			result.setError(String.valueOf(e));
+		} finally {
+			XdsMetrics.setCorrelationId(null);
+		}
+		cohort.patientFinished(result);
+		if (!result.isSuccessful()) {
+			System.out.print("PREFETCH FAILED: " + task.patientId + " " + result.getError() + "\n");
+		}
+	}
+
+	private synchronized void startWorkers() {
+		while (workers.size() < threads) {
+			final Thread worker = new Thread(this::work, "xds-prefetch-" + (workers.size() + 1));
+			worker.setDaemon(true);
+			// the prefetch gives way to the interactive calls
+			worker.setPriority(Thread.MIN_PRIORITY);
+			workers.add(worker);
+			worker.start();
+		}
+	}
+
+	private void waitForWindow() throws InterruptedException {
+		long wait;
+		while ((wait = window.millisUntilOpen(LocalDateTime.now())) > 0) {
+			synchronized (this) {
+				wait(Math.min(wait, MAX_WINDOW_WAIT_MILLIS));
+			}
+		}
+	}
+
+	private void work() {
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				waitForWindow();
+				final PrefetchTask task = queue.take();
+				if (task.cohort.isCancelled()) {
+					continue;
+				}
+				if (!window.isOpen(LocalDateTime.now().toLocalTime())) {
+					// the window closed while waiting for work
+					queue.add(task);
+					continue;
+				}
+				fetch(task);
+			}
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
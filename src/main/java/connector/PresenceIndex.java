@@ -0,0 +1,327 @@
+/*
+ * The authorship of this project and accompanying materials is held by medshare GmbH, Switzerland.
+ * All rights reserved. https://medshare.net
+ *
+ * Source code, documentation and other resources have been contributed by various people.
+ * Project Team: https://gitlab.com/ehealth-connector/api/wikis/Team/
+ * For exact developer information, please refer to the commit history of the forge.
+ *
+ * This code is made available under the terms of the Eclipse Public License v1.0.
+ *
+ * Accompanying materials are made available under the terms of the Creative Commons
+ * Attribution-ShareAlike 4.0 License.
+ *
+ * This line is intended for UTF-8 encoding checks, do not modify/delete: Ã¤Ã¶Ã¼Ã©Ã¨
+ *
+ */
+package connector;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * <div class="en">Memory mapped on-disk hash set of document keys with a
+ * Bloom filter in front. A key is stored as its 128 bit hash in an open
+ * addressing table with linear probing; most absent keys are answered by the
+ * Bloom filter without touching the table. The table grows by remapping the
+ * same file, so it works on platforms that cannot replace a mapped
+ * file.
+ *
+ * Keys are never removed one by one: a document file deleted outside the
+ * connector stays present in the index, and contains() keeps answering true,
+ * until the index is cleared and filled again by
+ * {@link IndexedDocumentStore#rebuild()}.</div>
+ */
+public class PresenceIndex implements Closeable {
+
+	/** Identifies an index file ("XDSPIDX1"). */
+	private static final long MAGIC = 0x5844535049445831L;
+
+	/** The size of the header. */
+	private static final int HEADER_SIZE = 64;
+
+	/** The offset of the number of slots in the header. */
+	private static final int CAPACITY_OFFSET = 8;
+
+	/** The offset of the number of keys in the header. */
+	private static final int COUNT_OFFSET = 16;
+
+	/** The offset of the time of the last directory scan in the header. */
+	private static final int LAST_SCAN_OFFSET = 24;
+
+	/** The size of a slot: two longs holding the hash. */
+	private static final int SLOT_SIZE = 16;
+
+	/** The largest table that fits into a single mapping. */
+	private static final long MAX_CAPACITY = 1L << 26;
+
+	/**
+	 * Hashes a key with 64 bit FNV-1a and the MurmurHash3 finalizer.
+	 *
+	 * @param key
+	 *            the key
+	 * @param seed
+	 *            selects one of independent hash functions
+	 * @return the hash
+	 */
+	static long hash(String key, long seed) {
+		long h = 0xcbf29ce484222325L ^ seed;
+		for (int i = 0; i < key.length(); i++) {
+			h ^= key.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/** The index file. */
+	private final Path file;
+
+	/** The channel of the index file. */
+	private final FileChannel channel;
+
+	/** The mapped header and table. */
+	private MappedByteBuffer buffer;
+
+	/** The number of slots, a power of two. */
+	private long capacity;
+
+	/** The number of keys. */
+	private long count;
+
+	/** Answers most lookups of absent keys. */
+	private volatile BloomFilter bloom;
+
+	/**
+	 * Opens an index file, creating it if it does not exist or is not an
+	 * index.
+	 *
+	 * @param file
+	 *            the index file
+	 * @param initialCapacity
+	 *            the number of slots of a new table
+	 * @throws IOException
+	 *             if the file cannot be opened or mapped
+	 */
+	public PresenceIndex(Path file, long initialCapacity) throws IOException {
+		this.file = file;
+		Files.createDirectories(file.getParent());
+		this.channel = FileChannel.open(file, StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		if (!openExisting()) {
+			long slots = 1024;
+			while (slots < initialCapacity) {
+				slots <<= 1;
+			}
+			initTable(Math.min(slots, MAX_CAPACITY));
+		}
+		rebuildBloomFilter();
+	}
+
+	/**
+	 * Adds a key.
+	 *
+	 * @param key
+	 *            the key
+	 * @return true if the key was new
+	 * @throws IOException
+	 *             if the table had to grow and could not be remapped
+	 */
+	public boolean add(String key) throws IOException {
+		final long h1 = hash(key, 0);
+		final long h2 = nonZero(hash(key, 0x9e3779b97f4a7c15L));
+		synchronized (this) {
+			if (containsInTable(h1, h2)) {
+				return false;
+			}
+			if ((count + 1) * 2 > capacity) {
+				grow();
+			}
+			insert(h1, h2);
+			count++;
+			buffer.putLong(COUNT_OFFSET, count);
+			bloom.add(h1, h2);
+		}
+		return true;
+	}
+
+	/**
+	 * Removes all keys and resets the time of the last scan.
+	 */
+	public synchronized void clear() {
+		for (long offset = HEADER_SIZE; offset < HEADER_SIZE + capacity * SLOT_SIZE; offset += 8) {
+			buffer.putLong((int) offset, 0L);
+		}
+		count = 0;
+		buffer.putLong(COUNT_OFFSET, 0L);
+		buffer.putLong(LAST_SCAN_OFFSET, 0L);
+		rebuildBloomFilter();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		buffer.force();
+		channel.close();
+	}
+
+	/**
+	 * Checks if a key was added. A false positive needs an absent key whose
+	 * two 64 bit hashes both equal those of a stored key. Both hashes are
+	 * computed by the same function with different seeds and are not
+	 * independent, so no more is claimed than for a single 64 bit hash: with
+	 * n stored keys, a lookup is wrong with a probability of about n * 2^-64,
+	 * below 10^-13 for a million documents.
+	 *
+	 * @param key
+	 *            the key
+	 * @return true if the key was added
+	 */
+	public boolean contains(String key) {
+		final long h1 = hash(key, 0);
+		final long h2 = nonZero(hash(key, 0x9e3779b97f4a7c15L));
+		if (!bloom.mightContain(h1, h2)) {
+			return false;
+		}
+		synchronized (this) {
+			return containsInTable(h1, h2);
+		}
+	}
+
+	/**
+	 * Writes the mapped table to disc.
+	 */
+	public synchronized void force() {
+		buffer.force();
+	}
+
+	public synchronized long getCount() {
+		return count;
+	}
+
+	public Path getFile() {
+		return file;
+	}
+
+	/**
+	 * Gets the time of the last directory scan.
+	 *
+	 * @return the time in milliseconds, 0 if the index was never filled
+	 */
+	public synchronized long getLastScan() {
+		return buffer.getLong(LAST_SCAN_OFFSET);
+	}
+
+	public synchronized void setLastScan(long lastScan) {
+		buffer.putLong(LAST_SCAN_OFFSET, lastScan);
+	}
+
+	private boolean containsInTable(long h1, long h2) {
+		final long mask = capacity - 1;
+		for (long slot = h1 & mask;; slot = (slot + 1) & mask) {
+			final int offset = (int) (HEADER_SIZE + (slot * SLOT_SIZE));
+			final long s2 = buffer.getLong(offset + 8);
+			if (s2 == 0) {
+				return false;
+			}
+			if ((s2 == h2) && (buffer.getLong(offset) == h1)) {
+				return true;
+			}
+		}
+	}
+
+	private void grow() throws IOException {
+		if (capacity >= MAX_CAPACITY) {
+			throw new IOException("presence index full: " + file);
+		}
+		final long[] keys = new long[(int) (count * 2)];
+		int n = 0;
+		for (long slot = 0; slot < capacity; slot++) {
+			final int offset = (int) (HEADER_SIZE + (slot * SLOT_SIZE));
+			final long s2 = buffer.getLong(offset + 8);
+			if (s2 != 0) {
+				keys[n++] = buffer.getLong(offset);
+				keys[n++] = s2;
+			}
+		}
+		// a crash during the rehash leaves an incomplete table; the reset
+		// scan time makes the next start rebuild it from the directory
+		final long lastScan = buffer.getLong(LAST_SCAN_OFFSET);
+		buffer.putLong(LAST_SCAN_OFFSET, 0L);
+		initTable(capacity * 2);
+		for (int i = 0; i < n; i += 2) {
+			insert(keys[i], keys[i + 1]);
+		}
+		buffer.putLong(COUNT_OFFSET, count);
+		buffer.putLong(LAST_SCAN_OFFSET, lastScan);
+		rebuildBloomFilter();
+	}
+
+	private void initTable(long slots) throws IOException {
+		final long size = HEADER_SIZE + (slots * SLOT_SIZE);
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		for (long offset = HEADER_SIZE; offset < size; offset += 8) {
+			buffer.putLong((int) offset, 0L);
+		}
+		capacity = slots;
+		buffer.putLong(0, MAGIC);
+		buffer.putLong(CAPACITY_OFFSET, slots);
+		buffer.putLong(COUNT_OFFSET, count);
+	}
+
+	private void insert(long h1, long h2) {
+		final long mask = capacity - 1;
+		for (long slot = h1 & mask;; slot = (slot + 1) & mask) {
+			final int offset = (int) (HEADER_SIZE + (slot * SLOT_SIZE));
+			if (buffer.getLong(offset + 8) == 0) {
+				buffer.putLong(offset, h1);
+				buffer.putLong(offset + 8, h2);
+				return;
+			}
+		}
+	}
+
+	private static long nonZero(long h2) {
+		// a zero second hash marks an empty slot
+		return h2 == 0 ? 1 : h2;
+	}
+
+	private boolean openExisting() throws IOException {
+		if (channel.size() < HEADER_SIZE) {
+			return false;
+		}
+		final MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+				HEADER_SIZE);
+		final long slots = header.getLong(CAPACITY_OFFSET);
+		if ((header.getLong(0) != MAGIC) || (slots < 1) || (slots > MAX_CAPACITY)
+				|| (Long.bitCount(slots) != 1)
+				|| (channel.size() < HEADER_SIZE + (slots * SLOT_SIZE))) {
+			return false;
+		}
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (slots * SLOT_SIZE));
+		capacity = slots;
+		count = buffer.getLong(COUNT_OFFSET);
+		return true;
+	}
+
+	private void rebuildBloomFilter() {
+		final BloomFilter filter = new BloomFilter(capacity / 2);
+		for (long slot = 0; slot < capacity; slot++) {
+			final int offset = (int) (HEADER_SIZE + (slot * SLOT_SIZE));
+			final long s2 = buffer.getLong(offset + 8);
+			if (s2 != 0) {
+				filter.add(buffer.getLong(offset), s2);
+			}
+		}
+		bloom = filter;
+	}
+
+}
@@ -0,0 +1,449 @@
+/*
+ * The authorship of this project and accompanying materials is held by medshare GmbH, Switzerland.
+ * All rights reserved. https://medshare.net
+ *
+ * Source code, documentation and other resources have been contributed by various people.
+ * Project Team: https://gitlab.com/ehealth-connector/api/wikis/Team/
+ * For exact developer information, please refer to the commit history of the forge.
+ *
+ * This code is made available under the terms of the Eclipse Public License v1.0.
+ *
+ * Accompanying materials are made available under the terms of the Creative Commons
+ * Attribution-ShareAlike 4.0 License.
+ *
+ * This line is intended for UTF-8 encoding checks, do not modify/delete: Ã¤Ã¶Ã¼Ã©Ã¨
+ *
+ */
+package connector;
+
+import java.net.URI;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.httpclient.params.DefaultHttpParams;
+import org.apache.commons.httpclient.params.HttpConnectionParams;
+import org.apache.commons.httpclient.params.HttpParams;
+import org.ehealth_connector.communication.ConvenienceCommunication;
+import org.openhealthtools.ihe.xds.response.XDSResponseType;
+
+/**
+ * <div class="en">Sends the XDS transactions of pooled clients with a call
+ * timeout, retries idempotent transactions (queries and retrieves) with
+ * jittered exponential backoff and keeps a circuit breaker per endpoint.
+ * Every attempt holds a slot of the endpoint limiter and is recorded in the
+ * metrics. A call abandoned after the call timeout keeps its slot until it
+ * returns, so hanging calls cannot pile up on an endpoint beyond its
+ * limit.</div>
+ */
+public class ResilientTransport {
+
+	/** An XDS transaction sent with the communication of a pooled client. */
+	public interface XdsCall<T> {
+
+		/**
+		 * Sends the transaction.
+		 *
+		 * @param conCom
+		 *            the communication of the client
+		 * @return the response, null if the transaction failed
+		 * @throws Exception
+		 *             if the transaction failed
+		 */
+		T call(ConvenienceCommunication conCom) throws Exception;
+	}
+
+	/** The system property holding the socket connect timeout in milliseconds. */
+	public static final String PROPERTY_CONNECT_TIMEOUT = "connector.transport.connectTimeout";
+
+	/** The system property holding the socket read timeout in milliseconds. */
+	public static final String PROPERTY_READ_TIMEOUT = "connector.transport.readTimeout";
+
+	/** The system property holding the overall call timeout in milliseconds. */
+	public static final String PROPERTY_CALL_TIMEOUT = "connector.transport.callTimeout";
+
+	/** The system property holding the number of threads running calls. */
+	public static final String PROPERTY_CALL_THREADS = "connector.transport.callThreads";
+
+	/** The number of threads running calls, unless configured. */
+	public static final int DEFAULT_CALL_THREADS = 64;
+
+	/** The system property holding the attempts of idempotent transactions. */
+	public static final String PROPERTY_MAX_ATTEMPTS = "connector.transport.maxAttempts";
+
+	/** The system property holding the first backoff in milliseconds. */
+	public static final String PROPERTY_BACKOFF = "connector.transport.backoff";
+
+	/** The system property holding the largest backoff in milliseconds. */
+	public static final String PROPERTY_MAX_BACKOFF = "connector.transport.maxBackoff";
+
+	/** The system property holding the failures opening a circuit. */
+	public static final String PROPERTY_BREAKER_THRESHOLD = "connector.breaker.failureThreshold";
+
+	/** The system property holding the time a circuit stays open in milliseconds. */
+	public static final String PROPERTY_BREAKER_OPEN = "connector.breaker.openMillis";
+
+	/** The outcome recorded for a call rejected by an open circuit. */
+	public static final String OUTCOME_CIRCUIT_OPEN = "CIRCUIT_OPEN";
+
+	/** The outcome recorded for a call that timed out. */
+	public static final String OUTCOME_TIMEOUT = "TIMEOUT";
+
+	/**
+	 * Sets the connect and read timeouts of the http clients used by the SOAP
+	 * stack: the defaults of commons-httpclient, which Axis2 sends with, and
+	 * of the JDK http client. Values set on the command line are kept. Has to
+	 * run before the first connection is opened.
+	 */
+	public static void applySocketTimeouts() {
+		final long connectTimeout = Long.getLong(PROPERTY_CONNECT_TIMEOUT, 10 * 1000L);
+		final long readTimeout = Long.getLong(PROPERTY_READ_TIMEOUT, 60 * 1000L);
+		try {
+			applyHttpClientTimeouts((int) connectTimeout, (int) readTimeout);
+		} catch (final LinkageError e) {
+			System.out.print("HTTP CLIENT TIMEOUTS CANNOT BE SET: " + e + "\n");
+		}
+		setIfAbsent("sun.net.client.defaultConnectTimeout", connectTimeout);
+		setIfAbsent("sun.net.client.defaultReadTimeout", readTimeout);
+	}
+
+	/**
+	 * Sets the timeouts on the root of the commons-httpclient parameters, the
+	 * parent of the parameters of every client and connection manager.
+	 */
+	private static void applyHttpClientTimeouts(int connectTimeout, int readTimeout) {
+		final HttpParams defaults = DefaultHttpParams.getDefaultParams();
+		if (!defaults.isParameterSet(HttpConnectionParams.CONNECTION_TIMEOUT)) {
+			defaults.setIntParameter(HttpConnectionParams.CONNECTION_TIMEOUT, connectTimeout);
+		}
+		if (!defaults.isParameterSet(HttpConnectionParams.SO_TIMEOUT)) {
+			defaults.setIntParameter(HttpConnectionParams.SO_TIMEOUT, readTimeout);
+		}
+	}
+
+	private static void setIfAbsent(String property, long millis) {
+		if (System.getProperty(property) == null) {
+			System.setProperty(property, Long.toString(millis));
+		}
+	}
+
+	/** Limits the concurrent calls per endpoint. */
+	private final EndpointLimiter endpointLimiter;
+
+	/** Records every attempt. */
+	private final XdsMetrics metrics;
+
+	/** The overall time a call may take, 0 for no limit. */
+	private final long callTimeoutMillis;
+
+	/** The attempts of idempotent transactions. */
+	private final int maxAttempts;
+
+	/** The first backoff in milliseconds. */
+	private final long backoffMillis;
+
+	/** The largest backoff in milliseconds. */
+	private final long maxBackoffMillis;
+
+	/** The failures opening a circuit. */
+	private final int breakerThreshold;
+
+	/** The time a circuit stays open in milliseconds. */
+	private final long breakerOpenMillis;
+
+	/** The circuit breaker per endpoint. */
+	private final ConcurrentMap<URI, CircuitBreaker> breakers = new ConcurrentHashMap<URI, CircuitBreaker>();
+
+	/**
+	 * Runs the calls, so the caller can stop waiting after the timeout. The
+	 * threads are bounded, a call finding none free fails.
+	 */
+	private final ThreadPoolExecutor callExecutor;
+
+	/**
+	 * Instantiates a new transport configured by system properties.
+	 *
+	 * @param endpointLimiter
+	 *            limits the concurrent calls per endpoint
+	 * @param metrics
+	 *            records every attempt
+	 */
+	public ResilientTransport(EndpointLimiter endpointLimiter, XdsMetrics metrics) {
+		this(endpointLimiter, metrics, Long.getLong(PROPERTY_CALL_TIMEOUT, 2 * 60 * 1000L),
+				Integer.getInteger(PROPERTY_MAX_ATTEMPTS, 3),
+				Long.getLong(PROPERTY_BACKOFF, 200L), Long.getLong(PROPERTY_MAX_BACKOFF, 5000L),
+				Integer.getInteger(PROPERTY_BREAKER_THRESHOLD, 5),
+				Long.getLong(PROPERTY_BREAKER_OPEN, 30 * 1000L),
+				Integer.getInteger(PROPERTY_CALL_THREADS, DEFAULT_CALL_THREADS));
+	}
+
+	/**
+	 * Instantiates a new transport with the default number of call threads.
+	 *
+	 * @param endpointLimiter
+	 *            limits the concurrent calls per endpoint
+	 * @param metrics
+	 *            records every attempt
+	 * @param callTimeoutMillis
+	 *            the overall time a call may take, 0 for no limit
+	 * @param maxAttempts
+	 *            the attempts of idempotent transactions
+	 * @param backoffMillis
+	 *            the first backoff in milliseconds
+	 * @param maxBackoffMillis
+	 *            the largest backoff in milliseconds
+	 * @param breakerThreshold
+	 *            the consecutive failures opening the circuit of an endpoint
+	 * @param breakerOpenMillis
+	 *            the time a circuit stays open in milliseconds
+	 */
+	public ResilientTransport(EndpointLimiter endpointLimiter, XdsMetrics metrics,
+			long callTimeoutMillis, int maxAttempts, long backoffMillis, long maxBackoffMillis,
+			int breakerThreshold, long breakerOpenMillis) {
+		this(endpointLimiter, metrics, callTimeoutMillis, maxAttempts, backoffMillis,
+				maxBackoffMillis, breakerThreshold, breakerOpenMillis, DEFAULT_CALL_THREADS);
+	}
+
+	/**
+	 * Instantiates a new transport.
+	 *
+	 * @param endpointLimiter
+	 *            limits the concurrent calls per endpoint
+	 * @param metrics
+	 *            records every attempt
+	 * @param callTimeoutMillis
+	 *            the overall time a call may take, 0 for no limit
+	 * @param maxAttempts
+	 *            the attempts of idempotent transactions
+	 * @param backoffMillis
+	 *            the first backoff in milliseconds
+	 * @param maxBackoffMillis
+	 *            the largest backoff in milliseconds
+	 * @param breakerThreshold
+	 *            the consecutive failures opening the circuit of an endpoint
+	 * @param breakerOpenMillis
+	 *            the time a circuit stays open in milliseconds
+	 * @param callThreads
+	 *            the threads running calls, abandoned calls included
+	 */
+	public ResilientTransport(EndpointLimiter endpointLimiter, XdsMetrics metrics,
+			long callTimeoutMillis, int maxAttempts, long backoffMillis, long maxBackoffMillis,
+			int breakerThreshold, long breakerOpenMillis, int callThreads) {
+		this.endpointLimiter = endpointLimiter;
+		this.metrics = metrics;
+		this.callTimeoutMillis = callTimeoutMillis;
+		this.maxAttempts = Math.max(1, maxAttempts);
+		this.backoffMillis = Math.max(1, backoffMillis);
+		this.maxBackoffMillis = Math.max(this.backoffMillis, maxBackoffMillis);
+		this.breakerThreshold = breakerThreshold;
+		this.breakerOpenMillis = breakerOpenMillis;
+		final AtomicInteger counter = new AtomicInteger();
+		final int threads = Math.max(1, callThreads);
+		this.callExecutor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new SynchronousQueue<Runnable>(), runnable -> {
+					final Thread thread = new Thread(runnable,
+							"xds-call-" + counter.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				});
+		this.callExecutor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Gets the circuit breaker of an endpoint.
+	 *
+	 * @param endpoint
+	 *            the endpoint uri
+	 * @return the circuit breaker
+	 */
+	public CircuitBreaker getCircuitBreaker(URI endpoint) {
+		CircuitBreaker breaker = breakers.get(endpoint);
+		if (breaker == null) {
+			// a trial is decided within the call timeout, unless it is lost
+			final CircuitBreaker created = new CircuitBreaker(breakerThreshold, breakerOpenMillis,
+					Math.max(breakerOpenMillis, callTimeoutMillis));
+			breaker = breakers.putIfAbsent(endpoint, created);
+			if (breaker == null) {
+				breaker = created;
+			}
+		}
+		return breaker;
+	}
+
+	/**
+	 * Sends a transaction.
+	 *
+	 * @param client
+	 *            the client sending the transaction; its communication is
+	 *            renewed if a call times out, since the abandoned call may
+	 *            still use it
+	 * @param endpoint
+	 *            the endpoint uri
+	 * @param transaction
+	 *            the transaction, for the metrics
+	 * @param idempotent
+	 *            true to retry failed calls
+	 * @param call
+	 *            sends the transaction
+	 * @return the response
+	 * @throws InterruptedException
+	 *             if the calling thread was interrupted
+	 * @throws XdsTransportException
+	 *             if the call failed on all attempts or the circuit is open
+	 */
+	public <T extends XDSResponseType> T execute(PooledClient client, URI endpoint,
+			XdsMetrics.Transaction transaction, boolean idempotent, XdsCall<T> call)
+			throws InterruptedException {
+		final CircuitBreaker breaker = getCircuitBreaker(endpoint);
+		final int attempts = idempotent ? maxAttempts : 1;
+		for (int attempt = 1;; attempt++) {
+			if (!breaker.allowRequest()) {
+				metrics.record(transaction, 0, OUTCOME_CIRCUIT_OPEN, 0);
+				throw new XdsTransportException("circuit open: " + endpoint,
+						XdsTransportException.Reason.CIRCUIT_OPEN, null);
+			}
+
+			Throwable cause = null;
+			String failure = null;
+			boolean timedOut = false;
+			boolean rejected = false;
+			boolean answered = false;
+			try {
+				final Semaphore permit = endpointLimiter.acquire(endpoint);
+				final long start = metrics.begin(transaction);
+				try {
+					// hands the permit back, or leaves it to an abandoned call
+					final T response = invoke(client, call, permit);
+					if (response != null) {
+						metrics.end(transaction, start, response.getStatus(), 0);
+						answered = true;
+						return response;
+					}
+					metrics.end(transaction, start, XdsMetrics.OUTCOME_NO_RESPONSE, 0);
+					failure = "no response from " + endpoint + ": "
+							+ client.getCommunication().getLastError();
+				} catch (final TimeoutException e) {
+					metrics.end(transaction, start, OUTCOME_TIMEOUT, 0);
+					client.renewCommunication();
+					timedOut = true;
+					failure = "no response from " + endpoint + " within " + callTimeoutMillis
+							+ " ms";
+				} catch (final ExecutionException e) {
+					metrics.end(transaction, start, XdsMetrics.OUTCOME_ERROR, 0);
+					cause = e.getCause();
+					failure = "call to " + endpoint + " failed: " + cause;
+				} catch (final RejectedExecutionException e) {
+					metrics.end(transaction, start, XdsMetrics.OUTCOME_ERROR, 0);
+					rejected = true;
+					failure = "no call thread free for " + endpoint + ", "
+							+ callExecutor.getMaximumPoolSize() + " calls running";
+				} catch (final InterruptedException e) {
+					metrics.end(transaction, start, XdsMetrics.OUTCOME_ERROR, 0);
+					client.renewCommunication();
+					throw e;
+				}
+			} finally {
+				// every exit decides the attempt, an interrupted or broken
+				// trial included, so the circuit cannot stay half open; a
+				// call that found no thread says nothing about the endpoint
+				if (answered) {
+					breaker.onSuccess();
+				} else if ((failure != null) && !rejected) {
+					breaker.onFailure();
+				} else {
+					breaker.releaseTrial();
+				}
+			}
+
+			if (attempt >= attempts) {
+				throw new XdsTransportException(
+						failure + (attempts > 1 ? " (" + attempts + " attempts)" : ""),
+						timedOut ? XdsTransportException.Reason.TIMEOUT
+								: XdsTransportException.Reason.FAILED,
+						cause);
+			}
+			// full jitter: a random wait up to the exponential backoff
+			final long ceiling = Math.min(maxBackoffMillis,
+					backoffMillis << Math.min(attempt - 1, 20));
+			final long delay = ThreadLocalRandom.current().nextLong(ceiling + 1);
+			System.out.println(failure + ", retry " + attempt + " in " + delay + " ms");
+			Thread.sleep(delay);
+		}
+	}
+
+	/**
+	 * Sends a call and releases the endpoint permit once both the caller and
+	 * the call are done: at once if the call returned in time, when the call
+	 * returns if it was abandoned after the timeout.
+	 */
+	private <T> T invoke(final PooledClient client, final XdsCall<T> call,
+			final Semaphore permit)
+			throws TimeoutException, ExecutionException, InterruptedException {
+		final ConvenienceCommunication conCom = client.getCommunication();
+		if (callTimeoutMillis <= 0) {
+			try {
+				return call.call(conCom);
+			} catch (final InterruptedException e) {
+				throw e;
+			} catch (final Exception e) {
+				throw new ExecutionException(e);
+			} finally {
+				permit.release();
+			}
+		}
+		// the caller and the call each hold the permit, the second to let go
+		// releases it; a call cancelled before it started lets go at once
+		final AtomicInteger holders = new AtomicInteger(2);
+		final Runnable letGo = () -> {
+			if (holders.decrementAndGet() == 0) {
+				permit.release();
+			}
+		};
+		final AtomicBoolean started = new AtomicBoolean();
+		final Future<T> future;
+		try {
+			future = callExecutor.submit(() -> {
+				if (!started.compareAndSet(false, true)) {
+					return null;
+				}
+				try {
+					return call.call(conCom);
+				} finally {
+					letGo.run();
+				}
+			});
+		} catch (final RejectedExecutionException e) {
+			permit.release();
+			throw e;
+		}
+		try {
+			return future.get(callTimeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (final TimeoutException | InterruptedException e) {
+			if (started.compareAndSet(false, true)) {
+				letGo.run();
+			}
+			future.cancel(true);
+			throw e;
+		} finally {
+			letGo.run();
+		}
+	}
+
+	/**
+	 * Stops the call threads.
+	 */
+	public void shutdown() {
+		callExecutor.shutdownNow();
+	}
+
+}
@@ -0,0 +1,84 @@
+/*
+ * The authorship of this project and accompanying materials is held by medshare GmbH, Switzerland.
+ * All rights reserved. https://medshare.net
+ *
+ * Source code, documentation and other resources have been contributed by various people.
+ * Project Team: https://gitlab.com/ehealth-connector/api/wikis/Team/
+ * For exact developer information, please refer to the commit history of the forge.
+ *
+ * This code is made available under the terms of the Eclipse Public License v1.0.
+ *
+ * Accompanying materials are made available under the terms of the Creative Commons
+ * Attribution-ShareAlike 4.0 License.
+ *
+ * This line is intended for UTF-8 encoding checks, do not modify/delete: Ã¤Ã¶Ã¼Ã©Ã¨
+ *
+ */
+package connector;
+
+/**
+ * <div class="en">Result of storing a single document in a
+ * {@link DocumentStore}.</div>
+ */
+public class StoreResult {
+
+	/**
+	 * The location of the stored document, null if the store keeps no plain
+	 * file; DocumentStore.getLocation writes one then.
+	 */
+	private final String location;
+
+	/** The number of bytes written. */
+	private final long bytes;
+
+	/** The time spent writing in nanoseconds. */
+	private final long nanos;
+
+	/**
+	 * Instantiates a new store result.
+	 *
+	 * @param location
+	 *            the location of the stored document, null if there is no
+	 *            plain file
+	 * @param bytes
+	 *            the number of bytes written
+	 * @param nanos
+	 *            the time spent writing in nanoseconds
+	 */
+	public StoreResult(String location, long bytes, long nanos) {
+		this.location = location;
+		this.bytes = bytes;
+		this.nanos = nanos;
+	}
+
+	public long getBytes() {
+		return bytes;
+	}
+
+	public String getLocation() {
+		return location;
+	}
+
+	public long getNanos() {
+		return nanos;
+	}
+
+	/**
+	 * Gets the write throughput.
+	 *
+	 * @return the throughput in megabytes per second
+	 */
+	public double getThroughputMBps() {
+		if (nanos <= 0) {
+			return 0;
+		}
+		return (bytes / (1024.0 * 1024.0)) / (nanos / 1e9);
+	}
+
+	@Override
+	public String toString() {
+		return location + " (" + bytes + " bytes, "
+				+ String.format("%.1f", Double.valueOf(getThroughputMBps())) + " MB/s)";
+	}
+
+}
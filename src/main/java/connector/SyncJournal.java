@@ -0,0 +1,270 @@
+/*
+ * The authorship of this project and accompanying materials is held by medshare GmbH, Switzerland.
+ * All rights reserved. https://medshare.net
+ *
+ * Source code, documentation and other resources have been contributed by various people.
+ * Project Team: https://gitlab.com/ehealth-connector/api/wikis/Team/
+ * For exact developer information, please refer to the commit history of the forge.
+ *
+ * This code is made available under the terms of the Eclipse Public License v1.0.
+ *
+ * Accompanying materials are made available under the terms of the Creative Commons
+ * Attribution-ShareAlike 4.0 License.
+ *
+ * This line is intended for UTF-8 encoding checks, do not modify/delete: Ã¤Ã¶Ã¼Ã©Ã¨
+ *
+ */
+package connector;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.openhealthtools.ihe.xds.metadata.DocumentEntryType;
+
+/**
+ * <div class="en">Persistent journal of the documents already synchronized
+ * per patient. Each patient has one tab separated file listing the entryUUID,
+ * uniqueId, repositoryUniqueId, hash, size and creation time of every
+ * document seen in the registry. The file is replaced atomically after each
+ * sync, so the journal survives restarts and crashes.</div>
+ */
+public class SyncJournal {
+
+	/** A document seen during a previous sync. */
+	public static class Entry {
+
+		/** The entryUUID of the document entry. */
+		private final String entryUuid;
+
+		/** The uniqueId of the document. */
+		private final String uniqueId;
+
+		/** The repositoryUniqueId of the document. */
+		private final String repositoryUniqueId;
+
+		/** The hash of the document as listed in the registry. */
+		private final String hash;
+
+		/** The size of the document as listed in the registry. */
+		private final String size;
+
+		/** The creation time of the document. */
+		private final String creationTime;
+
+		Entry(DocumentEntryType docEntry) {
+			this(docEntry.getEntryUUID(), docEntry.getUniqueId(),
+					docEntry.getRepositoryUniqueId(), docEntry.getHash(),
+					docEntry.getSize() != null ? docEntry.getSize().toString() : null,
+					docEntry.getCreationTime());
+		}
+
+		Entry(String entryUuid, String uniqueId, String repositoryUniqueId, String hash,
+				String size, String creationTime) {
+			this.entryUuid = entryUuid;
+			this.uniqueId = uniqueId;
+			this.repositoryUniqueId = repositoryUniqueId;
+			this.hash = hash;
+			this.size = size;
+			this.creationTime = creationTime;
+		}
+
+		public String getCreationTime() {
+			return creationTime;
+		}
+
+		public String getEntryUuid() {
+			return entryUuid;
+		}
+
+		public String getHash() {
+			return hash;
+		}
+
+		public String getRepositoryUniqueId() {
+			return repositoryUniqueId;
+		}
+
+		public String getSize() {
+			return size;
+		}
+
+		public String getUniqueId() {
+			return uniqueId;
+		}
+
+		/**
+		 * Checks if the document entry describes the same content as this
+		 * journal entry.
+		 *
+		 * @param docEntry
+		 *            the document entry from the registry
+		 * @return true, if uniqueId, hash and size are unchanged
+		 */
+		boolean isSameContent(DocumentEntryType docEntry) {
+			final String otherSize = docEntry.getSize() != null ? docEntry.getSize().toString()
+					: null;
+			return equal(uniqueId, docEntry.getUniqueId()) && equal(hash, docEntry.getHash())
+					&& equal(size, otherSize);
+		}
+
+		private static boolean equal(String a, String b) {
+			return a == null ? b == null : a.equals(b);
+		}
+	}
+
+	/** The journal of one patient. */
+	public static class PatientJournal {
+
+		/** The key of the patient. */
+		private final String patientKey;
+
+		/** The documents by entryUUID. */
+		private final Map<String, Entry> entries;
+
+		/** The time of the last completed sync, 0 if never synced. */
+		private long lastSync;
+
+		PatientJournal(String patientKey, Map<String, Entry> entries, long lastSync) {
+			this.patientKey = patientKey;
+			this.entries = entries;
+			this.lastSync = lastSync;
+		}
+
+		public Entry get(String entryUuid) {
+			return entries.get(entryUuid);
+		}
+
+		public Map<String, Entry> getEntries() {
+			return entries;
+		}
+
+		public long getLastSync() {
+			return lastSync;
+		}
+
+		public String getPatientKey() {
+			return patientKey;
+		}
+
+		void put(Entry entry) {
+			entries.put(entry.getEntryUuid(), entry);
+		}
+
+		void setLastSync(long lastSync) {
+			this.lastSync = lastSync;
+		}
+	}
+
+	/** The prefix of the header line holding the time of the last sync. */
+	private static final String LAST_SYNC = "#lastSync=";
+
+	/** The directory holding the journal files. */
+	private final Path directory;
+
+	/**
+	 * Instantiates a new journal.
+	 *
+	 * @param directory
+	 *            the directory holding the journal files, created on the
+	 *            first save
+	 */
+	public SyncJournal(Path directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Loads the journal of a patient.
+	 *
+	 * @param patientKey
+	 *            the key of the patient
+	 * @return the journal, empty if the patient was never synced
+	 * @throws IOException
+	 *             if the journal file cannot be read
+	 */
+	public PatientJournal load(String patientKey) throws IOException {
+		final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+		long lastSync = 0;
+		Path file = file(patientKey);
+		if (!Files.exists(file)) {
+			// written before the file names were escaped
+			file = directory.resolve(FileSystemDocumentStore.toLegacyFileName(patientKey)
+					+ ".journal");
+		}
+		try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.startsWith(LAST_SYNC)) {
+					lastSync = Long.parseLong(line.substring(LAST_SYNC.length()));
+				} else if (!line.isEmpty()) {
+					final String[] fields = line.split("\t", -1);
+					if (fields.length == 6) {
+						final Entry entry = new Entry(fields[0], fields[1], nullIfEmpty(fields[2]),
+								nullIfEmpty(fields[3]), nullIfEmpty(fields[4]),
+								nullIfEmpty(fields[5]));
+						entries.put(entry.getEntryUuid(), entry);
+					}
+				}
+			}
+		} catch (final NoSuchFileException e) {
+			// never synced
+		}
+		return new PatientJournal(patientKey, entries, lastSync);
+	}
+
+	/**
+	 * Replaces the journal file of a patient.
+	 *
+	 * @param journal
+	 *            the journal
+	 * @throws IOException
+	 *             if the journal file cannot be written
+	 */
+	public void save(PatientJournal journal) throws IOException {
+		Files.createDirectories(directory);
+		final Path target = file(journal.getPatientKey());
+		final Path temp = Files.createTempFile(directory, "." + target.getFileName(), ".part");
+		try {
+			try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+				writer.write(LAST_SYNC + journal.getLastSync());
+				writer.newLine();
+				for (final Entry entry : journal.getEntries().values()) {
+					writer.write(entry.getEntryUuid() + "\t" + entry.getUniqueId() + "\t"
+							+ emptyIfNull(entry.getRepositoryUniqueId()) + "\t"
+							+ emptyIfNull(entry.getHash()) + "\t" + emptyIfNull(entry.getSize())
+							+ "\t" + emptyIfNull(entry.getCreationTime()));
+					writer.newLine();
+				}
+			}
+			try {
+				Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE,
+						StandardCopyOption.REPLACE_EXISTING);
+			} catch (final AtomicMoveNotSupportedException e) {
+				Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	private Path file(String patientKey) {
+		return directory.resolve(FileSystemDocumentStore.toFileName(patientKey) + ".journal");
+	}
+
+	private static String emptyIfNull(String value) {
+		return value == null ? "" : value;
+	}
+
+	private static String nullIfEmpty(String value) {
+		return value.isEmpty() ? null : value;
+	}
+
+}
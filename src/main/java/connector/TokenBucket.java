@@ -0,0 +1,88 @@
+/*
+ * The authorship of this project and accompanying materials is held by medshare GmbH, Switzerland.
+ * All rights reserved. https://medshare.net
+ *
+ * Source code, documentation and other resources have been contributed by various people.
+ * Project Team: https://gitlab.com/ehealth-connector/api/wikis/Team/
+ * For exact developer information, please refer to the commit history of the forge.
+ *
+ * This code is made available under the terms of the Eclipse Public License v1.0.
+ *
+ * Accompanying materials are made available under the terms of the Creative Commons
+ * Attribution-ShareAlike 4.0 License.
+ *
+ * This line is intended for UTF-8 encoding checks, do not modify/delete: Ã¤Ã¶Ã¼Ã©Ã¨
+ *
+ */
+package connector;
+
+/**
+ * <div class="en">Token bucket limiting the rate of calls to an endpoint.
+ * Tokens are refilled continuously up to the burst size.</div>
+ */
+public class TokenBucket {
+
+	/** The tokens added per second. */
+	private final double ratePerSecond;
+
+	/** The maximum number of tokens. */
+	private final double burst;
+
+	/** The tokens available. */
+	private double tokens;
+
+	/** The time of the last refill in nanoseconds. */
+	private long refilledNanos = System.nanoTime();
+
+	/**
+	 * Instantiates a new, full bucket.
+	 *
+	 * @param ratePerSecond
+	 *            the tokens added per second
+	 * @param burst
+	 *            the maximum number of tokens, at least 1
+	 */
+	public TokenBucket(double ratePerSecond, double burst) {
+		if (ratePerSecond <= 0) {
+			throw new IllegalArgumentException("rate must be positive: " + ratePerSecond);
+		}
+		this.ratePerSecond = ratePerSecond;
+		this.burst = Math.max(1, burst);
+		this.tokens = this.burst;
+	}
+
+	/**
+	 * Waits until the tokens are available and takes them.
+	 *
+	 * @param permits
+	 *            the number of tokens, at most the burst size
+	 * @throws InterruptedException
+	 *             if the thread was interrupted while waiting
+	 */
+	public void acquire(double permits) throws InterruptedException {
+		final double needed = Math.min(permits, burst);
+		while (true) {
+			final long waitNanos;
+			synchronized (this) {
+				refill();
+				if (tokens >= needed) {
+					tokens -= needed;
+					return;
+				}
+				waitNanos = (long) ((needed - tokens) / ratePerSecond * 1e9);
+			}
+			Thread.sleep(Math.max(1, waitNanos / 1000000L));
+		}
+	}
+
+	public double getRatePerSecond() {
+		return ratePerSecond;
+	}
+
+	private void refill() {
+		final long now = System.nanoTime();
+		tokens = Math.min(burst, tokens + (now - refilledNanos) / 1e9 * ratePerSecond);
+		refilledNanos = now;
+	}
+
+}
@@ -0,0 +1,188 @@
+/*
+ * The authorship of this project and accompanying materials is held by medshare GmbH, Switzerland.
+ * All rights reserved. https://medshare.net
+ *
+ * Source code, documentation and other resources have been contributed by various people.
+ * Project Team: https://gitlab.com/ehealth-connector/api/wikis/Team/
+ * For exact developer information, please refer to the commit history of the forge.
+ *
+ * This code is made available under the terms of the Eclipse Public License v1.0.
+ *
+ * Accompanying materials are made available under the terms of the Creative Commons
+ * Attribution-ShareAlike 4.0 License.
+ *
+ * This line is intended for UTF-8 encoding checks, do not modify/delete: Ã¤Ã¶Ã¼Ã©Ã¨
+ *
+ */
+package connector;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * <div class="en">Segment files carrying large documents to the Python side.
+ * The documents of a batch are appended to one segment, each at an offset
+ * aligned to {@link DocumentTransfer#MAPPING_GRANULARITY}. The segments live
+ * in shared memory (<code>/dev/shm</code>) where available, so mapping them
+ * never touches a disk. Segments are deleted when released by the caller or
+ * after the retention time.</div>
+ */
+public class TransferSegments {
+
+	/** The system property holding the segment directory. */
+	public static final String PROPERTY_DIRECTORY = "connector.transfer.dir";
+
+	/** The system property holding the retention of unreleased segments in milliseconds. */
+	public static final String PROPERTY_RETENTION = "connector.transfer.retention";
+
+	/** The size of the copy buffer. */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Gets the segment directory: the configured one, else shared memory if
+	 * available, else the temporary directory.
+	 *
+	 * @return the segment directory
+	 */
+	public static Path defaultDirectory() {
+		final String configured = System.getProperty(PROPERTY_DIRECTORY);
+		if (configured != null) {
+			return Paths.get(configured);
+		}
+		final Path shm = Paths.get("/dev/shm");
+		if (Files.isDirectory(shm) && Files.isWritable(shm)) {
+			return shm.resolve("xds-transfer");
+		}
+		return Paths.get(System.getProperty("java.io.tmpdir"), "xds-transfer");
+	}
+
+	/**
+	 * A segment being written.
+	 */
+	public final class Segment implements Closeable {
+
+		/** The file of the segment. */
+		private final Path file;
+
+		/** The channel writing the segment. */
+		private final FileChannel channel;
+
+		private Segment(Path file) throws IOException {
+			this.file = file;
+			this.channel = FileChannel.open(file, StandardOpenOption.WRITE);
+		}
+
+		/**
+		 * Appends a document at the next aligned offset.
+		 *
+		 * @param documentId
+		 *            the uniqueId of the document
+		 * @param content
+		 *            the content, read to the end but not closed
+		 * @return the transfer of the document
+		 * @throws IOException
+		 *             if the segment cannot be written
+		 */
+		public DocumentTransfer append(String documentId, InputStream content)
+				throws IOException {
+			final long granularity = DocumentTransfer.MAPPING_GRANULARITY;
+			final long offset = (channel.size() + granularity - 1) / granularity * granularity;
+			final ReadableByteChannel in = Channels.newChannel(content);
+			final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+			long position = offset;
+			while (in.read(buffer) != -1) {
+				buffer.flip();
+				while (buffer.hasRemaining()) {
+					position += channel.write(buffer, position);
+				}
+				buffer.clear();
+			}
+			return DocumentTransfer.mapped(documentId, file.toString(), offset,
+					position - offset, true);
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+
+	/** The directory of the segments. */
+	private final Path directory;
+
+	/** The time unreleased segments are kept in milliseconds. */
+	private final long retentionMillis;
+
+	/**
+	 * Instantiates the segments of a directory.
+	 *
+	 * @param directory
+	 *            the segment directory, created on the first segment
+	 * @param retentionMillis
+	 *            the time unreleased segments are kept
+	 */
+	public TransferSegments(Path directory, long retentionMillis) {
+		this.directory = directory;
+		this.retentionMillis = retentionMillis;
+	}
+
+	/**
+	 * Creates a new segment. Expired segments are deleted first.
+	 *
+	 * @return the segment, to be closed once all documents are appended
+	 * @throws IOException
+	 *             if the segment cannot be created
+	 */
+	public Segment create() throws IOException {
+		Files.createDirectories(directory);
+		purgeExpired();
+		return new Segment(Files.createTempFile(directory, "segment-", ".bin"));
+	}
+
+	public Path getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Deletes a segment. Files outside of the segment directory are never
+	 * deleted.
+	 *
+	 * @param path
+	 *            the path of the segment
+	 * @return true if the segment was deleted
+	 * @throws IOException
+	 *             if the segment cannot be deleted
+	 */
+	public boolean release(String path) throws IOException {
+		final Path file = Paths.get(path).toAbsolutePath().normalize();
+		if (!directory.toAbsolutePath().normalize().equals(file.getParent())) {
+			return false;
+		}
+		return Files.deleteIfExists(file);
+	}
+
+	private void purgeExpired() {
+		final long oldest = System.currentTimeMillis() - retentionMillis;
+		try (DirectoryStream<Path> segments = Files.newDirectoryStream(directory,
+				"segment-*.bin")) {
+			for (final Path segment : segments) {
+				if (Files.getLastModifiedTime(segment).toMillis() < oldest) {
+					Files.deleteIfExists(segment);
+				}
+			}
+		} catch (final IOException e) {
+			System.out.print("TRANSFER SEGMENTS CANNOT BE PURGED: " + e.getMessage() + "\n");
+		}
+	}
+
+}
@@ -0,0 +1,692 @@
+/*
+ * The authorship of this project and accompanying materials is held by medshare GmbH, Switzerland.
+ * All rights reserved. https://medshare.net
+ *
+ * Source code, documentation and other resources have been contributed by various people.
+ * Project Team: https://gitlab.com/ehealth-connector/api/wikis/Team/
+ * For exact developer information, please refer to the commit history of the forge.
+ *
+ * This code is made available under the terms of the Eclipse Public License v1.0.
+ *
+ * Accompanying materials are made available under the terms of the Creative Commons
+ * Attribution-ShareAlike 4.0 License.
+ *
+ * This line is intended for UTF-8 encoding checks, do not modify/delete: Ã¤Ã¶Ã¼Ã©Ã¨
+ *
+ */
+package connector;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.ehealth_connector.common.mdht.Identificator;
+import org.openhealthtools.ihe.xds.response.XDSResponseType;
+import org.openhealthtools.ihe.xds.response.XDSStatusType;
+
+/**
+ * <div class="en">Durable queue of document uploads, drained by worker
+ * threads. Every accepted upload is appended to a journal and forced to disk
+ * before enqueue returns; the outcome of an upload is appended as well, with
+ * the forces of several outcomes batched. After a restart the uploads without
+ * an outcome are resumed in their original order. The journal is rewritten
+ * with the uploads without outcome on open and whenever the finished uploads
+ * outnumber them.
+ *
+ * <p>
+ * An upload is keyed by the uniqueId of its document. Before a document is
+ * submitted, the registry of the target domain is asked for the uniqueId (not
+ * the local store or the metadata cache), so an upload whose
+ * submission went through just before a crash is not submitted twice. The
+ * outcomes are also written to a tab separated report next to the
+ * journal.</div>
+ */
+public class UploadQueue implements Closeable {
+
+	/** The system property holding the directory of the journal. */
+	public static final String PROPERTY_DIRECTORY = "connector.upload.dir";
+
+	/** The system property holding the number of workers. */
+	public static final String PROPERTY_THREADS = "connector.upload.threads";
+
+	/** The system property holding the number of attempts per upload. */
+	public static final String PROPERTY_MAX_ATTEMPTS = "connector.upload.maxAttempts";
+
+	/** The system property holding the delay before the first retry in milliseconds. */
+	public static final String PROPERTY_RETRY_DELAY = "connector.upload.retryDelay";
+
+	/** The system property holding the interval of the outcome forces in milliseconds. */
+	public static final String PROPERTY_SYNC_INTERVAL = "connector.upload.syncInterval";
+
+	/** The longest delay between two attempts. */
+	private static final long MAX_RETRY_DELAY_MILLIS = 10 * 60 * 1000L;
+
+	/** The file name of the journal. */
+	private static final String JOURNAL = "uploads.journal";
+
+	/** The file name of the report. */
+	private static final String REPORT = "uploads.report";
+
+	/** The record of an accepted upload. */
+	private static final String ENQUEUED = "E";
+
+	/** The record of a finished upload. */
+	private static final String DONE = "D";
+
+	/** The finished uploads after which the journal is compacted at the earliest. */
+	private static final int COMPACT_MIN_FINISHED = 1024;
+
+	/**
+	 * The outcome of an upload.
+	 */
+	public enum Outcome {
+
+		/** Submitted and accepted by the repository. */
+		UPLOADED,
+
+		/** Not submitted, the registry already has the uniqueId. */
+		ALREADY_PRESENT,
+
+		/** Given up after a permanent error or the last attempt. */
+		FAILED
+	}
+
+	/**
+	 * Checks and submits the documents of the queue, the connector outside of
+	 * tests.
+	 */
+	interface Target {
+
+		/**
+		 * Resolves an affinity domain.
+		 *
+		 * @param domainName
+		 *            the name, null for the default domain
+		 * @return the domain
+		 */
+		DomainSettings domain(String domainName);
+
+		/**
+		 * Asks the registry of the domain for a uniqueId.
+		 *
+		 * @return true if the document is registered
+		 * @throws Exception
+		 *             if the registry did not answer
+		 */
+		boolean isDocumentRegistered(DomainSettings settings, Identificator patientId,
+				String documentId) throws Exception;
+
+		/**
+		 * Submits documents in one submission set.
+		 *
+		 * @return the response of the repository
+		 * @throws Exception
+		 *             if the documents cannot be submitted
+		 */
+		XDSResponseType submitDocuments(DomainSettings settings, Identificator patientId,
+				Map<String, byte[]> documents) throws Exception;
+	}
+
+	/**
+	 * An upload waiting in the queue.
+	 */
+	private static final class Task implements Delayed {
+		final long sequence;
+		final String domainName;
+		final Identificator patientId;
+		final String documentId;
+		final String file;
+		int attempts;
+		volatile long readyNanos = System.nanoTime();
+
+		Task(long sequence, String domainName, Identificator patientId, String documentId,
+				String file) {
+			this.sequence = sequence;
+			this.domainName = domainName;
+			this.patientId = patientId;
+			this.documentId = documentId;
+			this.file = file;
+		}
+
+		@Override
+		public int compareTo(Delayed other) {
+			final Task task = (Task) other;
+			if (readyNanos != task.readyNanos) {
+				return (readyNanos - task.readyNanos < 0) ? -1 : 1;
+			}
+			return Long.compare(sequence, task.sequence);
+		}
+
+		@Override
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(readyNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+		}
+
+		String key() {
+			return domainName + "|" + patientId.getRoot() + "|" + patientId.getExtension() + "|"
+					+ documentId;
+		}
+	}
+
+	/** Checks and submits the documents. */
+	private final Target target;
+
+	/** The journal file. */
+	private final Path journalFile;
+
+	/** The report file. */
+	private final Path reportFile;
+
+	/** The number of attempts per upload. */
+	private final int maxAttempts;
+
+	/** The delay before the first retry in milliseconds. */
+	private final long retryDelayMillis;
+
+	/** The uploads due, in the order they become ready. */
+	private final DelayQueue<Task> queue = new DelayQueue<Task>();
+
+	/** The uploads without outcome by key. */
+	private final Map<String, Task> pending = new LinkedHashMap<String, Task>();
+
+	/** The number of the last upload. */
+	private final AtomicLong sequence = new AtomicLong();
+
+	private final AtomicLong uploaded = new AtomicLong();
+
+	private final AtomicLong alreadyPresent = new AtomicLong();
+
+	private final AtomicLong failed = new AtomicLong();
+
+	/** Guards the journal channel, which is replaced by a compaction. */
+	private final Object journalLock = new Object();
+
+	/** The journal, appended only until it is compacted. */
+	private FileChannel journal;
+
+	/** True if outcomes were written since the last force. */
+	private boolean dirty;
+
+	/** The outcomes written since the journal was last compacted. */
+	private int finishedSinceCompaction;
+
+	/** Forces the outcomes periodically. */
+	private final ScheduledExecutorService syncer;
+
+	/** The workers. */
+	private final List<Thread> workers = new ArrayList<Thread>();
+
+	/**
+	 * Opens the queue, compacts its journal and resumes the uploads without
+	 * outcome.
+	 *
+	 * @param connector
+	 *            the connector submitting the documents
+	 * @param directory
+	 *            the directory of the journal and the report
+	 * @param threads
+	 *            the number of workers
+	 * @param maxAttempts
+	 *            the number of attempts per upload
+	 * @param retryDelayMillis
+	 *            the delay before the first retry, doubled per attempt
+	 * @param syncIntervalMillis
+	 *            the interval in which outcomes are forced to disk
+	 * @throws IOException
+	 *             if the journal cannot be read or written
+	 */
+	public UploadQueue(XDSConnector connector, Path directory, int threads, int maxAttempts,
+			long retryDelayMillis, long syncIntervalMillis) throws IOException {
+		this(target(connector), directory, threads, maxAttempts, retryDelayMillis,
+				syncIntervalMillis);
+	}
+
+	/**
+	 * Opens the queue with the given target.
+	 *
+	 * @see #UploadQueue(XDSConnector, Path, int, int, long, long)
+	 */
+	UploadQueue(Target target, Path directory, int threads, int maxAttempts,
+			long retryDelayMillis, long syncIntervalMillis) throws IOException {
+		this.target = target;
+		this.journalFile = directory.resolve(JOURNAL);
+		this.reportFile = directory.resolve(REPORT);
+		this.maxAttempts = Math.max(1, maxAttempts);
+		this.retryDelayMillis = Math.max(1, retryDelayMillis);
+		Files.createDirectories(directory);
+
+		this.journal = recover();
+		queue.addAll(pending.values());
+		if (!pending.isEmpty()) {
+			System.out.println("Upload queue: resuming " + pending.size() + " uploads");
+		}
+
+		syncer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			final Thread thread = new Thread(runnable, "xds-upload-journal");
+			thread.setDaemon(true);
+			return thread;
+		});
+		syncer.scheduleWithFixedDelay(this::sync, syncIntervalMillis, syncIntervalMillis,
+				TimeUnit.MILLISECONDS);
+		for (int i = 1; i <= Math.max(1, threads); i++) {
+			final Thread worker = new Thread(this::work, "xds-upload-" + i);
+			worker.setDaemon(true);
+			workers.add(worker);
+			worker.start();
+		}
+	}
+
+	/**
+	 * Waits until all uploads have an outcome.
+	 *
+	 * @param timeoutMillis
+	 *            the maximum time to wait
+	 * @return true if the queue is drained
+	 * @throws InterruptedException
+	 *             if the thread was interrupted while waiting
+	 */
+	public boolean awaitDrained(long timeoutMillis) throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + timeoutMillis;
+		synchronized (pending) {
+			while (!pending.isEmpty()) {
+				final long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					return false;
+				}
+				pending.wait(remaining);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Stops the workers and forces the journal. Uploads in progress are
+	 * resumed by the next open.
+	 */
+	@Override
+	public void close() throws IOException {
+		for (final Thread worker : workers) {
+			worker.interrupt();
+		}
+		syncer.shutdownNow();
+		sync();
+		synchronized (journalLock) {
+			journal.close();
+		}
+	}
+
+	private static Target target(final XDSConnector connector) {
+		return new Target() {
+
+			@Override
+			public DomainSettings domain(String domainName) {
+				return connector.domain(domainName);
+			}
+
+			@Override
+			public boolean isDocumentRegistered(DomainSettings settings,
+					Identificator patientId, String documentId) throws Exception {
+				// the registry of the target domain only, a cached or
+				// locally stored copy may come from another domain
+				return connector.isDocumentRegistered(settings, patientId, documentId, false);
+			}
+
+			@Override
+			public XDSResponseType submitDocuments(DomainSettings settings,
+					Identificator patientId, Map<String, byte[]> documents) throws Exception {
+				return connector.submitDocuments(settings, patientId, documents);
+			}
+		};
+	}
+
+	/**
+	 * Accepts uploads. The uploads are durable once this method returns; an
+	 * upload whose document is already pending is ignored. The items are
+	 * checked first, so either all of them are accepted or none.
+	 *
+	 * @param domainName
+	 *            the affinity domain, null for the default domain
+	 * @param items
+	 *            the documents to upload
+	 * @return the number of accepted uploads
+	 * @throws IOException
+	 *             if the journal cannot be written; no upload is accepted
+	 *             then
+	 * @throws IllegalArgumentException
+	 *             if a value of an item cannot be journaled, e.g. contains a
+	 *             tab; no upload is accepted then
+	 */
+	public int enqueue(String domainName, Collection<BulkUploader.Item> items)
+			throws IOException {
+		final Map<String, Task> accepted = new LinkedHashMap<String, Task>(items.size() * 2);
+		final StringBuilder records = new StringBuilder();
+		synchronized (pending) {
+			// the pending uploads are changed only after every record was
+			// built and written
+			for (final BulkUploader.Item item : items) {
+				final Task task = new Task(sequence.incrementAndGet(), domainName,
+						item.getPatientId(), item.getDocumentId(),
+						item.getFile().toAbsolutePath().toString());
+				if (pending.containsKey(task.key()) || accepted.containsKey(task.key())) {
+					continue;
+				}
+				appendRecord(records, task);
+				accepted.put(task.key(), task);
+			}
+			append(records.toString(), true);
+			pending.putAll(accepted);
+		}
+		queue.addAll(accepted.values());
+		return accepted.size();
+	}
+
+	public long getAlreadyPresent() {
+		return alreadyPresent.get();
+	}
+
+	public long getFailed() {
+		return failed.get();
+	}
+
+	/**
+	 * Gets the number of uploads without outcome.
+	 *
+	 * @return the number of pending uploads
+	 */
+	public int getPending() {
+		synchronized (pending) {
+			return pending.size();
+		}
+	}
+
+	public String getReportFile() {
+		return reportFile.toString();
+	}
+
+	public long getUploaded() {
+		return uploaded.get();
+	}
+
+	private void append(String records, boolean force) throws IOException {
+		if (records.isEmpty()) {
+			return;
+		}
+		final ByteBuffer buffer = ByteBuffer.wrap(records.getBytes(StandardCharsets.UTF_8));
+		synchronized (journalLock) {
+			while (buffer.hasRemaining()) {
+				journal.write(buffer);
+			}
+			if (force) {
+				journal.force(false);
+				dirty = false;
+			} else {
+				dirty = true;
+			}
+		}
+	}
+
+	private static void appendRecord(StringBuilder records, Task task) {
+		records.append(ENQUEUED).append('\t').append(task.sequence).append('\t')
+				.append(field(task.domainName)).append('\t')
+				.append(field(task.patientId.getRoot())).append('\t')
+				.append(field(task.patientId.getExtension())).append('\t')
+				.append(field(task.documentId)).append('\t').append(field(task.file))
+				.append('\n');
+	}
+
+	/**
+	 * Rewrites the journal with the uploads without outcome once the finished
+	 * uploads outnumber them. The caller holds the lock of the pending
+	 * uploads, so no record is appended meanwhile.
+	 */
+	private void compactIfDominated() {
+		if ((finishedSinceCompaction < COMPACT_MIN_FINISHED)
+				|| (finishedSinceCompaction <= pending.size())) {
+			return;
+		}
+		synchronized (journalLock) {
+			if (!journal.isOpen()) {
+				return;
+			}
+			try {
+				final FileChannel compacted = replaceJournal(pending.values());
+				journal.close();
+				journal = compacted;
+				dirty = false;
+				finishedSinceCompaction = 0;
+			} catch (final IOException e) {
+				// the old journal stays in place and in use
+				System.out.print("UPLOAD JOURNAL CANNOT BE COMPACTED: " + e.getMessage() + "\n");
+			}
+		}
+	}
+
+	private static String field(String value) {
+		if (value == null) {
+			return "-";
+		}
+		if ((value.indexOf('\t') >= 0) || (value.indexOf('\n') >= 0) || "-".equals(value)) {
+			throw new IllegalArgumentException("invalid value in upload: " + value);
+		}
+		return value;
+	}
+
+	private static String unfield(String value) {
+		return "-".equals(value) ? null : value;
+	}
+
+	private void finish(Task task, Outcome outcome, String message) {
+		switch (outcome) {
+		case UPLOADED:
+			uploaded.incrementAndGet();
+			break;
+		case ALREADY_PRESENT:
+			alreadyPresent.incrementAndGet();
+			break;
+		default:
+			failed.incrementAndGet();
+			System.out.print("UPLOAD FAILED: " + task.documentId + " " + message + "\n");
+		}
+		try {
+			final String report = System.currentTimeMillis() + "\t" + outcome + "\t"
+					+ task.patientId.getExtension() + "\t" + task.documentId + "\t" + task.file
+					+ "\t" + (message != null ? message.replace('\t', ' ').replace('\n', ' ') : "")
+					+ "\n";
+			Files.write(reportFile, report.getBytes(StandardCharsets.UTF_8),
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.APPEND);
+		} catch (final IOException e) {
+			System.out.print("UPLOAD REPORT CANNOT BE WRITTEN: " + e.getMessage() + "\n");
+		}
+		synchronized (pending) {
+			try {
+				// a lost outcome only repeats the registry check after a crash
+				append(DONE + "\t" + task.sequence + "\t" + outcome + "\n", false);
+				finishedSinceCompaction++;
+			} catch (final IOException e) {
+				System.out.print("UPLOAD JOURNAL CANNOT BE WRITTEN: " + e.getMessage() + "\n");
+			}
+			pending.remove(task.key());
+			pending.notifyAll();
+			compactIfDominated();
+		}
+	}
+
+	/**
+	 * Reads the journal and rewrites it with the uploads without outcome
+	 * only. A torn last record of a crash, i.e. a last line without its line
+	 * feed, is ignored even if all of its fields are there, since its last
+	 * field may be cut.
+	 *
+	 * @return the journal, open for appending
+	 */
+	private FileChannel recover() throws IOException {
+		if (!Files.exists(journalFile)) {
+			return FileChannel.open(journalFile, StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		}
+		final Map<Long, Task> open = new LinkedHashMap<Long, Task>();
+		final byte[] bytes = Files.readAllBytes(journalFile);
+		int complete = bytes.length;
+		while ((complete > 0) && (bytes[complete - 1] != '\n')) {
+			complete--;
+		}
+		if (complete < bytes.length) {
+			System.out.println("Upload queue: ignoring a torn record of "
+					+ (bytes.length - complete) + " bytes");
+		}
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new ByteArrayInputStream(bytes, 0, complete), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				final String[] fields = line.split("\t", -1);
+				try {
+					if (ENQUEUED.equals(fields[0]) && (fields.length == 7)) {
+						final Task task = new Task(Long.parseLong(fields[1]), unfield(fields[2]),
+								new Identificator(unfield(fields[3]), unfield(fields[4])),
+								unfield(fields[5]), unfield(fields[6]));
+						open.put(task.sequence, task);
+						sequence.set(Math.max(sequence.get(), task.sequence));
+					} else if (DONE.equals(fields[0]) && (fields.length == 3)) {
+						open.remove(Long.valueOf(fields[1]));
+					}
+				} catch (final NumberFormatException e) {
+					// corrupt record
+				}
+			}
+		}
+		for (final Task task : open.values()) {
+			pending.put(task.key(), task);
+		}
+		return replaceJournal(open.values());
+	}
+
+	/**
+	 * Writes the records of the uploads to a new journal, forces it and moves
+	 * it in place of the old one.
+	 *
+	 * @return the new journal, open for appending
+	 */
+	private FileChannel replaceJournal(Collection<Task> tasks) throws IOException {
+		final StringBuilder records = new StringBuilder();
+		for (final Task task : tasks) {
+			appendRecord(records, task);
+		}
+		final Path temp = journalFile.resolveSibling(JOURNAL + ".tmp");
+		final FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			final ByteBuffer buffer = ByteBuffer
+					.wrap(records.toString().getBytes(StandardCharsets.UTF_8));
+			while (buffer.hasRemaining()) {
+				out.write(buffer);
+			}
+			out.force(false);
+			// the channel follows the file, it appends to the new journal
+			try {
+				Files.move(temp, journalFile, StandardCopyOption.ATOMIC_MOVE,
+						StandardCopyOption.REPLACE_EXISTING);
+			} catch (final AtomicMoveNotSupportedException e) {
+				Files.move(temp, journalFile, StandardCopyOption.REPLACE_EXISTING);
+			}
+			return out;
+		} catch (final IOException e) {
+			out.close();
+			Files.deleteIfExists(temp);
+			throw e;
+		}
+	}
+
+	private void retry(Task task, String message) {
+		if (task.attempts >= maxAttempts) {
+			finish(task, Outcome.FAILED, message);
+			return;
+		}
+		final long delay = Math.min(MAX_RETRY_DELAY_MILLIS,
+				retryDelayMillis << Math.min(20, task.attempts - 1));
+		DebugLog.log(() -> "Upload of " + task.documentId + " failed (" + message
+				+ "), retry in " + delay + " ms");
+		task.readyNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+		queue.add(task);
+	}
+
+	private void run(Task task) throws InterruptedException {
+		task.attempts++;
+		final DomainSettings settings;
+		final byte[] content;
+		try {
+			settings = target.domain(task.domainName);
+			content = XDSConnector.readDocCda(task.file);
+		} catch (IOException | RuntimeException e) {
+			// the file or the domain is gone, a retry does not help
+			finish(task, Outcome.FAILED, String.valueOf(e));
+			return;
+		}
+		try {
+			if (target.isDocumentRegistered(settings, task.patientId, task.documentId)) {
+				finish(task, Outcome.ALREADY_PRESENT, null);
+				return;
+			}
+			final Map<String, byte[]> documents = Collections.singletonMap(task.documentId,
+					content);
+			final XDSResponseType response = target.submitDocuments(settings,
+					task.patientId, documents);
+			if (XDSStatusType.SUCCESS_LITERAL.equals(response.getStatus())) {
+				finish(task, Outcome.UPLOADED, null);
+			} else {
+				retry(task, response.getStatus().getName());
+			}
+		} catch (final InterruptedException e) {
+			throw e;
+		} catch (final Exception e) {
+			retry(task, e.getMessage() != null ? e.getMessage() : e.toString());
+		}
+	}
+
+	private void sync() {
+		synchronized (journalLock) {
+			if (!dirty || !journal.isOpen()) {
+				return;
+			}
+			try {
+				journal.force(false);
+				dirty = false;
+			} catch (final IOException e) {
+				System.out.print("UPLOAD JOURNAL CANNOT BE FORCED: " + e.getMessage() + "\n");
+			}
+		}
+	}
+
+	private void work() {
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				run(queue.take());
+			}
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
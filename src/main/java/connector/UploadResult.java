@@ -0,0 +1,83 @@
+/*
+ * The authorship of this project and accompanying materials is held by medshare GmbH, Switzerland.
+ * All rights reserved. https://medshare.net
+ *
+ * Source code, documentation and other resources have been contributed by various people.
+ * Project Team: https://gitlab.com/ehealth-connector/api/wikis/Team/
+ * For exact developer information, please refer to the commit history of the forge.
+ *
+ * This code is made available under the terms of the Eclipse Public License v1.0.
+ *
+ * Accompanying materials are made available under the terms of the Creative Commons
+ * Attribution-ShareAlike 4.0 License.
+ *
+ * This line is intended for UTF-8 encoding checks, do not modify/delete: Ã¤Ã¶Ã¼Ã©Ã¨
+ *
+ */
+package connector;
+
+/**
+ * <div class="en">Result of the upload of a single document.</div>
+ */
+public class UploadResult {
+
+	/** The file of the document. */
+	private final String file;
+
+	/** The uniqueId of the document. */
+	private final String documentId;
+
+	/** The status of the submission set, or null if it was not sent. */
+	private final String status;
+
+	/** True if the repository accepted the submission set. */
+	private final boolean successful;
+
+	/** The error that prevented the upload, null on success. */
+	private final String error;
+
+	/** The duration of the submission in milliseconds. */
+	private final long elapsedMillis;
+
+	public UploadResult(String file, String documentId, String status, boolean successful,
+			String error, long elapsedMillis) {
+		this.file = file;
+		this.documentId = documentId;
+		this.status = status;
+		this.successful = successful;
+		this.error = error;
+		this.elapsedMillis = elapsedMillis;
+	}
+
+	public String getDocumentId() {
+		return documentId;
+	}
+
+	public long getElapsedMillis() {
+		return elapsedMillis;
+	}
+
+	public String getError() {
+		return error;
+	}
+
+	public String getFile() {
+		return file;
+	}
+
+	public String getStatus() {
+		return status;
+	}
+
+	public boolean isSuccessful() {
+		return successful;
+	}
+
+	@Override
+	public String toString() {
+		return file + " [" + documentId + "]: " + (successful ? "uploaded" : "failed")
+				+ ", status=" + status + ", elapsed=" + elapsedMillis + "ms"
+				+ (error != null ? ", error=" + error : "");
+	}
+
+}
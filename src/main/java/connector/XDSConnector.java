@@ -16,28 +16,47 @@
  */
 package connector;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.xml.stream.XMLStreamException;
 
-import org.apache.commons.io.FileUtils;
 import org.ehealth_connector.common.enums.LanguageCode;
+import org.ehealth_connector.common.mdht.Author;
 import org.ehealth_connector.common.mdht.Code;
 import org.ehealth_connector.common.mdht.Identificator;
+import org.ehealth_connector.common.mdht.Name;
+import org.ehealth_connector.common.mdht.enums.ConfidentialityCode;
 import org.ehealth_connector.common.utils.DebugUtil;
 import org.ehealth_connector.common.utils.XdsMetadataUtil;
 import org.ehealth_connector.communication.AffinityDomain;
 import org.ehealth_connector.communication.ConvenienceCommunication;
-import org.ehealth_connector.communication.Destination;
 import org.ehealth_connector.communication.DocumentMetadata;
 import org.ehealth_connector.communication.DocumentRequest;
 import org.ehealth_connector.communication.xd.storedquery.FindDocumentsQuery;
 import org.ehealth_connector.communication.xd.storedquery.GetDocumentsQuery;
+import org.ehealth_connector.communication.xd.storedquery.StoredQueryInterface;
 import org.openhealthtools.ihe.common.ebxml._3._0.rim.ObjectRefType;
 import org.openhealthtools.ihe.xds.document.DocumentDescriptor;
 import org.openhealthtools.ihe.xds.document.XDSDocument;
@@ -60,168 +79,1395 @@ public class XDSConnector {
 
 	public static void main(String[] args) throws Exception {
 
-		XDSConnector xdsconnector = new XDSConnector();
+		final String configFile = System.getProperty(ConnectorConfiguration.PROPERTY_FILE);
+		final XDSConnector xdsconnector;
+		if (configFile != null) {
+			final ConnectorConfiguration configuration = ConnectorConfiguration
+					.load(Paths.get(configFile));
+			// before the connector reads its system properties
+			configuration.applySystemProperties();
+			xdsconnector = new XDSConnector(configuration);
+			xdsconnector.watchConfiguration(configFile,
+					Long.getLong(ConnectorConfiguration.PROPERTY_RELOAD_INTERVAL, 10 * 1000L));
+		} else {
+			xdsconnector = new XDSConnector();
+		}
+		final int warmUpClients = Integer.getInteger("connector.pool.warmUp", 2);
+		if ("fast".equals(System.getProperty("connector.startup.mode"))) {
+			// answer the gateway first, the SOAP clients are set up in the
+			// background or by the first call that needs them; the metrics
+			// are registered before, so a failed endpoint start ends the
+			// start as in the normal mode instead of a background thread
+			registerMetrics(xdsconnector);
+			startGateway(xdsconnector);
+			final Thread warmUp = new Thread(() -> xdsconnector.warmUp(warmUpClients),
+					"xds-warmup");
+			warmUp.setDaemon(true);
+			warmUp.setPriority(Thread.MIN_PRIORITY);
+			warmUp.start();
+		} else {
+			// set up the SOAP clients before the first call arrives
+			xdsconnector.warmUp(warmUpClients);
+			registerMetrics(xdsconnector);
+			startGateway(xdsconnector);
+		}
+	}
+
+	private static void startGateway(XDSConnector xdsconnector) {
 		// xds_connector is now the gateway.entry_point
 		GatewayServer server = new GatewayServer(xdsconnector);
 		server.start();
+		xdsconnector.metrics.markGatewayReady();
+	}
+
+	private static void registerMetrics(XDSConnector xdsconnector) throws IOException {
+		xdsconnector.metrics.registerMBean(xdsconnector.configuration.getDefaultDomain().getName());
+		final int metricsPort = Integer.getInteger(XdsMetrics.PROPERTY_PORT, -1);
+		if (metricsPort >= 0) {
+			System.out.println("Metrics: http://localhost:"
+					+ xdsconnector.metrics.startHttpEndpoint(metricsPort) + "/metrics");
+		}
+	}
+
+	/** The affinity domains, replaced as a whole on reload. */
+	private volatile ConnectorConfiguration configuration;
+
+	/** Reloads the configuration file, null if not watched. */
+	private ConfigurationWatcher configurationWatcher;
+
+	/** The pooled communication clients shared by all calls. */
+	private final CommunicationClientRegistry clientRegistry = new CommunicationClientRegistry(
+			Integer.getInteger("connector.pool.maxIdle", 8),
+			Long.getLong("connector.pool.idleTimeout", 5 * 60 * 1000L));
+
+	/** The number of entries per metadata query of a download. */
+	private final int queryPageSize = Integer.getInteger(DocumentEntryPages.PROPERTY_PAGE_SIZE,
+			100);
+
+	/** The largest patient, in documents, kept in the metadata cache. */
+	private final int metadataCacheEntries = Integer.getInteger("connector.cache.maxEntries",
+			1000);
+
+	/** Retrieves the pages of a download while the next page is queried. */
+	private final ExecutorService pipelineExecutor = Executors.newCachedThreadPool(runnable -> {
+		final Thread thread = new Thread(runnable, "xds-pipeline");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/** The approved document entries of recently queried patients. */
+	private final DocumentMetadataCache metadataCache = new DocumentMetadataCache(
+			Integer.getInteger("connector.cache.maxPatients", 1000),
+			Long.getLong("connector.cache.ttl", 60 * 1000L));
+
+	/** The root directory of the local document store. */
+	private final Path storeRoot = Paths.get(System.getProperty(
+			FileSystemDocumentStore.PROPERTY_ROOT, FileSystemDocumentStore.DEFAULT_ROOT));
+
+	/** The local store of retrieved documents. */
+	private final DocumentStore documentStore = createDocumentStore(storeRoot);
+
+	/** The documents synchronized per patient by the incremental sync. */
+	private final SyncJournal syncJournal = new SyncJournal(
+			Paths.get(System.getProperty("connector.sync.journal",
+					storeRoot.resolve(".sync").toString())));
+
+	/** True to download only the documents added since the last sync. */
+	private volatile boolean incrementalSync = Boolean.getBoolean("connector.sync.incremental");
+
+	/** Limits the number of concurrent calls per registry/repository endpoint. */
+	private final EndpointLimiter endpointLimiter = new EndpointLimiter(
+			Integer.getInteger(EndpointLimiter.PROPERTY_DEFAULT_LIMIT, 4));
+
+	/** Records latency, outcome and bytes of every XDS transaction. */
+	private final XdsMetrics metrics = new XdsMetrics(
+			Long.getLong(XdsMetrics.PROPERTY_SLOW_MILLIS, 2000L));
+
+	/** Sends the transactions with timeouts, retries and circuit breakers. */
+	private final ResilientTransport transport = new ResilientTransport(endpointLimiter, metrics);
+
+	/** Retrieves several documents per ITI-43 request. */
+	private final BatchRetriever batchRetriever = new BatchRetriever(documentStore,
+			transport, metrics, Integer.getInteger(BatchRetriever.PROPERTY_BATCH_SIZE, 20));
+
+	/** Runs the asynchronous calls of the Python side. */
+	private final AsyncJobExecutor asyncExecutor = new AsyncJobExecutor(
+			Integer.getInteger(AsyncJobExecutor.PROPERTY_THREADS, 8),
+			Integer.getInteger(AsyncJobExecutor.PROPERTY_QUEUE_CAPACITY, 256),
+			Long.getLong(AsyncJobExecutor.PROPERTY_SUBMIT_TIMEOUT, 5 * 1000L),
+			Long.getLong(AsyncJobExecutor.PROPERTY_RETENTION, 10 * 60 * 1000L));
+
+	/** The segment files carrying large documents to the Python side. */
+	private final TransferSegments transferSegments = new TransferSegments(
+			TransferSegments.defaultDirectory(),
+			Long.getLong(TransferSegments.PROPERTY_RETENTION, 60 * 60 * 1000L));
+
+	/** The size up to which documents are transferred by value. */
+	private final long transferInlineLimit = Long.getLong("connector.transfer.inlineLimit",
+			256 * 1024L);
+
+	/** Prefetches announced patient cohorts in the background. */
+	private final PrefetchScheduler prefetchScheduler = new PrefetchScheduler(this,
+			Integer.getInteger(PrefetchScheduler.PROPERTY_THREADS, 2),
+			OffPeakWindow.parse(System.getProperty(PrefetchScheduler.PROPERTY_WINDOW)),
+			Double.parseDouble(System.getProperty(PrefetchScheduler.PROPERTY_REGISTRY_RATE, "5")),
+			Double.parseDouble(
+					System.getProperty(PrefetchScheduler.PROPERTY_REPOSITORY_RATE, "50")));
+
+	/** The directory of the upload journal. */
+	private final Path uploadDirectory = Paths.get(System.getProperty(
+			UploadQueue.PROPERTY_DIRECTORY, storeRoot.resolve(".uploads").toString()));
+
+	/** The durable upload queue, opened on first use or if a journal is left. */
+	private volatile UploadQueue uploadQueue;
+
+	/**
+	 * Instantiates a new connector for the local IPF test environment.
+	 */
+	public XDSConnector() {
+		this(DomainSettings.local());
+	}
+
+	/**
+	 * Instantiates a new connector.
+	 *
+	 * @param domainSettings
+	 *            the endpoints of the affinity domain
+	 */
+	public XDSConnector(DomainSettings domainSettings) {
+		this(ConnectorConfiguration.of(domainSettings));
+	}
+
+	/**
+	 * Instantiates a new connector for several affinity domains.
+	 *
+	 * @param configuration
+	 *            the affinity domains
+	 */
+	public XDSConnector(ConnectorConfiguration configuration) {
+		ResilientTransport.applySocketTimeouts();
+		this.configuration = configuration;
+		applyEndpointLimits(configuration);
+		if (documentStore instanceof IndexedDocumentStore) {
+			((IndexedDocumentStore) documentStore).scanInBackground();
+		}
+		if (Files.exists(uploadDirectory.resolve("uploads.journal"))) {
+			// resume the uploads of the last run
+			try {
+				getUploadQueue();
+			} catch (final IOException e) {
+				System.out.print("UPLOAD QUEUE CANNOT BE OPENED: " + e.getMessage() + "\n");
+			}
+		}
+	}
+
+	/**
+	 * Creates the local document store: the content addressed store if
+	 * selected, otherwise plain files with a presence index unless disabled.
+	 *
+	 * @param root
+	 *            the root directory of the store
+	 * @return the document store
+	 */
+	private static DocumentStore createDocumentStore(Path root) {
+		if (ContentAddressedDocumentStore.MODE.equals(
+				System.getProperty(ContentAddressedDocumentStore.PROPERTY_MODE))) {
+			try {
+				final String dictionaryFile = System
+						.getProperty(ContentAddressedDocumentStore.PROPERTY_DICTIONARY);
+				final DeflateDictionary dictionary = (dictionaryFile != null)
+						? DeflateDictionary.load(Paths.get(dictionaryFile))
+						: DeflateDictionary.builtIn();
+				return new ContentAddressedDocumentStore(root, dictionary,
+						Integer.getInteger(ContentAddressedDocumentStore.PROPERTY_LEVEL, 6),
+						Paths.get(System.getProperty(
+								ContentAddressedDocumentStore.PROPERTY_EXPORT_DIRECTORY,
+								root.resolve(".export").toString())),
+						Long.getLong(ContentAddressedDocumentStore.PROPERTY_EXPORT_RETENTION,
+								60 * 60 * 1000L));
+			} catch (final IOException e) {
+				System.out.print("CONTENT STORE CANNOT BE OPENED: " + e.getMessage() + "\n");
+			}
+		}
+		final FileSystemDocumentStore store = new FileSystemDocumentStore(root);
+		if (!Boolean.parseBoolean(System.getProperty(IndexedDocumentStore.PROPERTY_ENABLED, "true"))) {
+			return store;
+		}
+		try {
+			return new IndexedDocumentStore(store);
+		} catch (final IOException e) {
+			System.out.print("PRESENCE INDEX CANNOT BE OPENED: " + e.getMessage() + "\n");
+			return store;
+		}
+	}
+
+	/**
+	 * <div class="en">Rebuilds the presence index of the local store from the
+	 * whole store directory, e.g. after files were deleted by hand.</div>
+	 *
+	 * @throws IOException
+	 *             if the store directory cannot be read
+	 */
+	public void rebuildPresenceIndex() throws IOException {
+		if (documentStore instanceof IndexedDocumentStore) {
+			((IndexedDocumentStore) documentStore).rebuild();
+		}
+	}
+
+	/**
+	 * <div class="en">Reads a stored document. In the content addressed store
+	 * mode the document is decompressed on the fly.</div>
+	 *
+	 * @param id
+	 *            the patient id
+	 * @param documentId
+	 *            the uniqueId of the document
+	 * @return the content of the document
+	 * @throws IOException
+	 *             if the document is not stored or cannot be read
+	 */
+	public byte[] readDocument(String id, String documentId) throws IOException {
+		try (InputStream in = openStoredDocument(id, documentId)) {
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			final byte[] buffer = new byte[64 * 1024];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+			}
+			return out.toByteArray();
+		}
+	}
+
+	/**
+	 * <div class="en">Writes a stored document to a file, e.g. for a consumer
+	 * which needs a plain XML file in the content addressed store mode.</div>
+	 *
+	 * @param id
+	 *            the patient id
+	 * @param documentId
+	 *            the uniqueId of the document
+	 * @param target
+	 *            the file to write
+	 * @return the path of the written file
+	 * @throws IOException
+	 *             if the document is not stored or cannot be written
+	 */
+	public String exportDocument(String id, String documentId, String target)
+			throws IOException {
+		final Path file = Paths.get(target);
+		try (InputStream in = openStoredDocument(id, documentId)) {
+			Files.copy(in, file, StandardCopyOption.REPLACE_EXISTING);
+		}
+		return file.toString();
+	}
+
+	/**
+	 * <div class="en">Hands a document of the patient to the caller without a
+	 * path string to re-read: by value up to
+	 * <code>connector.transfer.inlineLimit</code> bytes, otherwise as a
+	 * region of a file to map. The document is retrieved first if it is not in
+	 * the local store.</div>
+	 *
+	 * @param oid
+	 *            the assigning authority of the patient id
+	 * @param id
+	 *            the patient id
+	 * @param documentId
+	 *            the uniqueId of the document
+	 * @return the transfer of the document
+	 */
+	public DocumentTransfer fetchDocument(String oid, String id, String documentId) {
+		return fetchDocuments(null, oid, id, Collections.singletonList(documentId)).get(0);
+	}
+
+	/**
+	 * <div class="en">Hands several documents of the patient to the caller, see
+	 * {@link #fetchDocument(String, String, String)}. Missing documents are
+	 * retrieved with one registry query and batched retrieves; the large
+	 * documents of the content addressed store share one transfer
+	 * segment.</div>
+	 *
+	 * @param domainName
+	 *            the name of the configured affinity domain, null for the
+	 *            default domain
+	 * @param oid
+	 *            the assigning authority of the patient id
+	 * @param id
+	 *            the patient id
+	 * @param documentIds
+	 *            the uniqueIds of the documents
+	 * @return one transfer per document, in the order of the given ids
+	 */
+	public List<DocumentTransfer> fetchDocuments(String domainName, String oid, String id,
+			List<String> documentIds) {
+		final List<String> missing = new ArrayList<String>();
+		for (final String documentId : documentIds) {
+			if (!documentStore.contains(id, documentId)) {
+				missing.add(documentId);
+			}
+		}
+		if (!missing.isEmpty()) {
+			retrieveDocuments(domain(domainName), new Identificator(oid, id), missing);
+		}
+
+		final List<DocumentTransfer> transfers = new ArrayList<DocumentTransfer>(
+				documentIds.size());
+		TransferSegments.Segment segment = null;
+		try {
+			for (final String documentId : documentIds) {
+				if (!documentStore.contains(id, documentId)) {
+					transfers.add(DocumentTransfer.missing(documentId));
+				} else if (documentStore instanceof ContentAddressedDocumentStore) {
+					final ContentAddressedDocumentStore store = (ContentAddressedDocumentStore) documentStore;
+					if (store.getSize(id, documentId) <= transferInlineLimit) {
+						transfers.add(DocumentTransfer.inline(documentId,
+								readDocument(id, documentId)));
+					} else {
+						if (segment == null) {
+							segment = transferSegments.create();
+						}
+						try (InputStream in = store.open(id, documentId)) {
+							transfers.add(segment.append(documentId, in));
+						}
+					}
+				} else {
+					// the stored file itself is mapped, no copy at all
+					transfers.add(DocumentTransfer.ofFile(documentId,
+							Paths.get(documentStore.getLocation(id, documentId)),
+							transferInlineLimit));
+				}
+			}
+		} catch (final IOException e) {
+			System.out.print("DOCUMENT CANNOT BE TRANSFERRED: " + e.getMessage() + "\n");
+			for (int i = transfers.size(); i < documentIds.size(); i++) {
+				transfers.add(DocumentTransfer.missing(documentIds.get(i)));
+			}
+		} finally {
+			if (segment != null) {
+				try {
+					segment.close();
+				} catch (final IOException e) {
+					System.out.print("TRANSFER SEGMENT CANNOT BE CLOSED: " + e.getMessage() + "\n");
+				}
+			}
+		}
+		return transfers;
+	}
+
+	/**
+	 * <div class="en">Releases a transfer segment once the caller unmapped it.
+	 * Files of the document store are never released.</div>
+	 *
+	 * @param path
+	 *            the path of a releasable transfer
+	 * @return true if the segment was deleted
+	 */
+	public boolean releaseTransfer(String path) {
+		try {
+			return transferSegments.release(path);
+		} catch (final IOException e) {
+			System.out.print("TRANSFER SEGMENT CANNOT BE RELEASED: " + e.getMessage() + "\n");
+			return false;
+		}
+	}
+
+	/**
+	 * Retrieves and stores approved documents of the patient with one registry
+	 * query and batched retrieves.
+	 */
+	private void retrieveDocuments(DomainSettings settings, Identificator patientId,
+			List<String> documentIds) {
+		PooledClient client = null;
+		try {
+			client = clientRegistry.borrow(settings, ClientRole.CONSUMER);
+			final XDSQueryResponseType response = queryRegistry(client,
+					client.getAffinityDomain().getRegistryDestination().getUri(),
+					new GetDocumentsQuery(documentIds.toArray(new String[documentIds.size()]),
+							false),
+					false);
+			if (response.getDocumentEntryResponses() == null) {
+				return;
+			}
+			final List<BatchRetriever.Item> items = new ArrayList<BatchRetriever.Item>();
+			for (final DocumentEntryType entry : indexByUniqueId(
+					response.getDocumentEntryResponses()).values()) {
+				if (isOfPatient(entry, patientId)
+						&& AvailabilityStatusType.APPROVED_LITERAL
+								.equals(entry.getAvailabilityStatus())) {
+					items.add(BatchRetriever.Item.of(entry));
+				}
+			}
+			if (!items.isEmpty()) {
+				batchRetriever.retrieveAndStore(client,
+						client.getAffinityDomain().getRepositoryDestination().getUri(), items);
+			}
+		} catch (final URISyntaxException e) {
+			System.out.print("SOURCE URI CANNOT BE SET: \n" + e.getMessage() + "\n\n");
+		} catch (final XdsTransportException e) {
+			System.out.print("QUERY FAILED: " + e.getMessage() + "\n");
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			clientRegistry.release(client);
+		}
+	}
+
+	private InputStream openStoredDocument(String id, String documentId) throws IOException {
+		if (documentStore instanceof ContentAddressedDocumentStore) {
+			return ((ContentAddressedDocumentStore) documentStore).open(id, documentId);
+		}
+		return Files.newInputStream(Paths.get(documentStore.getLocation(id, documentId)));
+	}
+
+	/**
+	 * <div class="en">Trains a compression dictionary for the content
+	 * addressed store on the CDA documents of a directory. The dictionary is
+	 * used for new documents once it is set as
+	 * <code>connector.store.dictionary</code>; documents stored before keep
+	 * being read with their own dictionary.</div>
+	 *
+	 * @param sampleDirectory
+	 *            the directory with sample CDA documents
+	 * @param dictionaryFile
+	 *            the dictionary file to write
+	 * @return the size of the dictionary in bytes
+	 * @throws IOException
+	 *             if the samples cannot be read or the dictionary cannot be
+	 *             written
+	 */
+	public int trainStoreDictionary(String sampleDirectory, String dictionaryFile)
+			throws IOException {
+		final List<Path> samples = new ArrayList<>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(Paths.get(sampleDirectory),
+				"*.xml")) {
+			for (final Path file : files) {
+				samples.add(file);
+			}
+		}
+		final DeflateDictionary dictionary = DeflateDictionary.train(samples,
+				DeflateDictionary.MAX_SIZE);
+		dictionary.save(Paths.get(dictionaryFile));
+		return dictionary.getSize();
+	}
+
+	/**
+	 * <div class="en">Reloads the configuration file whenever it changes. The
+	 * calls in progress finish with the settings they started with.</div>
+	 *
+	 * @param configFile
+	 *            the configuration file
+	 * @param intervalMillis
+	 *            the polling interval in milliseconds
+	 */
+	public synchronized void watchConfiguration(String configFile, long intervalMillis) {
+		if (configurationWatcher != null) {
+			configurationWatcher.stop();
+		}
+		configurationWatcher = new ConfigurationWatcher(Paths.get(configFile), intervalMillis,
+				this::applyConfiguration);
+	}
+
+	/**
+	 * <div class="en">Reloads the watched configuration file now.</div>
+	 *
+	 * @return true if the configuration was reloaded
+	 */
+	public synchronized boolean reloadConfiguration() {
+		return (configurationWatcher != null) && configurationWatcher.reload();
+	}
+
+	/**
+	 * <div class="en">Gets the names of the configured affinity
+	 * domains.</div>
+	 *
+	 * @return the domain names, the default domain first
+	 */
+	public List<String> getDomainNames() {
+		final ConnectorConfiguration current = configuration;
+		final List<String> names = new ArrayList<String>();
+		names.add(current.getDefaultDomain().getName());
+		for (final DomainSettings settings : current.getDomains()) {
+			if (!names.contains(settings.getName())) {
+				names.add(settings.getName());
+			}
+		}
+		return names;
+	}
+
+	/**
+	 * Switches to a new configuration. The pools of changed or removed
+	 * domains are retired: their idle clients are dropped at once, borrowed
+	 * clients when they are released.
+	 *
+	 * @param newConfiguration
+	 *            the new configuration
+	 */
+	synchronized void applyConfiguration(ConnectorConfiguration newConfiguration) {
+		final ConnectorConfiguration previous = configuration;
+		boolean changed = previous.getDomains().size() != newConfiguration.getDomains().size();
+		for (final DomainSettings settings : newConfiguration.getDomains()) {
+			DomainSettings before = null;
+			for (final DomainSettings old : previous.getDomains()) {
+				if (old.getName().equals(settings.getName())) {
+					before = old;
+				}
+			}
+			if (!settings.isSameAs(before)) {
+				changed = true;
+				System.out.println("Affinity domain " + (before == null ? "added" : "changed")
+						+ ": " + settings);
+			}
+		}
+		applyEndpointLimits(newConfiguration);
+		configuration = newConfiguration;
+		clientRegistry.retainPools(newConfiguration.getDomains());
+		if (changed) {
+			// cached entries may come from a registry that is no longer used
+			metadataCache.clear();
+		}
+	}
+
+	private void applyEndpointLimits(ConnectorConfiguration config) {
+		for (final DomainSettings settings : config.getDomains()) {
+			if (settings.getEndpointLimit() > 0) {
+				for (final String uri : new String[] { settings.getRegistryUri(),
+						settings.getRepositoryUri(), settings.getSubmissionUri() }) {
+					endpointLimiter.setLimit(URI.create(uri), settings.getEndpointLimit());
+				}
+			}
+		}
+	}
+
+	DomainSettings domain(String domainName) {
+		return configuration.getDomain(domainName);
+	}
+
+	/**
+	 *
+	 * @param affDomain
+	 *            the affinity domain setting containing registry and repository
+	 *            endpoints to be used
+	 * @param patientId
+	 *            the patient id to be used </div> <div class="de"></div>
+	 *            <div class="fr"></div>
+	 * @param assertionFile
+	 *            the assertion file
+	 * @return the result of the download with one entry per document
+	 */
+	public PatientDownloadResult downloadPatientFiles(String oid, String id) {
+		return fetchPatient(domain(null), new Identificator(oid, id));
+	}
+
+	/**
+	 * <div class="en">Downloads the documents of the patient from the given
+	 * affinity domain.</div>
+	 *
+	 * @param domainName
+	 *            the name of the configured affinity domain
+	 * @param oid
+	 *            the assigning authority of the patient id
+	 * @param id
+	 *            the patient id
+	 * @return the result of the download with one entry per document
+	 */
+	public PatientDownloadResult downloadPatientFiles(String domainName, String oid, String id) {
+		return fetchPatient(domain(domainName), new Identificator(oid, id));
+	}
+
+	/**
+	 * <div class="en">Iterates the approved document entries of the patient.
+	 * The metadata is queried page by page
+	 * (<code>connector.query.pageSize</code>) as the iteration proceeds, so
+	 * patients with very many documents do not have to fit into memory. Each
+	 * page query borrows a client only for its duration.</div>
+	 *
+	 * @param domainName
+	 *            the name of the configured affinity domain, null for the
+	 *            default domain
+	 * @param oid
+	 *            the assigning authority of the patient id
+	 * @param id
+	 *            the patient id
+	 * @return the iterator of the document entries
+	 * @throws InterruptedException
+	 *             if the thread was interrupted while waiting for the registry
+	 * @throws XdsTransportException
+	 *             if the registry did not answer
+	 * @throws URISyntaxException
+	 *             if the endpoints of the domain are invalid
+	 */
+	public DocumentEntryIterator queryDocumentEntries(String domainName, String oid, String id)
+			throws InterruptedException, URISyntaxException {
+		final DomainSettings settings = domain(domainName);
+		final List<String> entryUuids;
+		final PooledClient client = clientRegistry.borrow(settings, ClientRole.CONSUMER);
+		try {
+			final URI registryUri = client.getAffinityDomain().getRegistryDestination().getUri();
+			final XDSQueryResponseType refs = queryRegistry(client, registryUri,
+					new FindDocumentsQuery(new Identificator(oid, id),
+							AvailabilityStatusType.APPROVED_LITERAL),
+					true);
+			entryUuids = new ArrayList<String>(refs.getReferences().size());
+			for (final ObjectRefType ref : refs.getReferences()) {
+				entryUuids.add(ref.getId());
+			}
+		} finally {
+			clientRegistry.release(client);
+		}
+		return new DocumentEntryIterator(
+				new DocumentEntryPages(entryUuids, queryPageSize, uuids -> {
+					final PooledClient pageClient;
+					try {
+						pageClient = clientRegistry.borrow(settings, ClientRole.CONSUMER);
+					} catch (final URISyntaxException e) {
+						throw new XdsTransportException("registry of " + settings.getName()
+								+ " cannot be set: " + e.getMessage(), e);
+					}
+					try {
+						return queryRegistry(pageClient,
+								pageClient.getAffinityDomain().getRegistryDestination().getUri(),
+								new GetDocumentsQuery(uuids, true), false);
+					} finally {
+						clientRegistry.release(pageClient);
+					}
+				}));
+	}
+
+	/**
+	 * <div class="en">Downloads only the documents of the patient that were
+	 * added or changed since the last sync of the patient.</div>
+	 *
+	 * @param oid
+	 *            the assigning authority of the patient id
+	 * @param id
+	 *            the patient id
+	 * @return the result of the sync
+	 */
+	public PatientDownloadResult syncPatientFiles(String oid, String id) {
+		return syncPatient(domain(null), new Identificator(oid, id), FetchThrottle.NONE);
+	}
+
+	/**
+	 * <div class="en">Syncs the documents of the patient from the given
+	 * affinity domain.</div>
+	 *
+	 * @param domainName
+	 *            the name of the configured affinity domain
+	 * @param oid
+	 *            the assigning authority of the patient id
+	 * @param id
+	 *            the patient id
+	 * @return the result of the sync
+	 */
+	public PatientDownloadResult syncPatientFiles(String domainName, String oid, String id) {
+		return syncPatient(domain(domainName), new Identificator(oid, id),
+				FetchThrottle.NONE);
+	}
+
+	/**
+	 * <div class="en">Switches downloadPatientFiles and the bulk download
+	 * between incremental sync and full download.</div>
+	 *
+	 * @param incremental
+	 *            true to download only new or changed documents
+	 */
+	public void setIncrementalSync(boolean incremental) {
+		this.incrementalSync = incremental;
+	}
+
+	/**
+	 * <div class="en">Downloads the documents of many patients of the same
+	 * assigning authority in parallel. The ITI-18 queries and ITI-43 retrieves
+	 * run on a bounded worker pool, the number of concurrent calls per endpoint
+	 * is limited by the endpoint limiter.</div>
+	 *
+	 * @param oid
+	 *            the assigning authority of all patient ids
+	 * @param ids
+	 *            the patient ids
+	 * @param threads
+	 *            the number of workers
+	 * @param virtualThreads
+	 *            true to run each patient on a virtual thread (Java 21+),
+	 *            threads is ignored then
+	 * @return one result per patient, in the order of the given ids
+	 */
+	public List<PatientDownloadResult> downloadPatientsFiles(String oid, List<String> ids,
+			int threads, boolean virtualThreads) {
+		final ExecutorService executor = BulkDownloader.newExecutor(threads, virtualThreads);
+		try {
+			return new BulkDownloader(this, executor).download(oid, ids);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * <div class="en">Sets the maximum number of concurrent calls to the given
+	 * registry or repository endpoint.</div>
+	 *
+	 * @param endpointUri
+	 *            the endpoint uri
+	 * @param limit
+	 *            the maximum number of concurrent calls
+	 */
+	public void setEndpointConcurrencyLimit(String endpointUri, int limit) {
+		endpointLimiter.setLimit(URI.create(endpointUri), limit);
+	}
+
+	/**
+	 * <div class="en">Sets the correlation id of the calls made by the current
+	 * py4j thread. Slow XDS transactions are traced with this id; the
+	 * asynchronous and bulk calls pass it on to their workers.</div>
+	 *
+	 * @param correlationId
+	 *            the correlation id, null to clear it
+	 */
+	public void setCorrelationId(String correlationId) {
+		XdsMetrics.setCorrelationId(correlationId);
+	}
+
+	/**
+	 * <div class="en">Gets the transaction metrics, also registered via JMX
+	 * and served by the scrape endpoint.</div>
+	 *
+	 * @return the metrics
+	 */
+	public XdsMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * <div class="en">Switches the debug output, including the metadata dump
+	 * of every downloaded document, on or off.</div>
+	 *
+	 * @param debug
+	 *            true to print debug output
+	 */
+	public void setDebug(boolean debug) {
+		DebugLog.setEnabled(debug);
+	}
+
+	/**
+	 * <div class="en">Starts downloadPatientFiles without waiting for it. The
+	 * result of the job is the {@link PatientDownloadResult}.</div>
+	 *
+	 * @param oid
+	 *            the assigning authority of the patient id
+	 * @param id
+	 *            the patient id
+	 * @param callback
+	 *            notified on completion, may be null
+	 * @return the id of the job
+	 */
+	public String downloadPatientFilesAsync(String oid, String id, JobCallback callback) {
+		final Identificator patientId = new Identificator(oid, id);
+		return asyncExecutor.submit("downloadPatientFiles", () -> fetchPatient(patientId),
+				callback).getId();
+	}
+
+	/**
+	 * <div class="en">Starts syncPatientFiles without waiting for it.</div>
+	 *
+	 * @param oid
+	 *            the assigning authority of the patient id
+	 * @param id
+	 *            the patient id
+	 * @param callback
+	 *            notified on completion, may be null
+	 * @return the id of the job
+	 */
+	public String syncPatientFilesAsync(String oid, String id, JobCallback callback) {
+		final Identificator patientId = new Identificator(oid, id);
+		final DomainSettings settings = domain(null);
+		return asyncExecutor.submit("syncPatientFiles", () -> syncPatient(settings, patientId,
+				FetchThrottle.NONE),
+				callback)
+				.getId();
+	}
+
+	/**
+	 * <div class="en">Starts queryDocumentWithId without waiting for it. The
+	 * result of the job is the location of the stored document.</div>
+	 *
+	 * @param oid
+	 *            the assigning authority of the patient id
+	 * @param id
+	 *            the patient id
+	 * @param documentId
+	 *            the uniqueId of the document
+	 * @param callback
+	 *            notified on completion, may be null
+	 * @return the id of the job
+	 */
+	public String queryDocumentWithIdAsync(String oid, String id, String documentId,
+			JobCallback callback) {
+		return asyncExecutor.submit("queryDocumentWithId",
+				() -> queryDocumentWithId(oid, id, documentId), callback).getId();
+	}
+
+	/**
+	 * <div class="en">Starts uploadDocument without waiting for it.</div>
+	 *
+	 * @param oid
+	 *            the assigning authority of the patient id
+	 * @param id
+	 *            the patient id
+	 * @param documentId
+	 *            the uniqueId of the document
+	 * @param fileTempPath
+	 *            the CDA document
+	 * @param callback
+	 *            notified on completion, may be null
+	 * @return the id of the job
+	 */
+	public String uploadDocumentAsync(String oid, String id, String documentId,
+			String fileTempPath, JobCallback callback) {
+		return asyncExecutor.submit("uploadDocument", () -> {
+			uploadDocument(oid, id, documentId, fileTempPath);
+			return null;
+		}, callback).getId();
+	}
+
+	/**
+	 * <div class="en">Starts validateNewDocument without waiting for it. The
+	 * result of the job is the Boolean returned by validateNewDocument.</div>
+	 *
+	 * @param oid
+	 *            the assigning authority of the patient id
+	 * @param id
+	 *            the patient id
+	 * @param documentId
+	 *            the uniqueId of the document
+	 * @param callback
+	 *            notified on completion, may be null
+	 * @return the id of the job
+	 */
+	public String validateNewDocumentAsync(String oid, String id, String documentId,
+			JobCallback callback) {
+		return asyncExecutor.submit("validateNewDocument",
+				() -> validateNewDocument(oid, id, documentId), callback).getId();
+	}
+
+	/**
+	 * <div class="en">Gets an asynchronous job to poll its state and
+	 * result.</div>
+	 *
+	 * @param jobId
+	 *            the id of the job
+	 * @return the job, null if unknown or already collected
+	 */
+	public ConnectorJob getJob(String jobId) {
+		return asyncExecutor.getJob(jobId);
+	}
+
+	/**
+	 * <div class="en">Gets the result of an asynchronous job and forgets the
+	 * job once it completed.</div>
+	 *
+	 * @param jobId
+	 *            the id of the job
+	 * @param timeoutMillis
+	 *            the maximum time to wait for the completion, 0 to return at
+	 *            once
+	 * @return the result, null if the job is unknown, failed or did not
+	 *         complete in time
+	 */
+	public Object collectJobResult(String jobId, long timeoutMillis) {
+		final ConnectorJob job = asyncExecutor.getJob(jobId);
+		if (job == null) {
+			return null;
+		}
+		final Object result = job.getResult(timeoutMillis);
+		if (job.isDone()) {
+			asyncExecutor.removeJob(jobId);
+		}
+		return result;
+	}
+
+	/**
+	 * <div class="en">Cancels an asynchronous job.</div>
+	 *
+	 * @param jobId
+	 *            the id of the job
+	 * @return true if the job was cancelled
+	 */
+	public boolean cancelJob(String jobId) {
+		final ConnectorJob job = asyncExecutor.getJob(jobId);
+		return (job != null) && job.cancel();
+	}
+
+	/**
+	 * <div class="en">Gets the number of asynchronous jobs queued or
+	 * running.</div>
+	 *
+	 * @return the number of pending jobs
+	 */
+	public int getPendingJobCount() {
+		return asyncExecutor.getPendingCount();
+	}
+
+	/**
+	 * <div class="en">Prefetches the documents of a cohort of patients in the
+	 * background, so the later calls for these patients are served from the
+	 * local store. The prefetch runs in the off-peak window
+	 * (<code>connector.prefetch.window</code>) and is rate limited per
+	 * endpoint.</div>
+	 *
+	 * @param domainName
+	 *            the name of the configured affinity domain, null for the
+	 *            default domain
+	 * @param oid
+	 *            the assigning authority of all patient ids
+	 * @param ids
+	 *            the patient ids
+	 * @param priority
+	 *            the priority of the cohort, higher runs first
+	 * @return the id of the cohort
+	 */
+	public String prefetchCohort(String domainName, String oid, List<String> ids, int priority) {
+		// fail on an unknown domain now instead of in the background
+		domain(domainName);
+		return prefetchScheduler.submit(domainName, oid, new ArrayList<String>(ids), priority)
+				.getId();
+	}
+
+	/**
+	 * <div class="en">Gets the progress of a prefetched cohort.</div>
+	 *
+	 * @param cohortId
+	 *            the id returned by prefetchCohort
+	 * @return the cohort, null if unknown
+	 */
+	public PrefetchCohort getPrefetchCohort(String cohortId) {
+		return prefetchScheduler.getCohort(cohortId);
+	}
+
+	/**
+	 * <div class="en">Cancels the prefetch of a cohort. Patients being fetched
+	 * finish, the others are dropped.</div>
+	 *
+	 * @param cohortId
+	 *            the id returned by prefetchCohort
+	 * @return true if the cohort was cancelled, false if unknown or done
+	 */
+	public boolean cancelPrefetch(String cohortId) {
+		return prefetchScheduler.cancel(cohortId);
+	}
+
+	/**
+	 * <div class="en">Gets the number of patients waiting for their
+	 * prefetch.</div>
+	 *
+	 * @return the number of waiting patients
+	 */
+	public int getPrefetchQueueLength() {
+		return prefetchScheduler.getQueueLength();
+	}
+
+	/**
+	 * <div class="en">Stops the prefetch: patients being fetched are
+	 * interrupted and the unfinished cohorts are cancelled. A cohort submitted
+	 * later starts it again.</div>
+	 */
+	public void stopPrefetch() {
+		prefetchScheduler.shutdown();
+	}
+
+	/**
+	 * <div class="en">Sets the daily window of the prefetch, e.g.
+	 * <code>20:00-06:00</code>; null or empty to prefetch at any time.</div>
+	 *
+	 * @param window
+	 *            the window
+	 */
+	public void setPrefetchWindow(String window) {
+		prefetchScheduler.setWindow(OffPeakWindow.parse(window));
+	}
+
+	/**
+	 * <div class="en">Sets the rate limit of the prefetch for a registry
+	 * (queries per second) or repository (documents per second)
+	 * endpoint.</div>
+	 *
+	 * @param endpointUri
+	 *            the endpoint uri
+	 * @param ratePerSecond
+	 *            the rate
+	 */
+	public void setPrefetchRate(String endpointUri, double ratePerSecond) {
+		prefetchScheduler.setRate(URI.create(endpointUri), ratePerSecond);
 	}
 
-	/** The out str. */
-	private StringBuffer outStr = new StringBuffer();
+	/**
+	 * <div class="en">Gets the state of the circuit breaker of a registry or
+	 * repository endpoint.</div>
+	 *
+	 * @param endpointUri
+	 *            the endpoint uri
+	 * @return CLOSED, OPEN or HALF_OPEN
+	 */
+	public String getCircuitState(String endpointUri) {
+		return transport.getCircuitBreaker(URI.create(endpointUri)).getState().name();
+	}
 
-	/** The con com. */
-	private ConvenienceCommunication conCom;
+	/**
+	 * Downloads the documents of the patient in the configured mode.
+	 *
+	 * @param patientId
+	 *            the patient id
+	 * @return the result of the download
+	 */
+	PatientDownloadResult fetchPatient(Identificator patientId) {
+		return fetchPatient(domain(null), patientId);
+	}
 
 	/**
+	 * Downloads the documents of the patient from the given affinity domain in
+	 * the configured mode.
 	 *
-	 * @param affDomain
-	 *            the affinity domain setting containing registry and repository
-	 *            endpoints to be used
+	 * @param settings
+	 *            the affinity domain
 	 * @param patientId
-	 *            the patient id to be used </div> <div class="de"></div>
-	 *            <div class="fr"></div>
-	 * @param assertionFile
-	 *            the assertion file
+	 *            the patient id
+	 * @return the result of the download
 	 */
-	public void downloadPatientFiles(String oid, String id) {
+	PatientDownloadResult fetchPatient(DomainSettings settings, Identificator patientId) {
+		return fetchPatient(settings, patientId, FetchThrottle.NONE);
+	}
 
-		Identificator patientId = new Identificator(oid, id);
+	/**
+	 * Downloads the documents of the patient from the given affinity domain in
+	 * the configured mode, paced by the throttle.
+	 *
+	 * @param settings
+	 *            the affinity domain
+	 * @param patientId
+	 *            the patient id
+	 * @param throttle
+	 *            asked before every registry query and retrieve request
+	 * @return the result of the download
+	 */
+	PatientDownloadResult fetchPatient(DomainSettings settings, Identificator patientId,
+			FetchThrottle throttle) {
+		return incrementalSync ? syncPatient(settings, patientId, throttle)
+				: downloadPatient(settings, patientId, throttle);
+	}
+
+	/**
+	 * Synchronizes the documents of the patient with the sync journal. Only
+	 * the references of the approved documents are queried; metadata is
+	 * fetched for entries not in the journal, content for entries whose
+	 * uniqueId, hash or size changed or whose file is missing in the store.
+	 * Creation time filters are not used, since documents submitted late
+	 * carry a creation time before the last sync.
+	 *
+	 * @param settings
+	 *            the affinity domain
+	 * @param patientId
+	 *            the patient id
+	 * @param throttle
+	 *            asked before every registry query and retrieve request
+	 * @return the result of the sync
+	 */
+	PatientDownloadResult syncPatient(DomainSettings settings, Identificator patientId,
+			FetchThrottle throttle) {
 
-		AffinityDomain affDomain = null;
-		outStr = new StringBuffer();
-		XDSQueryResponseType qr;
+		final PatientDownloadResult result = new PatientDownloadResult(patientId.getRoot(),
+				patientId.getExtension());
+		final long start = System.nanoTime();
+		PooledClient client = null;
 
 		try {
-			Destination registryUnsecure = new Destination(oid,
-					new URI("http://localhost:9091/xds-iti18"));
-
-			Destination repositoryUnsecure = new Destination(oid,
-					new URI("http://localhost:9091/xds-iti43"));
+			final SyncJournal.PatientJournal journal = syncJournal.load(patientKey(settings, patientId));
+			client = clientRegistry.borrow(settings, ClientRole.CONSUMER);
+			final AffinityDomain affDomain = client.getAffinityDomain();
+			final URI registryUri = affDomain.getRegistryDestination().getUri();
+
+			// 1. references of all approved documents
+			throttle.beforeQuery();
+			final XDSQueryResponseType refs = queryRegistry(client, registryUri,
+					new FindDocumentsQuery(patientId, AvailabilityStatusType.APPROVED_LITERAL),
+					true);
+			result.setDocumentsFound(refs.getReferences().size());
+
+			final Set<String> current = new HashSet<String>();
+			final List<String> unknown = new ArrayList<String>();
+			final List<BatchRetriever.Item> missing = new ArrayList<BatchRetriever.Item>();
+			for (final ObjectRefType ref : refs.getReferences()) {
+				current.add(ref.getId());
+				final SyncJournal.Entry known = journal.get(ref.getId());
+				if (known == null) {
+					unknown.add(ref.getId());
+				} else if (documentStore.contains(patientId.getExtension(),
+						known.getUniqueId())) {
+					result.add(DocumentResult.skipped(known.getUniqueId()));
+				} else {
+					missing.add(new BatchRetriever.Item(patientId.getExtension(),
+							known.getRepositoryUniqueId(), known.getUniqueId()));
+				}
+			}
+			// forget deprecated and deleted documents
+			journal.getEntries().keySet().retainAll(current);
+			countRetrieved(result, batchRetriever.retrieveAndStore(client,
+					affDomain.getRepositoryDestination().getUri(), missing, throttle));
+
+			// 2. metadata of the new entries only
+			if (!unknown.isEmpty()) {
+				throttle.beforeQuery();
+				final XDSQueryResponseType qr = queryRegistry(client, registryUri,
+						new GetDocumentsQuery(unknown.toArray(new String[unknown.size()]), true),
+						false);
+				final Map<String, SyncJournal.Entry> byUniqueId = new HashMap<String, SyncJournal.Entry>();
+				for (final SyncJournal.Entry entry : journal.getEntries().values()) {
+					byUniqueId.put(entry.getUniqueId(), entry);
+				}
+				final List<DocumentEntryType> changed = new ArrayList<DocumentEntryType>();
+				final List<BatchRetriever.Item> toRetrieve = new ArrayList<BatchRetriever.Item>();
+				for (final DocumentEntryResponseType response : qr
+						.getDocumentEntryResponses()) {
+					final DocumentEntryType docEntry = response.getDocumentEntry();
+					final SyncJournal.Entry previous = byUniqueId.get(docEntry.getUniqueId());
+					if ((previous != null) && previous.isSameContent(docEntry)
+							&& documentStore.contains(docEntry.getPatientId().getIdNumber(),
+									docEntry.getUniqueId())) {
+						result.add(DocumentResult.skipped(docEntry.getUniqueId()));
+						journal.put(new SyncJournal.Entry(docEntry));
+					} else {
+						changed.add(docEntry);
+						toRetrieve.add(BatchRetriever.Item.of(docEntry));
+					}
+				}
+				final Map<String, StoreResult> retrieved = batchRetriever.retrieveAndStore(
+						client, affDomain.getRepositoryDestination().getUri(), toRetrieve,
+						throttle);
+				countRetrieved(result, retrieved);
+				for (final DocumentEntryType docEntry : changed) {
+					// failed documents are not journaled and retried by
+					// the next sync
+					if (retrieved.get(docEntry.getUniqueId()) != null) {
+						journal.put(new SyncJournal.Entry(docEntry));
+					}
+				}
+			}
 
-			affDomain = new AffinityDomain(null, registryUnsecure, repositoryUnsecure);
+			journal.setLastSync(System.currentTimeMillis());
+			syncJournal.save(journal);
 
-		} catch (final URISyntaxException e) {
-			System.out.print("SOURCE URI CANNOT BE SET: \n" + e.getMessage() + "\n\n");
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			result.setError("interrupted");
+		} catch (final Exception e) {
+			System.out.print(e.getMessage() + "\n");
+			e.printStackTrace();
+			result.setError(e.getMessage() != null ? e.getMessage() : e.toString());
+		} finally {
+			clientRegistry.release(client);
+			result.setElapsedMillis((System.nanoTime() - start) / 1000000L);
 		}
+		return result;
+	}
+
+	/**
+	 * Queries the registry for all documents of the patient and stores the ones
+	 * that are not yet on disc.
+	 *
+	 * @param settings
+	 *            the affinity domain
+	 * @param patientId
+	 *            the patient id
+	 * @param throttle
+	 *            asked before every registry query and retrieve request
+	 * @return the result of the download
+	 */
+	PatientDownloadResult downloadPatient(DomainSettings settings, Identificator patientId,
+			FetchThrottle throttle) {
+
+		final PatientDownloadResult result = new PatientDownloadResult(patientId.getRoot(),
+				patientId.getExtension());
+		final long start = System.nanoTime();
+		PooledClient client = null;
 
 		try {
-			// Create a new ConvenienceCommunication Object
-			conCom = new ConvenienceCommunication(affDomain);
+			// Borrow a ConvenienceCommunication Object, it is not thread safe
+			// and therefore used by this call only until it is released
+			client = clientRegistry.borrow(settings, ClientRole.CONSUMER);
+			final ConvenienceCommunication conCom = client.getCommunication();
+			final AffinityDomain affDomain = client.getAffinityDomain();
+			final URI registryUri = affDomain.getRegistryDestination().getUri();
 
 			// 1. Create and perform query for references
 			final FindDocumentsQuery fdq = new FindDocumentsQuery(patientId,
 					AvailabilityStatusType.APPROVED_LITERAL);
-			qr = conCom.queryDocumentsReferencesOnly(fdq);
-			outStr.append("\nQuery for document references. Response status: "
-					+ qr.getStatus().getName());
-			outStr.append(". Returned " + qr.getReferences().size() + " references.");
-
-			if (qr.getReferences().size() < 1) {
-				outStr.append("\nNo Documents found for patient '" + patientId.getRoot() + "/"
-						+ patientId.getExtension() + "' in registry: "
-						+ affDomain.getRegistryDestination().getUri());
+			throttle.beforeQuery();
+			final XDSQueryResponseType refs = queryRegistry(client, registryUri, fdq, true);
+			DebugLog.log(() -> "Query for document references. Response status: "
+					+ refs.getStatus().getName() + ". Returned " + refs.getReferences().size()
+					+ " references.");
+
+			if (refs.getReferences().size() < 1) {
+				DebugLog.log(() -> "No Documents found for patient '" + patientId.getRoot() + "/"
+						+ patientId.getExtension() + "' in registry: " + registryUri);
 			} else {
 
-				// 2. Create and perform query for document metadata
-				int numberOfDocumentMetadataQuery = qr.getReferences().size();
-
-				final String[] docUUIDs = new String[numberOfDocumentMetadataQuery];
-				for (int i = 0; i < numberOfDocumentMetadataQuery; i++) {
-					final ObjectRefType ort = qr.getReferences()
-							.get((qr.getReferences().size() - 1) - i);
-					docUUIDs[i] = ort.getId();
+				// 2. Query the metadata page by page; each page is retrieved
+				// while the next one is queried, so at most two pages are
+				// held however many documents the patient has
+				final List<String> entryUuids = new ArrayList<String>(refs.getReferences().size());
+				for (int i = refs.getReferences().size() - 1; i >= 0; i--) {
+					entryUuids.add(refs.getReferences().get(i).getId());
 				}
-				final GetDocumentsQuery gdq = new GetDocumentsQuery(docUUIDs, true);
-				qr = conCom.queryDocuments(gdq);
-				if (qr != null) {
-					outStr.append("\nQuery for document metadata of the last "
-							+ Integer.toString(numberOfDocumentMetadataQuery)
-							+ " documents. Response status: " + qr.getStatus().getName());
-					outStr.append(
-							". Returned " + qr.getDocumentEntryResponses().size() + " documents.");
-					if (qr.getDocumentEntryResponses().size() < 1) {
-						outStr.append("\nNo Documents found for patient '" + patientId.getRoot()
-								+ "/" + patientId.getExtension() + "' in registry: "
-								+ affDomain.getRegistryDestination().getUri());
-					} else {
-						DocumentEntryType docEntry = null;
-						// Retrieve Files from the repository and store it to
-						// disc
-						List<DocumentEntryResponseType> responses = qr.getDocumentEntryResponses();
-
-						for (DocumentEntryResponseType e : responses) {
-							docEntry = e.getDocumentEntry();
-							outStr.append("\nFound XML document for patient '" + patientId.getRoot()
-									+ "/" + patientId.getExtension() + "' in registry: "
-									+ affDomain.getRegistryDestination().getUri() + ":\n"
+				final PooledClient queryClient = client;
+				final DocumentEntryPages pages = new DocumentEntryPages(entryUuids, queryPageSize,
+						uuids -> {
+							throttle.beforeQuery();
+							return queryRegistry(queryClient, registryUri,
+									new GetDocumentsQuery(uuids, true), false);
+						});
+				// a cached patient has to be complete, so only patients with
+				// few documents are cached
+				final Map<String, DocumentEntryType> cacheable = (entryUuids
+						.size() <= metadataCacheEntries)
+								? new LinkedHashMap<String, DocumentEntryType>()
+								: null;
+				final String correlationId = XdsMetrics.getCorrelationId();
+				int found = 0;
+				Future<Map<String, StoreResult>> inFlight = null;
+				try {
+					while (pages.hasNext()) {
+						final List<DocumentEntryType> page = pages.nextPage();
+						DebugLog.log(() -> "Query for document metadata returned " + page.size()
+								+ " documents.");
+						found += page.size();
+						final List<BatchRetriever.Item> toRetrieve = new ArrayList<BatchRetriever.Item>();
+						for (final DocumentEntryType docEntry : page) {
+							DebugLog.log(() -> "Found XML document for patient '"
+									+ patientId.getRoot() + "/" + patientId.getExtension()
+									+ "' in registry: " + registryUri + ":\n"
 									+ DebugUtil.debugDocumentMetaData(docEntry));
-
-							String patientID = docEntry.getPatientId().getIdNumber();
-							String documentID = docEntry.getUniqueId();
-							String rootPath = "C:\\Users\\Raik Müller\\Documents\\GitHub\\RecruitmentTool_Backend\\Django_Server\\recruitmenttool\\cda_files\\tempDownload";
-							String filePath = rootPath + "\\" + patientID + "\\" + documentID + "_"
-									+ patientID + ".xml";
-							File tempFile = new File(filePath);
-
-							if (!tempFile.exists()) {
-								System.out.println("File not Exist: Start Download ...");
-								storeDocument(affDomain, docEntry);
+							if (cacheable != null) {
+								cacheable.put(docEntry.getUniqueId(), docEntry);
 							}
 
+							final String patientID = docEntry.getPatientId().getIdNumber();
+							final String documentID = docEntry.getUniqueId();
+							if (!documentStore.contains(patientID, documentID)) {
+								toRetrieve.add(BatchRetriever.Item.of(docEntry));
+							} else {
+								result.add(DocumentResult.skipped(documentID));
+							}
+						}
+						if (inFlight != null) {
+							finishPage(result, inFlight);
+							inFlight = null;
+						}
+						if (toRetrieve.isEmpty()) {
+							continue;
+						}
+						DebugLog.log(() -> toRetrieve.size() + " Files not Exist: Start Download ...");
+						if (pages.hasNext()) {
+							inFlight = pipelineExecutor.submit(
+									() -> retrievePage(settings, toRetrieve, throttle,
+											correlationId));
+						} else {
+							// nothing to overlap with the last page
+							countRetrieved(result, batchRetriever.retrieveAndStore(client,
+									affDomain.getRepositoryDestination().getUri(), toRetrieve,
+									throttle));
 						}
 					}
-
-				} else
-					outStr.append("\n*** FAILURE :" + conCom.getLastError());
+				} finally {
+					if (inFlight != null) {
+						// a failed metadata query still counts the page being
+						// retrieved
+						finishPage(result, inFlight);
+					}
+					result.setDocumentsFound(found);
+				}
+				if (cacheable != null) {
+					metadataCache.put(patientKey(settings, patientId), cacheable);
+				}
 			}
 
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			result.setError("interrupted");
 		} catch (final Exception e) {
 			System.out.print(e.getMessage() + "\n");
 			e.printStackTrace();
+			result.setError(e.getMessage() != null ? e.getMessage() : e.toString());
+		} finally {
+			clientRegistry.release(client);
 		}
 
-		System.out.print(outStr.toString() + "\n");
+		result.setElapsedMillis((System.nanoTime() - start) / 1000000L);
+		DebugLog.log(() -> result.toString());
+		return result;
 	}
 
 	/**
-	 * <div class="en">Method to get instance of Destination with the correct
-	 * paramters set.
+	 * Retrieves and stores a page of documents with a client of its own, the
+	 * client of the download is busy with the next metadata query.
 	 *
-	 * @param organizationalId
-	 *            the organizational id
-	 * @param repository
-	 *            the uri string
-	 * @param keystore
-	 *            the the path to the keystore
-	 * @param keyStorePass
-	 *            the password to the keystore
-	 * @return the initialized Destination
-	 * @throws URISyntaxException
-	 *             on incorrect uri string the exception will be thrown </div>
+	 * @param settings
+	 *            the affinity domain
+	 * @param items
+	 *            the documents of the page
+	 * @param throttle
+	 *            asked before every retrieve request
+	 * @param correlationId
+	 *            the correlation id of the download
+	 * @return the store result per document uniqueId, null for failed
+	 *         documents
 	 */
-	private Destination getDestination(String organizationalId, String repository, String keystore,
-			String keyStorePass, String keyStoreType) throws URISyntaxException {
-		final URI repositoryUri = new java.net.URI(repository);
-		if ((keystore != null) && !"".equals(keystore)) {
-			return new Destination(organizationalId, repositoryUri, keystore, keyStorePass,
-					keyStoreType);
+	private Map<String, StoreResult> retrievePage(DomainSettings settings,
+			List<BatchRetriever.Item> items, FetchThrottle throttle, String correlationId) {
+		XdsMetrics.setCorrelationId(correlationId);
+		PooledClient client = null;
+		try {
+			client = clientRegistry.borrow(settings, ClientRole.CONSUMER);
+			return batchRetriever.retrieveAndStore(client,
+					client.getAffinityDomain().getRepositoryDestination().getUri(), items,
+					throttle);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (final Exception e) {
+			System.out.print("RETRIEVE OF " + items.size() + " DOCUMENTS FAILED: "
+					+ e.getMessage() + "\n");
+		} finally {
+			clientRegistry.release(client);
+			XdsMetrics.setCorrelationId(null);
+		}
+		final Map<String, StoreResult> failed = new HashMap<String, StoreResult>();
+		for (final BatchRetriever.Item item : items) {
+			failed.put(item.getDocumentId(), null);
+		}
+		return failed;
+	}
+
+	private static void finishPage(PatientDownloadResult result,
+			Future<Map<String, StoreResult>> page) {
+		try {
+			countRetrieved(result, page.get());
+		} catch (final InterruptedException e) {
+			page.cancel(true);
+			Thread.currentThread().interrupt();
+		} catch (final ExecutionException e) {
+			System.out.print("RETRIEVE FAILED: " + e.getCause() + "\n");
 		}
-		return new Destination(organizationalId, repositoryUri);
 	}
 
 	/**
-	 * Gets the sample CDA document stream.
+	 * Reads a CDA document once, so the content and the metadata extraction
+	 * can share the same buffer.
 	 *
-	 * @return a CDA document stream
-	 * @throws FileNotFoundException
+	 * @return the content of the CDA document
+	 * @throws IOException
+	 *             if the file cannot be read
 	 */
-	private InputStream getDocCda(String path) throws FileNotFoundException {
-		System.out.println("Get File: " + path);
-		InputStream cda = new FileInputStream(path);
-		// getClass().getResourceAsStream(path);
-		// InputStream cda = getClass().getResourceAsStream("/demoDocSource/" +
-		// path);
-		return cda;
+	static byte[] readDocCda(String path) throws IOException {
+		DebugLog.log(() -> "Get File: " + path);
+		return Files.readAllBytes(Paths.get(path));
 	}
 
 	private void printXdsResponse(XDSResponseType aResponse) {
@@ -263,69 +1509,71 @@ public class XDSConnector {
 	 * @return
 	 */
 	public String queryDocumentWithId(String oid, String id, String documentId) {
+		return queryDocumentWithId(null, oid, id, documentId);
+	}
 
-		Identificator patientId = new Identificator(oid, id);
-
-		AffinityDomain affDomain = null;
-		outStr = new StringBuffer();
-		XDSQueryResponseType documentEntryResponse;
+	/**
+	 * <div class="en">Retrieves and stores a document of the patient from the
+	 * given affinity domain. The document is looked up in the domain first,
+	 * from the metadata cache or the registry; if it is already in the local
+	 * store, e.g. from a prefetch, it is not retrieved again.</div>
+	 *
+	 * @param domainName
+	 *            the name of the configured affinity domain, null for the
+	 *            default domain
+	 * @param oid
+	 *            the assigning authority of the patient id
+	 * @param id
+	 *            the patient id
+	 * @param documentId
+	 *            the uniqueId of the document
+	 * @return the location of the stored document or NO_DOCUMENT_FOUND
+	 */
+	public String queryDocumentWithId(String domainName, String oid, String id,
+			String documentId) {
 
+		Identificator patientId = new Identificator(oid, id);
+		final DomainSettings settings = domain(domainName);
+		PooledClient client = null;
 		try {
-			Destination registryUnsecure = new Destination(oid,
-					new URI("http://localhost:9091/xds-iti18"));
-
-			Destination repositoryUnsecure = new Destination(oid,
-					new URI("http://localhost:9091/xds-iti43"));
-
-			affDomain = new AffinityDomain(null, registryUnsecure, repositoryUnsecure);
-
+			client = clientRegistry.borrow(settings, ClientRole.CONSUMER);
+			return queryDocumentWithId(settings, client, patientId, documentId);
 		} catch (final URISyntaxException e) {
 			System.out.print("SOURCE URI CANNOT BE SET: \n" + e.getMessage() + "\n\n");
+			return "NO_DOCUMENT_FOUND";
+		} catch (final XdsTransportException e) {
+			System.out.print("QUERY FAILED: " + e.getMessage() + "\n");
+			return "NO_DOCUMENT_FOUND";
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return "NO_DOCUMENT_FOUND";
+		} finally {
+			clientRegistry.release(client);
 		}
+	}
 
-		// Create a new ConvenienceCommunication Object
-		conCom = new ConvenienceCommunication(affDomain);
-		final FindDocumentsQuery fdq = new FindDocumentsQuery(patientId,
-				AvailabilityStatusType.APPROVED_LITERAL);
-		documentEntryResponse = conCom.queryDocuments(fdq);
-		List<DocumentEntryResponseType> responses = documentEntryResponse
-				.getDocumentEntryResponses();
-		if (responses.size() > 0) {
-			// TODO: make Temp folder empty
-			DocumentEntryType entry = null;
-			for (DocumentEntryResponseType e : responses) {
-				DocumentEntryType _entry = e.getDocumentEntry();
-				if (_entry.getUniqueId().equals(documentId)) {
-					entry = _entry;
-					break;
-				} else {
-					return "NO_DOCUMENT_FOUND";
-				}
-
+	private String queryDocumentWithId(DomainSettings settings, PooledClient client,
+			Identificator patientId, String documentId) throws InterruptedException {
+
+		final AffinityDomain affDomain = client.getAffinityDomain();
+
+		final DocumentEntryType entry = findDocument(settings, client, patientId, documentId,
+				true);
+		if ((entry != null)
+				&& AvailabilityStatusType.APPROVED_LITERAL.equals(entry.getAvailabilityStatus())) {
+			// the entry is of this domain and patient, so a stored copy,
+			// e.g. from the prefetch, is the same document
+			final String patientID = entry.getPatientId().getIdNumber();
+			if (documentStore.contains(patientID, documentId)) {
+				DebugLog.log(() -> "CDA File served from the local store");
+				return documentStore.getLocation(patientID, documentId);
 			}
-			// TODO: use method retrieveAndStore
-			System.out.println("Download CDA File");
-			final DocumentRequest documentRequest = new DocumentRequest(
-					entry.getRepositoryUniqueId(), affDomain.getRepositoryDestination().getUri(),
-					entry.getUniqueId());
-			final XDSRetrieveResponseType rrt = conCom.retrieveDocument(documentRequest);
-			final XDSDocument document = rrt.getAttachments().get(0);
-			final InputStream docIS = document.getStream();
-			String patientID = entry.getPatientId().getIdNumber();
-			String documentID = entry.getUniqueId();
-			File file = new File(
-					"C:\\Users\\Raik Müller\\Documents\\GitHub\\RecruitmentTool_Backend\\Django_Server\\recruitmenttool\\cda_files\\tempDownload\\"
-							+ patientID + "\\" + documentID + "_" + patientID + ".xml");
-			try {
-				FileUtils.copyInputStreamToFile(docIS, file);
-
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+			// TODO: make Temp folder empty
+			DebugLog.log(() -> "Download CDA File");
+			final StoreResult stored = storeDocument(client, affDomain, entry);
+			if (stored != null) {
+				return documentStore.getLocation(patientID, documentId);
 			}
-			return "C:\\Users\\Raik Müller\\Documents\\GitHub\\RecruitmentTool_Backend\\Django_Server\\recruitmenttool\\cda_files\\tempDownload\\"
-					+ patientID + "\\" + documentID + "_" + patientID + ".xml";
-
 		}
 		return "NO_DOCUMENT_FOUND";
 
@@ -334,19 +1582,50 @@ public class XDSConnector {
 	/** set metaData only needed for IPF XDS Framework **/
 	public void setMetaDatForCDA(DocumentMetadata metaData, Identificator patientId,
 			String documentId) {
-		// metaData.addAuthor(new Author(new Name("Sigrid", "Kollmann"),
-		// "2323"));
+		setMetaDatForCDA(metaData, patientId, documentId, new CdaHeader());
+	}
+
+	/**
+	 * <div class="en">Sets the metadata of a document from its CDA header. The
+	 * Connect-a-thon codes are used for values which are not in the
+	 * header.</div>
+	 *
+	 * @param metaData
+	 *            the metadata of the added document
+	 * @param patientId
+	 *            the patient id in the affinity domain
+	 * @param documentId
+	 *            the uniqueId of the document
+	 * @param header
+	 *            the header extracted from the CDA document
+	 */
+	public void setMetaDatForCDA(DocumentMetadata metaData, Identificator patientId,
+			String documentId, CdaHeader header) {
 		// Dokumentenklasse (Oberklasse) z.B.: 18842-5 „Entlassungsbrief“
-		// TODO: optional to extract from each CDA but not necarry for test
-		// cases
-		metaData.setClassCode(new Code("History and Physical",
-				"urn:uuid:41a5887f-8865-4c09-adf7-e362475b143a", "Connect-a-thon classCodes"));
+		if (header.getClassCode() != null) {
+			metaData.setClassCode(new Code(header.getClassCodeSystem(), header.getClassCode(),
+					header.getClassDisplayName()));
+		} else {
+			metaData.setClassCode(new Code("History and Physical",
+					"urn:uuid:41a5887f-8865-4c09-adf7-e362475b143a", "Connect-a-thon classCodes"));
+		}
 		// Vertraulichkeitscode des Dokuments
+		ConfidentialityCode confidentiality = null;
+		if (header.getConfidentialityCode() != null) {
+			confidentiality = ConfidentialityCode.getEnum(header.getConfidentialityCode());
+		}
 		metaData.addConfidentialityCode(
-				org.ehealth_connector.common.mdht.enums.ConfidentialityCode.NORMAL);
-		// TODO: optional to extract from each CDA but not necarry for test
-		// cases
-		// metaData.setCreationTime(new Date());
+				(confidentiality != null) ? confidentiality : ConfidentialityCode.NORMAL);
+		if (header.getEffectiveTime() != null) {
+			metaData.setCreationTime(header.getEffectiveTime());
+		}
+		final Author author = createAuthor(header);
+		if (author != null) {
+			metaData.addAuthor(author);
+		}
+		if (header.getTitle() != null) {
+			metaData.setTitle(header.getTitle());
+		}
 		// UUID des Metadaten-Records des Doku- ments (XDS DocumentEntry)
 		// metaData.setEntryUUID(UUID.randomUUID().toString());
 		metaData.setFormatCode(new Code("CDAR2/IHE 1.0",
@@ -356,7 +1635,8 @@ public class XDSConnector {
 		metaData.setHealthcareFacilityTypeCode(
 				new Code("Outpatient", "urn:uuid:f33fb8ac-18af-42cc-ae0e-ed0b0bdb91e1",
 						"Connect-a-thon healthcareFacilityTypeCodes"));
-		metaData.setCodedLanguage(LanguageCode.GERMAN_CODE);
+		metaData.setCodedLanguage((header.getLanguageCode() != null) ? header.getLanguageCode()
+				: LanguageCode.GERMAN_CODE);
 		metaData.setMimeType("text/xml");
 		// Patienten-ID in der XDS Affinity Domain
 		metaData.setDestinationPatientId(patientId);
@@ -367,14 +1647,21 @@ public class XDSConnector {
 				new Code("General Medicine", "urn:uuid:cccf5598-8b07-4b77-a05e-ae952c785ead",
 						"Connect-a-thon practiceSettingCodes"));
 		// Patienten ID im Informationssystem des GDA. z.B.: im KIS des KH
-		// TODO: optional to extract from each CDA but not necarry for test
-		// cases
-		metaData.setSourcePatientId(new Identificator("1.2.3.4", "2342134localid"));
+		if (!header.getPatientIds().isEmpty()) {
+			metaData.setSourcePatientId(header.getPatientIds().get(0));
+		} else {
+			metaData.setSourcePatientId(new Identificator("1.2.3.4", "2342134localid"));
+		}
 		// Dokumententyp (Unterklasse) codierter Wert, z.B.: 11490-0,
 		// „Entlassungsbrief aus statio- närer Behandlung (Arzt)“
-		// TODO: change name?
-		metaData.setTypeCode(new Code("Outpatient", "urn:uuid:f33fb8ac-18af-42cc-ae0e-ed0b0bdb91e1",
-				"Connect-a-thon healthcareFacilityTypeCodes"));
+		if (header.getTypeCode() != null) {
+			metaData.setTypeCode(new Code(header.getTypeCodeSystem(), header.getTypeCode(),
+					header.getTypeDisplayName()));
+		} else {
+			metaData.setTypeCode(new Code("Outpatient",
+					"urn:uuid:f33fb8ac-18af-42cc-ae0e-ed0b0bdb91e1",
+					"Connect-a-thon healthcareFacilityTypeCodes"));
+		}
 
 		// Global eindeutige ID des Dokuments
 		metaData.setUniqueId(documentId);
@@ -387,37 +1674,128 @@ public class XDSConnector {
 
 	}
 
+	private static Author createAuthor(CdaHeader header) {
+		Author author = null;
+		if ((header.getAuthorGiven() != null) || (header.getAuthorFamily() != null)) {
+			author = new Author(new Name(header.getAuthorGiven(), header.getAuthorFamily(),
+					header.getAuthorPrefix()));
+		}
+		if (header.getAuthorId() != null) {
+			if (author == null) {
+				author = new Author();
+			}
+			author.addId(header.getAuthorId());
+		}
+		return author;
+	}
+
+	private static void countRetrieved(PatientDownloadResult result,
+			Map<String, StoreResult> retrieved) {
+		for (final Map.Entry<String, StoreResult> stored : retrieved.entrySet()) {
+			result.add(DocumentResult.of(stored.getKey(), stored.getValue()));
+		}
+	}
+
+	/**
+	 * Sends a stored query to the registry through the resilient transport.
+	 *
+	 * @param client
+	 *            the consumer client of the calling thread
+	 * @param registryUri
+	 *            the registry endpoint
+	 * @param query
+	 *            the stored query
+	 * @param referencesOnly
+	 *            true to query object references only
+	 * @return the response
+	 * @throws InterruptedException
+	 *             if the thread was interrupted while waiting for the registry
+	 * @throws XdsTransportException
+	 *             if the registry did not answer
+	 */
+	private XDSQueryResponseType queryRegistry(PooledClient client, URI registryUri,
+			StoredQueryInterface query, boolean referencesOnly) throws InterruptedException {
+		// stored queries are read-only and therefore retried
+		if (referencesOnly) {
+			return transport.execute(client, registryUri, XdsMetrics.Transaction.ITI18_REFERENCES,
+					true, conCom -> conCom.queryDocumentsReferencesOnly(query));
+		}
+		return transport.execute(client, registryUri, XdsMetrics.Transaction.ITI18_METADATA,
+				true, conCom -> conCom.queryDocuments(query));
+	}
+
 	/**
 	 * Retrieve and store.
 	 *
+	 * @param client
+	 *            the consumer client of the calling thread
 	 * @param affDomain
 	 *            the aff domain
 	 * @param docEntry
 	 *            the doc entry
+	 * @return the result of the store operation, null if the document could
+	 *         not be stored
+	 * @throws InterruptedException
+	 *             if the thread was interrupted while waiting for the
+	 *             repository
 	 */
-	private void storeDocument(AffinityDomain affDomain, DocumentEntryType docEntry) {
+	private StoreResult storeDocument(PooledClient client, AffinityDomain affDomain,
+			DocumentEntryType docEntry) throws InterruptedException {
+		return storeDocument(client, affDomain, docEntry.getPatientId().getIdNumber(),
+				docEntry.getRepositoryUniqueId(), docEntry.getUniqueId());
+	}
 
-		final DocumentRequest documentRequest = new DocumentRequest(
-				docEntry.getRepositoryUniqueId(), affDomain.getRepositoryDestination().getUri(),
-				docEntry.getUniqueId());
-		final XDSRetrieveResponseType rrt = conCom.retrieveDocument(documentRequest);
+	/**
+	 * Retrieve and store.
+	 *
+	 * @param client
+	 *            the consumer client of the calling thread
+	 * @param affDomain
+	 *            the aff domain
+	 * @param patientID
+	 *            the patient id the document is stored for
+	 * @param repositoryUniqueId
+	 *            the repository holding the document
+	 * @param documentID
+	 *            the uniqueId of the document
+	 * @return the result of the store operation, null if the document could
+	 *         not be stored
+	 * @throws InterruptedException
+	 *             if the thread was interrupted while waiting for the
+	 *             repository
+	 */
+	private StoreResult storeDocument(PooledClient client, AffinityDomain affDomain,
+			String patientID, String repositoryUniqueId, String documentID)
+			throws InterruptedException {
+
+		final URI repositoryUri = affDomain.getRepositoryDestination().getUri();
+		final DocumentRequest documentRequest = new DocumentRequest(repositoryUniqueId,
+				repositoryUri, documentID);
+		final XDSRetrieveResponseType rrt = transport.execute(client, repositoryUri,
+				XdsMetrics.Transaction.ITI43_RETRIEVE, true,
+				conCom -> conCom.retrieveDocument(documentRequest));
+		if ((rrt.getAttachments() == null) || rrt.getAttachments().isEmpty()) {
+			System.out.print("DOCUMENT NOT RETURNED: " + documentID + " ("
+					+ rrt.getStatus().getName() + ")\n");
+			return null;
+		}
 		final XDSDocument document = rrt.getAttachments().get(0);
-		final InputStream docIS = document.getStream();
-		String patientID = docEntry.getPatientId().getIdNumber();
-		String documentID = docEntry.getUniqueId();
 
-		File file = new File(
-				"C:\\Users\\Raik Müller\\Documents\\GitHub\\RecruitmentTool_Backend\\Django_Server\\recruitmenttool\\cda_files\\tempDownload\\"
-						+ patientID + "\\" + patientID + "_" + documentID + ".xml");
-		try {
-			FileUtils.copyInputStreamToFile(docIS, file);
-			System.out.println(
-					"Document saved: C:\\Users\\Raik Müller\\Documents\\GitHub\\RecruitmentTool_Backend\\Django_Server\\recruitmenttool\\cda_files\\tempDownload\\"
-							+ patientID + "\\" + patientID + "_" + documentID + ".xml");
+		final long storeStart = System.nanoTime();
+		try (InputStream docIS = document.getStream()) {
+			final StoreResult stored = documentStore.store(patientID, documentID, docIS);
+			metrics.record(XdsMetrics.Transaction.STORE, stored.getNanos(),
+					XdsMetrics.OUTCOME_OK, stored.getBytes());
+			metrics.addBytes(XdsMetrics.Transaction.ITI43_RETRIEVE, stored.getBytes());
+			DebugLog.log(() -> "Document saved: " + stored);
+			return stored;
 
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
+			metrics.record(XdsMetrics.Transaction.STORE, System.nanoTime() - storeStart,
+					XdsMetrics.OUTCOME_ERROR, 0);
+			System.out.print("DOCUMENT CANNOT BE STORED: " + documentID + "\n");
 			e.printStackTrace();
+			return null;
 		}
 
 	}
@@ -487,41 +1865,255 @@ public class XDSConnector {
 	 * @throws Exception
 	 */
 	public void uploadDocument(String oid, String id, String documentId, String fileTempPath) {
+		uploadDocument(null, oid, id, documentId, fileTempPath);
+	}
+
+	/**
+	 * <div class="en">Submits a CDA document to the given affinity
+	 * domain.</div>
+	 *
+	 * @param domainName
+	 *            the name of the configured affinity domain, null for the
+	 *            default domain
+	 * @param oid
+	 *            the assigning authority of the patient id
+	 * @param id
+	 *            the patient id
+	 * @param documentId
+	 *            the uniqueId of the document
+	 * @param fileTempPath
+	 *            the CDA document
+	 */
+	public void uploadDocument(String domainName, String oid, String id, String documentId,
+			String fileTempPath) {
 
 		Identificator patientId = new Identificator(oid, id);
 
-		Destination repo = null;
 		try {
-			repo = getDestination(ORGANIZATIONAL_ID, "http://localhost:9091/xds-iti41", null, null,
-					null);
+			final Map<String, byte[]> documents = new LinkedHashMap<String, byte[]>();
+			documents.put(documentId, readDocCda(fileTempPath));
+			final XDSResponseType response1 = submitDocuments(domain(domainName), patientId,
+					documents);
+			printXdsResponse(response1);
+
 		} catch (final URISyntaxException e) {
 			System.out.print("SOURCE URI CANNOT BE SET: \n" + e.getMessage() + "\n\n");
+		} catch (final Exception e) {
+			System.out.print(e.getMessage() + "\n\n");
 		}
-		try {
-			// Create unsecure destination
-			final AffinityDomain affinityDomain = new AffinityDomain(null, null, repo);
 
-			final ConvenienceCommunication conCom1 = new ConvenienceCommunication(affinityDomain);
+	}
+
+	/**
+	 * <div class="en">Uploads all CDA documents of a directory. The directory
+	 * is either the root of a file system document store, or holds files named
+	 * <code>patientId_documentId.xml</code> with ids that contain no '_'.</div>
+	 *
+	 * @param directory
+	 *            the directory holding the CDA documents
+	 * @param oid
+	 *            the assigning authority of the patient ids
+	 * @param documentsPerSubmission
+	 *            the maximum number of documents per submission set
+	 * @param parallelSubmissions
+	 *            the number of concurrent submissions
+	 * @return one result per document
+	 * @throws IOException
+	 *             if the directory cannot be listed
+	 */
+	public List<UploadResult> uploadDirectory(String directory, String oid,
+			int documentsPerSubmission, int parallelSubmissions) throws IOException {
+		return new BulkUploader(this, documentsPerSubmission, parallelSubmissions)
+				.upload(BulkUploader.listDirectory(Paths.get(directory), oid));
+	}
+
+	/**
+	 * <div class="en">Uploads the CDA documents listed in a manifest. Each line
+	 * of the manifest holds <code>file;patientOid;patientId;documentId</code>,
+	 * relative files are resolved against the directory of the manifest.</div>
+	 *
+	 * @param manifest
+	 *            the path of the manifest
+	 * @param documentsPerSubmission
+	 *            the maximum number of documents per submission set
+	 * @param parallelSubmissions
+	 *            the number of concurrent submissions
+	 * @return one result per document
+	 * @throws IOException
+	 *             if the manifest cannot be read
+	 */
+	public List<UploadResult> uploadManifest(String manifest, int documentsPerSubmission,
+			int parallelSubmissions) throws IOException {
+		return new BulkUploader(this, documentsPerSubmission, parallelSubmissions)
+				.upload(BulkUploader.readManifest(Paths.get(manifest)));
+	}
+
+	/**
+	 * <div class="en">Queues the upload of a CDA document. The upload is
+	 * written to the upload journal before this method returns and survives a
+	 * restart of the connector; it is skipped if the registry already has the
+	 * document.</div>
+	 *
+	 * @param oid
+	 *            the assigning authority of the patient id
+	 * @param id
+	 *            the patient id
+	 * @param documentId
+	 *            the uniqueId of the document
+	 * @param file
+	 *            the path of the CDA document
+	 * @return true if queued, false if the document is already queued
+	 * @throws IOException
+	 *             if the upload journal cannot be written
+	 */
+	public boolean enqueueUpload(String oid, String id, String documentId, String file)
+			throws IOException {
+		return getUploadQueue().enqueue(null, Collections.singletonList(
+				new BulkUploader.Item(Paths.get(file), new Identificator(oid, id), documentId))) > 0;
+	}
+
+	/**
+	 * <div class="en">Queues the uploads of all CDA documents of a directory,
+	 * named as for uploadDirectory.</div>
+	 *
+	 * @param directory
+	 *            the directory holding the CDA documents
+	 * @param oid
+	 *            the assigning authority of the patient ids
+	 * @return the number of queued uploads
+	 * @throws IOException
+	 *             if the directory cannot be listed or the journal cannot be
+	 *             written
+	 */
+	public int enqueueUploadDirectory(String directory, String oid) throws IOException {
+		return getUploadQueue().enqueue(null,
+				BulkUploader.listDirectory(Paths.get(directory), oid));
+	}
+
+	/**
+	 * <div class="en">Queues the uploads of the CDA documents listed in a
+	 * manifest, written as for uploadManifest.</div>
+	 *
+	 * @param manifest
+	 *            the path of the manifest
+	 * @return the number of queued uploads
+	 * @throws IOException
+	 *             if the manifest cannot be read or the journal cannot be
+	 *             written
+	 */
+	public int enqueueUploadManifest(String manifest) throws IOException {
+		return getUploadQueue().enqueue(null, BulkUploader.readManifest(Paths.get(manifest)));
+	}
+
+	/**
+	 * <div class="en">Waits until all queued uploads are finished.</div>
+	 *
+	 * @param timeoutMillis
+	 *            the maximum time to wait
+	 * @return true if no upload is pending
+	 * @throws IOException
+	 *             if the upload journal cannot be opened
+	 * @throws InterruptedException
+	 *             if the thread was interrupted while waiting
+	 */
+	public boolean awaitUploads(long timeoutMillis) throws IOException, InterruptedException {
+		return getUploadQueue().awaitDrained(timeoutMillis);
+	}
+
+	/**
+	 * Gets the durable upload queue, opening it on first use.
+	 *
+	 * @return the upload queue
+	 * @throws IOException
+	 *             if the upload journal cannot be opened
+	 */
+	public UploadQueue getUploadQueue() throws IOException {
+		UploadQueue queue = uploadQueue;
+		if (queue == null) {
+			synchronized (this) {
+				queue = uploadQueue;
+				if (queue == null) {
+					queue = new UploadQueue(this, uploadDirectory,
+							Integer.getInteger(UploadQueue.PROPERTY_THREADS, 4),
+							Integer.getInteger(UploadQueue.PROPERTY_MAX_ATTEMPTS, 5),
+							Long.getLong(UploadQueue.PROPERTY_RETRY_DELAY, 5 * 1000L),
+							Long.getLong(UploadQueue.PROPERTY_SYNC_INTERVAL, 200L));
+					uploadQueue = queue;
+				}
+			}
+		}
+		return queue;
+	}
+
+	/**
+	 * Submits the CDA documents of a patient in one submission set.
+	 *
+	 * @param patientId
+	 *            the patient id
+	 * @param documents
+	 *            the content of the documents by document uniqueId
+	 * @return the response of the repository
+	 * @throws Exception
+	 *             if the documents cannot be added or submitted
+	 */
+	XDSResponseType submitDocuments(Identificator patientId, Map<String, byte[]> documents)
+			throws Exception {
+		return submitDocuments(domain(null), patientId, documents);
+	}
 
-			// Sending CDA Document to Repository (NON-TLS)
-			final DocumentMetadata metaData1 = conCom1.addDocument(DocumentDescriptor.CDA_R2,
-					getDocCda(fileTempPath), getDocCda(fileTempPath));
-			setMetaDatForCDA(metaData1, patientId, documentId);
+	XDSResponseType submitDocuments(DomainSettings settings, Identificator patientId,
+			Map<String, byte[]> documents) throws Exception {
+		PooledClient client = null;
+		try {
+			client = clientRegistry.borrow(settings, ClientRole.SOURCE);
+			final ConvenienceCommunication conCom1 = client.getCommunication();
+
+			// Sending CDA Documents to Repository (NON-TLS), the metadata is
+			// taken from the CDA header instead of a parse of the whole document
+			for (final Map.Entry<String, byte[]> document : documents.entrySet()) {
+				final CdaHeader header = extractHeader(document.getKey(), document.getValue());
+				final DocumentMetadata metaData1 = conCom1.addDocument(DocumentDescriptor.CDA_R2,
+						new ByteArrayInputStream(document.getValue()));
+				setMetaDatForCDA(metaData1, patientId, document.getKey(), header);
+			}
 
-			System.out.print("Sending CDA Document...");
+			System.out.print("Sending " + documents.size() + " CDA Documents...");
 
 			SubmissionSetType subset = conCom1.generateDefaultSubmissionSetAttributes();
 			// TODO: needed?
 			subset.setContentTypeCode(XdsMetadataUtil.convertEhcCodeToCodedMetadataType(
 					new Code("2.16.840.1.113883.6.96", "35971002", "Ambulatory care site")));
 
-			final XDSResponseType response1 = conCom1.submit();
-			printXdsResponse(response1);
-
-		} catch (final Exception e) {
-			System.out.print(e.getMessage() + "\n\n");
+			long bytes = 0;
+			for (final byte[] content : documents.values()) {
+				bytes += content.length;
+			}
+			// a submission is not idempotent and therefore never retried
+			final XDSResponseType response = transport.execute(client,
+					client.getAffinityDomain().getRepositoryDestination().getUri(),
+					XdsMetrics.Transaction.ITI41_SUBMIT, false, conCom -> conCom.submit());
+			metrics.addBytes(XdsMetrics.Transaction.ITI41_SUBMIT, bytes);
+			// the registry may know the documents now; the submitted metadata
+			// lacks the attributes the repository assigns, so the next lookup
+			// caches the entry the registry returns
+			final String patientKey = patientKey(settings, patientId);
+			for (final String documentId : documents.keySet()) {
+				metadataCache.forget(patientKey, documentId);
+			}
+			return response;
+		} finally {
+			clientRegistry.release(client);
 		}
+	}
 
+	private static CdaHeader extractHeader(String documentId, byte[] content) {
+		try {
+			return CdaHeaderExtractor.extract(new ByteArrayInputStream(content));
+		} catch (final XMLStreamException e) {
+			System.out.println("CDA header of " + documentId + " cannot be read: "
+					+ e.getMessage());
+			return new CdaHeader();
+		}
 	}
 
 	/**
@@ -530,42 +2122,160 @@ public class XDSConnector {
 	 *
 	 */
 	public boolean validateNewDocument(String oid, String id, String documentId) {
+		return validateNewDocument(null, oid, id, documentId);
+	}
+
+	/**
+	 * <div class="en">check if document doesn't already exist for this patient
+	 * in the given affinity domain</div>
+	 *
+	 * @param domainName
+	 *            the name of the configured affinity domain, null for the
+	 *            default domain
+	 */
+	public boolean validateNewDocument(String domainName, String oid, String id,
+			String documentId) {
 		Identificator patientId = new Identificator(oid, id);
-		AffinityDomain affDomain = null;
-		outStr = new StringBuffer();
-		XDSQueryResponseType documentEntryResponse;
+		final boolean registered;
 		try {
-			Destination registryUnsecure = new Destination(oid,
-					new URI("http://localhost:9091/xds-iti18"));
+			registered = isDocumentRegistered(domain(domainName), patientId, documentId, true);
+		} catch (final URISyntaxException e) {
+			System.out.print("SOURCE URI CANNOT BE SET: \n" + e.getMessage() + "\n\n");
+			return false;
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new XdsTransportException("interrupted", e);
+		}
+		if (registered) {
+			System.out.println("Document schon vorhanden!");
+			return true;
+		}
+		System.out.println("Document noch nicht vorhanden!");
+		return false;
+	}
+
+	/**
+	 * Checks if the registry of the affinity domain has a document of the
+	 * patient with the given uniqueId. The local store is not consulted: it
+	 * is neither keyed by domain nor by assigning authority. A failed query
+	 * raises an exception instead of answering false, so the answer can
+	 * decide whether a document is submitted.
+	 *
+	 * @param useCache
+	 *            false to ask the registry even if the entries of the patient
+	 *            are cached
+	 * @return true if the document is registered
+	 */
+	boolean isDocumentRegistered(DomainSettings settings, Identificator patientId,
+			String documentId, boolean useCache) throws URISyntaxException, InterruptedException {
+		PooledClient client = null;
+		try {
+			client = clientRegistry.borrow(settings, ClientRole.CONSUMER);
+			return findDocument(settings, client, patientId, documentId, useCache) != null;
+		} finally {
+			clientRegistry.release(client);
+		}
+	}
+
+	/**
+	 * Gets the document entry with the given uniqueId, whatever its
+	 * availability status; the callers decide which status they accept. The
+	 * entry, or the knowledge that there is none, is taken from the cache if
+	 * present. Otherwise a GetDocuments query for the single uniqueId is sent,
+	 * so the registry response does not grow with the number of documents of
+	 * the patient, and its answer is cached.
+	 *
+	 * @param client
+	 *            the consumer client
+	 * @param patientId
+	 *            the patient id
+	 * @param documentId
+	 *            the uniqueId of the document
+	 * @param useCache
+	 *            false to query the registry even if the patient is cached
+	 * @return the document entry, null if the registry has no document with
+	 *         this uniqueId for the patient
+	 */
+	private DocumentEntryType findDocument(DomainSettings settings, PooledClient client,
+			Identificator patientId, String documentId, boolean useCache)
+			throws InterruptedException {
+		return metadataCache.lookup(patientKey(settings, patientId), documentId, useCache, id -> {
+			final GetDocumentsQuery gdq = new GetDocumentsQuery(new String[] { id }, false);
+			final XDSQueryResponseType response = queryRegistry(client,
+					client.getAffinityDomain().getRegistryDestination().getUri(), gdq, false);
+			if (response.getDocumentEntryResponses() == null) {
+				return null;
+			}
+			final DocumentEntryType entry = indexByUniqueId(response.getDocumentEntryResponses())
+					.get(id);
+			return ((entry != null) && isOfPatient(entry, patientId)) ? entry : null;
+		});
+	}
 
-			Destination repositoryUnsecure = new Destination(oid,
-					new URI("http://localhost:9091/xds-iti43"));
+	private static boolean isOfPatient(DocumentEntryType entry, Identificator patientId) {
+		return (entry.getPatientId() != null)
+				&& patientId.getExtension().equals(entry.getPatientId().getIdNumber())
+				&& patientId.getRoot()
+						.equals(entry.getPatientId().getAssigningAuthorityUniversalId());
+	}
 
-			affDomain = new AffinityDomain(null, registryUnsecure, repositoryUnsecure);
+	/**
+	 * Gets the number of lookups answered by the registry metadata cache.
+	 *
+	 * @return the number of cache hits
+	 */
+	public long getMetadataCacheHits() {
+		return metadataCache.getHits();
+	}
 
-		} catch (final URISyntaxException e) {
-			System.out.print("SOURCE URI CANNOT BE SET: \n" + e.getMessage() + "\n\n");
+	/**
+	 * Gets the number of lookups that had to query the registry.
+	 *
+	 * @return the number of cache misses
+	 */
+	public long getMetadataCacheMisses() {
+		return metadataCache.getMisses();
+	}
+
+	/**
+	 * Drops all cached registry metadata.
+	 */
+	public void clearMetadataCache() {
+		metadataCache.clear();
+	}
+
+	private static Map<String, DocumentEntryType> indexByUniqueId(
+			List<DocumentEntryResponseType> responses) {
+		final Map<String, DocumentEntryType> entries = new LinkedHashMap<String, DocumentEntryType>(
+				Math.max(16, responses.size() * 2));
+		for (final DocumentEntryResponseType response : responses) {
+			final DocumentEntryType entry = response.getDocumentEntry();
+			entries.put(entry.getUniqueId(), entry);
 		}
+		return entries;
+	}
 
-		conCom = new ConvenienceCommunication(affDomain);
-		final FindDocumentsQuery fdq = new FindDocumentsQuery(patientId,
-				AvailabilityStatusType.APPROVED_LITERAL);
-		documentEntryResponse = conCom.queryDocuments(fdq);
-		List<DocumentEntryResponseType> responses = documentEntryResponse
-				.getDocumentEntryResponses();
-		if (responses.size() > 0) {
-			for (DocumentEntryResponseType e : responses) {
-				DocumentEntryType _entry = e.getDocumentEntry();
-				System.out.println("Compare: " + _entry.getUniqueId() + " == " + documentId);
-				if (_entry.getUniqueId().equals(documentId)) {
-					System.out.println("Document schon vorhanden!");
-					return true;
-				}
+	private static String patientKey(DomainSettings settings, Identificator patientId) {
+		return settings.getName() + "|" + patientId.getRoot() + "|"
+				+ patientId.getExtension();
+	}
 
+	/**
+	 * <div class="en">Creates the pooled communication clients of the affinity
+	 * domain ahead of the first call.</div>
+	 *
+	 * @param clientsPerRole
+	 *            the number of clients to create per role
+	 */
+	public void warmUp(int clientsPerRole) {
+		try {
+			for (final DomainSettings settings : configuration.getDomains()) {
+				clientRegistry.warmUp(settings, ClientRole.CONSUMER, clientsPerRole);
+				clientRegistry.warmUp(settings, ClientRole.SOURCE, clientsPerRole);
 			}
+		} catch (final URISyntaxException e) {
+			System.out.print("SOURCE URI CANNOT BE SET: \n" + e.getMessage() + "\n\n");
 		}
-		System.out.println("Document noch nicht vorhanden!");
-		return false;
 	}
 
 }
@@ -0,0 +1,431 @@
+/*
+ * The authorship of this project and accompanying materials is held by medshare GmbH, Switzerland.
+ * All rights reserved. https://medshare.net
+ *
+ * Source code, documentation and other resources have been contributed by various people.
+ * Project Team: https://gitlab.com/ehealth-connector/api/wikis/Team/
+ * For exact developer information, please refer to the commit history of the forge.
+ *
+ * This code is made available under the terms of the Eclipse Public License v1.0.
+ *
+ * Accompanying materials are made available under the terms of the Creative Commons
+ * Attribution-ShareAlike 4.0 License.
+ *
+ * This line is intended for UTF-8 encoding checks, do not modify/delete: Ã¤Ã¶Ã¼Ã©Ã¨
+ *
+ */
+package connector;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.openhealthtools.ihe.xds.response.XDSStatusType;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * <div class="en">Latency histograms, outcome counters, transferred bytes and
+ * in-flight gauges of the XDS transactions and the store step. Exposed via
+ * JMX and an optional local HTTP endpoint serving a plain text scrape. A
+ * correlation id set by the py4j caller is attached to the trace of slow
+ * calls.</div>
+ */
+public class XdsMetrics implements XdsMetricsMXBean {
+
+	/** The measured transactions. */
+	public enum Transaction {
+
+		/** ITI-18 query returning references only. */
+		ITI18_REFERENCES("iti18_references"),
+
+		/** ITI-18 query returning document metadata. */
+		ITI18_METADATA("iti18_metadata"),
+
+		/** ITI-43 retrieve of one or more documents. */
+		ITI43_RETRIEVE("iti43_retrieve"),
+
+		/** ITI-41 submission. */
+		ITI41_SUBMIT("iti41_submit"),
+
+		/** Write of a document to the local store. */
+		STORE("store");
+
+		/** The name used in the scrape and JMX keys. */
+		private final String metricName;
+
+		Transaction(String metricName) {
+			this.metricName = metricName;
+		}
+
+		public String getMetricName() {
+			return metricName;
+		}
+	}
+
+	/** The metrics of a single transaction. */
+	private static class TransactionMetrics {
+
+		/** The latencies. */
+		final LatencyHistogram latency = new LatencyHistogram();
+
+		/** The calls in progress. */
+		final AtomicInteger inFlight = new AtomicInteger();
+
+		/** The bytes transferred. */
+		final LongAdder bytes = new LongAdder();
+
+		/** The calls per outcome. */
+		final ConcurrentMap<String, LongAdder> outcomes = new ConcurrentHashMap<String, LongAdder>();
+	}
+
+	/** The outcome of a call that threw an exception. */
+	public static final String OUTCOME_ERROR = "ERROR";
+
+	/** The outcome of a call that returned no response. */
+	public static final String OUTCOME_NO_RESPONSE = "NO_RESPONSE";
+
+	/** The outcome of a successful store step. */
+	public static final String OUTCOME_OK = "OK";
+
+	/** The system property holding the port of the scrape endpoint. */
+	public static final String PROPERTY_PORT = "connector.metrics.port";
+
+	/** The system property holding the threshold for slow call traces. */
+	public static final String PROPERTY_SLOW_MILLIS = "connector.metrics.slowMillis";
+
+	/** The correlation id of the current caller. */
+	private static final ThreadLocal<String> CORRELATION_ID = new ThreadLocal<String>();
+
+	public static String getCorrelationId() {
+		return CORRELATION_ID.get();
+	}
+
+	/**
+	 * Sets the correlation id of the calls made by the current thread.
+	 *
+	 * @param correlationId
+	 *            the correlation id, null to clear it
+	 */
+	public static void setCorrelationId(String correlationId) {
+		if (correlationId == null) {
+			CORRELATION_ID.remove();
+		} else {
+			CORRELATION_ID.set(correlationId);
+		}
+	}
+
+	/** The metrics per transaction, by ordinal. */
+	private final TransactionMetrics[] transactions = new TransactionMetrics[Transaction
+			.values().length];
+
+	/** Calls taking longer are traced, in nanoseconds. */
+	private final long slowNanos;
+
+	/** The scrape endpoint, null if not started. */
+	private HttpServer httpServer;
+
+	/** The JVM uptime when the gateway accepted calls, -1 before. */
+	private volatile long gatewayReadyMillis = -1;
+
+	/** The JVM uptime at the end of the first successful call, -1 before. */
+	private final AtomicLong firstSuccessMillis = new AtomicLong(-1);
+
+	/**
+	 * Instantiates new metrics.
+	 *
+	 * @param slowMillis
+	 *            calls taking longer are printed with their correlation id
+	 */
+	public XdsMetrics(long slowMillis) {
+		this.slowNanos = slowMillis * 1000000L;
+		for (int i = 0; i < transactions.length; i++) {
+			transactions[i] = new TransactionMetrics();
+		}
+	}
+
+	/**
+	 * Marks the start of a call.
+	 *
+	 * @param transaction
+	 *            the transaction
+	 * @return the start time to pass to end
+	 */
+	public long begin(Transaction transaction) {
+		transactions[transaction.ordinal()].inFlight.incrementAndGet();
+		return System.nanoTime();
+	}
+
+	/**
+	 * Marks the end of a call started with begin.
+	 *
+	 * @param transaction
+	 *            the transaction
+	 * @param start
+	 *            the value returned by begin
+	 * @param status
+	 *            the status of the response, null if there is no response
+	 * @param bytes
+	 *            the bytes transferred
+	 */
+	public void end(Transaction transaction, long start, XDSStatusType status, long bytes) {
+		end(transaction, start, status != null ? status.getName() : OUTCOME_NO_RESPONSE, bytes);
+	}
+
+	/**
+	 * Marks the end of a call started with begin.
+	 *
+	 * @param transaction
+	 *            the transaction
+	 * @param start
+	 *            the value returned by begin
+	 * @param outcome
+	 *            the outcome of the call
+	 * @param bytes
+	 *            the bytes transferred
+	 */
+	public void end(Transaction transaction, long start, String outcome, long bytes) {
+		transactions[transaction.ordinal()].inFlight.decrementAndGet();
+		record(transaction, System.nanoTime() - start, outcome, bytes);
+	}
+
+	/**
+	 * Adds bytes transferred by a call that already ended, e.g. the documents
+	 * of a retrieve counted once they are stored.
+	 *
+	 * @param transaction
+	 *            the transaction
+	 * @param bytes
+	 *            the bytes transferred
+	 */
+	public void addBytes(Transaction transaction, long bytes) {
+		transactions[transaction.ordinal()].bytes.add(bytes);
+	}
+
+	@Override
+	public Map<String, Long> getBytes() {
+		final Map<String, Long> bytes = new TreeMap<String, Long>();
+		for (final Transaction transaction : Transaction.values()) {
+			bytes.put(transaction.getMetricName(),
+					transactions[transaction.ordinal()].bytes.sum());
+		}
+		return bytes;
+	}
+
+	@Override
+	public Map<String, Long> getCounters() {
+		final Map<String, Long> counters = new TreeMap<String, Long>();
+		for (final Transaction transaction : Transaction.values()) {
+			for (final Map.Entry<String, LongAdder> outcome : transactions[transaction
+					.ordinal()].outcomes.entrySet()) {
+				counters.put(transaction.getMetricName() + "." + outcome.getKey(),
+						outcome.getValue().sum());
+			}
+		}
+		return counters;
+	}
+
+	@Override
+	public Map<String, Long> getInFlight() {
+		final Map<String, Long> inFlight = new TreeMap<String, Long>();
+		for (final Transaction transaction : Transaction.values()) {
+			inFlight.put(transaction.getMetricName(),
+					(long) transactions[transaction.ordinal()].inFlight.get());
+		}
+		return inFlight;
+	}
+
+	/**
+	 * Gets the latency histogram of a transaction.
+	 *
+	 * @param transaction
+	 *            the transaction
+	 * @return the histogram
+	 */
+	public LatencyHistogram getLatency(Transaction transaction) {
+		return transactions[transaction.ordinal()].latency;
+	}
+
+	@Override
+	public Map<String, Double> getLatencyMillis() {
+		final Map<String, Double> latencies = new TreeMap<String, Double>();
+		for (final Transaction transaction : Transaction.values()) {
+			final LatencyHistogram latency = getLatency(transaction);
+			final String name = transaction.getMetricName();
+			latencies.put(name + ".p50", latency.getPercentileMicros(50) / 1000.0);
+			latencies.put(name + ".p90", latency.getPercentileMicros(90) / 1000.0);
+			latencies.put(name + ".p99", latency.getPercentileMicros(99) / 1000.0);
+			latencies.put(name + ".max", latency.getMaxMicros() / 1000.0);
+		}
+		return latencies;
+	}
+
+	@Override
+	public Map<String, Long> getStartupMillis() {
+		final Map<String, Long> startup = new TreeMap<String, Long>();
+		startup.put("gateway_ready", Long.valueOf(gatewayReadyMillis));
+		startup.put("first_success", Long.valueOf(firstSuccessMillis.get()));
+		return startup;
+	}
+
+	@Override
+	public String getText() {
+		final StringBuilder text = new StringBuilder(4096);
+		for (final Map.Entry<String, Long> phase : getStartupMillis().entrySet()) {
+			if (phase.getValue().longValue() >= 0) {
+				text.append("xds_startup_seconds{phase=\"").append(phase.getKey())
+						.append("\"} ").append(phase.getValue().longValue() / 1000.0).append('\n');
+			}
+		}
+		for (final Transaction transaction : Transaction.values()) {
+			final TransactionMetrics metrics = transactions[transaction.ordinal()];
+			final String name = "xds_" + transaction.getMetricName();
+			for (final Map.Entry<String, LongAdder> outcome : new TreeMap<String, LongAdder>(
+					metrics.outcomes).entrySet()) {
+				text.append(name).append("_total{outcome=\"").append(outcome.getKey())
+						.append("\"} ").append(outcome.getValue().sum()).append('\n');
+			}
+			text.append(name).append("_in_flight ").append(metrics.inFlight.get()).append('\n');
+			text.append(name).append("_bytes_total ").append(metrics.bytes.sum()).append('\n');
+			final LatencyHistogram latency = metrics.latency;
+			for (final double quantile : new double[] { 0.5, 0.9, 0.99, 0.999 }) {
+				text.append(name).append("_seconds{quantile=\"").append(quantile).append("\"} ")
+						.append(latency.getPercentileMicros(quantile * 100) / 1000000.0)
+						.append('\n');
+			}
+			text.append(name).append("_seconds_max ").append(latency.getMaxMicros() / 1000000.0)
+					.append('\n');
+			text.append(name).append("_seconds_count ").append(latency.getCount()).append('\n');
+		}
+		return text.toString();
+	}
+
+	/**
+	 * Marks the gateway as ready for calls and prints the time since the JVM
+	 * start.
+	 */
+	public void markGatewayReady() {
+		gatewayReadyMillis = ManagementFactory.getRuntimeMXBean().getUptime();
+		System.out.println("Gateway ready " + gatewayReadyMillis + " ms after JVM start");
+	}
+
+	/**
+	 * Records a call measured by the caller.
+	 *
+	 * @param transaction
+	 *            the transaction
+	 * @param nanos
+	 *            the duration in nanoseconds
+	 * @param outcome
+	 *            the outcome of the call
+	 * @param bytes
+	 *            the bytes transferred
+	 */
+	public void record(Transaction transaction, long nanos, String outcome, long bytes) {
+		final TransactionMetrics metrics = transactions[transaction.ordinal()];
+		metrics.latency.record(nanos);
+		metrics.bytes.add(bytes);
+		LongAdder counter = metrics.outcomes.get(outcome);
+		if (counter == null) {
+			final LongAdder created = new LongAdder();
+			counter = metrics.outcomes.putIfAbsent(outcome, created);
+			if (counter == null) {
+				counter = created;
+			}
+		}
+		counter.increment();
+		if ((firstSuccessMillis.get() < 0)
+				&& (OUTCOME_OK.equals(outcome)
+						|| XDSStatusType.SUCCESS_LITERAL.getName().equals(outcome))
+				&& firstSuccessMillis.compareAndSet(-1,
+						ManagementFactory.getRuntimeMXBean().getUptime())) {
+			System.out.println("First successful call (" + transaction.getMetricName()
+					+ ") " + firstSuccessMillis.get() + " ms after JVM start");
+		}
+		if (nanos > slowNanos) {
+			System.out.println("SLOW " + transaction.getMetricName() + ": "
+					+ (nanos / 1000000L) + " ms, outcome=" + outcome + ", correlationId="
+					+ CORRELATION_ID.get());
+		}
+	}
+
+	/**
+	 * Registers the metrics with the platform MBean server.
+	 *
+	 * @param domainName
+	 *            the affinity domain, part of the object name
+	 */
+	public void registerMBean(String domainName) {
+		try {
+			final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			final ObjectName name = new ObjectName(
+					"connector:type=XdsMetrics,domain=" + ObjectName.quote(domainName));
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(this, name);
+		} catch (final JMException e) {
+			System.out.print("METRICS CANNOT BE REGISTERED: " + e.getMessage() + "\n");
+		}
+	}
+
+	@Override
+	public void reset() {
+		for (final TransactionMetrics metrics : transactions) {
+			metrics.latency.reset();
+			metrics.bytes.reset();
+			metrics.outcomes.clear();
+		}
+	}
+
+	/**
+	 * Starts the scrape endpoint <code>http://localhost:port/metrics</code>.
+	 *
+	 * @param port
+	 *            the port, 0 for any free port
+	 * @return the port of the endpoint
+	 * @throws IOException
+	 *             if the port cannot be bound
+	 */
+	public synchronized int startHttpEndpoint(int port) throws IOException {
+		if (httpServer == null) {
+			httpServer = HttpServer
+					.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+			httpServer.createContext("/metrics", exchange -> {
+				final byte[] body = getText().getBytes(StandardCharsets.UTF_8);
+				exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+				exchange.sendResponseHeaders(200, body.length);
+				try (OutputStream out = exchange.getResponseBody()) {
+					out.write(body);
+				}
+			});
+			httpServer.start();
+		}
+		return httpServer.getAddress().getPort();
+	}
+
+	/**
+	 * Stops the scrape endpoint.
+	 */
+	public synchronized void stopHttpEndpoint() {
+		if (httpServer != null) {
+			httpServer.stop(0);
+			httpServer = null;
+		}
+	}
+
+}
@@ -0,0 +1,78 @@
+/*
+ * The authorship of this project and accompanying materials is held by medshare GmbH, Switzerland.
+ * All rights reserved. https://medshare.net
+ *
+ * Source code, documentation and other resources have been contributed by various people.
+ * Project Team: https://gitlab.com/ehealth-connector/api/wikis/Team/
+ * For exact developer information, please refer to the commit history of the forge.
+ *
+ * This code is made available under the terms of the Eclipse Public License v1.0.
+ *
+ * Accompanying materials are made available under the terms of the Creative Commons
+ * Attribution-ShareAlike 4.0 License.
+ *
+ * This line is intended for UTF-8 encoding checks, do not modify/delete: Ã¤Ã¶Ã¼Ã©Ã¨
+ *
+ */
+package connector;
+
+import java.util.Map;
+
+/**
+ * <div class="en">JMX view of the {@link XdsMetrics}. The maps are keyed by
+ * <code>transaction.name</code>, e.g. <code>iti43_retrieve.p99</code>.</div>
+ */
+public interface XdsMetricsMXBean {
+
+	/**
+	 * Gets the number of bytes transferred per transaction.
+	 *
+	 * @return the bytes per transaction
+	 */
+	Map<String, Long> getBytes();
+
+	/**
+	 * Gets the number of calls per transaction and outcome. The outcome is the
+	 * name of the XDSStatusType of the response, ERROR for exceptions and
+	 * NO_RESPONSE for missing responses.
+	 *
+	 * @return the calls per transaction and outcome
+	 */
+	Map<String, Long> getCounters();
+
+	/**
+	 * Gets the number of calls in progress per transaction.
+	 *
+	 * @return the calls in progress per transaction
+	 */
+	Map<String, Long> getInFlight();
+
+	/**
+	 * Gets the latency percentiles (p50, p90, p99, max) per transaction.
+	 *
+	 * @return the latencies in milliseconds
+	 */
+	Map<String, Double> getLatencyMillis();
+
+	/**
+	 * Gets the startup phases (gateway_ready, first_success) in milliseconds
+	 * after the JVM start, -1 for phases not reached yet. Not cleared by
+	 * reset.
+	 *
+	 * @return the startup times
+	 */
+	Map<String, Long> getStartupMillis();
+
+	/**
+	 * Gets all metrics in the text format of the scrape endpoint.
+	 *
+	 * @return the metrics as text
+	 */
+	String getText();
+
+	/**
+	 * Drops all recorded values.
+	 */
+	void reset();
+
+}
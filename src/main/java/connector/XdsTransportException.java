@@ -0,0 +1,82 @@
+/*
+ * The authorship of this project and accompanying materials is held by medshare GmbH, Switzerland.
+ * All rights reserved. https://medshare.net
+ *
+ * Source code, documentation and other resources have been contributed by various people.
+ * Project Team: https://gitlab.com/ehealth-connector/api/wikis/Team/
+ * For exact developer information, please refer to the commit history of the forge.
+ *
+ * This code is made available under the terms of the Eclipse Public License v1.0.
+ *
+ * Accompanying materials are made available under the terms of the Creative Commons
+ * Attribution-ShareAlike 4.0 License.
+ *
+ * This line is intended for UTF-8 encoding checks, do not modify/delete: Ã¤Ã¶Ã¼Ã©Ã¨
+ *
+ */
+package connector;
+
+/**
+ * <div class="en">Thrown if an XDS transaction failed for good: the endpoint
+ * did not answer within the timeout or with a response after all retries, or
+ * its circuit is open.</div>
+ */
+public class XdsTransportException extends RuntimeException {
+
+	/** Why the transaction failed. */
+	public enum Reason {
+		/** The circuit of the endpoint is open, nothing was sent. */
+		CIRCUIT_OPEN,
+		/** The endpoint did not answer within the call timeout. */
+		TIMEOUT,
+		/** The call failed or returned no response. */
+		FAILED
+	}
+
+	private static final long serialVersionUID = 1L;
+
+	/** Why the transaction failed. */
+	private final Reason reason;
+
+	/**
+	 * Instantiates a new transport exception.
+	 *
+	 * @param message
+	 *            the reason of the failure
+	 */
+	public XdsTransportException(String message) {
+		this(message, Reason.FAILED, null);
+	}
+
+	/**
+	 * Instantiates a new transport exception.
+	 *
+	 * @param message
+	 *            the reason of the failure
+	 * @param cause
+	 *            the exception of the last attempt
+	 */
+	public XdsTransportException(String message, Throwable cause) {
+		this(message, Reason.FAILED, cause);
+	}
+
+	/**
+	 * Instantiates a new transport exception.
+	 *
+	 * @param message
+	 *            the reason of the failure
+	 * @param reason
+	 *            why the transaction failed
+	 * @param cause
+	 *            the exception of the last attempt, may be null
+	 */
+	public XdsTransportException(String message, Reason reason, Throwable cause) {
+		super(message, cause);
+		this.reason = reason;
+	}
+
+	public Reason getReason() {
+		return reason;
+	}
+
+}
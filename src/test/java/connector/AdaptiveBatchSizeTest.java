@@ -0,0 +1,64 @@
+/*
+ * The authorship of this project and accompanying materials is held by medshare GmbH, Switzerland.
+ * All rights reserved. https://medshare.net
+ *
+ * Source code, documentation and other resources have been contributed by various people.
+ * Project Team: https://gitlab.com/ehealth-connector/api/wikis/Team/
+ * For exact developer information, please refer to the commit history of the forge.
+ *
+ * This code is made available under the terms of the Eclipse Public License v1.0.
+ *
+ * Accompanying materials are made available under the terms of the Creative Commons
+ * Attribution-ShareAlike 4.0 License.
+ *
+ * This line is intended for UTF-8 encoding checks, do not modify/delete: Ã¤Ã¶Ã¼Ã©Ã¨
+ *
+ */
+package connector;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class AdaptiveBatchSizeTest {
+
+	@Test
+	public void startsAtMax() {
+		final AdaptiveBatchSize size = new AdaptiveBatchSize(8);
+		assertEquals(8, size.get());
+		assertEquals(8, size.getMax());
+	}
+
+	@Test
+	public void failureHalvesTheFailedBatch() {
+		final AdaptiveBatchSize size = new AdaptiveBatchSize(8);
+		size.onFailure(8);
+		assertEquals(4, size.get());
+		// a smaller failed batch shrinks further, a larger one does not grow it
+		size.onFailure(2);
+		assertEquals(1, size.get());
+		size.onFailure(8);
+		assertEquals(1, size.get());
+	}
+
+	@Test
+	public void successGrowsByOneUpToMax() {
+		final AdaptiveBatchSize size = new AdaptiveBatchSize(3);
+		size.onFailure(3);
+		assertEquals(1, size.get());
+		size.onSuccess();
+		assertEquals(2, size.get());
+		size.onSuccess();
+		size.onSuccess();
+		assertEquals(3, size.get());
+	}
+
+	@Test
+	public void neverBelowOne() {
+		final AdaptiveBatchSize size = new AdaptiveBatchSize(0);
+		assertEquals(1, size.get());
+		size.onFailure(1);
+		assertEquals(1, size.get());
+	}
+
+}
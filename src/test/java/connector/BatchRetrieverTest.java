@@ -0,0 +1,100 @@
+/*
+ * The authorship of this project and accompanying materials is held by medshare GmbH, Switzerland.
+ * All rights reserved. https://medshare.net
+ *
+ * Source code, documentation and other resources have been contributed by various people.
+ * Project Team: https://gitlab.com/ehealth-connector/api/wikis/Team/
+ * For exact developer information, please refer to the commit history of the forge.
+ *
+ * This code is made available under the terms of the Eclipse Public License v1.0.
+ *
+ * Accompanying materials are made available under the terms of the Creative Commons
+ * Attribution-ShareAlike 4.0 License.
+ *
+ * This line is intended for UTF-8 encoding checks, do not modify/delete: Ã¤Ã¶Ã¼Ã©Ã¨
+ *
+ */
+package connector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.openhealthtools.ihe.xds.response.XDSResponseType;
+
+public class BatchRetrieverTest {
+
+	/** A transport failing every call for the given reason. */
+	private static class FailingTransport extends ResilientTransport {
+
+		private final XdsTransportException.Reason reason;
+
+		private final AtomicInteger calls = new AtomicInteger();
+
+		/** The calls the transport was allowed to retry. */
+		private final AtomicInteger retried = new AtomicInteger();
+
+		FailingTransport(XdsTransportException.Reason reason) {
+			super(new EndpointLimiter(1), new XdsMetrics(60 * 1000L), 1000, 1, 1, 1, 1, 0);
+			this.reason = reason;
+		}
+
+		@Override
+		public <T extends XDSResponseType> T execute(PooledClient client, URI endpoint,
+				XdsMetrics.Transaction transaction, boolean idempotent, XdsCall<T> call) {
+			calls.incrementAndGet();
+			if (idempotent) {
+				retried.incrementAndGet();
+			}
+			throw new XdsTransportException(reason.name(), reason, null);
+		}
+	}
+
+	private static List<BatchRetriever.Item> items(int count) {
+		final List<BatchRetriever.Item> items = new ArrayList<BatchRetriever.Item>();
+		for (int i = 0; i < count; i++) {
+			items.add(new BatchRetriever.Item("p1", "1.2.3", "doc" + i));
+		}
+		return items;
+	}
+
+	@Test
+	public void timeoutSplitsAndShrinksOnce() throws Exception {
+		final FailingTransport transport = new FailingTransport(
+				XdsTransportException.Reason.TIMEOUT);
+		final BatchRetriever retriever = new BatchRetriever(null, transport, null, 4);
+		final Map<String, StoreResult> results = retriever.retrieveAndStore(null,
+				new URI("http://localhost/repository"), items(4));
+		// 4, then 2 + 2, then 1 + 1 + 1 + 1
+		assertEquals(7, transport.calls.get());
+		// only the original batch is retried by the transport, the halves
+		// are single attempts
+		assertEquals(1, transport.retried.get());
+		assertEquals(4, results.size());
+		assertNull(results.get("doc0"));
+		// halved once for the original batch, not once per split
+		assertEquals(2, retriever.getBatchSize("1.2.3"));
+	}
+
+	@Test
+	public void openCircuitStopsAtOnce() throws Exception {
+		final FailingTransport transport = new FailingTransport(
+				XdsTransportException.Reason.CIRCUIT_OPEN);
+		final BatchRetriever retriever = new BatchRetriever(null, transport, null, 2);
+		final Map<String, StoreResult> results = retriever.retrieveAndStore(null,
+				new URI("http://localhost/repository"), items(6));
+		assertEquals(1, transport.calls.get());
+		assertEquals(6, results.size());
+		assertTrue(results.containsKey("doc5"));
+		assertNull(results.get("doc5"));
+		assertEquals(2, retriever.getBatchSize("1.2.3"));
+	}
+
+}
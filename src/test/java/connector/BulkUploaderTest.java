@@ -0,0 +1,84 @@
+/*
+ * The authorship of this project and accompanying materials is held by medshare GmbH, Switzerland.
+ * All rights reserved. https://medshare.net
+ *
+ * Source code, documentation and other resources have been contributed by various people.
+ * Project Team: https://gitlab.com/ehealth-connector/api/wikis/Team/
+ * For exact developer information, please refer to the commit history of the forge.
+ *
+ * This code is made available under the terms of the Eclipse Public License v1.0.
+ *
+ * Accompanying materials are made available under the terms of the Creative Commons
+ * Attribution-ShareAlike 4.0 License.
+ *
+ * This line is intended for UTF-8 encoding checks, do not modify/delete: Ã¤Ã¶Ã¼Ã©Ã¨
+ *
+ */
+package connector;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BulkUploaderTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static Map<String, String> byDocument(List<BulkUploader.Item> items) {
+		final Map<String, String> patients = new TreeMap<String, String>();
+		for (final BulkUploader.Item item : items) {
+			assertEquals("1.2.3", item.getPatientId().getRoot());
+			patients.put(item.getDocumentId(), item.getPatientId().getExtension());
+		}
+		return patients;
+	}
+
+	@Test
+	public void listDirectoryReadsTheIdsWrittenByTheStore() throws IOException {
+		final FileSystemDocumentStore store = new FileSystemDocumentStore(
+				folder.getRoot().toPath());
+		final String[][] documents = { { "p_1", "d_1" }, { "p_1", "1234abc" },
+				{ "p/2", "2.16.756.5.30^x" }, { "p", "_0070" }, { ".p", "d" } };
+		final Map<String, String> expected = new TreeMap<String, String>();
+		for (final String[] document : documents) {
+			store.store(document[0], document[1],
+					new ByteArrayInputStream("<doc/>".getBytes(StandardCharsets.UTF_8)));
+			expected.put(document[1], document[0]);
+		}
+		assertEquals(expected,
+				byDocument(BulkUploader.listDirectory(folder.getRoot().toPath(), "1.2.3")));
+	}
+
+	@Test
+	public void listDirectoryReadsPlainFilesAndIgnoresOthers() throws IOException {
+		final Path root = folder.getRoot().toPath();
+		Files.write(root.resolve("p1_d1.xml"), new byte[0]);
+		Files.write(root.resolve("notes.txt"), new byte[0]);
+		Files.createDirectories(root.resolve("p2"));
+		Files.write(root.resolve("p2").resolve("other_d2.xml"), new byte[0]);
+		Files.write(root.resolve("p2").resolve("p2_d_zz.xml"), new byte[0]);
+		final Map<String, String> expected = new TreeMap<String, String>();
+		expected.put("d1", "p1");
+		assertEquals(expected, byDocument(BulkUploader.listDirectory(root, "1.2.3")));
+	}
+
+	@Test
+	public void fromFileNameReversesToFileName() {
+		for (final String id : new String[] { "", "abc", "_", "a_0041", ".x", "x.y", "ä/ö\\ü" }) {
+			assertEquals(id,
+					FileSystemDocumentStore.fromFileName(FileSystemDocumentStore.toFileName(id)));
+		}
+	}
+}
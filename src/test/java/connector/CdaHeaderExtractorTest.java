@@ -0,0 +1,74 @@
+/*
+ * The authorship of this project and accompanying materials is held by medshare GmbH, Switzerland.
+ * All rights reserved. https://medshare.net
+ *
+ * Source code, documentation and other resources have been contributed by various people.
+ * Project Team: https://gitlab.com/ehealth-connector/api/wikis/Team/
+ * For exact developer information, please refer to the commit history of the forge.
+ *
+ * This code is made available under the terms of the Eclipse Public License v1.0.
+ *
+ * Accompanying materials are made available under the terms of the Creative Commons
+ * Attribution-ShareAlike 4.0 License.
+ *
+ * This line is intended for UTF-8 encoding checks, do not modify/delete: Ã¤Ã¶Ã¼Ã©Ã¨
+ *
+ */
+package connector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.InputStream;
+import java.time.Instant;
+
+import org.ehealth_connector.common.mdht.Identificator;
+import org.junit.Test;
+
+public class CdaHeaderExtractorTest {
+
+	private static CdaHeader extractSample() throws Exception {
+		try (InputStream in = CdaHeaderExtractorTest.class.getResourceAsStream(
+				"/demoDocSource/ELGA-023-Entlassungsbrief_aerztlich_EIS-FullSupport.xml")) {
+			assertNotNull(in);
+			return CdaHeaderExtractor.extract(in);
+		}
+	}
+
+	@Test
+	public void documentValues() throws Exception {
+		final CdaHeader header = extractSample();
+		assertEquals("11490-0", header.getTypeCode());
+		assertEquals("2.16.840.1.113883.6.1", header.getTypeCodeSystem());
+		assertEquals("Physician Discharge summary", header.getTypeDisplayName());
+		assertEquals("Entlassungsbrief", header.getTitle());
+		assertEquals("N", header.getConfidentialityCode());
+		assertEquals("de-AT", header.getLanguageCode());
+		// 20160817121500+0100
+		assertEquals(Instant.parse("2016-08-17T11:15:00Z"),
+				header.getEffectiveTime().toInstant());
+	}
+
+	@Test
+	public void patientIds() throws Exception {
+		final CdaHeader header = extractSample();
+		assertEquals(2, header.getPatientIds().size());
+		final Identificator local = header.getPatientIds().get(0);
+		assertEquals("1.2.40.0.34.99.4613.3.2", local.getRoot());
+		assertEquals("121212", local.getExtension());
+		final Identificator svnr = header.getPatientIds().get(1);
+		assertEquals("1.2.40.0.10.1.4.3.1", svnr.getRoot());
+		assertEquals("1111241261", svnr.getExtension());
+	}
+
+	@Test
+	public void firstAuthor() throws Exception {
+		final CdaHeader header = extractSample();
+		assertEquals("1.2.40.0.34.99.4613.3.3", header.getAuthorId().getRoot());
+		assertEquals("2323", header.getAuthorId().getExtension());
+		assertEquals("Dr.", header.getAuthorPrefix());
+		assertEquals("Isabella", header.getAuthorGiven());
+		assertEquals("Stern", header.getAuthorFamily());
+	}
+
+}
@@ -0,0 +1,146 @@
+/*
+ * The authorship of this project and accompanying materials is held by medshare GmbH, Switzerland.
+ * All rights reserved. https://medshare.net
+ *
+ * Source code, documentation and other resources have been contributed by various people.
+ * Project Team: https://gitlab.com/ehealth-connector/api/wikis/Team/
+ * For exact developer information, please refer to the commit history of the forge.
+ *
+ * This code is made available under the terms of the Eclipse Public License v1.0.
+ *
+ * Accompanying materials are made available under the terms of the Creative Commons
+ * Attribution-ShareAlike 4.0 License.
+ *
+ * This line is intended for UTF-8 encoding checks, do not modify/delete: Ã¤Ã¶Ã¼Ã©Ã¨
+ *
+ */
+package connector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+
+	@Test
+	public void opensAfterThreshold() {
+		final CircuitBreaker breaker = new CircuitBreaker(3, 60 * 1000L);
+		breaker.onFailure();
+		breaker.onFailure();
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+		assertTrue(breaker.allowRequest());
+		breaker.onFailure();
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		assertFalse(breaker.allowRequest());
+	}
+
+	@Test
+	public void successResetsFailures() {
+		final CircuitBreaker breaker = new CircuitBreaker(2, 60 * 1000L);
+		breaker.onFailure();
+		breaker.onSuccess();
+		breaker.onFailure();
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+	}
+
+	@Test
+	public void trialSuccessCloses() {
+		final CircuitBreaker breaker = new CircuitBreaker(1, 0, 60 * 1000L);
+		breaker.onFailure();
+		assertTrue(breaker.allowRequest());
+		assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+		// a single trial at a time
+		assertFalse(breaker.allowRequest());
+		breaker.onSuccess();
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+		assertTrue(breaker.allowRequest());
+	}
+
+	@Test
+	public void trialFailureOpens() {
+		final CircuitBreaker breaker = new CircuitBreaker(5, 0, 60 * 1000L);
+		for (int i = 0; i < 5; i++) {
+			breaker.onFailure();
+		}
+		assertTrue(breaker.allowRequest());
+		// a failed trial opens again at once, without the threshold
+		breaker.onFailure();
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+	}
+
+	@Test
+	public void releasedTrialIsHandedBack() {
+		final CircuitBreaker breaker = new CircuitBreaker(1, 0, 60 * 1000L);
+		breaker.onFailure();
+		assertTrue(breaker.allowRequest());
+		breaker.releaseTrial();
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		// the open time has passed already, so the next call is the trial
+		assertTrue(breaker.allowRequest());
+		assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+	}
+
+	@Test
+	public void releaseByOtherThreadKeepsTrial() throws InterruptedException {
+		final CircuitBreaker breaker = new CircuitBreaker(1, 0, 60 * 1000L);
+		breaker.onFailure();
+		assertTrue(breaker.allowRequest());
+		final Thread other = new Thread(breaker::releaseTrial);
+		other.start();
+		other.join();
+		assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+	}
+
+	@Test
+	public void lostTrialTimesOut() throws InterruptedException {
+		final CircuitBreaker breaker = new CircuitBreaker(1, 0, 50);
+		breaker.onFailure();
+		assertTrue(breaker.allowRequest());
+		assertFalse(breaker.allowRequest());
+		Thread.sleep(80);
+		assertTrue(breaker.allowRequest());
+	}
+
+	@Test
+	public void interruptedTrialDoesNotWedgeTransport() throws Exception {
+		final URI endpoint = URI.create("http://localhost:1/xds-iti18");
+		final EndpointLimiter limiter = new EndpointLimiter(1);
+		final ResilientTransport transport = new ResilientTransport(limiter,
+				new XdsMetrics(60 * 1000L), 1000, 1, 1, 1, 1, 0);
+		final CircuitBreaker breaker = transport.getCircuitBreaker(endpoint);
+		breaker.onFailure();
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+		// the trial waits for the only endpoint slot and is interrupted there
+		final Semaphore slot = limiter.acquire(endpoint);
+		final Semaphore started = new Semaphore(0);
+		final Thread trial = new Thread(() -> {
+			started.release();
+			try {
+				transport.execute(null, endpoint, XdsMetrics.Transaction.ITI18_METADATA, true,
+						conCom -> null);
+			} catch (final InterruptedException e) {
+				// expected
+			}
+		});
+		trial.start();
+		assertTrue(started.tryAcquire(5, TimeUnit.SECONDS));
+		while (breaker.getState() != CircuitBreaker.State.HALF_OPEN) {
+			Thread.sleep(1);
+		}
+		trial.interrupt();
+		trial.join(5000);
+		slot.release();
+
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		assertTrue(breaker.allowRequest());
+		transport.shutdown();
+	}
+
+}
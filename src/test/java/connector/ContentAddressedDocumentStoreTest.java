@@ -0,0 +1,140 @@
+/*
+ * The authorship of this project and accompanying materials is held by medshare GmbH, Switzerland.
+ * All rights reserved. https://medshare.net
+ *
+ * Source code, documentation and other resources have been contributed by various people.
+ * Project Team: https://gitlab.com/ehealth-connector/api/wikis/Team/
+ * For exact developer information, please refer to the commit history of the forge.
+ *
+ * This code is made available under the terms of the Eclipse Public License v1.0.
+ *
+ * Accompanying materials are made available under the terms of the Creative Commons
+ * Attribution-ShareAlike 4.0 License.
+ *
+ * This line is intended for UTF-8 encoding checks, do not modify/delete: Ã¤Ã¶Ã¼Ã©Ã¨
+ *
+ */
+package connector;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ContentAddressedDocumentStoreTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static byte[] document(String body) {
+		return ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<ClinicalDocument>\n"
+				+ "<realmCode code=\"AT\"/>\n<title>" + body + "</title>\n</ClinicalDocument>\n")
+						.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static byte[] read(InputStream in) throws IOException {
+		try (InputStream content = in) {
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			final byte[] buffer = new byte[4096];
+			int read;
+			while ((read = content.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+			}
+			return out.toByteArray();
+		}
+	}
+
+	private ContentAddressedDocumentStore store(DeflateDictionary dictionary)
+			throws IOException {
+		final Path root = folder.getRoot().toPath();
+		return new ContentAddressedDocumentStore(root, dictionary, 6, root.resolve(".export"),
+				60 * 60 * 1000L);
+	}
+
+	private Path exports() {
+		return folder.getRoot().toPath().resolve(".export");
+	}
+
+	@Test
+	public void storeAndOpenRoundTrip() throws IOException {
+		final ContentAddressedDocumentStore store = store(DeflateDictionary.builtIn());
+		final byte[] content = document("Entlassungsbrief");
+		final StoreResult stored = store.store("p1", "d1", new ByteArrayInputStream(content));
+		assertEquals(content.length, stored.getBytes());
+		assertTrue(store.contains("p1", "d1"));
+		assertFalse(store.contains("p1", "d2"));
+		assertEquals(content.length, store.getSize("p1", "d1"));
+		assertArrayEquals(content, read(store.open("p1", "d1")));
+	}
+
+	@Test
+	public void storeWritesNoPlainCopyUntilTheLocationIsAsked() throws IOException {
+		final ContentAddressedDocumentStore store = store(DeflateDictionary.builtIn());
+		final byte[] content = document("Befund");
+		assertNull(store.store("p1", "d1", new ByteArrayInputStream(content)).getLocation());
+		assertFalse(Files.exists(exports()));
+
+		final Path copy = Paths.get(store.getLocation("p1", "d1"));
+		assertArrayEquals(content, Files.readAllBytes(copy));
+		assertNull(store.getLocation("p1", "d2"));
+
+		// a new version replaces the copy handed out before
+		final byte[] changed = document("Befund neu");
+		store.store("p1", "d1", new ByteArrayInputStream(changed));
+		assertFalse(Files.exists(copy));
+		assertArrayEquals(changed, Files.readAllBytes(Paths.get(store.getLocation("p1", "d1"))));
+	}
+
+	@Test
+	public void identicalContentIsStoredOnceAcrossPatients() throws IOException {
+		final ContentAddressedDocumentStore store = store(DeflateDictionary.builtIn());
+		final byte[] content = document("Laborbefund");
+		store.store("p1", "d1", new ByteArrayInputStream(content));
+		final long compressed = store.getCompressedBytes();
+		store.store("p2", "d7", new ByteArrayInputStream(content));
+		assertEquals(1, store.getDeduplicatedCount());
+		assertEquals(compressed, store.getCompressedBytes());
+		assertEquals(2L * content.length, store.getUncompressedBytes());
+		assertArrayEquals(content, read(store.open("p2", "d7")));
+		assertArrayEquals(content, read(store.open("p1", "d1")));
+	}
+
+	@Test
+	public void blobsOfAnOlderDictionaryStayReadable() throws IOException {
+		final byte[] content = document("Arztbrief");
+		store(DeflateDictionary.builtIn()).store("p1", "d1", new ByteArrayInputStream(content));
+
+		final List<Path> samples = new ArrayList<Path>();
+		for (int i = 0; i < 4; i++) {
+			final Path sample = folder.newFile("sample" + i + ".xml").toPath();
+			Files.write(sample, document("Muster " + i));
+			samples.add(sample);
+		}
+		final DeflateDictionary trained = DeflateDictionary.train(samples, 4096);
+		assertNotEquals(DeflateDictionary.builtIn().getId(), trained.getId());
+
+		// a new instance knows the manifest and dictionary only from disk
+		final ContentAddressedDocumentStore store = store(trained);
+		final byte[] newer = document("Arztbrief 2");
+		store.store("p1", "d2", new ByteArrayInputStream(newer));
+		assertArrayEquals(content, read(store.open("p1", "d1")));
+		assertArrayEquals(newer, read(store.open("p1", "d2")));
+	}
+}
@@ -0,0 +1,160 @@
+/*
+ * The authorship of this project and accompanying materials is held by medshare GmbH, Switzerland.
+ * All rights reserved. https://medshare.net
+ *
+ * Source code, documentation and other resources have been contributed by various people.
+ * Project Team: https://gitlab.com/ehealth-connector/api/wikis/Team/
+ * For exact developer information, please refer to the commit history of the forge.
+ *
+ * This code is made available under the terms of the Eclipse Public License v1.0.
+ *
+ * Accompanying materials are made available under the terms of the Creative Commons
+ * Attribution-ShareAlike 4.0 License.
+ *
+ * This line is intended for UTF-8 encoding checks, do not modify/delete: Ã¤Ã¶Ã¼Ã©Ã¨
+ *
+ */
+package connector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+import org.openhealthtools.ihe.xds.metadata.DocumentEntryType;
+import org.openhealthtools.ihe.xds.response.DocumentEntryResponseType;
+import org.openhealthtools.ihe.xds.response.XDSQueryResponseType;
+
+public class DocumentEntryPagesTest {
+
+	/** A registry answering the known entries and recording every query. */
+	private static final class FakeRegistry implements DocumentEntryPages.PageQuery {
+		final List<List<String>> queries = new ArrayList<List<String>>();
+		final Set<String> omitted = new HashSet<String>();
+
+		@Override
+		public XDSQueryResponseType query(String[] entryUuids) {
+			queries.add(Arrays.asList(entryUuids));
+			final List<DocumentEntryResponseType> responses = new ArrayList<DocumentEntryResponseType>();
+			for (final String entryUuid : entryUuids) {
+				if (!omitted.contains(entryUuid)) {
+					final DocumentEntryType entry = entry(entryUuid);
+					responses.add((DocumentEntryResponseType) Proxy.newProxyInstance(
+							DocumentEntryResponseType.class.getClassLoader(),
+							new Class<?>[] { DocumentEntryResponseType.class },
+							(proxy, method, args) -> entry));
+				}
+			}
+			return response(responses);
+		}
+	}
+
+	private static DocumentEntryType entry(String entryUuid) {
+		return (DocumentEntryType) Proxy.newProxyInstance(
+				DocumentEntryType.class.getClassLoader(),
+				new Class<?>[] { DocumentEntryType.class },
+				(proxy, method, args) -> "getEntryUUID".equals(method.getName()) ? entryUuid
+						: null);
+	}
+
+	private static XDSQueryResponseType response(List<DocumentEntryResponseType> responses) {
+		return (XDSQueryResponseType) Proxy.newProxyInstance(
+				XDSQueryResponseType.class.getClassLoader(),
+				new Class<?>[] { XDSQueryResponseType.class },
+				(proxy, method, args) -> "getDocumentEntryResponses".equals(method.getName())
+						? responses
+						: null);
+	}
+
+	private static List<String> uuids(int count) {
+		final List<String> uuids = new ArrayList<String>();
+		for (int i = 0; i < count; i++) {
+			uuids.add("urn:uuid:" + i);
+		}
+		return uuids;
+	}
+
+	private static List<String> iterate(DocumentEntryIterator iterator) {
+		final List<String> seen = new ArrayList<String>();
+		while (iterator.hasNext()) {
+			seen.add(iterator.next().getEntryUUID());
+		}
+		return seen;
+	}
+
+	@Test
+	public void pageSizeOneQueriesEveryEntry() {
+		final FakeRegistry registry = new FakeRegistry();
+		final DocumentEntryIterator iterator = new DocumentEntryIterator(
+				new DocumentEntryPages(uuids(3), 1, registry));
+		assertEquals(uuids(3), iterate(iterator));
+		assertEquals(Arrays.asList(uuids(3).subList(0, 1), uuids(3).subList(1, 2),
+				uuids(3).subList(2, 3)), registry.queries);
+	}
+
+	@Test
+	public void exactMultipleOfThePageSizeSendsNoEmptyQuery() throws InterruptedException {
+		final FakeRegistry registry = new FakeRegistry();
+		final DocumentEntryPages pages = new DocumentEntryPages(uuids(4), 2, registry);
+		assertEquals(4, pages.getEntryCount());
+		assertEquals(2, pages.nextPage().size());
+		assertTrue(pages.hasNext());
+		assertEquals(2, pages.nextPage().size());
+		assertFalse(pages.hasNext());
+		assertEquals(Arrays.asList(uuids(4).subList(0, 2), uuids(4).subList(2, 4)),
+				registry.queries);
+	}
+
+	@Test
+	public void entriesOmittedByTheRegistryAreSkipped() {
+		final FakeRegistry registry = new FakeRegistry();
+		registry.omitted.add("urn:uuid:1");
+		// the whole second page is omitted
+		registry.omitted.add("urn:uuid:2");
+		registry.omitted.add("urn:uuid:3");
+		final DocumentEntryIterator iterator = new DocumentEntryIterator(
+				new DocumentEntryPages(uuids(5), 2, registry));
+		assertEquals(Arrays.asList("urn:uuid:0", "urn:uuid:4"), iterate(iterator));
+		assertEquals(3, registry.queries.size());
+	}
+
+	@Test
+	public void closeStopsFurtherQueries() {
+		final FakeRegistry registry = new FakeRegistry();
+		final DocumentEntryIterator iterator = new DocumentEntryIterator(
+				new DocumentEntryPages(uuids(6), 2, registry));
+		assertEquals("urn:uuid:0", iterator.next().getEntryUUID());
+		iterator.close();
+		assertFalse(iterator.hasNext());
+		assertEquals(1, registry.queries.size());
+	}
+
+	@Test
+	public void missingResponseEndsTheIteration() {
+		final DocumentEntryIterator iterator = new DocumentEntryIterator(
+				new DocumentEntryPages(uuids(4), 2, entryUuids -> null));
+		try {
+			iterator.hasNext();
+			fail("no response must fail the page");
+		} catch (final XdsTransportException e) {
+			// expected
+		}
+		assertFalse(iterator.hasNext());
+	}
+
+	@Test
+	public void responseWithoutEntriesIsAnEmptyPage() throws InterruptedException {
+		final DocumentEntryPages pages = new DocumentEntryPages(uuids(2), 2,
+				entryUuids -> response(null));
+		assertTrue(pages.nextPage().isEmpty());
+		assertFalse(pages.hasNext());
+	}
+}
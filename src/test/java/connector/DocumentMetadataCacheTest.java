@@ -0,0 +1,121 @@
+/*
+ * The authorship of this project and accompanying materials is held by medshare GmbH, Switzerland.
+ * All rights reserved. https://medshare.net
+ *
+ * Source code, documentation and other resources have been contributed by various people.
+ * Project Team: https://gitlab.com/ehealth-connector/api/wikis/Team/
+ * For exact developer information, please refer to the commit history of the forge.
+ *
+ * This code is made available under the terms of the Eclipse Public License v1.0.
+ *
+ * Accompanying materials are made available under the terms of the Creative Commons
+ * Attribution-ShareAlike 4.0 License.
+ *
+ * This line is intended for UTF-8 encoding checks, do not modify/delete: Ã¤Ã¶Ã¼Ã©Ã¨
+ *
+ */
+package connector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.openhealthtools.ihe.xds.metadata.DocumentEntryType;
+
+public class DocumentMetadataCacheTest {
+
+	private static DocumentEntryType entry(String uniqueId) {
+		return (DocumentEntryType) Proxy.newProxyInstance(
+				DocumentEntryType.class.getClassLoader(),
+				new Class<?>[] { DocumentEntryType.class },
+				(proxy, method, args) -> "getUniqueId".equals(method.getName()) ? uniqueId
+						: null);
+	}
+
+	@Test
+	public void lookupEntryIsCached() {
+		final DocumentMetadataCache cache = new DocumentMetadataCache(10, 60 * 1000L);
+		assertNull(cache.getEntry("p1", "doc1"));
+		final DocumentEntryType doc1 = entry("doc1");
+		cache.putEntry("p1", doc1);
+		assertSame(doc1, cache.getEntry("p1", "doc1"));
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+	}
+
+	@Test
+	public void putEntryExtendsDownloadedEntries() {
+		final DocumentMetadataCache cache = new DocumentMetadataCache(10, 60 * 1000L);
+		final DocumentEntryType doc1 = entry("doc1");
+		cache.put("p1", Collections.singletonMap("doc1", doc1));
+		final DocumentEntryType doc2 = entry("doc2");
+		cache.putEntry("p1", doc2);
+		assertSame(doc1, cache.getEntry("p1", "doc1"));
+		assertSame(doc2, cache.getEntry("p1", "doc2"));
+		// a missing uniqueId is not an answer, the registry is asked
+		assertNull(cache.getEntry("p1", "doc3"));
+		assertNull(cache.getEntry("p2", "doc1"));
+	}
+
+	@Test
+	public void expiredEntriesAreDropped() throws InterruptedException {
+		final DocumentMetadataCache cache = new DocumentMetadataCache(10, 10);
+		cache.putEntry("p1", entry("doc1"));
+		Thread.sleep(30);
+		assertNull(cache.getEntry("p1", "doc1"));
+		assertEquals(0, cache.size());
+	}
+
+
+	@Test
+	public void validateUploadQueryAsksTheRegistryOncePerAnswer()
+			throws InterruptedException {
+		final DocumentMetadataCache cache = new DocumentMetadataCache(10, 60 * 1000L);
+		final Set<String> registered = new HashSet<String>();
+		final AtomicInteger calls = new AtomicInteger();
+		final DocumentMetadataCache.Registry registry = documentId -> {
+			calls.incrementAndGet();
+			return registered.contains(documentId) ? entry(documentId) : null;
+		};
+
+		// validate, twice: the miss is remembered
+		assertNull(cache.lookup("p1", "doc1", true, registry));
+		assertNull(cache.lookup("p1", "doc1", true, registry));
+		assertEquals(1, calls.get());
+
+		// upload: the submission drops the remembered miss
+		registered.add("doc1");
+		cache.forget("p1", "doc1");
+
+		// query, then validate and query again from the cache
+		assertEquals("doc1", cache.lookup("p1", "doc1", true, registry).getUniqueId());
+		assertEquals(2, calls.get());
+		assertEquals("doc1", cache.lookup("p1", "doc1", true, registry).getUniqueId());
+		assertEquals("doc1", cache.lookup("p1", "doc1", true, registry).getUniqueId());
+		assertEquals(2, calls.get());
+
+		// without the cache the registry is always asked
+		assertEquals("doc1", cache.lookup("p1", "doc1", false, registry).getUniqueId());
+		assertEquals(3, calls.get());
+	}
+
+	@Test
+	public void rememberedMissExpiresWithThePatient() throws InterruptedException {
+		final DocumentMetadataCache cache = new DocumentMetadataCache(10, -1L);
+		final AtomicInteger calls = new AtomicInteger();
+		final DocumentMetadataCache.Registry registry = documentId -> {
+			calls.incrementAndGet();
+			return null;
+		};
+		assertNull(cache.lookup("p1", "doc1", true, registry));
+		assertNull(cache.lookup("p1", "doc1", true, registry));
+		assertEquals(2, calls.get());
+	}
+}
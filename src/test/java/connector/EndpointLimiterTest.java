@@ -0,0 +1,86 @@
+/*
+ * The authorship of this project and accompanying materials is held by medshare GmbH, Switzerland.
+ * All rights reserved. https://medshare.net
+ *
+ * Source code, documentation and other resources have been contributed by various people.
+ * Project Team: https://gitlab.com/ehealth-connector/api/wikis/Team/
+ * For exact developer information, please refer to the commit history of the forge.
+ *
+ * This code is made available under the terms of the Eclipse Public License v1.0.
+ *
+ * Accompanying materials are made available under the terms of the Creative Commons
+ * Attribution-ShareAlike 4.0 License.
+ *
+ * This line is intended for UTF-8 encoding checks, do not modify/delete: Ã¤Ã¶Ã¼Ã©Ã¨
+ *
+ */
+package connector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.util.concurrent.Semaphore;
+
+import org.junit.Test;
+
+public class EndpointLimiterTest {
+
+	private static final URI ENDPOINT = URI.create("http://localhost:9091/xds-iti18");
+
+	@Test
+	public void reloadingTheSameLimitKeepsTheCallsInFlightCounted()
+			throws InterruptedException {
+		final EndpointLimiter limiter = new EndpointLimiter(4);
+		limiter.setLimit(ENDPOINT, 2);
+		final Semaphore first = limiter.acquire(ENDPOINT);
+		final Semaphore second = limiter.acquire(ENDPOINT);
+		limiter.setLimit(ENDPOINT, 2);
+		// the same permits: the two calls still hold both slots
+		assertSame(first, second);
+		assertFalse(first.tryAcquire());
+		second.release();
+		assertTrue(first.tryAcquire());
+	}
+
+	@Test
+	public void changedLimitCountsTheCallsInFlight() throws InterruptedException {
+		final EndpointLimiter limiter = new EndpointLimiter(4);
+		limiter.setLimit(ENDPOINT, 2);
+		final Semaphore slots = limiter.acquire(ENDPOINT);
+		limiter.acquire(ENDPOINT);
+		assertFalse(slots.tryAcquire());
+
+		// raised while two calls run: one more may start
+		limiter.setLimit(ENDPOINT, 3);
+		assertEquals(3, limiter.getLimit(ENDPOINT));
+		assertTrue(slots.tryAcquire());
+		assertFalse(slots.tryAcquire());
+
+		// lowered to one while three calls run: the next call waits until
+		// all three have finished
+		limiter.setLimit(ENDPOINT, 1);
+		slots.release();
+		slots.release();
+		assertFalse(slots.tryAcquire());
+		slots.release();
+		assertTrue(slots.tryAcquire());
+		assertFalse(slots.tryAcquire());
+	}
+
+	@Test
+	public void endpointsWithoutALimitUseTheDefault() throws InterruptedException {
+		final EndpointLimiter limiter = new EndpointLimiter(2);
+		assertEquals(2, limiter.getLimit(ENDPOINT));
+		final Semaphore first = limiter.acquire(ENDPOINT);
+		limiter.acquire(ENDPOINT);
+		assertFalse(first.tryAcquire());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void limitMustBePositive() {
+		new EndpointLimiter(1).setLimit(ENDPOINT, 0);
+	}
+}
@@ -0,0 +1,81 @@
+/*
+ * The authorship of this project and accompanying materials is held by medshare GmbH, Switzerland.
+ * All rights reserved. https://medshare.net
+ *
+ * Source code, documentation and other resources have been contributed by various people.
+ * Project Team: https://gitlab.com/ehealth-connector/api/wikis/Team/
+ * For exact developer information, please refer to the commit history of the forge.
+ *
+ * This code is made available under the terms of the Eclipse Public License v1.0.
+ *
+ * Accompanying materials are made available under the terms of the Creative Commons
+ * Attribution-ShareAlike 4.0 License.
+ *
+ * This line is intended for UTF-8 encoding checks, do not modify/delete: Ã¤Ã¶Ã¼Ã©Ã¨
+ *
+ */
+package connector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+
+import org.junit.Test;
+
+public class OffPeakWindowTest {
+
+	@Test
+	public void emptyWindowIsAlwaysOpen() {
+		assertSame(OffPeakWindow.ALWAYS, OffPeakWindow.parse(null));
+		assertSame(OffPeakWindow.ALWAYS, OffPeakWindow.parse(" "));
+		assertSame(OffPeakWindow.ALWAYS, OffPeakWindow.parse("Always"));
+		assertTrue(OffPeakWindow.ALWAYS.isOpen(LocalTime.NOON));
+		assertEquals(0, OffPeakWindow.ALWAYS.millisUntilOpen(LocalDateTime.now()));
+	}
+
+	@Test
+	public void windowWithinADay() {
+		final OffPeakWindow window = OffPeakWindow.parse("12:00-14:30");
+		assertEquals("12:00-14:30", window.toString());
+		assertFalse(window.isOpen(LocalTime.of(11, 59)));
+		assertTrue(window.isOpen(LocalTime.of(12, 0)));
+		assertTrue(window.isOpen(LocalTime.of(14, 29)));
+		// the end is exclusive
+		assertFalse(window.isOpen(LocalTime.of(14, 30)));
+	}
+
+	@Test
+	public void windowSpanningMidnight() {
+		final OffPeakWindow window = OffPeakWindow.parse(" 20:00 - 06:00 ");
+		assertTrue(window.isOpen(LocalTime.of(23, 0)));
+		assertTrue(window.isOpen(LocalTime.MIDNIGHT));
+		assertTrue(window.isOpen(LocalTime.of(5, 59)));
+		assertFalse(window.isOpen(LocalTime.of(6, 0)));
+		assertFalse(window.isOpen(LocalTime.of(19, 59)));
+	}
+
+	@Test
+	public void millisUntilOpenCountsToTheNextOpening() {
+		final OffPeakWindow window = OffPeakWindow.parse("20:00-06:00");
+		final LocalDateTime day = LocalDateTime.of(2024, 3, 1, 0, 0);
+		assertEquals(0, window.millisUntilOpen(day.withHour(22)));
+		assertEquals(60 * 60 * 1000L, window.millisUntilOpen(day.withHour(19)));
+		// after the end of a window within a day, the next opening is tomorrow
+		final OffPeakWindow noon = OffPeakWindow.parse("12:00-13:00");
+		assertEquals(23 * 60 * 60 * 1000L, noon.millisUntilOpen(day.withHour(13)));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void missingBoundIsRejected() {
+		OffPeakWindow.parse("20:00");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void malformedTimeIsRejected() {
+		OffPeakWindow.parse("8pm-6am");
+	}
+}
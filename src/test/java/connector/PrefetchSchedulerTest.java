@@ -0,0 +1,164 @@
+/*
+ * The authorship of this project and accompanying materials is held by medshare GmbH, Switzerland.
+ * All rights reserved. https://medshare.net
+ *
+ * Source code, documentation and other resources have been contributed by various people.
+ * Project Team: https://gitlab.com/ehealth-connector/api/wikis/Team/
+ * For exact developer information, please refer to the commit history of the forge.
+ *
+ * This code is made available under the terms of the Eclipse Public License v1.0.
+ *
+ * Accompanying materials are made available under the terms of the Creative Commons
+ * Attribution-ShareAlike 4.0 License.
+ *
+ * This line is intended for UTF-8 encoding checks, do not modify/delete: Ã¤Ã¶Ã¼Ã©Ã¨
+ *
+ */
+package connector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.ehealth_connector.common.mdht.Identificator;
+import org.junit.After;
+import org.junit.Test;
+
+public class PrefetchSchedulerTest {
+
+	/**
+	 * Records the fetched patients; the patient "gate" blocks until released.
+	 */
+	private static final class FakeFetcher implements PrefetchScheduler.Fetcher {
+		final List<String> fetched = Collections.synchronizedList(new ArrayList<String>());
+		final CountDownLatch gateEntered = new CountDownLatch(1);
+		final CountDownLatch gate = new CountDownLatch(1);
+		volatile boolean gateInterrupted;
+
+		@Override
+		public DomainSettings domain(String domainName) {
+			return DomainSettings.local();
+		}
+
+		@Override
+		public PatientDownloadResult fetchPatient(DomainSettings settings,
+				Identificator patientId, FetchThrottle throttle) {
+			final PatientDownloadResult result = new PatientDownloadResult(patientId.getRoot(),
+					patientId.getExtension());
+			if ("gate".equals(patientId.getExtension())) {
+				gateEntered.countDown();
+				try {
+					gate.await();
+				} catch (final InterruptedException e) {
+					gateInterrupted = true;
+					Thread.currentThread().interrupt();
+					result.setError("interrupted");
+					return result;
+				}
+			}
+			fetched.add(patientId.getExtension());
+			return result;
+		}
+	}
+
+	private final FakeFetcher fetcher = new FakeFetcher();
+
+	private PrefetchScheduler scheduler;
+
+	@After
+	public void shutdown() {
+		fetcher.gate.countDown();
+		if (scheduler != null) {
+			scheduler.shutdown();
+		}
+	}
+
+	private static void awaitDone(PrefetchCohort cohort) throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + 5000;
+		while (!cohort.isDone() && (System.currentTimeMillis() < deadline)) {
+			Thread.sleep(10);
+		}
+		assertTrue(cohort.toString(), cohort.isDone());
+	}
+
+	/** A window that opens in two hours. */
+	private static OffPeakWindow closedWindow() {
+		final DateTimeFormatter format = DateTimeFormatter.ofPattern("HH:mm");
+		final LocalTime now = LocalTime.now();
+		return OffPeakWindow.parse(
+				now.plusHours(2).format(format) + "-" + now.plusHours(3).format(format));
+	}
+
+	@Test
+	public void higherPriorityRunsFirstThenSubmissionOrder() throws InterruptedException {
+		scheduler = new PrefetchScheduler(fetcher, 1, OffPeakWindow.ALWAYS, 1000, 1000);
+		final PrefetchCohort gate = scheduler.submit(null, "1.2.3",
+				Collections.singletonList("gate"), 0);
+		assertTrue(fetcher.gateEntered.await(5, TimeUnit.SECONDS));
+		final PrefetchCohort low = scheduler.submit(null, "1.2.3", Arrays.asList("a", "b"), 0);
+		final PrefetchCohort high = scheduler.submit(null, "1.2.3", Arrays.asList("c"), 5);
+		assertEquals(3, scheduler.getQueueLength());
+		fetcher.gate.countDown();
+		awaitDone(low);
+		awaitDone(high);
+		awaitDone(gate);
+		assertEquals(Arrays.asList("gate", "c", "a", "b"), fetcher.fetched);
+		assertEquals(2, low.getCompleted());
+		assertEquals(0, low.getRemaining());
+	}
+
+	@Test
+	public void nothingIsFetchedWhileTheWindowIsClosed() throws InterruptedException {
+		scheduler = new PrefetchScheduler(fetcher, 1, closedWindow(), 1000, 1000);
+		final PrefetchCohort cohort = scheduler.submit(null, "1.2.3", Arrays.asList("a"), 0);
+		Thread.sleep(200);
+		assertTrue(fetcher.fetched.isEmpty());
+		assertEquals(1, scheduler.getQueueLength());
+		// waiting workers see the new window at once
+		scheduler.setWindow(OffPeakWindow.ALWAYS);
+		awaitDone(cohort);
+		assertEquals(Arrays.asList("a"), fetcher.fetched);
+	}
+
+	@Test
+	public void cancelDropsTheWaitingPatients() throws InterruptedException {
+		scheduler = new PrefetchScheduler(fetcher, 1, closedWindow(), 1000, 1000);
+		final PrefetchCohort cohort = scheduler.submit(null, "1.2.3", Arrays.asList("a", "b"),
+				0);
+		assertTrue(scheduler.cancel(cohort.getId()));
+		assertFalse(scheduler.cancel(cohort.getId()));
+		assertEquals(0, scheduler.getQueueLength());
+		assertTrue(cohort.isCancelled());
+		scheduler.setWindow(OffPeakWindow.ALWAYS);
+		Thread.sleep(100);
+		assertTrue(fetcher.fetched.isEmpty());
+	}
+
+	@Test
+	public void shutdownInterruptsTheFetchAndCancelsUnfinishedCohorts()
+			throws InterruptedException {
+		scheduler = new PrefetchScheduler(fetcher, 1, OffPeakWindow.ALWAYS, 1000, 1000);
+		final PrefetchCohort cohort = scheduler.submit(null, "1.2.3",
+				Arrays.asList("gate", "a"), 0);
+		assertTrue(fetcher.gateEntered.await(5, TimeUnit.SECONDS));
+		scheduler.shutdown();
+		awaitDone(cohort);
+		assertTrue(cohort.isCancelled());
+		assertEquals(0, scheduler.getQueueLength());
+		final long deadline = System.currentTimeMillis() + 5000;
+		while (!fetcher.gateInterrupted && (System.currentTimeMillis() < deadline)) {
+			Thread.sleep(10);
+		}
+		assertTrue(fetcher.gateInterrupted);
+		assertTrue(fetcher.fetched.isEmpty());
+	}
+}
@@ -0,0 +1,109 @@
+/*
+ * The authorship of this project and accompanying materials is held by medshare GmbH, Switzerland.
+ * All rights reserved. https://medshare.net
+ *
+ * Source code, documentation and other resources have been contributed by various people.
+ * Project Team: https://gitlab.com/ehealth-connector/api/wikis/Team/
+ * For exact developer information, please refer to the commit history of the forge.
+ *
+ * This code is made available under the terms of the Eclipse Public License v1.0.
+ *
+ * Accompanying materials are made available under the terms of the Creative Commons
+ * Attribution-ShareAlike 4.0 License.
+ *
+ * This line is intended for UTF-8 encoding checks, do not modify/delete: Ã¤Ã¶Ã¼Ã©Ã¨
+ *
+ */
+package connector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PresenceIndexTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path indexFile() {
+		return folder.getRoot().toPath().resolve(".index").resolve("presence.idx");
+	}
+
+	@Test
+	public void addAndContains() throws IOException {
+		try (PresenceIndex index = new PresenceIndex(indexFile(), 16)) {
+			assertTrue(index.add("p1/p1_d1.xml"));
+			assertFalse(index.add("p1/p1_d1.xml"));
+			assertTrue(index.contains("p1/p1_d1.xml"));
+			assertFalse(index.contains("p1/p1_d2.xml"));
+			assertEquals(1, index.getCount());
+		}
+	}
+
+	@Test
+	public void growKeepsKeys() throws IOException {
+		try (PresenceIndex index = new PresenceIndex(indexFile(), 16)) {
+			// the smallest table has 1024 slots and grows at half load
+			for (int i = 0; i < 5000; i++) {
+				assertTrue(index.add("p/p_" + i + ".xml"));
+			}
+			assertEquals(5000, index.getCount());
+			for (int i = 0; i < 5000; i++) {
+				assertTrue(index.contains("p/p_" + i + ".xml"));
+			}
+			assertFalse(index.contains("p/p_5000.xml"));
+		}
+	}
+
+	@Test
+	public void reopenKeepsKeysAndScanTime() throws IOException {
+		try (PresenceIndex index = new PresenceIndex(indexFile(), 16)) {
+			for (int i = 0; i < 2000; i++) {
+				index.add("p/p_" + i + ".xml");
+			}
+			index.setLastScan(12345L);
+		}
+		try (PresenceIndex index = new PresenceIndex(indexFile(), 16)) {
+			assertEquals(2000, index.getCount());
+			assertEquals(12345L, index.getLastScan());
+			assertTrue(index.contains("p/p_0.xml"));
+			assertTrue(index.contains("p/p_1999.xml"));
+			assertFalse(index.contains("p/p_2000.xml"));
+		}
+	}
+
+	@Test
+	public void clearDropsKeysAndScanTime() throws IOException {
+		try (PresenceIndex index = new PresenceIndex(indexFile(), 16)) {
+			index.add("p/p_1.xml");
+			index.setLastScan(12345L);
+			index.clear();
+			assertEquals(0, index.getCount());
+			assertEquals(0L, index.getLastScan());
+			assertFalse(index.contains("p/p_1.xml"));
+			assertTrue(index.add("p/p_1.xml"));
+		}
+		try (PresenceIndex index = new PresenceIndex(indexFile(), 16)) {
+			assertEquals(1, index.getCount());
+		}
+	}
+
+	@Test
+	public void fileNamesOfDistinctIdsDiffer() {
+		assertEquals("1.2.40.0.34", FileSystemDocumentStore.toFileName("1.2.40.0.34"));
+		assertFalse(FileSystemDocumentStore.relativeName("1.2^x", "d")
+				.equals(FileSystemDocumentStore.relativeName("1.2_x", "d")));
+		assertFalse(FileSystemDocumentStore.toFileName("a/b")
+				.equals(FileSystemDocumentStore.toFileName("a_b")));
+		assertFalse(FileSystemDocumentStore.toFileName("..").startsWith("."));
+		assertFalse(FileSystemDocumentStore.toFileName("../x").contains("/"));
+	}
+
+}
@@ -0,0 +1,117 @@
+/*
+ * The authorship of this project and accompanying materials is held by medshare GmbH, Switzerland.
+ * All rights reserved. https://medshare.net
+ *
+ * Source code, documentation and other resources have been contributed by various people.
+ * Project Team: https://gitlab.com/ehealth-connector/api/wikis/Team/
+ * For exact developer information, please refer to the commit history of the forge.
+ *
+ * This code is made available under the terms of the Eclipse Public License v1.0.
+ *
+ * Accompanying materials are made available under the terms of the Creative Commons
+ * Attribution-ShareAlike 4.0 License.
+ *
+ * This line is intended for UTF-8 encoding checks, do not modify/delete: Ã¤Ã¶Ã¼Ã©Ã¨
+ *
+ */
+package connector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.URI;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.openhealthtools.ihe.xds.response.XDSQueryResponseType;
+
+public class ResilientTransportTest {
+
+	/** Waits like a blocking socket read, which an interrupt does not end. */
+	private static void awaitUninterruptibly(CountDownLatch latch) {
+		boolean interrupted = false;
+		while (latch.getCount() > 0) {
+			try {
+				latch.await();
+			} catch (final InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Test
+	public void abandonedCallKeepsItsPermit() throws Exception {
+		final URI endpoint = new URI("http://localhost/registry");
+		final EndpointLimiter limiter = new EndpointLimiter(1);
+		final ResilientTransport transport = new ResilientTransport(limiter,
+				new XdsMetrics(60 * 1000L), 50, 1, 1, 1, 5, 1000, 4);
+		final CountDownLatch hanging = new CountDownLatch(1);
+		try {
+			transport.execute(new PooledClient("test", null), endpoint,
+					XdsMetrics.Transaction.ITI18_METADATA, true, conCom -> {
+						awaitUninterruptibly(hanging);
+						return (XDSQueryResponseType) null;
+					});
+			fail("the call should time out");
+		} catch (final XdsTransportException e) {
+			assertEquals(XdsTransportException.Reason.TIMEOUT, e.getReason());
+		}
+
+		// the abandoned call still holds the only slot of the endpoint
+		final CountDownLatch acquired = new CountDownLatch(1);
+		final Thread next = new Thread(() -> {
+			try {
+				limiter.acquire(endpoint).release();
+				acquired.countDown();
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		next.start();
+		assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+		hanging.countDown();
+		assertTrue(acquired.await(5, TimeUnit.SECONDS));
+		transport.shutdown();
+	}
+
+	@Test
+	public void exhaustedCallThreadsDoNotOpenTheCircuit() throws Exception {
+		final URI endpoint = new URI("http://localhost/registry");
+		final ResilientTransport transport = new ResilientTransport(new EndpointLimiter(2),
+				new XdsMetrics(60 * 1000L), 50, 1, 1, 1, 1, 60 * 1000L, 1);
+		final CountDownLatch hanging = new CountDownLatch(1);
+		try {
+			transport.execute(new PooledClient("test", null), endpoint,
+					XdsMetrics.Transaction.ITI18_METADATA, true, conCom -> {
+						awaitUninterruptibly(hanging);
+						return (XDSQueryResponseType) null;
+					});
+			fail("the call should time out");
+		} catch (final XdsTransportException e) {
+			assertEquals(XdsTransportException.Reason.TIMEOUT, e.getReason());
+		}
+		// the timeout opened the circuit, close it for the next call
+		transport.getCircuitBreaker(endpoint).onSuccess();
+
+		// the only call thread is still busy with the abandoned call
+		try {
+			transport.execute(new PooledClient("test", null), endpoint,
+					XdsMetrics.Transaction.ITI18_METADATA, true,
+					conCom -> (XDSQueryResponseType) null);
+			fail("no call thread should be free");
+		} catch (final XdsTransportException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("no call thread free"));
+		}
+		assertEquals(CircuitBreaker.State.CLOSED,
+				transport.getCircuitBreaker(endpoint).getState());
+		hanging.countDown();
+		transport.shutdown();
+	}
+
+}
@@ -0,0 +1,134 @@
+/*
+ * The authorship of this project and accompanying materials is held by medshare GmbH, Switzerland.
+ * All rights reserved. https://medshare.net
+ *
+ * Source code, documentation and other resources have been contributed by various people.
+ * Project Team: https://gitlab.com/ehealth-connector/api/wikis/Team/
+ * For exact developer information, please refer to the commit history of the forge.
+ *
+ * This code is made available under the terms of the Eclipse Public License v1.0.
+ *
+ * Accompanying materials are made available under the terms of the Creative Commons
+ * Attribution-ShareAlike 4.0 License.
+ *
+ * This line is intended for UTF-8 encoding checks, do not modify/delete: Ã¤Ã¶Ã¼Ã©Ã¨
+ *
+ */
+package connector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.openhealthtools.ihe.xds.metadata.DocumentEntryType;
+
+public class SyncJournalTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static DocumentEntryType entry(String uuid, String uniqueId, String hash,
+			long size) {
+		return (DocumentEntryType) Proxy.newProxyInstance(
+				DocumentEntryType.class.getClassLoader(),
+				new Class<?>[] { DocumentEntryType.class }, (proxy, method, args) -> {
+					switch (method.getName()) {
+					case "getEntryUUID":
+						return uuid;
+					case "getUniqueId":
+						return uniqueId;
+					case "getRepositoryUniqueId":
+						return "1.2.3.4";
+					case "getHash":
+						return hash;
+					case "getSize":
+						return BigInteger.valueOf(size);
+					default:
+						return null;
+					}
+				});
+	}
+
+	@Test
+	public void saveAndLoadRoundTrip() throws IOException {
+		final SyncJournal journal = new SyncJournal(folder.getRoot().toPath());
+		final SyncJournal.PatientJournal saved = journal.load("local|1.2.3|p/1");
+		assertTrue(saved.getEntries().isEmpty());
+		assertEquals(0, saved.getLastSync());
+		saved.put(new SyncJournal.Entry(entry("urn:uuid:1", "doc1", "abc", 10)));
+		saved.put(new SyncJournal.Entry("urn:uuid:2", "doc2", null, null, null, null));
+		saved.setLastSync(1234L);
+		journal.save(saved);
+
+		final SyncJournal.PatientJournal loaded = new SyncJournal(folder.getRoot().toPath())
+				.load("local|1.2.3|p/1");
+		assertEquals(1234L, loaded.getLastSync());
+		assertEquals(Arrays.asList("urn:uuid:1", "urn:uuid:2"),
+				Arrays.asList(loaded.getEntries().keySet().toArray()));
+		final SyncJournal.Entry first = loaded.get("urn:uuid:1");
+		assertEquals("doc1", first.getUniqueId());
+		assertEquals("1.2.3.4", first.getRepositoryUniqueId());
+		assertEquals("abc", first.getHash());
+		assertEquals("10", first.getSize());
+		assertNull(first.getCreationTime());
+		final SyncJournal.Entry second = loaded.get("urn:uuid:2");
+		assertNull(second.getRepositoryUniqueId());
+		assertNull(second.getHash());
+		// other patients are not affected
+		assertTrue(journal.load("local|1.2.3|p/2").getEntries().isEmpty());
+	}
+
+	@Test
+	public void journalOfEarlierVersionsIsFoundByItsLegacyName() throws IOException {
+		final Path directory = folder.getRoot().toPath();
+		final String patientKey = "local|1.2.3|p1";
+		Files.write(directory.resolve(FileSystemDocumentStore.toLegacyFileName(patientKey)
+				+ ".journal"), ("#lastSync=99\nurn:uuid:1\tdoc1\t1.2.3.4\tabc\t10\t20240101\n")
+						.getBytes(StandardCharsets.UTF_8));
+		final SyncJournal journal = new SyncJournal(directory);
+		final SyncJournal.PatientJournal legacy = journal.load(patientKey);
+		assertEquals(99L, legacy.getLastSync());
+		assertEquals("20240101", legacy.get("urn:uuid:1").getCreationTime());
+
+		// saved under the escaped name, which is read from then on
+		legacy.setLastSync(100L);
+		journal.save(legacy);
+		assertTrue(Files.exists(directory
+				.resolve(FileSystemDocumentStore.toFileName(patientKey) + ".journal")));
+		assertEquals(100L, journal.load(patientKey).getLastSync());
+	}
+
+	@Test
+	public void unchangedEntryIsSameContent() {
+		final SyncJournal.Entry known = new SyncJournal.Entry(
+				entry("urn:uuid:1", "doc1", "abc", 10));
+		// a new entryUUID of the same content, e.g. after a metadata update
+		assertTrue(known.isSameContent(entry("urn:uuid:9", "doc1", "abc", 10)));
+		assertFalse(known.isSameContent(entry("urn:uuid:1", "doc1", "abd", 10)));
+		assertFalse(known.isSameContent(entry("urn:uuid:1", "doc1", "abc", 11)));
+		assertFalse(known.isSameContent(entry("urn:uuid:1", "doc2", "abc", 10)));
+	}
+
+	@Test
+	public void malformedLinesAreSkipped() throws IOException {
+		final Path directory = folder.getRoot().toPath();
+		Files.write(directory.resolve(FileSystemDocumentStore.toFileName("p") + ".journal"),
+				("#lastSync=5\n\nnot a record\nurn:uuid:1\tdoc1\t\t\t\t\n")
+						.getBytes(StandardCharsets.UTF_8));
+		final SyncJournal.PatientJournal journal = new SyncJournal(directory).load("p");
+		assertEquals(1, journal.getEntries().size());
+		assertNull(journal.get("urn:uuid:1").getHash());
+	}
+}
@@ -0,0 +1,59 @@
+/*
+ * The authorship of this project and accompanying materials is held by medshare GmbH, Switzerland.
+ * All rights reserved. https://medshare.net
+ *
+ * Source code, documentation and other resources have been contributed by various people.
+ * Project Team: https://gitlab.com/ehealth-connector/api/wikis/Team/
+ * For exact developer information, please refer to the commit history of the forge.
+ *
+ * This code is made available under the terms of the Eclipse Public License v1.0.
+ *
+ * Accompanying materials are made available under the terms of the Creative Commons
+ * Attribution-ShareAlike 4.0 License.
+ *
+ * This line is intended for UTF-8 encoding checks, do not modify/delete: Ã¤Ã¶Ã¼Ã©Ã¨
+ *
+ */
+package connector;
+
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TokenBucketTest {
+
+	@Test
+	public void fullBucketServesTheBurstAtOnce() throws InterruptedException {
+		final TokenBucket bucket = new TokenBucket(1, 5);
+		final long start = System.nanoTime();
+		for (int i = 0; i < 5; i++) {
+			bucket.acquire(1);
+		}
+		// refilling a single token would take a second
+		assertTrue(System.nanoTime() - start < 500 * 1000000L);
+	}
+
+	@Test
+	public void emptyBucketWaitsForTheRefill() throws InterruptedException {
+		final TokenBucket bucket = new TokenBucket(20, 1);
+		bucket.acquire(1);
+		final long start = System.nanoTime();
+		bucket.acquire(1);
+		bucket.acquire(1);
+		// two tokens at 20 per second
+		assertTrue(System.nanoTime() - start >= 80 * 1000000L);
+	}
+
+	@Test
+	public void permitsAboveTheBurstAreCapped() throws InterruptedException {
+		final TokenBucket bucket = new TokenBucket(1, 2);
+		final long start = System.nanoTime();
+		bucket.acquire(100);
+		assertTrue(System.nanoTime() - start < 500 * 1000000L);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rateMustBePositive() {
+		new TokenBucket(0, 1);
+	}
+}
@@ -0,0 +1,151 @@
+/*
+ * The authorship of this project and accompanying materials is held by medshare GmbH, Switzerland.
+ * All rights reserved. https://medshare.net
+ *
+ * Source code, documentation and other resources have been contributed by various people.
+ * Project Team: https://gitlab.com/ehealth-connector/api/wikis/Team/
+ * For exact developer information, please refer to the commit history of the forge.
+ *
+ * This code is made available under the terms of the Eclipse Public License v1.0.
+ *
+ * Accompanying materials are made available under the terms of the Creative Commons
+ * Attribution-ShareAlike 4.0 License.
+ *
+ * This line is intended for UTF-8 encoding checks, do not modify/delete: Ã¤Ã¶Ã¼Ã©Ã¨
+ *
+ */
+package connector;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TransferSegmentsTest {
+
+	private static final int GRANULARITY = DocumentTransfer.MAPPING_GRANULARITY;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static byte[] content(int size, int seed) {
+		final byte[] content = new byte[size];
+		for (int i = 0; i < size; i++) {
+			content[i] = (byte) (i * 31 + seed);
+		}
+		return content;
+	}
+
+	private static byte[] read(DocumentTransfer transfer) throws IOException {
+		try (FileChannel channel = FileChannel.open(Paths.get(transfer.getPath()))) {
+			final ByteBuffer buffer = ByteBuffer.allocate((int) transfer.getLength());
+			while (buffer.hasRemaining()
+					&& (channel.read(buffer, transfer.getOffset() + buffer.position()) > 0)) {
+				// reads the region
+			}
+			return buffer.array();
+		}
+	}
+
+	private TransferSegments segments() {
+		return new TransferSegments(folder.getRoot().toPath().resolve("segments"),
+				60 * 60 * 1000L);
+	}
+
+	@Test
+	public void documentsAreAppendedAtAlignedOffsets() throws IOException {
+		final byte[][] documents = { content(10, 1), content(GRANULARITY + 100, 2),
+				content(GRANULARITY, 3), content(5, 4) };
+		final DocumentTransfer[] transfers = new DocumentTransfer[documents.length];
+		try (TransferSegments.Segment segment = segments().create()) {
+			for (int i = 0; i < documents.length; i++) {
+				transfers[i] = segment.append("doc" + i,
+						new ByteArrayInputStream(documents[i]));
+			}
+		}
+		assertEquals(Arrays.asList(0L, 1L * GRANULARITY, 3L * GRANULARITY,
+				4L * GRANULARITY), Arrays.asList(transfers[0].getOffset(),
+						transfers[1].getOffset(), transfers[2].getOffset(),
+						transfers[3].getOffset()));
+		for (int i = 0; i < documents.length; i++) {
+			assertEquals(0, transfers[i].getOffset() % GRANULARITY);
+			assertEquals(documents[i].length, transfers[i].getLength());
+			assertTrue(transfers[i].isReleasable());
+			assertFalse(transfers[i].isInline());
+			assertArrayEquals(documents[i], read(transfers[i]));
+		}
+	}
+
+	@Test
+	public void documentsUpToTheInlineLimitArePassedByValue() throws IOException {
+		final Path file = folder.newFile("doc.xml").toPath();
+		final byte[] content = content(1000, 5);
+		Files.write(file, content);
+
+		final DocumentTransfer inline = DocumentTransfer.ofFile("doc", file, 1000);
+		assertTrue(inline.isInline());
+		assertArrayEquals(content, inline.getContent());
+		assertNull(inline.getPath());
+
+		final DocumentTransfer mapped = DocumentTransfer.ofFile("doc", file, 999);
+		assertFalse(mapped.isInline());
+		assertEquals(file.toString(), mapped.getPath());
+		assertEquals(0, mapped.getOffset());
+		assertEquals(1000, mapped.getLength());
+		// a file of the document store is never released
+		assertFalse(mapped.isReleasable());
+	}
+
+	@Test
+	public void releaseDeletesOnlySegmentsOfItsDirectory() throws IOException {
+		final TransferSegments segments = segments();
+		final DocumentTransfer transfer;
+		try (TransferSegments.Segment segment = segments.create()) {
+			transfer = segment.append("doc", new ByteArrayInputStream(content(10, 6)));
+		}
+		final Path outside = folder.newFile("outside.bin").toPath();
+		final Path nested = Files.createDirectories(segments.getDirectory().resolve("nested"))
+				.resolve("segment-1.bin");
+		Files.write(nested, new byte[1]);
+
+		assertFalse(segments.release(outside.toString()));
+		assertFalse(segments.release(
+				segments.getDirectory().resolve("..").resolve("outside.bin").toString()));
+		assertFalse(segments.release(nested.toString()));
+		assertTrue(Files.exists(outside));
+		assertTrue(Files.exists(nested));
+
+		assertTrue(segments.release(transfer.getPath()));
+		assertFalse(Files.exists(Paths.get(transfer.getPath())));
+		assertFalse(segments.release(transfer.getPath()));
+	}
+
+	@Test
+	public void expiredSegmentsAreDeletedByTheNextCreate() throws IOException {
+		final TransferSegments segments = segments();
+		final Path expired;
+		try (TransferSegments.Segment segment = segments.create()) {
+			expired = Paths.get(segment.append("doc", new ByteArrayInputStream(content(10, 7)))
+					.getPath());
+		}
+		Files.setLastModifiedTime(expired,
+				FileTime.fromMillis(System.currentTimeMillis() - 2 * 60 * 60 * 1000L));
+		segments.create().close();
+		assertFalse(Files.exists(expired));
+	}
+}
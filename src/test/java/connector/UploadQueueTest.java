@@ -0,0 +1,225 @@
+/*
+ * The authorship of this project and accompanying materials is held by medshare GmbH, Switzerland.
+ * All rights reserved. https://medshare.net
+ *
+ * Source code, documentation and other resources have been contributed by various people.
+ * Project Team: https://gitlab.com/ehealth-connector/api/wikis/Team/
+ * For exact developer information, please refer to the commit history of the forge.
+ *
+ * This code is made available under the terms of the Eclipse Public License v1.0.
+ *
+ * Accompanying materials are made available under the terms of the Creative Commons
+ * Attribution-ShareAlike 4.0 License.
+ *
+ * This line is intended for UTF-8 encoding checks, do not modify/delete: Ã¤Ã¶Ã¼Ã©Ã¨
+ *
+ */
+package connector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.ehealth_connector.common.mdht.Identificator;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.openhealthtools.ihe.xds.response.XDSResponseType;
+import org.openhealthtools.ihe.xds.response.XDSStatusType;
+
+public class UploadQueueTest {
+
+	/** A registry and repository in memory. */
+	private static class FakeTarget implements UploadQueue.Target {
+
+		/** The uniqueIds in the registry. */
+		final Set<String> registered = Collections
+				.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+		/** The uniqueIds the repository answers with a failure. */
+		final Set<String> failing = Collections
+				.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+		final AtomicInteger submissions = new AtomicInteger();
+
+		@Override
+		public DomainSettings domain(String domainName) {
+			return null;
+		}
+
+		@Override
+		public boolean isDocumentRegistered(DomainSettings settings, Identificator patientId,
+				String documentId) {
+			return registered.contains(documentId);
+		}
+
+		@Override
+		public XDSResponseType submitDocuments(DomainSettings settings, Identificator patientId,
+				Map<String, byte[]> documents) {
+			submissions.incrementAndGet();
+			final String documentId = documents.keySet().iterator().next();
+			if (failing.contains(documentId)) {
+				return response(XDSStatusType.FAILURE_LITERAL);
+			}
+			registered.add(documentId);
+			return response(XDSStatusType.SUCCESS_LITERAL);
+		}
+	}
+
+	private static XDSResponseType response(XDSStatusType status) {
+		return (XDSResponseType) Proxy.newProxyInstance(XDSResponseType.class.getClassLoader(),
+				new Class<?>[] { XDSResponseType.class },
+				(proxy, method, args) -> "getStatus".equals(method.getName()) ? status : null);
+	}
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private UploadQueue open(UploadQueue.Target target, Path directory) throws Exception {
+		return new UploadQueue(target, directory, 2, 2, 1, 60 * 1000L);
+	}
+
+	private BulkUploader.Item item(String documentId) throws Exception {
+		final Path file = folder.getRoot().toPath().resolve(documentId + ".xml");
+		Files.write(file, "<ClinicalDocument/>".getBytes(StandardCharsets.UTF_8));
+		return new BulkUploader.Item(file, new Identificator("1.2", "p1"), documentId);
+	}
+
+	private String report(Path directory) throws Exception {
+		return new String(Files.readAllBytes(directory.resolve("uploads.report")),
+				StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void uploadsAndSkipsRegisteredDocuments() throws Exception {
+		final Path directory = folder.newFolder("queue").toPath();
+		final FakeTarget target = new FakeTarget();
+		target.registered.add("doc2");
+		final UploadQueue queue = open(target, directory);
+		try {
+			assertEquals(3, queue.enqueue(null,
+					Arrays.asList(item("doc1"), item("doc2"), item("doc3"))));
+			assertTrue(queue.awaitDrained(10 * 1000L));
+			assertEquals(2, queue.getUploaded());
+			assertEquals(1, queue.getAlreadyPresent());
+			assertEquals(0, queue.getFailed());
+			assertEquals(2, target.submissions.get());
+		} finally {
+			queue.close();
+		}
+		assertTrue(report(directory).contains("ALREADY_PRESENT\tp1\tdoc2\t"));
+	}
+
+	@Test
+	public void failedSubmissionIsRetriedUpToMaxAttempts() throws Exception {
+		final Path directory = folder.newFolder("queue").toPath();
+		final FakeTarget target = new FakeTarget();
+		target.failing.add("doc1");
+		final UploadQueue queue = open(target, directory);
+		try {
+			queue.enqueue(null, Collections.singletonList(item("doc1")));
+			assertTrue(queue.awaitDrained(10 * 1000L));
+			assertEquals(1, queue.getFailed());
+			assertEquals(2, target.submissions.get());
+		} finally {
+			queue.close();
+		}
+		assertTrue(report(directory).contains("FAILED\tp1\tdoc1\t"));
+	}
+
+	@Test
+	public void invalidItemRejectsTheWholeEnqueue() throws Exception {
+		final Path directory = folder.newFolder("queue").toPath();
+		final FakeTarget target = new FakeTarget();
+		final UploadQueue queue = open(target, directory);
+		try {
+			try {
+				queue.enqueue(null, Arrays.asList(item("doc1"), new BulkUploader.Item(
+						item("doc2").getFile(), new Identificator("1.2", "p1"), "doc\t2")));
+				fail("a tab cannot be journaled");
+			} catch (final IllegalArgumentException e) {
+				// expected
+			}
+			assertEquals(0, queue.getPending());
+			assertTrue(queue.awaitDrained(1000L));
+			// doc1 was not left behind as pending, it is accepted again
+			assertEquals(1, queue.enqueue(null, Collections.singletonList(item("doc1"))));
+			assertTrue(queue.awaitDrained(10 * 1000L));
+			assertEquals(1, queue.getUploaded());
+		} finally {
+			queue.close();
+		}
+		final String journal = new String(
+				Files.readAllBytes(directory.resolve("uploads.journal")),
+				StandardCharsets.UTF_8);
+		assertFalse(journal, journal.contains("doc\t2"));
+	}
+
+	@Test
+	public void recoverIgnoresTornLastRecord() throws Exception {
+		final Path directory = folder.newFolder("queue").toPath();
+		final String doc1 = item("doc1").getFile().toString();
+		final String journal = "E\t1\t-\t1.2\tp1\tdoc1\t" + doc1 + "\n"
+				+ "E\t2\t-\t1.2\tp2\tdoc2\t/tmp/doc2.xml\n"
+				+ "D\t2\tUPLOADED\n"
+				// all seven fields, but the path is cut
+				+ "E\t3\t-\t1.2\tp3\tdoc3\t/tmp/do";
+		Files.write(directory.resolve("uploads.journal"),
+				journal.getBytes(StandardCharsets.UTF_8));
+
+		final FakeTarget target = new FakeTarget();
+		final UploadQueue queue = open(target, directory);
+		try {
+			assertTrue(queue.awaitDrained(10 * 1000L));
+			// only doc1 was resumed
+			assertEquals(1, queue.getUploaded());
+			assertEquals(0, queue.getFailed());
+			assertEquals(Collections.singleton("doc1"), target.registered);
+		} finally {
+			queue.close();
+		}
+	}
+
+	@Test
+	public void journalIsCompactedOnceFinishedUploadsDominate() throws Exception {
+		final Path directory = folder.newFolder("queue").toPath();
+		final List<BulkUploader.Item> items = new ArrayList<BulkUploader.Item>();
+		for (int i = 0; i < 3000; i++) {
+			items.add(item("doc" + i));
+		}
+		final UploadQueue queue = open(new FakeTarget(), directory);
+		try {
+			assertEquals(3000, queue.enqueue(null, items));
+			assertTrue(queue.awaitDrained(30 * 1000L));
+			assertEquals(3000, queue.getUploaded());
+		} finally {
+			queue.close();
+		}
+		// 6000 records without compaction, at most the ones since the last
+		final long records = Files.readAllLines(directory.resolve("uploads.journal")).size();
+		assertTrue("journal records: " + records, records < 3000);
+
+		// nothing is resumed from the compacted journal
+		final UploadQueue reopened = open(new FakeTarget(), directory);
+		try {
+			assertEquals(0, reopened.getPending());
+		} finally {
+			reopened.close();
+		}
+	}
+
+}
@@ -0,0 +1,157 @@
+/*
+ * The authorship of this project and accompanying materials is held by medshare GmbH, Switzerland.
+ * All rights reserved. https://medshare.net
+ *
+ * Source code, documentation and other resources have been contributed by various people.
+ * Project Team: https://gitlab.com/ehealth-connector/api/wikis/Team/
+ * For exact developer information, please refer to the commit history of the forge.
+ *
+ * This code is made available under the terms of the Eclipse Public License v1.0.
+ *
+ * Accompanying materials are made available under the terms of the Creative Commons
+ * Attribution-ShareAlike 4.0 License.
+ *
+ * This line is intended for UTF-8 encoding checks, do not modify/delete: Ã¤Ã¶Ã¼Ã©Ã¨
+ *
+ */
+package connector;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.URISyntaxException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import org.openhealthtools.ihe.xds.metadata.DocumentEntryType;
+
+import py4j.GatewayServer;
+
+/**
+ * <div class="en">Runs the query, retrieve and submit paths of the connector
+ * once against a {@link StubXdsServer}. Used as the training run of the class
+ * data sharing archive, so the classes of the eHealth Connector, OHT, Axis,
+ * EMF and py4j used by these paths are archived, and to measure the time from
+ * JVM start to the first successful call.
+ *
+ * <p>
+ * Runs in its own JVM: the document store and the upload journal point to a
+ * temporary directory that is deleted afterwards.</div>
+ */
+public final class StartupWarmUp {
+
+	/** The system property holding the number of rounds. */
+	public static final String PROPERTY_ROUNDS = "connector.warmUp.rounds";
+
+	/** The assigning authority of the warm-up patients. */
+	private static final String PATIENT_OID = "1.2.40.0.34.99.4613.3.4";
+
+	/** The number of documents of every warm-up patient. */
+	private static final int DOCUMENTS_PER_PATIENT = 3;
+
+	public static void main(String[] args) throws Exception {
+		final Path root = Files.createTempDirectory("xds-warmup");
+		System.setProperty(FileSystemDocumentStore.PROPERTY_ROOT, root.toString());
+		System.setProperty(UploadQueue.PROPERTY_DIRECTORY, root.resolve(".uploads").toString());
+		System.setProperty(TransferSegments.PROPERTY_DIRECTORY, root.resolve(".transfer").toString());
+		final StubXdsServer stub = new StubXdsServer(0, DOCUMENTS_PER_PATIENT, 0, 0);
+		try {
+			run(stub, root, Integer.getInteger(PROPERTY_ROUNDS, 3));
+		} finally {
+			stub.stop();
+			deleteTree(root);
+		}
+		// the archive is only written at exit, pool threads must not keep the JVM
+		System.exit(0);
+	}
+
+	private static void run(StubXdsServer stub, Path root, int rounds)
+			throws IOException, URISyntaxException, InterruptedException {
+		final long start = System.nanoTime();
+		final XDSConnector connector = new XDSConnector(stub.getDomainSettings());
+		print("connector created", start);
+
+		final Path seed = root.resolve("seed.xml");
+		try (InputStream in = StubXdsServer.class
+				.getResourceAsStream(StubXdsServer.SEED_DOCUMENT)) {
+			Files.copy(in, seed, StandardCopyOption.REPLACE_EXISTING);
+		}
+
+		for (int round = 1; round <= rounds; round++) {
+			final String patient = "warmup-" + round;
+			String documentId = null;
+			try (DocumentEntryIterator entries = connector.queryDocumentEntries(null,
+					PATIENT_OID, patient)) {
+				while (entries.hasNext()) {
+					final DocumentEntryType entry = entries.next();
+					if (documentId == null) {
+						documentId = entry.getUniqueId();
+					}
+				}
+			}
+			if (round == 1) {
+				print("first query", start);
+			}
+			if (documentId != null) {
+				connector.queryDocumentWithId(PATIENT_OID, patient, documentId);
+				final DocumentTransfer transfer = connector.fetchDocument(PATIENT_OID, patient,
+						documentId);
+				if (transfer.isReleasable()) {
+					connector.releaseTransfer(transfer.getPath());
+				}
+			}
+			connector.downloadPatientFiles(PATIENT_OID, patient);
+			if (round == 1) {
+				print("first retrieve", start);
+			}
+			final String newDocumentId = XDSConnector.ORGANIZATIONAL_ID + ".99." + round;
+			connector.validateNewDocument(PATIENT_OID, patient, newDocumentId);
+			connector.uploadDocument(PATIENT_OID, patient, newDocumentId, seed.toString());
+			if (round == 1) {
+				print("first submission", start);
+			}
+		}
+
+		// the py4j classes of the gateway
+		final GatewayServer gateway = new GatewayServer(connector, 0);
+		gateway.start();
+		gateway.shutdown();
+
+		System.out.println("Warm-up: " + stub.getQueryCount() + " queries, "
+				+ stub.getRetrieveCount() + " retrieves, " + stub.getSubmissionCount()
+				+ " submissions in " + rounds + " rounds");
+		System.out.println(connector.getMetrics().getText());
+	}
+
+	private static void print(String step, long start) {
+		System.out.println("Warm-up: " + step + " after "
+				+ ((System.nanoTime() - start) / 1000000L) + " ms, "
+				+ ManagementFactory.getRuntimeMXBean().getUptime() + " ms after JVM start");
+	}
+
+	private static void deleteTree(Path root) throws IOException {
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException exc)
+					throws IOException {
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+					throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	private StartupWarmUp() {
+	}
+
+}
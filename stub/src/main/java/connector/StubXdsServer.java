@@ -0,0 +1,403 @@
+/*
+ * The authorship of this project and accompanying materials is held by medshare GmbH, Switzerland.
+ * All rights reserved. https://medshare.net
+ *
+ * Source code, documentation and other resources have been contributed by various people.
+ * Project Team: https://gitlab.com/ehealth-connector/api/wikis/Team/
+ * For exact developer information, please refer to the commit history of the forge.
+ *
+ * This code is made available under the terms of the Eclipse Public License v1.0.
+ *
+ * Accompanying materials are made available under the terms of the Creative Commons
+ * Attribution-ShareAlike 4.0 License.
+ *
+ * This line is intended for UTF-8 encoding checks, do not modify/delete: Ã¤Ã¶Ã¼Ã©Ã¨
+ *
+ */
+package connector;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * <div class="en">In-process stand-in for an XDS registry and repository on
+ * localhost, used for benchmarks and warm-up. It answers ITI-18
+ * FindDocuments/GetDocuments stored queries, ITI-43 retrieves and ITI-41
+ * submissions with plain SOAP 1.2. Every patient has a configurable number of
+ * documents of a configurable size, seeded from the demo CDA document.</div>
+ */
+public class StubXdsServer {
+
+	/** A document served by the stub. */
+	private static class StubDocument {
+
+		/** The patient id as sent in the query. */
+		private final String patientId;
+
+		/** The entryUUID of the document entry. */
+		private final String entryUuid;
+
+		/** The uniqueId of the document. */
+		private final String uniqueId;
+
+		StubDocument(String patientId, int index) {
+			this.patientId = patientId;
+			final UUID uuid = UUID.nameUUIDFromBytes(
+					(patientId + "#" + index).getBytes(StandardCharsets.UTF_8));
+			this.entryUuid = "urn:uuid:" + uuid;
+			this.uniqueId = "1.2.40.0.34.99.4613."
+					+ (uuid.getMostSignificantBits() & Long.MAX_VALUE) + "." + index;
+		}
+	}
+
+	/** The repositoryUniqueId of the stub repository. */
+	public static final String REPOSITORY_UNIQUE_ID = "1.1.4567332.1.2";
+
+	/** The demo document the content is seeded from. */
+	public static final String SEED_DOCUMENT = "/demoDocSource/ELGA-023-Entlassungsbrief_aerztlich_EIS-FullSupport.xml";
+
+	private static final String SUCCESS = "urn:oasis:names:tc:ebxml-regrep:ResponseStatusType:Success";
+
+	private static final String FIND_DOCUMENTS = "urn:uuid:14d4debf-8f97-4251-9a74-a90016b0af0d";
+
+	private static final Pattern MESSAGE_ID = Pattern
+			.compile("MessageID[^>]*>\\s*([^<\\s]+)\\s*<");
+
+	private static final Pattern PATIENT_ID = Pattern.compile(
+			"\\$XDSDocumentEntryPatientId\".*?Value>\\s*'?([^<']+)'?\\s*<", Pattern.DOTALL);
+
+	private static final Pattern SLOT_VALUES = Pattern.compile(
+			"\\$XDSDocumentEntry(EntryUUID|UniqueId)\".*?</(?:\\w+:)?ValueList>", Pattern.DOTALL);
+
+	private static final Pattern QUOTED = Pattern.compile("'([^']+)'");
+
+	private static final Pattern DOCUMENT_UNIQUE_ID = Pattern
+			.compile("DocumentUniqueId>\\s*([^<\\s]+)\\s*<");
+
+	/**
+	 * Creates a document of the given size from the seed document. Larger
+	 * documents are padded with a trailing comment, smaller ones are cut and
+	 * only suitable for retrieve benchmarks.
+	 */
+	private static byte[] createContent(int size) throws IOException {
+		final byte[] seed;
+		try (InputStream in = StubXdsServer.class.getResourceAsStream(SEED_DOCUMENT)) {
+			if (in == null) {
+				throw new IOException("seed document not found: " + SEED_DOCUMENT);
+			}
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			final byte[] buffer = new byte[64 * 1024];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+			}
+			seed = out.toByteArray();
+		}
+		if ((size <= 0) || (size == seed.length)) {
+			return seed;
+		}
+		if (size < seed.length) {
+			return Arrays.copyOf(seed, size);
+		}
+		final byte[] content = Arrays.copyOf(seed, size);
+		final byte[] open = "\n<!--".getBytes(StandardCharsets.US_ASCII);
+		final byte[] close = "-->\n".getBytes(StandardCharsets.US_ASCII);
+		System.arraycopy(open, 0, content, seed.length, Math.min(open.length, size - seed.length));
+		Arrays.fill(content, Math.min(size, seed.length + open.length), size, (byte) ' ');
+		if (size - seed.length >= open.length + close.length) {
+			System.arraycopy(close, 0, content, size - close.length, close.length);
+		}
+		return content;
+	}
+
+	private static String soap(String action, String relatesTo, String body) {
+		return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+				+ "<soap:Envelope xmlns:soap=\"http://www.w3.org/2003/05/soap-envelope\""
+				+ " xmlns:wsa=\"http://www.w3.org/2005/08/addressing\"><soap:Header>"
+				+ "<wsa:Action soap:mustUnderstand=\"1\">" + action + "</wsa:Action>"
+				+ (relatesTo != null ? "<wsa:RelatesTo>" + relatesTo + "</wsa:RelatesTo>" : "")
+				+ "</soap:Header><soap:Body>" + body + "</soap:Body></soap:Envelope>";
+	}
+
+	private static String slot(String name, String value) {
+		return "<rim:Slot name=\"" + name + "\"><rim:ValueList><rim:Value>" + value
+				+ "</rim:Value></rim:ValueList></rim:Slot>";
+	}
+
+	private static String find(Pattern pattern, String request) {
+		final Matcher matcher = pattern.matcher(request);
+		return matcher.find() ? matcher.group(1) : null;
+	}
+
+	/** The number of documents per patient. */
+	private final int documentsPerPatient;
+
+	/** The content served for every document. */
+	private final byte[] content;
+
+	/** The base64 encoded content. */
+	private final String encodedContent;
+
+	/** The hex encoded SHA-1 hash of the content. */
+	private final String hash;
+
+	/** The artificial latency of every request in milliseconds. */
+	private final long latencyMillis;
+
+	/** The documents handed out so far, by entryUUID and by uniqueId. */
+	private final ConcurrentMap<String, StubDocument> documents = new ConcurrentHashMap<String, StubDocument>();
+
+	/** The number of ITI-18 requests. */
+	private final AtomicLong queries = new AtomicLong();
+
+	/** The number of ITI-43 requests. */
+	private final AtomicLong retrieves = new AtomicLong();
+
+	/** The number of ITI-41 requests. */
+	private final AtomicLong submissions = new AtomicLong();
+
+	/** The HTTP server. */
+	private final HttpServer server;
+
+	/** The executor of the HTTP server. */
+	private final ExecutorService executor;
+
+	/**
+	 * Instantiates and starts a new stub server.
+	 *
+	 * @param port
+	 *            the port, 0 for any free port
+	 * @param documentsPerPatient
+	 *            the number of documents of every patient
+	 * @param documentSize
+	 *            the size of every document in bytes, 0 for the size of the
+	 *            seed document
+	 * @param latencyMillis
+	 *            the artificial latency of every request in milliseconds
+	 * @throws IOException
+	 *             if the server cannot be started
+	 */
+	public StubXdsServer(int port, int documentsPerPatient, int documentSize, long latencyMillis)
+			throws IOException {
+		this.documentsPerPatient = documentsPerPatient;
+		this.content = createContent(documentSize);
+		this.encodedContent = Base64.getEncoder().encodeToString(content);
+		this.latencyMillis = latencyMillis;
+		try {
+			final StringBuilder hex = new StringBuilder();
+			for (final byte b : MessageDigest.getInstance("SHA-1").digest(content)) {
+				hex.append(String.format("%02x", Integer.valueOf(b & 0xff)));
+			}
+			this.hash = hex.toString();
+		} catch (final NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+
+		this.server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+		this.executor = Executors.newCachedThreadPool(runnable -> {
+			final Thread thread = new Thread(runnable, "xds-stub");
+			thread.setDaemon(true);
+			return thread;
+		});
+		server.setExecutor(executor);
+		server.createContext("/xds-iti18", handler(this::query));
+		server.createContext("/xds-iti43", handler(this::retrieve));
+		server.createContext("/xds-iti41", handler(this::submit));
+		server.start();
+	}
+
+	/**
+	 * Gets the settings of an affinity domain pointing to this stub.
+	 *
+	 * @return the domain settings
+	 */
+	public DomainSettings getDomainSettings() {
+		final String base = "http://localhost:" + getPort();
+		return new DomainSettings("stub", XDSConnector.ORGANIZATIONAL_ID, base + "/xds-iti18",
+				base + "/xds-iti43", base + "/xds-iti41", null, null, null);
+	}
+
+	public int getDocumentSize() {
+		return content.length;
+	}
+
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	public long getQueryCount() {
+		return queries.get();
+	}
+
+	public long getRetrieveCount() {
+		return retrieves.get();
+	}
+
+	public long getSubmissionCount() {
+		return submissions.get();
+	}
+
+	/**
+	 * Stops the server.
+	 */
+	public void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	private interface SoapOperation {
+		String handle(String request);
+	}
+
+	private HttpHandler handler(final SoapOperation operation) {
+		return new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					final ByteArrayOutputStream body = new ByteArrayOutputStream();
+					final byte[] buffer = new byte[16 * 1024];
+					int read;
+					try (InputStream in = exchange.getRequestBody()) {
+						while ((read = in.read(buffer)) != -1) {
+							body.write(buffer, 0, read);
+						}
+					}
+					if (latencyMillis > 0) {
+						Thread.sleep(latencyMillis);
+					}
+					final byte[] response = operation
+							.handle(new String(body.toByteArray(), StandardCharsets.ISO_8859_1))
+							.getBytes(StandardCharsets.UTF_8);
+					exchange.getResponseHeaders().set("Content-Type",
+							"application/soap+xml; charset=UTF-8");
+					exchange.sendResponseHeaders(200, response.length);
+					try (OutputStream out = exchange.getResponseBody()) {
+						out.write(response);
+					}
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} finally {
+					exchange.close();
+				}
+			}
+		};
+	}
+
+	private String query(String request) {
+		queries.incrementAndGet();
+		final String messageId = find(MESSAGE_ID, request);
+		final boolean referencesOnly = request.contains("returnType=\"ObjectRef\"");
+		final List<StubDocument> result = new ArrayList<StubDocument>();
+		if (request.contains(FIND_DOCUMENTS)) {
+			final String patientId = find(PATIENT_ID, request);
+			for (int i = 0; (patientId != null) && (i < documentsPerPatient); i++) {
+				final StubDocument document = new StubDocument(patientId, i);
+				documents.putIfAbsent(document.entryUuid, document);
+				documents.putIfAbsent(document.uniqueId, document);
+				result.add(document);
+			}
+		} else {
+			// GetDocuments by entryUUID or uniqueId
+			final Matcher slot = SLOT_VALUES.matcher(request);
+			if (slot.find()) {
+				final Matcher values = QUOTED.matcher(slot.group());
+				while (values.find()) {
+					final StubDocument document = documents.get(values.group(1));
+					if (document != null) {
+						result.add(document);
+					}
+				}
+			}
+		}
+
+		final StringBuilder body = new StringBuilder(256 + result.size() * 1024);
+		body.append("<query:AdhocQueryResponse")
+				.append(" xmlns:query=\"urn:oasis:names:tc:ebxml-regrep:xsd:query:3.0\"")
+				.append(" xmlns:rim=\"urn:oasis:names:tc:ebxml-regrep:xsd:rim:3.0\"")
+				.append(" status=\"").append(SUCCESS).append("\"><rim:RegistryObjectList>");
+		for (final StubDocument document : result) {
+			if (referencesOnly) {
+				body.append("<rim:ObjectRef id=\"").append(document.entryUuid).append("\"/>");
+			} else {
+				appendExtrinsicObject(body, document);
+			}
+		}
+		body.append("</rim:RegistryObjectList></query:AdhocQueryResponse>");
+		return soap("urn:ihe:iti:2007:RegistryStoredQueryResponse", messageId, body.toString());
+	}
+
+	private void appendExtrinsicObject(StringBuilder body, StubDocument document) {
+		body.append("<rim:ExtrinsicObject id=\"").append(document.entryUuid)
+				.append("\" mimeType=\"text/xml\"")
+				.append(" objectType=\"urn:uuid:7edca82f-054d-47f2-a032-9b2a5b5186c1\"")
+				.append(" status=\"urn:oasis:names:tc:ebxml-regrep:StatusType:Approved\">")
+				.append(slot("creationTime", "20200304120000")).append(slot("hash", hash))
+				.append(slot("languageCode", "de-AT"))
+				.append(slot("repositoryUniqueId", REPOSITORY_UNIQUE_ID))
+				.append(slot("size", Integer.toString(content.length)))
+				.append(slot("sourcePatientId", document.patientId))
+				.append("<rim:ExternalIdentifier id=\"").append(document.entryUuid)
+				.append("-pid\" registryObject=\"").append(document.entryUuid)
+				.append("\" identificationScheme=\"urn:uuid:58a6f841-87b3-4a3e-92fd-a8ffeff98427\"")
+				.append(" value=\"").append(document.patientId).append("\"><rim:Name>")
+				.append("<rim:LocalizedString value=\"XDSDocumentEntry.patientId\"/>")
+				.append("</rim:Name></rim:ExternalIdentifier>")
+				.append("<rim:ExternalIdentifier id=\"").append(document.entryUuid)
+				.append("-uid\" registryObject=\"").append(document.entryUuid)
+				.append("\" identificationScheme=\"urn:uuid:2e82c1f6-a085-4c72-9da3-8640a32e42ab\"")
+				.append(" value=\"").append(document.uniqueId).append("\"><rim:Name>")
+				.append("<rim:LocalizedString value=\"XDSDocumentEntry.uniqueId\"/>")
+				.append("</rim:Name></rim:ExternalIdentifier></rim:ExtrinsicObject>");
+	}
+
+	private String retrieve(String request) {
+		retrieves.incrementAndGet();
+		final String messageId = find(MESSAGE_ID, request);
+		final Matcher uniqueIds = DOCUMENT_UNIQUE_ID.matcher(request);
+		final StringBuilder body = new StringBuilder(encodedContent.length() + 512);
+		body.append("<xdsb:RetrieveDocumentSetResponse xmlns:xdsb=\"urn:ihe:iti:xds-b:2007\"")
+				.append(" xmlns:rs=\"urn:oasis:names:tc:ebxml-regrep:xsd:rs:3.0\">")
+				.append("<rs:RegistryResponse status=\"").append(SUCCESS).append("\"/>");
+		while (uniqueIds.find()) {
+			body.append("<xdsb:DocumentResponse><xdsb:RepositoryUniqueId>")
+					.append(REPOSITORY_UNIQUE_ID).append("</xdsb:RepositoryUniqueId>")
+					.append("<xdsb:DocumentUniqueId>").append(uniqueIds.group(1))
+					.append("</xdsb:DocumentUniqueId><xdsb:mimeType>text/xml</xdsb:mimeType>")
+					.append("<xdsb:Document>").append(encodedContent)
+					.append("</xdsb:Document></xdsb:DocumentResponse>");
+		}
+		body.append("</xdsb:RetrieveDocumentSetResponse>");
+		return soap("urn:ihe:iti:2007:RetrieveDocumentSetResponse", messageId, body.toString());
+	}
+
+	private String submit(String request) {
+		submissions.incrementAndGet();
+		return soap("urn:ihe:iti:2007:ProvideAndRegisterDocumentSet-bResponse",
+				find(MESSAGE_ID, request),
+				"<rs:RegistryResponse xmlns:rs=\"urn:oasis:names:tc:ebxml-regrep:xsd:rs:3.0\""
+						+ " status=\"" + SUCCESS + "\"/>");
+	}
+
+}